@@ -0,0 +1,90 @@
+package ru.otus.vcs.newversion.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge base of two branches on top of deep linear history. Branches diverge either near the tips,
+ * which is the usual case and must not depend on history depth, or at the root, which walks whole history.
+ * Every tenth commit of one branch also merges the trunk tip, so history is not just two chains.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MergeBaseBenchmark {
+
+    private static final int BRANCH_LENGTH = 100;
+
+    @Param({"10000", "100000"})
+    private int depth;
+    @Param({"tip", "root"})
+    private String divergence;
+
+    private Path dir;
+    private CommitGraph graph;
+    private int first;
+    private int second;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("merge-base-benchmark");
+        graph = CommitGraph.open(dir.resolve("commit-graph"));
+        final var tree = Sha1.hash("tree");
+        Sha1 trunk = null;
+        Sha1 forkPoint = null;
+        for (int i = 0; i < depth; i++) {
+            final var sha = Sha1.hash("trunk" + i);
+            graph.append(sha, tree, trunk, null);
+            trunk = sha;
+            if (i == 0) {
+                forkPoint = sha;
+            }
+        }
+        if (divergence.equals("tip")) {
+            forkPoint = trunk;
+        }
+        Sha1 left = forkPoint;
+        Sha1 right = forkPoint;
+        for (int i = 0; i < BRANCH_LENGTH; i++) {
+            final var newLeft = Sha1.hash("left" + i);
+            final var newRight = Sha1.hash("right" + i);
+            graph.append(newLeft, tree, left, null);
+            graph.append(newRight, tree, right, i % 10 == 9 ? trunk : null);
+            left = newLeft;
+            right = newRight;
+        }
+        first = graph.positionOf(left);
+        second = graph.positionOf(right);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dir.resolve("commit-graph"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public List<Integer> mergeBase() {
+        return MergeBase.find(graph, first, second);
+    }
+
+    @Benchmark
+    public boolean isAncestor() {
+        return MergeBase.isAncestor(graph, first, second);
+    }
+}
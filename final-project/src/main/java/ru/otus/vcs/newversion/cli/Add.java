@@ -2,15 +2,21 @@ package ru.otus.vcs.newversion.cli;
 
 import io.airlift.airline.Arguments;
 import io.airlift.airline.Command;
+import io.airlift.airline.Option;
 
-@Command(name = "add", description = "adds regular file to index")
+import java.util.ArrayList;
+import java.util.List;
+
+@Command(name = "add", description = "adds regular files, changed files of directories or files matching glob to index")
 public class Add extends GitCommand {
 
-    @Arguments(required = true)
-    private String path;
+    @Arguments
+    private List<String> paths = new ArrayList<>();
+    @Option(name = {"-A", "--all"}, description = "add all changes of worktree")
+    private boolean all;
 
     @Override
     public void execute() {
-        commandProcessor.add(path);
+        commandProcessor.add(paths, all);
     }
 }
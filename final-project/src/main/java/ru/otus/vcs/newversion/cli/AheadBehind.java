@@ -0,0 +1,24 @@
+package ru.otus.vcs.newversion.cli;
+
+import io.airlift.airline.Arguments;
+import io.airlift.airline.Command;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Command(name = "ahead-behind", description = "prints numbers of commits reachable only from first and only from second commit")
+public class AheadBehind extends GitCommand {
+
+    @Arguments(required = true, title = "commits")
+    private List<String> refs = new ArrayList<>();
+
+    @Override
+    public void execute() {
+        if (refs.size() != 2) {
+            out.println("Exactly two commits must be provided.");
+            return;
+        }
+        final var aheadBehind = commandProcessor.aheadBehind(refs.get(0), refs.get(1));
+        out.println(aheadBehind.first() + "\t" + aheadBehind.second());
+    }
+}
@@ -3,14 +3,21 @@ package ru.otus.vcs.newversion.cli;
 import io.airlift.airline.Arguments;
 import io.airlift.airline.Command;
 
-@Command(name = "branch", description = "create new branch")
+import javax.annotation.Nullable;
+
+@Command(name = "branch", description = "create new branch or list branches")
 public class Branch extends GitCommand {
 
-    @Arguments(required = true)
+    @Nullable
+    @Arguments
     private String branchName;
 
     @Override
     public void execute() {
-        commandProcessor.branch(branchName);
+        if (branchName == null) {
+            commandProcessor.branches().forEach(out::println);
+        } else {
+            commandProcessor.branch(branchName);
+        }
     }
 }
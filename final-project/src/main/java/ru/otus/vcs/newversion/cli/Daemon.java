@@ -0,0 +1,33 @@
+package ru.otus.vcs.newversion.cli;
+
+import io.airlift.airline.Command;
+import io.airlift.airline.Option;
+import ru.otus.vcs.newversion.daemon.DaemonClient;
+import ru.otus.vcs.newversion.daemon.DaemonServer;
+
+@Command(name = "daemon", description = "serves commands run in worktree keeping repository caches warm")
+public class Daemon extends GitCommand {
+
+    @Option(name = "--stop", description = "stops daemon of worktree")
+    private boolean stop;
+    @Option(name = "--fsmonitor", description = "watches worktree, so that status checks only changed files")
+    private boolean fsMonitor;
+
+    @Override
+    public void execute() {
+        final var worktree = commandProcessor.worktree();
+        if (stop) {
+            out.println(DaemonClient.stop(worktree) ? "Daemon is stopped." : "Daemon is not running.");
+        } else if (DaemonClient.isRunning(worktree)) {
+            out.println("Daemon is already running.");
+        } else {
+            out.println("Serving " + worktree + ". Stop daemon with \"simplegit daemon --stop\".");
+            new DaemonServer(worktree, GitCli.create(), fsMonitor).serve();
+        }
+    }
+
+    @Override
+    public boolean canBeServedByDaemon() {
+        return false;
+    }
+}
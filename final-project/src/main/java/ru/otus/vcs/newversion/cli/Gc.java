@@ -0,0 +1,13 @@
+package ru.otus.vcs.newversion.cli;
+
+import io.airlift.airline.Command;
+
+@Command(name = "gc", description = "deletes unreachable objects and packs the rest")
+public class Gc extends GitCommand {
+
+    @Override
+    public void execute() {
+        final int deletedObjects = commandProcessor.gc();
+        out.println("Deleted " + deletedObjects + " objects.");
+    }
+}
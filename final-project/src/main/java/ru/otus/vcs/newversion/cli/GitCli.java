@@ -0,0 +1,37 @@
+package ru.otus.vcs.newversion.cli;
+
+import io.airlift.airline.Cli;
+import io.airlift.airline.Help;
+
+public final class GitCli {
+
+    private GitCli() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @return parser of command line into command, used both by main and by daemon.
+     */
+    public static Cli<Runnable> create() {
+        return Cli.<Runnable>builder("simplegit")
+                .withDescription("version control system")
+                .withDefaultCommand(Help.class)
+                .withCommands(
+                        Init.class,
+                        Add.class,
+                        Remove.class,
+                        Branch.class,
+                        Checkout.class,
+                        Merge.class,
+                        Commit.class,
+                        Status.class,
+                        Repack.class,
+                        MergeBase.class,
+                        AheadBehind.class,
+                        Gc.class,
+                        Log.class,
+                        PackRefs.class,
+                        Daemon.class)
+                .build();
+    }
+}
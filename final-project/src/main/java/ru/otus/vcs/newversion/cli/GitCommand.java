@@ -2,27 +2,43 @@ package ru.otus.vcs.newversion.cli;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import ru.otus.vcs.newversion.exception.GitException;
 import ru.otus.vcs.newversion.commands.CommandProcessor;
+import ru.otus.vcs.newversion.daemon.DaemonCommand;
+import ru.otus.vcs.newversion.exception.GitException;
 import ru.otus.vcs.newversion.gitrepo.GitRepositoryFactoryImpl;
 
-abstract class GitCommand implements Runnable {
+import java.io.PrintStream;
+
+public abstract class GitCommand implements Runnable, DaemonCommand {
 
     private static final Logger logger = LoggerFactory.getLogger(GitCommand.class);
 
-    protected final CommandProcessor commandProcessor = new CommandProcessor(new GitRepositoryFactoryImpl());
+    protected CommandProcessor commandProcessor;
+    protected PrintStream out = System.out;
 
     public abstract void execute();
 
     @Override
     public void run() {
+        run(new CommandProcessor(new GitRepositoryFactoryImpl()), System.out);
+    }
+
+    @Override
+    public void run(final CommandProcessor processor, final PrintStream out) {
+        this.commandProcessor = processor;
+        this.out = out;
         try {
             execute();
         } catch (final GitException ex) {
             final var message = ex.toUserMessage();
-            System.out.println(message);
+            out.println(message);
         } catch (final Exception ex) {
             logger.error("Error executing command.", ex);
         }
     }
+
+    @Override
+    public boolean canBeServedByDaemon() {
+        return true;
+    }
 }
@@ -16,4 +16,9 @@ public class Init extends GitCommand {
     public void execute() {
         commandProcessor.init(stringPath == null ? "" : stringPath);
     }
+
+    @Override
+    public boolean canBeServedByDaemon() {
+        return false;
+    }
 }
@@ -0,0 +1,34 @@
+package ru.otus.vcs.newversion.cli;
+
+import io.airlift.airline.Arguments;
+import io.airlift.airline.Command;
+import io.airlift.airline.Option;
+import ru.otus.vcs.newversion.storage.CommitWalk;
+
+import javax.annotation.Nullable;
+
+@Command(name = "log", description = "lists commits reachable from commit, HEAD by default")
+public class Log extends GitCommand {
+
+    @Nullable
+    @Arguments(title = "commit")
+    private String ref;
+    @Nullable
+    @Option(name = "--path", description = "lists only commits changing file or directory")
+    private String path;
+    @Option(name = "--topo-order", description = "doesn't interleave lines of history")
+    private boolean topological;
+    @Option(name = "--first-parent", description = "follows only first parents of merges")
+    private boolean firstParent;
+    @Option(name = {"-n", "--max-count"}, description = "limits number of listed commits")
+    private int maxCount = -1;
+    @Option(name = "--skip", description = "skips first commits")
+    private int skip;
+
+    @Override
+    public void execute() {
+        final var order = topological ? CommitWalk.Order.Topological : CommitWalk.Order.Date;
+        commandProcessor.log(ref, path, order, firstParent, skip, maxCount)
+                .forEach(out::println);
+    }
+}
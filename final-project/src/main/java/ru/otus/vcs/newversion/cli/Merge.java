@@ -12,9 +12,9 @@ public class Merge extends GitCommand {
     @Override
     public void execute() {
         if (commandProcessor.merge(refString)) {
-            System.out.println("Successfully merged head with " + refString);
+            out.println("Successfully merged head with " + refString);
         } else {
-            System.out.println("Please, resolve merge conflicts and commit them to finish merge");
+            out.println("Please, resolve merge conflicts and commit them to finish merge");
         }
     }
 }
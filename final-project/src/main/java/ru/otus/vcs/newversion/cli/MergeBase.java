@@ -0,0 +1,27 @@
+package ru.otus.vcs.newversion.cli;
+
+import io.airlift.airline.Arguments;
+import io.airlift.airline.Command;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Command(name = "merge-base", description = "prints best common ancestors of two commits")
+public class MergeBase extends GitCommand {
+
+    @Arguments(required = true, title = "commits")
+    private List<String> refs = new ArrayList<>();
+
+    @Override
+    public void execute() {
+        if (refs.size() != 2) {
+            out.println("Exactly two commits must be provided.");
+            return;
+        }
+        final var bases = commandProcessor.mergeBase(refs.get(0), refs.get(1));
+        if (bases.isEmpty()) {
+            out.println("No common ancestor.");
+        }
+        bases.forEach(out::println);
+    }
+}
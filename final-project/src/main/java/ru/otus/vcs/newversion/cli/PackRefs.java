@@ -0,0 +1,13 @@
+package ru.otus.vcs.newversion.cli;
+
+import io.airlift.airline.Command;
+
+@Command(name = "pack-refs", description = "moves branch files to the packed refs file")
+public class PackRefs extends GitCommand {
+
+    @Override
+    public void execute() {
+        final int packedRefs = commandProcessor.packRefs();
+        out.println("Packed " + packedRefs + " refs.");
+    }
+}
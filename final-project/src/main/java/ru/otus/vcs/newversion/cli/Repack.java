@@ -0,0 +1,13 @@
+package ru.otus.vcs.newversion.cli;
+
+import io.airlift.airline.Command;
+
+@Command(name = "repack", description = "moves loose objects to the pack")
+public class Repack extends GitCommand {
+
+    @Override
+    public void execute() {
+        final int packedObjects = commandProcessor.repack();
+        out.println("Packed " + packedObjects + " objects.");
+    }
+}
@@ -9,7 +9,7 @@ public class Status extends GitCommand {
     public void execute() {
         final String message = commandProcessor.status();
         if (!message.isBlank()) {
-            System.out.println(message);
+            out.println(message);
         }
     }
 }
@@ -5,39 +5,65 @@ import ru.otus.vcs.newversion.exception.UserException;
 import ru.otus.vcs.newversion.gitrepo.CommitMessage;
 import ru.otus.vcs.newversion.gitrepo.GitRepositoryFactory;
 import ru.otus.vcs.newversion.gitrepo.UpwardsRepoSearcher;
+import ru.otus.vcs.newversion.index.FsMonitor;
 import ru.otus.vcs.newversion.localrepo.LocalRepoStatus;
 import ru.otus.vcs.newversion.localrepo.LocalRepository;
 import ru.otus.vcs.newversion.localrepo.LocalRepositoryException;
 import ru.otus.vcs.newversion.localrepo.NestedGitLocalRepository;
+import ru.otus.vcs.newversion.objects.Commit;
 import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.BranchName;
 import ru.otus.vcs.newversion.ref.Ref;
 import ru.otus.vcs.newversion.ref.ReservedRef;
 import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.storage.CommitWalk;
+import ru.otus.vcs.newversion.utils.Tuple2;
 import ru.otus.vcs.newversion.utils.Utils;
 
 import javax.annotation.Nullable;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class CommandProcessor {
 
+    private static final String GLOB_CHARS = "*?[{";
+
     private final GitRepositoryFactory gitRepositoryFactory;
     private final Path currentWorkingDir;
+    @Nullable
+    private final FsMonitor fsMonitor;
 
     public CommandProcessor(final GitRepositoryFactory gitRepositoryFactory) {
         this(gitRepositoryFactory, Path.of(""));
     }
 
     public CommandProcessor(final GitRepositoryFactory gitRepositoryFactory, final Path path) {
+        this(gitRepositoryFactory, path, null);
+    }
+
+    /**
+     * @param fsMonitor of some worktree, it is used if current dir is in this worktree.
+     */
+    public CommandProcessor(
+            final GitRepositoryFactory gitRepositoryFactory,
+            final Path path,
+            @Nullable final FsMonitor fsMonitor) {
         Contracts.requireNonNullArgument(gitRepositoryFactory);
         Contracts.requireNonNullArgument(path);
         Contracts.requireThat(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS));
 
         this.gitRepositoryFactory = gitRepositoryFactory;
         this.currentWorkingDir = Utils.toReal(path);
+        this.fsMonitor = fsMonitor;
     }
 
     public void init(final String stringPath) {
@@ -54,18 +80,42 @@ public class CommandProcessor {
     public void add(final String stringPath) {
         Contracts.requireNonNullArgument(stringPath);
 
-        final var path = toPathOrThrowUserEx(stringPath);
-        final Path absPath = toAbsolute(path);
-        if (!Utils.isRegularFileNoFollow(absPath)) {
-            throw new UserException("Regular file at path " + path + " doesn't exist.");
+        add(List.of(stringPath), false);
+    }
+
+    /**
+     * Stages regular files, directories and glob patterns relative to current dir with a single index update.
+     * Directories and patterns stage deletions of tracked files too.
+     *
+     * @param all stage all changes of worktree, paths are ignored.
+     */
+    public void add(final List<String> stringPaths, final boolean all) {
+        Contracts.requireNonNullArgument(stringPaths);
+
+        if (!all && stringPaths.isEmpty()) {
+            throw new UserException("Nothing specified, nothing added.");
         }
         try {
-            final Path realPath = Utils.toReal(absPath);
             final var localRepo = findRepoOrThrow();
-            localRepo.checkThatIsRepositoryPath(realPath);
-            final var relativePath = localRepo.realRepoDir().relativize(realPath);
-            checkThatValidVCSPath(relativePath, realPath);
-            localRepo.add(VCSPath.create(relativePath));
+            if (all) {
+                localRepo.addAll(VCSPath.root, path -> true);
+                return;
+            }
+            final var pathspecs = new ArrayList<Pathspec>(stringPaths.size());
+            for (final var stringPath : stringPaths) {
+                pathspecs.add(toPathspec(localRepo, stringPath));
+            }
+            if (pathspecs.size() == 1 && pathspecs.get(0).file) {
+                localRepo.add(pathspecs.get(0).scope);
+                return;
+            }
+            VCSPath scanDir = pathspecs.get(0).scanDir();
+            Predicate<VCSPath> filter = pathspecs.get(0).filter;
+            for (final var pathspec : pathspecs.subList(1, pathspecs.size())) {
+                scanDir = commonAncestor(scanDir, pathspec.scanDir());
+                filter = filter.or(pathspec.filter);
+            }
+            localRepo.addAll(scanDir, filter);
         } catch (final LocalRepositoryException ex) {
             throw new UserException("Can't add file to index.", ex);
         }
@@ -80,6 +130,28 @@ public class CommandProcessor {
         findRepoOrThrow().branch(BranchName.create(branchName));
     }
 
+    /**
+     * @return names of branches in order, current branch is marked with asterisk.
+     */
+    public List<String> branches() {
+        final var repo = findRepoOrThrow();
+        final var currentBranch = repo.currentBranch();
+        return repo.branches().keySet().stream()
+                .map(branch -> (branch.equals(currentBranch) ? "* " : "  ") + branch.getBranchName())
+                .collect(Collectors.toList());
+    }
+
+    public int packRefs() {
+        return findRepoOrThrow().packRefs();
+    }
+
+    /**
+     * @return real path of worktree of repository containing current dir.
+     */
+    public Path worktree() {
+        return findRepoOrThrow().realRepoDir();
+    }
+
     public boolean merge(final String refString) {
         Contracts.requireNonNullArgument(refString);
 
@@ -128,6 +200,84 @@ public class CommandProcessor {
         return statusResultToUserMessage(statusResult);
     }
 
+    public int repack() {
+        return findRepoOrThrow().repack();
+    }
+
+    /**
+     * @return number of deleted objects.
+     */
+    public int gc() {
+        return findRepoOrThrow().gc();
+    }
+
+    /**
+     * @return numbers of commits reachable only from first and only from second commit.
+     */
+    public Tuple2<Integer, Integer> aheadBehind(final String firstRefString, final String secondRefString) {
+        Contracts.requireNonNullArgument(firstRefString);
+        Contracts.requireNonNullArgument(secondRefString);
+
+        final var first = toRefOfThrowUserForCheckout(firstRefString);
+        final var second = toRefOfThrowUserForCheckout(secondRefString);
+        return findRepoOrThrow().aheadBehind(first, second);
+    }
+
+    /**
+     * @return hex strings of best common ancestors.
+     */
+    public List<String> mergeBase(final String firstRefString, final String secondRefString) {
+        Contracts.requireNonNullArgument(firstRefString);
+        Contracts.requireNonNullArgument(secondRefString);
+
+        final var first = toRefOfThrowUserForCheckout(firstRefString);
+        final var second = toRefOfThrowUserForCheckout(secondRefString);
+        return findRepoOrThrow().mergeBases(first, second).stream()
+                .map(Sha1::getHexString)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param refString commit to start from, HEAD if null.
+     * @param stringPath if not null only commits changing file or dir at path are listed.
+     * @param maxCount   max number of listed commits or negative value for no limit.
+     * @return lazy stream of descriptions of commits.
+     */
+    public Stream<String> log(
+            @Nullable final String refString,
+            @Nullable final String stringPath,
+            final CommitWalk.Order order,
+            final boolean firstParentOnly,
+            final int skip,
+            final int maxCount) {
+        Contracts.requireNonNullArgument(order);
+        if (skip < 0) {
+            throw new UserException("Number of skipped commits can't be negative.");
+        }
+
+        final var ref = refString == null ? ReservedRef.head : toRefOfThrowUserForCheckout(refString);
+        final var localRepo = findRepoOrThrow();
+        VCSPath vcsPath = null;
+        if (stringPath != null) {
+            // path could be deleted in worktree, but still present in history
+            final Path absolutePath = toAbsolute(toPathOrThrowUserEx(stringPath)).normalize();
+            final Path realPath = Files.exists(absolutePath, LinkOption.NOFOLLOW_LINKS)
+                    ? Utils.toReal(absolutePath)
+                    : absolutePath;
+            if (!realPath.equals(localRepo.realRepoDir())) {
+                localRepo.checkThatIsRepositoryPath(realPath);
+                final Path relativePath = localRepo.realRepoDir().relativize(realPath);
+                checkThatValidVCSPath(relativePath, realPath);
+                vcsPath = VCSPath.create(relativePath);
+            }
+        }
+        var commits = localRepo.log(ref, order, firstParentOnly, vcsPath).skip(skip);
+        if (maxCount >= 0) {
+            commits = commits.limit(maxCount);
+        }
+        return commits.map(CommandProcessor::commitToUserMessage);
+    }
+
     public void checkout(final String refString) {
         Contracts.requireNonNullArgument(refString);
 
@@ -155,9 +305,68 @@ public class CommandProcessor {
         if (gitRep == null) {
             throw new UserException("Can't find repository searching upwards from " + currentWorkingDir);
         }
+        final var worktree = gitRep.repoRealPath().getParent();
+        if (fsMonitor != null && fsMonitor.getWorktree().equals(worktree)) {
+            return new NestedGitLocalRepository(gitRep, fsMonitor);
+        }
         return new NestedGitLocalRepository(gitRep);
     }
 
+    private Pathspec toPathspec(final LocalRepository localRepo, final String stringPath) {
+        if (isGlob(stringPath)) {
+            final var relativeCwd = localRepo.realRepoDir().relativize(currentWorkingDir);
+            final VCSPath cwd;
+            if (relativeCwd.toString().isEmpty()) {
+                cwd = VCSPath.root;
+            } else {
+                checkThatValidVCSPath(relativeCwd, currentWorkingDir);
+                cwd = VCSPath.create(relativeCwd);
+            }
+            final PathMatcher matcher;
+            try {
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + stringPath);
+            } catch (final IllegalArgumentException ex) {
+                throw new UserException("Bad glob pattern " + stringPath + ".");
+            }
+            return new Pathspec(
+                    cwd,
+                    false,
+                    path -> path.startsWith(cwd) && matcher.matches(relativeCwd.relativize(path.toOsPath()))
+            );
+        }
+        final var path = toPathOrThrowUserEx(stringPath);
+        final Path absPath = toAbsolute(path);
+        final boolean isDirectory = Utils.isDirectoryNoFollow(absPath);
+        if (!isDirectory && !Utils.isRegularFileNoFollow(absPath)) {
+            throw new UserException("Regular file or directory at path " + path + " doesn't exist.");
+        }
+        final Path realPath = Utils.toReal(absPath);
+        if (isDirectory && realPath.equals(localRepo.realRepoDir())) {
+            return new Pathspec(VCSPath.root, false, anyPath -> true);
+        }
+        localRepo.checkThatIsRepositoryPath(realPath);
+        final var relativePath = localRepo.realRepoDir().relativize(realPath);
+        checkThatValidVCSPath(relativePath, realPath);
+        final var vcsPath = VCSPath.create(relativePath);
+        if (isDirectory) {
+            return new Pathspec(vcsPath, false, anyPath -> anyPath.startsWith(vcsPath));
+        } else {
+            return new Pathspec(vcsPath, true, vcsPath::equals);
+        }
+    }
+
+    private static boolean isGlob(final String stringPath) {
+        return GLOB_CHARS.chars().anyMatch(ch -> stringPath.indexOf(ch) != -1);
+    }
+
+    private static VCSPath commonAncestor(final VCSPath first, final VCSPath second) {
+        VCSPath result = first;
+        while (!second.startsWith(result)) {
+            result = result.getParent();
+        }
+        return result;
+    }
+
     private static void checkThatValidVCSPath(final Path relativePath, final Path original) {
         if (!VCSPath.isValidVCSPath(relativePath)) {
             throw new UserException("Bad path format " + original + ". It's relative repository path = " + relativePath
@@ -174,6 +383,14 @@ public class CommandProcessor {
         }
     }
 
+    private static String commitToUserMessage(final Commit commit) {
+        final var message = commit.getMessage().getMessage().strip().replace("\n", System.lineSeparator() + "    ");
+        return "commit " + commit.sha1().getHexString() + System.lineSeparator()
+                + "Author: " + commit.getAuthor() + System.lineSeparator()
+                + System.lineSeparator()
+                + "    " + message + System.lineSeparator();
+    }
+
     private static String statusResultToUserMessage(final LocalRepoStatus status) {
         final var strBuilder = new StringBuilder();
         @Nullable final var mergeConflicts = status.getMergeConflicts();
@@ -239,4 +456,27 @@ public class CommandProcessor {
             return currentWorkingDir.resolve(path);
         }
     }
+
+    /**
+     * Argument of add resolved against repository.
+     */
+    private static class Pathspec {
+
+        /**
+         * Regular file or directory to add, current dir for glob.
+         */
+        private final VCSPath scope;
+        private final boolean file;
+        private final Predicate<VCSPath> filter;
+
+        private Pathspec(final VCSPath scope, final boolean file, final Predicate<VCSPath> filter) {
+            this.scope = scope;
+            this.file = file;
+            this.filter = filter;
+        }
+
+        private VCSPath scanDir() {
+            return file ? scope.getParent() : scope;
+        }
+    }
 }
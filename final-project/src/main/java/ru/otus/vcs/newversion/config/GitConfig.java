@@ -9,6 +9,7 @@ import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -21,12 +22,27 @@ public class GitConfig {
     public static final ConfigKey<Integer> REPO_VER_KEY =
             ConfigKey.integerConfigKey("core.repositoryformatversion", "0");
     public static final ConfigKey<String> USER = ConfigKey.stringKey("user", "Nickson");
+    public static final ConfigKey<Integer> DELTA_DEPTH =
+            ConfigKey.integerConfigKey("pack.deltaDepth", "10");
+    public static final ConfigKey<String> COMPRESSION_CODEC =
+            ConfigKey.choiceKey("core.compressionCodec", "zlib", Set.of("zlib", "zlib-fast", "none"));
+    public static final ConfigKey<Integer> OBJECT_CACHE_LIMIT =
+            ConfigKey.integerConfigKey("core.objectCacheLimit", String.valueOf(16 * 1024 * 1024));
+    /**
+     * Blobs of at least this size are stored as content-defined chunks, zero disables chunking.
+     */
+    public static final ConfigKey<Integer> CHUNKED_BLOB_THRESHOLD =
+            ConfigKey.integerConfigKey("core.chunkedBlobThreshold", "0");
 
     private static final Map<String, ConfigKey<?>> allowedKeysByName = Map.of(
             BARE_KEY.name, BARE_KEY,
             FILEMODE_KEY.name, FILEMODE_KEY,
             REPO_VER_KEY.name, REPO_VER_KEY,
-            USER.name, USER);
+            USER.name, USER,
+            DELTA_DEPTH.name, DELTA_DEPTH,
+            COMPRESSION_CODEC.name, COMPRESSION_CODEC,
+            OBJECT_CACHE_LIMIT.name, OBJECT_CACHE_LIMIT,
+            CHUNKED_BLOB_THRESHOLD.name, CHUNKED_BLOB_THRESHOLD);
 
     private final Map<ConfigKey<?>, String> keyValues;
 
@@ -190,6 +206,21 @@ public class GitConfig {
             );
         }
 
+        private static ConfigKey<String> choiceKey(
+                final String name,
+                final String defaultValue,
+                final Set<String> allowedValues) {
+            Contracts.requireThat(allowedValues.contains(defaultValue));
+            return new ConfigKey<>(
+                    name,
+                    allowedValues::contains,
+                    "Value should be one of " + allowedValues,
+                    Function.identity(),
+                    Object::toString,
+                    defaultValue
+            );
+        }
+
         private static ConfigKey<Integer> integerConfigKey(final String name, final String defaultValue) {
             Contracts.requireThat(isInteger(defaultValue));
             return new ConfigKey<>(
@@ -0,0 +1,41 @@
+package ru.otus.vcs.newversion.daemon;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.gitrepo.GitRepoImpl;
+import ru.otus.vcs.newversion.gitrepo.GitRepositoryFactoryImpl;
+import ru.otus.vcs.newversion.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps restored repositories between commands, so their object cache, commit graph and index stay warm.
+ * Repository could be changed by other processes meanwhile, so cached one is refreshed before it is returned.
+ */
+class CachingGitRepositoryFactory extends GitRepositoryFactoryImpl {
+
+    private final Map<List<Object>, GitRepoImpl> repositories = new HashMap<>();
+
+    @Nullable
+    @Override
+    public synchronized GitRepoImpl restore(final Path path, final boolean bare) {
+        Contracts.requireNonNullArgument(path);
+
+        final var key = List.<Object>of(Utils.toReal(path), bare);
+        final var cached = repositories.get(key);
+        if (cached != null && Utils.isDirectoryNoFollow(cached.repoRealPath())) {
+            cached.refresh();
+            return cached;
+        }
+        final var restored = super.restore(path, bare);
+        if (restored == null) {
+            repositories.remove(key);
+        } else {
+            repositories.put(key, restored);
+        }
+        return restored;
+    }
+}
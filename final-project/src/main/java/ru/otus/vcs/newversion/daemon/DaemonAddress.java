@@ -0,0 +1,121 @@
+package ru.otus.vcs.newversion.daemon;
+
+import org.apache.commons.codec.binary.Hex;
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.gitrepo.GitRepository;
+import ru.otus.vcs.newversion.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Loopback port of daemon and secret token which client must send first. It is published in file
+ * {@link #FILE_NAME} in repository dir, file is readable only by owner where file system supports it.
+ */
+final class DaemonAddress {
+
+    static final String FILE_NAME = "daemon";
+
+    private static final int TOKEN_BYTES = 16;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int port;
+    private final String token;
+
+    DaemonAddress(final int port, final String token) {
+        Contracts.requireThat(port > 0 && port <= 0xFFFF);
+        Contracts.requireThat(token.length() == 2 * TOKEN_BYTES);
+
+        this.port = port;
+        this.token = token;
+    }
+
+    static String newToken() {
+        final var bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        return Hex.encodeHexString(bytes);
+    }
+
+    static Path file(final Path worktree) {
+        return worktree.resolve(GitRepository.DIR_NAME).resolve(FILE_NAME);
+    }
+
+    /**
+     * @return address of daemon of worktree or null if no daemon published it.
+     */
+    @Nullable
+    static DaemonAddress readOrNull(final Path worktree) {
+        final var path = file(worktree);
+        final String content;
+        try {
+            content = Files.readString(path, StandardCharsets.US_ASCII);
+        } catch (final NoSuchFileException ex) {
+            return null;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read daemon address " + path + ".", ex);
+        }
+        final var parts = content.strip().split(" ");
+        Contracts.requireThat(
+                parts.length == 2 && parts[0].chars().allMatch(Character::isDigit) && parts[0].length() <= 5
+                        && parts[1].length() == 2 * TOKEN_BYTES,
+                "Bad format of daemon address " + path + "."
+        );
+        return new DaemonAddress(Integer.parseInt(parts[0]), parts[1]);
+    }
+
+    /**
+     * Publishes address atomically, so client never reads partially written file.
+     */
+    void write(final Path worktree) {
+        final var path = file(worktree);
+        final var temp = path.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Files.deleteIfExists(temp);
+            if (Files.getFileStore(path.getParent()).supportsFileAttributeView("posix")) {
+                Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            }
+            Files.writeString(temp, port + " " + token + "\n", StandardCharsets.US_ASCII);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException ex) {
+            Utils.deleteIfExists(temp);
+            throw new UncheckedIOException("Can't write daemon address " + path + ".", ex);
+        }
+    }
+
+    /**
+     * Deletes published address if it is still this one, newer daemon could replace it.
+     */
+    void deleteIfPublished(final Path worktree) {
+        final var published = readOrNull(worktree);
+        if (published != null && published.port == port && published.isToken(token)) {
+            Utils.deleteIfExists(file(worktree));
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    /**
+     * Compares token in constant time.
+     */
+    boolean isToken(final String candidate) {
+        return MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.US_ASCII),
+                candidate.getBytes(StandardCharsets.US_ASCII)
+        );
+    }
+}
@@ -0,0 +1,129 @@
+package ru.otus.vcs.newversion.daemon;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+
+/**
+ * Thin client of {@link DaemonServer}, it finds daemon of worktree containing current dir.
+ */
+public final class DaemonClient {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private DaemonClient() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Sends command to daemon and copies its output to out.
+     *
+     * @return false if no daemon is running, so command must be run by client itself.
+     */
+    public static boolean forward(final Path cwd, final String[] args, final PrintStream out) {
+        Contracts.requireNonNullArgument(cwd);
+        Contracts.requireNonNullArgument(args);
+        Contracts.requireNonNullArgument(out);
+        Contracts.requireThat(args.length <= DaemonServer.MAX_ARGUMENTS);
+
+        final var realCwd = Utils.toReal(cwd);
+        try (var socket = connectOrNull(findAddressOrNull(realCwd), DaemonServer.COMMAND)) {
+            if (socket == null) {
+                return false;
+            }
+            final var output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            output.writeUTF(realCwd.toString());
+            output.writeInt(args.length);
+            for (final var arg : args) {
+                output.writeUTF(arg);
+            }
+            output.flush();
+            copy(socket.getInputStream(), out);
+            return true;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't run command by daemon.", ex);
+        }
+    }
+
+    public static boolean isRunning(final Path worktree) {
+        return send(worktree, DaemonServer.PING);
+    }
+
+    /**
+     * @return false if daemon was not running.
+     */
+    public static boolean stop(final Path worktree) {
+        return send(worktree, DaemonServer.STOP);
+    }
+
+    private static boolean send(final Path worktree, final byte operation) {
+        Contracts.requireNonNullArgument(worktree);
+
+        try (var socket = connectOrNull(DaemonAddress.readOrNull(worktree), operation)) {
+            return socket != null;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't send request to daemon.", ex);
+        }
+    }
+
+    @Nullable
+    private static DaemonAddress findAddressOrNull(final Path realCwd) {
+        for (Path dir = realCwd; dir != null; dir = dir.getParent()) {
+            final var address = DaemonAddress.readOrNull(dir);
+            if (address != null) {
+                return address;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Daemon which was killed leaves its address, connection to it is refused.
+     *
+     * @return socket with sent token and operation or null if there is no daemon.
+     */
+    @Nullable
+    private static Socket connectOrNull(@Nullable final DaemonAddress address, final byte operation) throws IOException {
+        if (address == null) {
+            return null;
+        }
+        final var socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+        } catch (final ConnectException ex) {
+            socket.close();
+            return null;
+        }
+        try {
+            final var output = new DataOutputStream(socket.getOutputStream());
+            output.writeUTF(address.getToken());
+            output.writeByte(operation);
+            output.flush();
+            return socket;
+        } catch (final IOException ex) {
+            Utils.closeQuietly(socket);
+            throw ex;
+        }
+    }
+
+    private static void copy(final InputStream input, final PrintStream out) throws IOException {
+        final var buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        out.flush();
+    }
+}
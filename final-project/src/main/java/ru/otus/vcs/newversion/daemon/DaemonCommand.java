@@ -0,0 +1,21 @@
+package ru.otus.vcs.newversion.daemon;
+
+import ru.otus.vcs.newversion.commands.CommandProcessor;
+
+import java.io.PrintStream;
+
+/**
+ * Command which can be run by daemon on behalf of client.
+ */
+public interface DaemonCommand {
+
+    /**
+     * Runs command against repository found by processor, printing output to out instead of stdout.
+     */
+    void run(CommandProcessor processor, PrintStream out);
+
+    /**
+     * @return false if command must be run by client itself, e.g. it creates repository or controls daemon.
+     */
+    boolean canBeServedByDaemon();
+}
@@ -0,0 +1,140 @@
+package ru.otus.vcs.newversion.daemon;
+
+import io.airlift.airline.Cli;
+import io.airlift.airline.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.commands.CommandProcessor;
+import ru.otus.vcs.newversion.index.FsMonitor;
+import ru.otus.vcs.newversion.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Serves commands of thin clients run in one worktree. Repository is restored once and reused, so its
+ * object cache, commit graph and index are not reread by every command. Java has no unix domain sockets
+ * before 16, so daemon listens on loopback port published by {@link DaemonAddress} and client must
+ * send secret token first. Commands are served one by one, like they would be run from one shell.
+ * <p>
+ * Request is token, operation and for {@link #COMMAND} current dir and arguments, strings are modified utf-8.
+ * Response to command is its output, connection is closed after it.
+ */
+public final class DaemonServer {
+
+    static final byte COMMAND = 1;
+    static final byte PING = 2;
+    static final byte STOP = 3;
+    static final int MAX_ARGUMENTS = 4096;
+
+    private static final Logger logger = LoggerFactory.getLogger(DaemonServer.class);
+
+    private final Path worktree;
+    private final Cli<Runnable> cli;
+    private final boolean watchWorktree;
+    private final CachingGitRepositoryFactory repositoryFactory = new CachingGitRepositoryFactory();
+    @Nullable
+    private FsMonitor fsMonitor;
+
+    /**
+     * @param watchWorktree if true, worktree is watched by {@link FsMonitor}, so status rescans only changed paths.
+     */
+    public DaemonServer(final Path worktree, final Cli<Runnable> cli, final boolean watchWorktree) {
+        Contracts.requireNonNullArgument(worktree);
+        Contracts.requireNonNullArgument(cli);
+
+        this.worktree = Utils.toReal(worktree);
+        this.cli = cli;
+        this.watchWorktree = watchWorktree;
+    }
+
+    /**
+     * Serves clients until one of them stops daemon.
+     */
+    public void serve() {
+        try (var serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             var monitor = watchWorktree ? FsMonitor.start(worktree) : null) {
+            fsMonitor = monitor;
+            final var address = new DaemonAddress(serverSocket.getLocalPort(), DaemonAddress.newToken());
+            address.write(worktree);
+            try {
+                boolean running = true;
+                while (running) {
+                    try (var socket = serverSocket.accept()) {
+                        running = serve(socket, address);
+                    } catch (final IOException | RuntimeException ex) {
+                        logger.error("Error serving client.", ex);
+                    }
+                }
+            } finally {
+                address.deleteIfPublished(worktree);
+            }
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't serve clients of daemon of " + worktree + ".", ex);
+        }
+    }
+
+    /**
+     * @return false if client stopped daemon.
+     */
+    private boolean serve(final Socket socket, final DaemonAddress address) throws IOException {
+        final var input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        if (!address.isToken(input.readUTF())) {
+            logger.warn("Client sent wrong token.");
+            return true;
+        }
+        final byte operation = input.readByte();
+        switch (operation) {
+            case COMMAND:
+                final var cwd = Path.of(input.readUTF());
+                final int argumentsCount = input.readInt();
+                Contracts.requireThat(argumentsCount >= 0 && argumentsCount <= MAX_ARGUMENTS, "Bad arguments count.");
+                final var args = new String[argumentsCount];
+                for (int i = 0; i < argumentsCount; i++) {
+                    args[i] = input.readUTF();
+                }
+                final var out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, StandardCharsets.UTF_8);
+                execute(cwd, args, out);
+                out.flush();
+                return true;
+            case PING:
+                return true;
+            case STOP:
+                return false;
+            default:
+                logger.warn("Client sent unknown operation {}.", operation);
+                return true;
+        }
+    }
+
+    private void execute(final Path cwd, final String[] args, final PrintStream out) {
+        if (!Files.isDirectory(cwd) || !Utils.toReal(cwd).startsWith(worktree)) {
+            out.println("Daemon serves only commands run in " + worktree + ".");
+            return;
+        }
+        final Runnable command;
+        try {
+            command = cli.parse(args);
+        } catch (final ParseException ex) {
+            out.println("Bad command line arguments. " + ex.getMessage());
+            return;
+        }
+        if (!(command instanceof DaemonCommand) || !((DaemonCommand) command).canBeServedByDaemon()) {
+            out.println("Command can't be served by daemon.");
+            return;
+        }
+        ((DaemonCommand) command).run(new CommandProcessor(repositoryFactory, cwd, fsMonitor), out);
+    }
+}
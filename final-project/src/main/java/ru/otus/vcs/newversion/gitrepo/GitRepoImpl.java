@@ -2,31 +2,62 @@ package ru.otus.vcs.newversion.gitrepo;
 
 import ru.otus.utils.Contracts;
 import ru.otus.vcs.newversion.config.GitConfig;
+import ru.otus.vcs.newversion.index.FileStat;
 import ru.otus.vcs.newversion.index.Index;
+import ru.otus.vcs.newversion.index.IndexEntry;
+import ru.otus.vcs.newversion.index.Stage;
 import ru.otus.vcs.newversion.index.diff.Addition;
 import ru.otus.vcs.newversion.index.diff.Modification;
 import ru.otus.vcs.newversion.index.diff.VCSFileChange;
+import ru.otus.vcs.newversion.merge.ThreeWayMerge;
 import ru.otus.vcs.newversion.objects.Blob;
 import ru.otus.vcs.newversion.objects.Commit;
 import ru.otus.vcs.newversion.objects.GitObject;
+import ru.otus.vcs.newversion.objects.IndexTrees;
+import ru.otus.vcs.newversion.objects.ObjectType;
 import ru.otus.vcs.newversion.objects.Tree;
+import ru.otus.vcs.newversion.objects.TreeDiff;
 import ru.otus.vcs.newversion.path.VCSFileDesc;
 import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.BranchName;
 import ru.otus.vcs.newversion.ref.Ref;
 import ru.otus.vcs.newversion.ref.ReservedRef;
 import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.storage.CommitGraph;
+import ru.otus.vcs.newversion.storage.CommitWalk;
+import ru.otus.vcs.newversion.storage.MergeBase;
+import ru.otus.vcs.newversion.storage.ObjectCache;
+import ru.otus.vcs.newversion.storage.ObjectDatabase;
+import ru.otus.vcs.newversion.storage.ReachableObjects;
 import ru.otus.vcs.newversion.utils.Tuple2;
 import ru.otus.vcs.newversion.utils.Utils;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeSet;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.joining;
@@ -34,8 +65,25 @@ import static java.util.stream.Collectors.toList;
 
 public class GitRepoImpl implements GitRepository {
 
+    private static final int BITMAP_INTERVAL = 100;
+
     private final Path repoRoot;
     private final GitConfig config;
+    private final ObjectDatabase objectDatabase;
+    private final ObjectCache objectCache;
+    @Nullable
+    private CommitGraph commitGraph;
+    @Nullable
+    private LockFile indexLock;
+    @Nullable
+    private Index lockedIndex;
+    private PackedRefs packedRefs = PackedRefs.EMPTY;
+    @Nullable
+    private List<Object> packedRefsStamp;
+    @Nullable
+    private Index index;
+    @Nullable
+    private List<Object> indexStamp;
 
     GitRepoImpl(final Path repoRoot, final GitConfig config) {
         Contracts.requireNonNullArgument(repoRoot);
@@ -43,6 +91,8 @@ public class GitRepoImpl implements GitRepository {
 
         this.repoRoot = Utils.toReal(repoRoot);
         this.config = config;
+        this.objectDatabase = new ObjectDatabase(this.repoRoot.resolve(RepositoryLayout.OBJECTS), config);
+        this.objectCache = new ObjectCache(Math.max(0, config.get(GitConfig.OBJECT_CACHE_LIMIT)));
     }
 
     @Override
@@ -55,14 +105,52 @@ public class GitRepoImpl implements GitRepository {
         }
         final Path pathToBranchFile = repoRoot.resolve(RepositoryLayout.HEADS)
                 .resolve(branchName.getBranchName());
-        if (Utils.isRegularFileNoFollow(pathToBranchFile)) {
+        if (readBranchOrNull(branchName.getBranchName()) != null) {
             throw new GitRepositoryException("Branch with name " + branchName.getBranchName() + " already exists.");
         }
-        Utils.writeUtf8(pathToBranchFile, headCommit.sha1().getHexString() + "\n");
+        updateRef(pathToBranchFile, null, headCommit.sha1());
+    }
+
+    @Override
+    public Map<BranchName, Sha1> branches() {
+        final var result = new LinkedHashMap<BranchName, Sha1>();
+        allBranches().forEach((name, sha) -> result.put(BranchName.create(name), sha));
+        return result;
+    }
+
+    @Nullable
+    @Override
+    public BranchName currentBranch() {
+        final var headContent = readHeadContent();
+        return BranchName.isValidBranchName(headContent) ? BranchName.create(headContent) : null;
+    }
+
+    @Override
+    public int packRefs() {
+        final var packedRefsPath = repoRoot.resolve(RepositoryLayout.PACKED_REFS);
+        final Map<String, Sha1> looseBranches;
+        try (var lock = LockFile.acquire(packedRefsPath)) {
+            looseBranches = looseBranches();
+            final var branches = PackedRefs.read(packedRefsPath).toMap();
+            branches.putAll(looseBranches);
+            lock.write(PackedRefs.serialize(branches));
+            lock.commit();
+        }
+        int packed = 0;
+        for (final var branch : looseBranches.entrySet()) {
+            if (deleteLooseBranchIfUnchanged(branch.getKey(), branch.getValue())) {
+                packed++;
+            }
+        }
+        return packed;
     }
 
     @Override
     public Sha1 commit(final CommitMessage commitMessage) {
+        return underIndexLock(() -> commitUnderLock(commitMessage));
+    }
+
+    private Sha1 commitUnderLock(final CommitMessage commitMessage) {
         Contracts.requireNonNullArgument(commitMessage);
 
         final var index = getIndex();
@@ -101,6 +189,10 @@ public class GitRepoImpl implements GitRepository {
 
     @Override
     public Tuple2<List<VCSFileChange>, MergeConflicts> startMerge(final Ref ref) {
+        return underIndexLock(() -> startMergeUnderLock(ref));
+    }
+
+    private Tuple2<List<VCSFileChange>, MergeConflicts> startMergeUnderLock(final Ref ref) {
         Contracts.requireNonNullArgument(ref);
 
         if (!(ref instanceof BranchName)) {
@@ -120,52 +212,56 @@ public class GitRepoImpl implements GitRepository {
         if (targetCommit.sha1().equals(headCommit.sha1())) {
             throw new GitRepositoryException("Target branch commit is the same as head");
         }
-        final var parentsOfHead = getAllParents(headCommit);
-        final var parentsOfTarget = getAllParents(targetCommit);
-        if (parentsOfHead.contains(targetCommit.sha1())) {
+        final var graph = commitGraph();
+        final int head = graphPosition(headCommit);
+        final int target = graphPosition(targetCommit);
+        if (MergeBase.isAncestor(graph, target, head)) {
             throw new GitRepositoryException("Current head is ahead of target.");
         }
-        if (parentsOfTarget.contains(headCommit.sha1())) {
+        if (MergeBase.isAncestor(graph, head, target)) {
             return new Tuple2<>(startFastForwardMerge(headCommit, targetCommit), null);
         }
-        Sha1 firstCommonParent = null;
-        for (final var parentSha : parentsOfHead) {
-            if (parentsOfTarget.contains(parentSha)) {
-                firstCommonParent = parentSha;
-                break;
-            }
+        final var bases = MergeBase.find(graph, head, target);
+        if (bases.isEmpty()) {
+            throw new GitRepositoryException("Head and target branch have no common ancestor.");
         }
-        Contracts.requireNonNullArgument(firstCommonParent);
-        final var baseCommit = Contracts.ensureNonNull(readCommitOrNull(firstCommonParent));
+        final var baseCommit = Contracts.ensureNonNull(readCommitOrNull(graph.sha(bases.get(0))));
         return startLinearMerge(baseCommit, headCommit, targetCommit);
     }
 
     @Override
     public void finishMerge() {
+        underIndexLock(this::finishMergeUnderLock);
+    }
+
+    private void finishMergeUnderLock() {
         final var headCommit = Contracts.ensureNonNull(readCommitOrNull(ReservedRef.head));
         final var mergeHeadCommit = Contracts.ensureNonNull(readCommitOrNull(ReservedRef.mergeHead));
         final var index = getIndex();
         Contracts.forbidThat(index.hasMergeConflict());
-        final var trees = Tree.createFromIndex(index);
-        trees.forEach(this::saveGitObjectIfAbsent);
+        final var treeSha = saveTrees(index, IndexTrees.build(index));
         final var newCommit = new Commit(
-                trees.get(0).sha1(),
+                treeSha,
                 headCommit.sha1(),
                 mergeHeadCommit.sha1(),
                 config.get(GitConfig.USER),
                 CommitMessage.create("Merge " + headCommit.sha1().getHexString() + " and " + mergeHeadCommit.sha1().getHexString() + ".")
         );
         saveGitObjectIfAbsent(newCommit);
+        graphPosition(newCommit);
         Utils.delete(repoRoot.resolve(RepositoryLayout.MERGE_HEAD));
-        updateHeadAfterCommit(newCommit.sha1());
+        updateHeadAfterCommit(headCommit.sha1(), newCommit.sha1());
     }
 
     @Override
     public void abortMerge() {
+        underIndexLock(this::abortMergeUnderLock);
+    }
+
+    private void abortMergeUnderLock() {
         final var commit = Contracts.ensureNonNull(readCommitOrNull(ReservedRef.head));
-        final var tree = Contracts.ensureNonNull(readTreeOrNull(commit.getTreeSha()));
-        final var index = tree.index(sha -> Contracts.ensureNonNull(readTreeOrNull(sha)));
-        saveIndex(index);
+        final var index = readTree(commit.getTreeSha()).index(this::readTree);
+        saveIndex(index.withStatsFrom(getIndex()));
         Utils.delete(repoRoot.resolve(RepositoryLayout.MERGE_HEAD));
     }
 
@@ -175,15 +271,60 @@ public class GitRepoImpl implements GitRepository {
         Contracts.requireNonNullArgument(path);
         Contracts.forbidThat(path.isRoot());
 
+        add(new ByteArrayInputStream(data), data.length, path, FileStat.NONE);
+    }
+
+    @Override
+    public void add(final InputStream content, final long size, final VCSPath path, final FileStat stat) {
+        underIndexLock(() -> addUnderLock(content, size, path, stat));
+    }
+
+    private void addUnderLock(final InputStream content, final long size, final VCSPath path, final FileStat stat) {
+        Contracts.requireNonNullArgument(content);
+        Contracts.requireNonNullArgument(path);
+        Contracts.requireNonNullArgument(stat);
+        Contracts.forbidThat(path.isRoot());
+
         final var index = getIndex();
-        final var blob = new Blob(data);
-        saveGitObjectIfAbsent(blob);
-        final var newIndex = index.withNewIndexEntry(path, blob.sha1());
+        final var sha = objectDatabase.saveBlob(content, size);
+        final var newIndex = index.withNewIndexEntry(path, sha, stat);
         saveIndex(newIndex);
     }
 
+    @Override
+    public Sha1 saveBlob(final InputStream content, final long size) {
+        Contracts.requireNonNullArgument(content);
+
+        return objectDatabase.saveBlob(content, size);
+    }
+
+    @Override
+    public void updateIndex(final List<IndexEntry> entries, final Collection<VCSPath> removed) {
+        underIndexLock(() -> updateIndexUnderLock(entries, removed));
+    }
+
+    private void updateIndexUnderLock(final List<IndexEntry> entries, final Collection<VCSPath> removed) {
+        Contracts.requireNonNullArgument(entries);
+        Contracts.requireNonNullArgument(removed);
+
+        if (entries.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        final var builder = getIndex().toBuilder();
+        for (final var entry : entries) {
+            Contracts.requireThat(entry.getStage() == Stage.normal);
+            builder.add(entry.getPath(), entry.getSha(), entry.getStat());
+        }
+        removed.forEach(builder::remove);
+        saveIndex(builder.build());
+    }
+
     @Override
     public boolean remove(final VCSPath path) {
+        return underIndexLock(() -> removeUnderLock(path));
+    }
+
+    private boolean removeUnderLock(final VCSPath path) {
         Contracts.requireNonNullArgument(path);
         Contracts.forbidThat(path.isRoot());
 
@@ -201,6 +342,13 @@ public class GitRepoImpl implements GitRepository {
         return new Blob(data).sha1();
     }
 
+    @Override
+    public Sha1 hash(final InputStream content, final long size) {
+        Contracts.requireNonNullArgument(content);
+
+        return ObjectDatabase.hashBlob(content, size);
+    }
+
     @Override
     public byte[] readFile(final Ref ref, final VCSPath vcsPath) {
         Contracts.requireNonNullArgument(ref);
@@ -221,11 +369,10 @@ public class GitRepoImpl implements GitRepository {
         if (referredCommit == null) {
             throw new GitRepositoryException("Ref should refer to commit.");
         }
-        final var index = indexFromTreeRef(referredCommit.getTreeSha());
-        if (!index.contains(vcsPath)) {
+        final var sha = readTree(referredCommit.getTreeSha()).findFile(vcsPath, this::readTree);
+        if (sha == null) {
             throw new GitRepositoryException("File for provided ref and path doesn't exist");
         }
-        final var sha = index.hashOfPath(vcsPath);
         final var blob = Contracts.ensureNonNull(readBlobOrNull(sha));
         return blob.getContent();
     }
@@ -237,6 +384,23 @@ public class GitRepoImpl implements GitRepository {
         return Contracts.ensureNonNull(readBlobOrNull(sha)).getContent();
     }
 
+    @Override
+    public InputStream openFile(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final var input = Contracts.ensureNonNull(objectDatabase.openOrNull(sha));
+        try {
+            GitObject.readHeader(input, ObjectType.Blob);
+            return input;
+        } catch (final IOException ex) {
+            Utils.closeQuietly(input);
+            throw new UncheckedIOException("Can't read blob " + sha.getHexString() + ".", ex);
+        } catch (final RuntimeException ex) {
+            Utils.closeQuietly(input);
+            throw ex;
+        }
+    }
+
     @Override
     public List<VCSFileChange> checkoutChanges(final Ref ref) {
         Contracts.requireNonNullArgument(ref);
@@ -246,22 +410,29 @@ public class GitRepoImpl implements GitRepository {
         final var staged = getIndex();
         checkNoChangesWithHead(staged, () -> new GitRepositoryException("There are uncommitted changes"));
         final Commit checkoutCommit = readCommitForUserProvidedRef(ref);
-        final var checkoutIndex = indexFromTreeRef(checkoutCommit.getTreeSha());
-        return checkoutIndex.getDiff(staged);
+        return TreeDiff.diff(checkoutCommit.getTreeSha(), headTreeOrNull(), this::readTree);
     }
 
     @Override
     public void checkout(final Ref ref) {
+        underIndexLock(() -> checkoutUnderLock(ref));
+    }
+
+    private void checkoutUnderLock(final Ref ref) {
         Contracts.requireNonNullArgument(ref);
 
         checkIsValidCheckoutRef(ref, () -> new IllegalStateException("Bad checkout ref " + ref + "."));
         checkMergeNotInProgress(() -> new IllegalStateException("Can't call checkout while merge in progress"));
+        final var staged = getIndex();
         checkNoChangesWithHead(
-                getIndex(),
+                staged,
                 () -> new IllegalStateException("Can't call checkout with uncommitted changes")
         );
         final Commit checkoutCommit = Contracts.ensureNonNull(readCommitOrNull(ref));
-        saveIndex(indexFromTreeRef(checkoutCommit.getTreeSha()));
+        final var changes = TreeDiff.diff(checkoutCommit.getTreeSha(), headTreeOrNull(), this::readTree);
+        final var index = applyChanges(staged, changes);
+        // index matches checked out tree exactly
+        saveIndex(index.withCacheTree(index.getCacheTree().withDir(VCSPath.root, checkoutCommit.getTreeSha(), index.size())));
         updateHeadForCheckout(ref, checkoutCommit.sha1());
     }
 
@@ -277,9 +448,10 @@ public class GitRepoImpl implements GitRepository {
             );
         }
 
-        final Index headIndex = indexFromTreeRef(headCommit.getTreeSha());
-        final List<VCSFileChange> nonConflictUncommittedChanges = staged.withDroppedConflicts()
-                .getDiff(headIndex);
+        final List<VCSFileChange> nonConflictUncommittedChanges = diffWithTree(
+                IndexTrees.build(staged.withDroppedConflicts()),
+                headCommit.getTreeSha()
+        );
         final var mergeConflicts = staged.getMergeConflicts();
         if (!mergeConflicts.isEmpty()) {
             final var mergeHeadCommit = Contracts.ensureNonNull(readCommitOrNull(ReservedRef.mergeHead));
@@ -299,9 +471,142 @@ public class GitRepoImpl implements GitRepository {
         }
     }
 
+    @Override
+    public int repack() {
+        return underPackLock(() -> {
+            final int packed = objectDatabase.repack(collectDeltaBases());
+            if (packed > 0 || objectDatabase.bitmapsOrNull() == null) {
+                writeBitmaps();
+            }
+            return packed;
+        });
+    }
+
+    @Override
+    public int gc() {
+        return underIndexLock(() -> underPackLock(this::gcUnderLock));
+    }
+
+    /**
+     * Blobs are saved under index lock, so blob saved but not yet staged by add of this or other process
+     * is never deleted. Walk from tips stops at commits with bitmaps, delta bases are collected and bitmaps are
+     * rebuilt only if pack is rewritten, so gc of packed repository without garbage reads only bitmaps.
+     */
+    private int gcUnderLock() {
+        final var reachable = newReachableObjects(false);
+        for (final var commit : tipCommits()) {
+            reachable.addCommit(graphPosition(commit));
+        }
+        final var index = getIndex();
+        for (final var entries : index.getPathToIndexEntries().values()) {
+            for (final var entry : entries) {
+                reachable.addBlob(entry.getSha());
+            }
+        }
+        for (final var node : index.getCacheTree().getDirs().values()) {
+            if (objectDatabase.contains(node.getTreeSha())) {
+                reachable.addTree(node.getTreeSha());
+            }
+        }
+        final int deleted = objectDatabase.prune(reachable::contains, this::collectDeltaBases);
+        if (objectDatabase.bitmapsOrNull() == null) {
+            writeBitmaps();
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean isReachable(final Sha1 sha, final Ref from) {
+        Contracts.requireNonNullArgument(sha);
+        Contracts.requireNonNullArgument(from);
+
+        final int start = graphPosition(readCommitForUserProvidedRef(from));
+        return newReachableObjects(false).addCommit(start).contains(sha);
+    }
+
+    @Override
+    public Tuple2<Integer, Integer> aheadBehind(final Ref first, final Ref second) {
+        Contracts.requireNonNullArgument(first);
+        Contracts.requireNonNullArgument(second);
+
+        final var firstCommits = newReachableObjects(true).addCommit(graphPosition(readCommitForUserProvidedRef(first)));
+        final var secondCommits = newReachableObjects(true).addCommit(graphPosition(readCommitForUserProvidedRef(second)));
+        return new Tuple2<>(firstCommits.countAbsentIn(secondCommits), secondCommits.countAbsentIn(firstCommits));
+    }
+
+    @Override
+    public List<Sha1> mergeBases(final Ref first, final Ref second) {
+        Contracts.requireNonNullArgument(first);
+        Contracts.requireNonNullArgument(second);
+
+        final var graph = commitGraph();
+        final int firstPosition = graphPosition(readCommitForUserProvidedRef(first));
+        final int secondPosition = graphPosition(readCommitForUserProvidedRef(second));
+        return MergeBase.find(graph, firstPosition, secondPosition).stream()
+                .map(graph::sha)
+                .collect(toList());
+    }
+
+    @Override
+    public Stream<Commit> log(
+            final Ref ref,
+            final CommitWalk.Order order,
+            final boolean firstParentOnly,
+            @Nullable final VCSPath path) {
+        Contracts.requireNonNullArgument(ref);
+        Contracts.requireNonNullArgument(order);
+        Contracts.forbidThat(path != null && path.isRoot());
+
+        final var graph = commitGraph();
+        final int start = graphPosition(readCommitForUserProvidedRef(ref));
+        var positions = CommitWalk.start(graph, start, order, firstParentOnly).stream();
+        if (path != null) {
+            positions = positions.filter(position -> changesPath(graph, position, firstParentOnly, path));
+        }
+        return positions.mapToObj(position -> Contracts.ensureNonNull(readCommitOrNull(graph.sha(position))));
+    }
+
+    /**
+     * @return index saved by current operation under index lock or index stored on disk.
+     */
     @Override
     public Index getIndex() {
-        return Index.deserialize(Utils.readBytes(repoRoot.resolve(RepositoryLayout.INDEX)));
+        final var saved = lockedIndex;
+        if (saved != null && Thread.holdsLock(this)) {
+            return saved;
+        }
+        return readIndex();
+    }
+
+    /**
+     * Drops state which could be changed by other processes since previous operation. Index and packed refs
+     * are checked on every read, so only commit graph appended by other writer and replaced pack are reopened.
+     */
+    public synchronized void refresh() {
+        if (commitGraph != null && commitGraph.isStale()) {
+            commitGraph = null;
+        }
+        objectDatabase.refresh();
+    }
+
+    @Override
+    public synchronized void updateStats(final Map<VCSPath, FileStat> stats) {
+        Contracts.requireNonNullArgument(stats);
+
+        if (stats.isEmpty()) {
+            return;
+        }
+        if (indexLock != null) {
+            saveIndex(getIndex().withStats(stats));
+            return;
+        }
+        final var lock = LockFile.tryAcquireOrNull(repoRoot.resolve(RepositoryLayout.INDEX));
+        if (lock != null) {
+            runUnderIndexLock(lock, () -> {
+                saveIndex(getIndex().withStats(stats));
+                return null;
+            });
+        }
     }
 
     @Nullable
@@ -317,24 +622,118 @@ public class GitRepoImpl implements GitRepository {
         }
     }
 
+    ObjectCache objectCache() {
+        return objectCache;
+    }
+
+    /**
+     * Index is written to lock file and published when operation holding the lock completes.
+     */
     private void saveIndex(final Index index) {
-        Utils.writeBytes(repoRoot.resolve(RepositoryLayout.INDEX), index.serialize());
+        final var lock = Contracts.ensureNonNull(indexLock, "Index is saved without lock.");
+        lock.write(index.serialize());
+        lockedIndex = index;
     }
 
-    private void saveGitObjectIfAbsent(final GitObject gitObject) {
-        final var sha = gitObject.sha1();
-        final var pathToFile = pathToFile(sha);
-        if (Files.exists(pathToFile)) {
-            return;
+    /**
+     * Runs operation holding lock of index, so other processes can't change index between its read and write.
+     * Index saved by operation is published when it completes and is dropped if it fails.
+     */
+    private synchronized <T> T underIndexLock(final Supplier<T> operation) {
+        if (indexLock != null) {
+            return operation.get();
+        }
+        return runUnderIndexLock(LockFile.acquire(repoRoot.resolve(RepositoryLayout.INDEX)), operation);
+    }
+
+    private <T> T runUnderIndexLock(final LockFile indexLockFile, final Supplier<T> operation) {
+        try (var lock = indexLockFile) {
+            indexLock = lock;
+            final T result = operation.get();
+            if (lock.isWritten()) {
+                lock.commit();
+            }
+            return result;
+        } finally {
+            indexLock = null;
+            lockedIndex = null;
+        }
+    }
+
+    /**
+     * Runs operation holding lock of pack index, so that pack and its bitmaps are not changed by other processes
+     * during operation. Pack is reopened under lock, since it could be changed before lock was taken.
+     */
+    private synchronized <T> T underPackLock(final Supplier<T> operation) {
+        final Path packIndexPath = objectDatabase.packIndexPath();
+        Utils.createDirs(packIndexPath.getParent());
+        final var lock = LockFile.acquire(packIndexPath);
+        try {
+            objectDatabase.dropPack();
+            return operation.get();
+        } finally {
+            lock.close();
         }
-        Utils.createDir(pathToFile.getParent());
-        Utils.writeBytes(pathToFile, gitObject.serialize());
+    }
+
+    @Override
+    public void underIndexLock(final Runnable operation) {
+        Contracts.requireNonNullArgument(operation);
+
+        underIndexLock(() -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    /**
+     * Moves ref under its lock, fails if ref was moved by another process after it was read.
+     *
+     * @param expected current sha of ref or null if ref file must not exist.
+     */
+    private void updateRef(final Path refPath, @Nullable final Sha1 expected, final Sha1 sha) {
+        try (var lock = LockFile.acquire(refPath)) {
+            if (!Objects.equals(readRefOrNull(refPath), expected)) {
+                throw new GitRepositoryException("Can't update " + refPath + ". It was changed by another process.");
+            }
+            lock.write((sha.getHexString() + "\n").getBytes(StandardCharsets.UTF_8));
+            lock.commit();
+        }
+    }
+
+    private void saveGitObjectIfAbsent(final GitObject gitObject) {
+        final var serialized = gitObject.serialize();
+        final var sha = Sha1.hash(serialized);
+        objectDatabase.saveIfAbsent(sha, serialized);
+        cacheIfNotBlob(sha, gitObject, serialized.length);
     }
 
     @Nullable
     private GitObject readGitObjectOrNull(final Sha1 sha1) {
-        final var rawContent = readRawObjectOrNull(pathToFile(sha1));
-        return rawContent == null ? null : GitObject.deserialize(rawContent);
+        final var cached = objectCache.getOrNull(sha1);
+        if (cached != null) {
+            return cached;
+        }
+        final var rawContent = objectDatabase.readOrNull(sha1);
+        if (rawContent == null) {
+            return null;
+        }
+        final var gitObject = GitObject.deserialize(rawContent);
+        cacheIfNotBlob(sha1, gitObject, rawContent.length);
+        return gitObject;
+    }
+
+    /**
+     * Blobs are read once per command and could be large, so only commits and trees are cached.
+     */
+    private void cacheIfNotBlob(final Sha1 sha1, final GitObject gitObject, final int size) {
+        if (gitObject.getType() != ObjectType.Blob) {
+            objectCache.put(sha1, gitObject, size);
+        }
+    }
+
+    private Tree readTree(final Sha1 sha1) {
+        return Contracts.ensureNonNull(readTreeOrNull(sha1));
     }
 
     @Nullable
@@ -382,49 +781,153 @@ public class GitRepoImpl implements GitRepository {
 
     @Nullable
     private Commit readCommitOrNull(final BranchName branchName) {
-        final var content = readBranchContentOrNull(branchName.getBranchName());
-        if (content == null) {
-            return null;
-        }
-        Contracts.requireThat(Sha1.isValidSha1HexString(content));
-        return readCommitOrNull(Sha1.create(content));
+        final var sha = readBranchOrNull(branchName.getBranchName());
+        return sha == null ? null : readCommitOrNull(sha);
     }
 
     @Nullable
     private Blob readBlobOrNull(final Sha1 sha1) {
-        final var gitObject = readGitObjectOrNull(sha1);
-        if (gitObject == null) {
+        final var rawContent = objectDatabase.readOrNull(sha1);
+        if (rawContent == null) {
             return null;
         }
+        final var gitObject = GitObject.deserialize(rawContent);
         Contracts.requireThat(gitObject instanceof Blob);
         return (Blob) gitObject;
     }
 
-    private Path pathToFile(final Sha1 sha1) {
-        final var dirName = sha1.getHexString().substring(0, 2);
-        final var fileName = sha1.getHexString().substring(2);
-        return repoRoot.resolve(RepositoryLayout.OBJECTS)
-                .resolve(dirName)
-                .resolve(fileName);
+    @Nullable
+    private Sha1 readBranchOrNull(final String branchName) {
+        return readRefOrNull(repoRoot.resolve(RepositoryLayout.HEADS).resolve(branchName));
     }
 
+    /**
+     * Ref file overrides packed refs. Loose file is read before packed refs, so ref which is being packed
+     * concurrently is found in one of them.
+     *
+     * @return sha of ref file, for branch without file sha from packed refs.
+     */
     @Nullable
-    private byte[] readRawObjectOrNull(final Path path) {
-        if (Files.exists(path)) {
-            return Utils.readBytes(path);
-        } else {
+    private Sha1 readRefOrNull(final Path refPath) {
+        final var content = readLooseRefOrNull(refPath);
+        if (content != null) {
+            Contracts.requireThat(Sha1.isValidSha1HexString(content));
+            return Sha1.create(content);
+        }
+        if (refPath.getParent().equals(repoRoot.resolve(RepositoryLayout.HEADS))) {
+            return packedRefs().find(refPath.getFileName().toString());
+        }
+        return null;
+    }
+
+    @Nullable
+    private static String readLooseRefOrNull(final Path refPath) {
+        try {
+            return Files.readString(refPath, StandardCharsets.UTF_8).stripTrailing();
+        } catch (final NoSuchFileException ex) {
             return null;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read " + refPath + ".", ex);
+        }
+    }
+
+    /**
+     * @return branches sorted by name, branch files override packed refs.
+     */
+    private SortedMap<String, Sha1> allBranches() {
+        final var looseBranches = looseBranches();
+        final var result = packedRefs().toMap();
+        result.putAll(looseBranches);
+        return result;
+    }
+
+    private Map<String, Sha1> looseBranches() {
+        final var result = new HashMap<String, Sha1>();
+        try (var branchFiles = Files.list(repoRoot.resolve(RepositoryLayout.HEADS))) {
+            for (final var branchFile : (Iterable<Path>) branchFiles::iterator) {
+                final var name = branchFile.getFileName().toString();
+                if (!BranchName.isValidBranchName(name)) {
+                    continue;
+                }
+                final var content = readLooseRefOrNull(branchFile);
+                if (content != null) {
+                    Contracts.requireThat(Sha1.isValidSha1HexString(content));
+                    result.put(name, Sha1.create(content));
+                }
+            }
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't list branches.", ex);
+        }
+        return result;
+    }
+
+    /**
+     * Packed refs are reread only when their file is replaced or modified.
+     */
+    private PackedRefs packedRefs() {
+        final var path = repoRoot.resolve(RepositoryLayout.PACKED_REFS);
+        final var stamp = fileStampOrNull(path);
+        if (stamp == null) {
+            return PackedRefs.EMPTY;
+        }
+        if (!stamp.equals(packedRefsStamp)) {
+            packedRefs = PackedRefs.read(path);
+            packedRefsStamp = stamp;
+        }
+        return packedRefs;
+    }
+
+    /**
+     * Index is reread only when its file is replaced or modified.
+     */
+    private synchronized Index readIndex() {
+        final var path = repoRoot.resolve(RepositoryLayout.INDEX);
+        final var stamp = fileStampOrNull(path);
+        if (index == null || stamp == null || !stamp.equals(indexStamp)) {
+            index = Index.read(path);
+            indexStamp = stamp;
         }
+        return index;
     }
 
+    /**
+     * @return modification time, size and file key of file or null if there is no file.
+     */
     @Nullable
-    private String readBranchContentOrNull(final String branchName) {
-        final Path path = repoRoot.resolve(RepositoryLayout.HEADS)
-                .resolve(branchName);
-        if (Files.exists(path)) {
-            return Utils.readUtf8(path).stripTrailing();
-        } else {
+    private static List<Object> fileStampOrNull(final Path path) {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (final NoSuchFileException ex) {
             return null;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read attributes of " + path + ".", ex);
+        }
+        return Arrays.asList(attributes.lastModifiedTime(), attributes.size(), attributes.fileKey());
+    }
+
+    /**
+     * Branch which is locked by another process is left loose.
+     *
+     * @return true if branch file was deleted.
+     */
+    private boolean deleteLooseBranchIfUnchanged(final String branchName, final Sha1 packedSha) {
+        final var path = repoRoot.resolve(RepositoryLayout.HEADS).resolve(branchName);
+        final LockFile lock;
+        try {
+            lock = LockFile.acquire(path);
+        } catch (final GitRepositoryException ex) {
+            return false;
+        }
+        try {
+            final var content = readLooseRefOrNull(path);
+            if (content == null || !content.equals(packedSha.getHexString())) {
+                return false;
+            }
+            Utils.delete(path);
+            return true;
+        } finally {
+            lock.close();
         }
     }
 
@@ -443,37 +946,36 @@ public class GitRepoImpl implements GitRepository {
     }
 
     private Sha1 commitEmptyRepo(final CommitMessage message, final Index index) {
-        final var trees = Tree.createFromIndex(index);
-        trees.forEach(this::saveGitObjectIfAbsent);
+        final var treeSha = saveTrees(index, IndexTrees.build(index));
         final var commit = new Commit(
-                trees.get(0).sha1(),
+                treeSha,
                 null,
                 null,
                 config.get(GitConfig.USER),
                 message
         );
         saveGitObjectIfAbsent(commit);
-        updateHeadAfterCommit(commit.sha1());
+        graphPosition(commit);
+        updateHeadAfterCommit(null, commit.sha1());
         return commit.sha1();
     }
 
     private Sha1 commitSimple(final CommitMessage commitMessage, final Commit headCommit, final Index staged) {
-        final var tree = Contracts.ensureNonNull(readTreeOrNull(headCommit.getTreeSha()));
-        final var headIndex = tree.index((sha) -> Contracts.ensureNonNull(readTreeOrNull(sha)));
-        if (headIndex.getFileDescriptors().equals(staged.getFileDescriptors())) {
+        final var trees = IndexTrees.build(staged);
+        if (diffWithTree(trees, headCommit.getTreeSha()).isEmpty()) {
             throw new GitRepositoryException("Nothing to commit. No changes with head.");
         }
-        final var trees = Tree.createFromIndex(staged);
-        trees.forEach(this::saveGitObjectIfAbsent);
+        final var treeSha = saveTrees(staged, trees);
         final var commit = new Commit(
-                trees.get(0).sha1(),
+                treeSha,
                 headCommit.sha1(),
                 null,
                 config.get(GitConfig.USER),
                 commitMessage
         );
         saveGitObjectIfAbsent(commit);
-        updateHeadAfterCommit(commit.sha1());
+        graphPosition(commit);
+        updateHeadAfterCommit(headCommit.sha1(), commit.sha1());
         return commit.sha1();
     }
 
@@ -482,34 +984,73 @@ public class GitRepoImpl implements GitRepository {
             final Commit headCommit,
             final Commit mergeCommit,
             final Index index) {
-        final var trees = Tree.createFromIndex(index);
-        trees.forEach(this::saveGitObjectIfAbsent);
+        final var treeSha = saveTrees(index, IndexTrees.build(index));
         final var commit = new Commit(
-                trees.get(0).sha1(),
+                treeSha,
                 headCommit.sha1(),
                 mergeCommit.sha1(),
                 config.get(GitConfig.USER),
                 message
         );
         saveGitObjectIfAbsent(commit);
-        updateHeadAfterCommit(commit.sha1());
+        graphPosition(commit);
+        updateHeadAfterCommit(headCommit.sha1(), commit.sha1());
         Utils.delete(repoRoot.resolve(RepositoryLayout.MERGE_HEAD));
         return commit.sha1();
     }
 
-    private void updateHeadAfterCommit(final Sha1 sha) {
+    /**
+     * @param parent commit which head referred to when commit was created, null for first commit.
+     */
+    private void updateHeadAfterCommit(@Nullable final Sha1 parent, final Sha1 sha) {
         final var headContent = readHeadContent();
         if (Sha1.isValidSha1HexString(headContent)) {
-            Utils.writeUtf8(repoRoot.resolve(RepositoryLayout.HEAD), sha.getHexString() + "\n");
+            updateRef(repoRoot.resolve(RepositoryLayout.HEAD), parent, sha);
         } else {
             Contracts.requireThat(BranchName.isValidBranchName(headContent));
-            Utils.writeUtf8(repoRoot.resolve(RepositoryLayout.HEADS).resolve(headContent), sha.getHexString() + "\n");
+            updateRef(repoRoot.resolve(RepositoryLayout.HEADS).resolve(headContent), parent, sha);
+        }
+    }
+
+    @Nullable
+    private Sha1 headTreeOrNull() {
+        final var headCommit = readCommitOrNull(ReservedRef.head);
+        return headCommit == null ? null : headCommit.getTreeSha();
+    }
+
+    /**
+     * Saves trees built from index and stores updated cache tree in index, so that next commit
+     * rebuilds only trees of changed directories.
+     *
+     * @return sha of root tree.
+     */
+    private Sha1 saveTrees(final Index index, final IndexTrees trees) {
+        if (!trees.getBuiltTrees().isEmpty()) {
+            trees.getBuiltTrees().forEach(this::saveGitObjectIfAbsent);
+            saveIndex(index.withCacheTree(trees.getCacheTree()));
         }
+        return Contracts.ensureNonNull(trees.getRootSha());
     }
 
-    private Index indexFromTreeRef(final Sha1 sha1) {
-        return Contracts.ensureNonNull(readTreeOrNull(sha1))
-                .index((sha) -> Contracts.ensureNonNull(readTreeOrNull(sha)));
+    /**
+     * Diff of trees built from index against stored tree, built trees are looked up before stored ones.
+     *
+     * @param treeSha stored tree or null for empty tree.
+     */
+    private List<VCSFileChange> diffWithTree(final IndexTrees trees, @Nullable final Sha1 treeSha) {
+        return TreeDiff.diff(trees.getRootSha(), treeSha, sha -> {
+            final var tree = trees.getBuiltTree(sha);
+            return tree == null ? readTree(sha) : tree;
+        });
+    }
+
+    /**
+     * @return index with applied changes, stats of unchanged entries are preserved.
+     */
+    private static Index applyChanges(final Index index, final List<? extends VCSFileChange> changes) {
+        final var builder = index.toBuilder();
+        changes.forEach(builder::apply);
+        return builder.build();
     }
 
     private boolean mergeInProgress() {
@@ -538,14 +1079,7 @@ public class GitRepoImpl implements GitRepository {
     }
 
     private void checkNoChangesWithHead(final Index indexToCheck, final Supplier<? extends RuntimeException> exc) {
-        final var headCommit = readCommitOrNull(ReservedRef.head);
-        final Index headIndex;
-        if (headCommit == null) {
-            headIndex = Index.create(emptyList());
-        } else {
-            headIndex = indexFromTreeRef(headCommit.getTreeSha());
-        }
-        if (!headIndex.getFileDescriptors().equals(indexToCheck.getFileDescriptors())) {
+        if (!diffWithTree(IndexTrees.build(indexToCheck), headTreeOrNull()).isEmpty()) {
             throw exc.get();
         }
     }
@@ -566,45 +1100,201 @@ public class GitRepoImpl implements GitRepository {
         final var headPath = repoRoot.resolve(RepositoryLayout.HEAD);
         if (ref instanceof Sha1) {
             final var sha = (Sha1) ref;
-            Utils.writeUtf8(headPath, sha.getHexString() + "\n");
+            LockFile.writeUtf8(headPath, sha.getHexString() + "\n");
         } else if (ref instanceof BranchName) {
             final var branchName = ((BranchName) ref).getBranchName();
-            Utils.writeUtf8(headPath, branchName + "\n");
+            LockFile.writeUtf8(headPath, branchName + "\n");
         } else {
             throw Contracts.unreachable();
         }
     }
 
-    private LinkedHashSet<Sha1> getAllParents(final Commit commit) {
-        final var result = new LinkedHashSet<Sha1>();
+    /**
+     * Suggests previous version of the same path as delta base for blobs modified by loose commits. Walk stops at
+     * packed commits, since repack packs all loose objects, so their blobs are packed too and walk is proportional
+     * to the number of commits since previous repack.
+     */
+    private Map<Sha1, Sha1> collectDeltaBases() {
+        final var result = new HashMap<Sha1, Sha1>();
+        final var visited = new HashSet<Sha1>();
         final var queue = new ArrayDeque<Commit>();
-        queue.add(commit);
+        for (final var tip : tipCommits()) {
+            if (isLoose(tip.sha1())) {
+                queue.addLast(tip);
+            }
+        }
         while (!queue.isEmpty()) {
-            final var curCommit = queue.removeFirst();
-            final var sha = curCommit.sha1();
-            if (result.contains(sha)) {
+            final var commit = queue.removeFirst();
+            if (!visited.add(commit.sha1())) {
+                continue;
+            }
+            for (final var parentSha : Arrays.asList(commit.getFirstParentSha(), commit.getSecondParentSha())) {
+                if (parentSha == null) {
+                    continue;
+                }
+                final var parent = Contracts.ensureNonNull(readCommitOrNull(parentSha));
+                for (final var change : TreeDiff.diff(commit.getTreeSha(), parent.getTreeSha(), this::readTree)) {
+                    if (change instanceof Modification) {
+                        final var modification = (Modification) change;
+                        result.putIfAbsent(modification.getModifiedFileDesc().getSha(), modification.getOriginalSha());
+                    }
+                }
+                if (isLoose(parentSha)) {
+                    queue.addLast(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isLoose(final Sha1 sha) {
+        return objectDatabase.packPosition(sha) == -1;
+    }
+
+    private ReachableObjects newReachableObjects(final boolean commitsOnly) {
+        return new ReachableObjects(objectDatabase, commitGraph(), this::readTree, objectDatabase.bitmapsOrNull(), commitsOnly);
+    }
+
+    /**
+     * Bitmaps are built for tips and for commits with generation divisible by {@link #BITMAP_INTERVAL}, so walk
+     * from any commit reaches bitmapped commit in that number of commits on each line of history. Bitmaps are
+     * built in graph order, so walk from commit stops at already built bitmaps of its ancestors.
+     */
+    private void writeBitmaps() {
+        if (objectDatabase.packedObjectsCount() == 0) {
+            return;
+        }
+        final var graph = commitGraph();
+        final var tips = new HashSet<Integer>();
+        for (final var commit : tipCommits()) {
+            tips.add(graphPosition(commit));
+        }
+        final var selected = new TreeSet<Integer>();
+        final var commits = new BitSet();
+        final var seen = new BitSet();
+        final var stack = new ArrayDeque<>(tips);
+        while (!stack.isEmpty()) {
+            final int position = stack.pop();
+            if (seen.get(position)) {
                 continue;
             }
-            result.add(sha);
-            if (curCommit.getFirstParentSha() != null) {
-                final var parent = Contracts.ensureNonNull(readCommitOrNull(curCommit.getFirstParentSha()));
-                queue.addLast(parent);
+            seen.set(position);
+            final int packPosition = objectDatabase.packPosition(graph.sha(position));
+            if (packPosition != -1) {
+                commits.set(packPosition);
             }
-            if (curCommit.getSecondParentSha() != null) {
-                final var parent = Contracts.ensureNonNull(readCommitOrNull(curCommit.getSecondParentSha()));
-                queue.addLast(parent);
+            if (tips.contains(position) || graph.generation(position) % BITMAP_INTERVAL == 0) {
+                selected.add(position);
             }
+            for (final int parent : new int[]{graph.firstParent(position), graph.secondParent(position)}) {
+                if (parent != CommitGraph.NO_PARENT) {
+                    stack.push(parent);
+                }
+            }
+        }
+        final var bitmaps = objectDatabase.newBitmaps(commits);
+        for (final int position : selected) {
+            bitmaps.add(
+                    graph.sha(position),
+                    new ReachableObjects(objectDatabase, graph, this::readTree, bitmaps, false).addCommit(position)
+            );
+        }
+        objectDatabase.writeBitmaps(bitmaps);
+    }
+
+    private List<Commit> tipCommits() {
+        final var result = new ArrayList<Commit>();
+        final var headCommit = readCommitOrNull(ReservedRef.head);
+        if (headCommit != null) {
+            result.add(headCommit);
+        }
+        final var mergeHeadCommit = readCommitOrNull(ReservedRef.mergeHead);
+        if (mergeHeadCommit != null) {
+            result.add(mergeHeadCommit);
+        }
+        for (final var sha : allBranches().values()) {
+            result.add(Contracts.ensureNonNull(readCommitOrNull(sha)));
         }
         return result;
     }
 
+    private synchronized CommitGraph commitGraph() {
+        if (commitGraph == null) {
+            commitGraph = CommitGraph.open(repoRoot.resolve(RepositoryLayout.COMMIT_GRAPH));
+        }
+        return commitGraph;
+    }
+
+    /**
+     * @return position of commit in commit graph. Commit and its ancestors which are absent in graph,
+     * e.g. because they were written by older version, are added to it.
+     */
+    private int graphPosition(final Commit commit) {
+        final int known = commitGraph().positionOf(commit.sha1());
+        if (known != -1) {
+            return known;
+        }
+        return appendToGraph(commit);
+    }
+
+    /**
+     * Graph file is appended under its lock after reload, so records of other writers are not overwritten.
+     */
+    private synchronized int appendToGraph(final Commit commit) {
+        final var graph = commitGraph();
+        final var lock = LockFile.acquire(repoRoot.resolve(RepositoryLayout.COMMIT_GRAPH));
+        try {
+            graph.reloadIfStale();
+            final var stack = new ArrayDeque<Commit>();
+            stack.push(commit);
+            while (!stack.isEmpty()) {
+                final var current = stack.peek();
+                final var firstParent = current.getFirstParentSha();
+                final var secondParent = current.getSecondParentSha();
+                if (firstParent != null && !graph.contains(firstParent)) {
+                    stack.push(Contracts.ensureNonNull(readCommitOrNull(firstParent)));
+                } else if (secondParent != null && !graph.contains(secondParent)) {
+                    stack.push(Contracts.ensureNonNull(readCommitOrNull(secondParent)));
+                } else {
+                    stack.pop();
+                    graph.append(current.sha1(), current.getTreeSha(), firstParent, secondParent);
+                }
+            }
+            graph.compactIfNeeded();
+            return graph.positionOf(commit.sha1());
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Trees are taken from commit graph, so commits which didn't change path are not read.
+     */
+    private boolean changesPath(
+            final CommitGraph graph,
+            final int position,
+            final boolean firstParentOnly,
+            final VCSPath path) {
+        final var leaf = readTree(graph.tree(position)).findLeaf(path, this::readTree);
+        final int firstParent = graph.firstParent(position);
+        final int secondParent = firstParentOnly ? CommitGraph.NO_PARENT : graph.secondParent(position);
+        if (firstParent == CommitGraph.NO_PARENT) {
+            return leaf != null;
+        }
+        for (final int parent : new int[]{firstParent, secondParent}) {
+            if (parent != CommitGraph.NO_PARENT
+                    && Objects.equals(leaf, readTree(graph.tree(parent)).findLeaf(path, this::readTree))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private List<VCSFileChange> startFastForwardMerge(final Commit headCommit, final Commit targetHead) {
-        final var targetIndex = indexFromTreeRef(targetHead.getTreeSha());
-        final var headIndex = indexFromTreeRef(headCommit.getTreeSha());
-        final var diff = targetIndex.getDiff(headIndex);
+        final var diff = TreeDiff.diff(targetHead.getTreeSha(), headCommit.getTreeSha(), this::readTree);
         final var mergeHead = repoRoot.resolve(RepositoryLayout.MERGE_HEAD);
-        saveIndex(targetIndex);
-        Utils.writeUtf8(mergeHead, targetHead.sha1().getHexString() + "\n");
+        saveIndex(applyChanges(getIndex(), diff));
+        LockFile.writeUtf8(mergeHead, targetHead.sha1().getHexString() + "\n");
         return diff;
     }
 
@@ -612,67 +1302,90 @@ public class GitRepoImpl implements GitRepository {
             final Commit base,
             final Commit receiver,
             final Commit giver) {
-        final var baseIndex = indexFromTreeRef(base.getTreeSha());
-        final var receiverIndex = indexFromTreeRef(receiver.getTreeSha());
-        final var giverIndex = indexFromTreeRef(giver.getTreeSha());
-        final var changes = giverIndex.getDiff(receiverIndex);
+        final var changes = TreeDiff.diff(giver.getTreeSha(), receiver.getTreeSha(), this::readTree);
         final var additions = changes.stream()
                 .filter(Addition.class::isInstance)
                 .collect(toList());
+        final var baseTree = readTree(base.getTreeSha());
+        final var baseTrees = new HashMap<Sha1, Tree>();
         final List<Modification> conflictingModifications = new ArrayList<>();
         final List<Modification> nonConflictingModifications = new ArrayList<>();
-        for (final var fileDesc : receiverIndex.getFileDescriptors()) {
-            final var path = fileDesc.getPath();
-            if (!giverIndex.contains(path)) {
-                continue;
-            }
-            final var giverSha = giverIndex.getSha(fileDesc.getPath());
-            final var receiverSha = fileDesc.getSha();
-            if (receiverSha.equals(giverSha)) {
+        final var conflictBaseShas = new HashMap<VCSPath, Sha1>();
+        for (final var change : changes) {
+            if (!(change instanceof Modification)) {
                 continue;
             }
-            if (!baseIndex.contains(fileDesc.getPath())) {
-                conflictingModifications.add(new Modification(new VCSFileDesc(path, giverSha), receiverSha));
-            }
-            final var baseSha = baseIndex.getSha(path);
-            if (baseSha.equals(receiverSha)) {
-                nonConflictingModifications.add(new Modification(new VCSFileDesc(path, giverSha), receiverSha));
+            final var modification = (Modification) change;
+            final var giverSha = modification.getModifiedFileDesc().getSha();
+            final var receiverSha = modification.getOriginalSha();
+            final var baseSha = baseTree.findFile(
+                    modification.getChangePath(),
+                    sha -> baseTrees.computeIfAbsent(sha, this::readTree)
+            );
+            if (baseSha == null) {
+                conflictingModifications.add(modification);
+            } else if (baseSha.equals(receiverSha)) {
+                nonConflictingModifications.add(modification);
             } else if (!baseSha.equals(giverSha)) {
-                conflictingModifications.add(new Modification(new VCSFileDesc(path, giverSha), receiverSha));
+                final var mergedSha = mergeFileOrNull(baseSha, receiverSha, giverSha);
+                if (mergedSha == null) {
+                    conflictingModifications.add(modification);
+                    conflictBaseShas.put(modification.getChangePath(), baseSha);
+                } else if (!mergedSha.equals(receiverSha)) {
+                    nonConflictingModifications.add(
+                            new Modification(new VCSFileDesc(modification.getChangePath(), mergedSha), receiverSha)
+                    );
+                }
             }
         }
         final var nonConflictingChanges = new ArrayList<>(additions);
         nonConflictingChanges.addAll(nonConflictingModifications);
-        var indexToWrite = receiverIndex;
-        for (final var nonConflictChange : nonConflictingChanges) {
-            if (nonConflictChange instanceof Addition) {
-                final var addition = (Addition) nonConflictChange;
-                indexToWrite = indexToWrite.withNewIndexEntry(addition.getChangePath(), addition.getAddedFileDesc().getSha());
-            } else {
-                Contracts.requireThat(nonConflictChange instanceof Modification);
-                final var modification = (Modification) nonConflictChange;
-                indexToWrite = indexToWrite.withNewIndexEntry(
-                        modification.getChangePath(),
-                        modification.getModifiedFileDesc().getSha()
-                );
-            }
-        }
+        final var indexBuilder = getIndex().toBuilder();
+        nonConflictingChanges.forEach(indexBuilder::apply);
         for (final var conflictModification : conflictingModifications) {
-            indexToWrite = indexToWrite.withNewConflict(
+            indexBuilder.addConflict(
                     conflictModification.getChangePath(),
                     conflictModification.getOriginalSha(),
                     conflictModification.getModifiedFileDesc().getSha()
             );
         }
+        final var indexToWrite = indexBuilder.build();
         saveIndex(indexToWrite);
-        Utils.writeUtf8(repoRoot.resolve(RepositoryLayout.MERGE_HEAD), giver.sha1().getHexString() + "\n");
+        LockFile.writeUtf8(repoRoot.resolve(RepositoryLayout.MERGE_HEAD), giver.sha1().getHexString() + "\n");
         if (conflictingModifications.isEmpty()) {
             return new Tuple2<>(nonConflictingChanges, null);
         } else {
             return new Tuple2<>(
                     nonConflictingChanges,
-                    new MergeConflicts(receiver.sha1(), giver.sha1(), conflictingModifications)
+                    new MergeConflicts(receiver.sha1(), giver.sha1(), conflictingModifications, conflictBaseShas)
             );
         }
     }
+
+    /**
+     * Merges text file changed on both sides by lines.
+     *
+     * @return sha of saved merge result or null if changes conflict or file is binary.
+     */
+    @Nullable
+    private Sha1 mergeFileOrNull(final Sha1 baseSha, final Sha1 receiverSha, final Sha1 giverSha) {
+        final var base = readFile(baseSha);
+        final var receiver = readFile(receiverSha);
+        final var giver = readFile(giverSha);
+        if (!ThreeWayMerge.isText(base) || !ThreeWayMerge.isText(receiver) || !ThreeWayMerge.isText(giver)) {
+            return null;
+        }
+        final var merge = ThreeWayMerge.merge(
+                base,
+                receiver,
+                giver,
+                ReservedRef.head.getRefString(),
+                giverSha.getHexString()
+        );
+        if (!merge.isClean()) {
+            return null;
+        }
+        final var content = merge.getContent();
+        return objectDatabase.saveBlob(new ByteArrayInputStream(content), content.length);
+    }
 }
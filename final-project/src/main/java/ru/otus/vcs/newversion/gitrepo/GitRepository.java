@@ -1,15 +1,24 @@
 package ru.otus.vcs.newversion.gitrepo;
 
+import ru.otus.vcs.newversion.index.FileStat;
 import ru.otus.vcs.newversion.index.Index;
+import ru.otus.vcs.newversion.index.IndexEntry;
 import ru.otus.vcs.newversion.index.diff.VCSFileChange;
+import ru.otus.vcs.newversion.objects.Commit;
 import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.BranchName;
 import ru.otus.vcs.newversion.ref.Ref;
 import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.storage.CommitWalk;
 import ru.otus.vcs.newversion.utils.Tuple2;
 
+import javax.annotation.Nullable;
+import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 public interface GitRepository {
 
@@ -27,22 +36,131 @@ public interface GitRepository {
 
     void branch(BranchName branchName);
 
+    /**
+     * @return commits of branches in order of branch names.
+     */
+    Map<BranchName, Sha1> branches();
+
+    /**
+     * @return branch referred by head or null if head is detached.
+     */
+    @Nullable
+    BranchName currentBranch();
+
+    /**
+     * Moves branch files into single packed refs file.
+     *
+     * @return number of packed branches.
+     */
+    int packRefs();
+
     void add(byte[] data, VCSPath path);
 
+    /**
+     * Stages file content read from the stream. Memory usage doesn't depend on content size.
+     *
+     * @param content of file, stream is read till the end, but not closed.
+     * @param size    of content.
+     * @param path    of file.
+     * @param stat    of worktree file taken before reading content or {@link FileStat#NONE}.
+     */
+    void add(InputStream content, long size, VCSPath path, FileStat stat);
+
+    /**
+     * Saves blob without staging it, could be called from several threads concurrently.
+     * Used with {@link #updateIndex} for batch staging, both are called inside {@link #underIndexLock},
+     * otherwise {@link #gc} could delete saved blob before it is staged.
+     *
+     * @param content of file, stream is read till the end, but not closed.
+     * @param size    of content.
+     * @return sha of saved blob.
+     */
+    Sha1 saveBlob(InputStream content, long size);
+
+    /**
+     * Applies all changes to the index, which is read and written once.
+     *
+     * @param entries normal entries with blobs already {@link #saveBlob saved}, they replace entries
+     *                (including conflicting ones) with the same path.
+     * @param removed paths to remove from the index, absent paths are ignored.
+     */
+    void updateIndex(List<IndexEntry> entries, Collection<VCSPath> removed);
+
+    /**
+     * Runs operation holding lock of the index, operations of the repository called from it reuse the lock.
+     */
+    void underIndexLock(Runnable operation);
+
     boolean remove(VCSPath path);
 
     Sha1 hash(byte[] data);
 
+    /**
+     * @param content of file, stream is read till the end, but not closed.
+     * @param size    of content.
+     * @return sha of blob with such content.
+     */
+    Sha1 hash(InputStream content, long size);
+
     byte[] readFile(Ref ref, VCSPath vcsPath);
 
     byte[] readFile(Sha1 sha);
 
+    /**
+     * @return stream of file content, caller is responsible for closing it.
+     */
+    InputStream openFile(Sha1 sha);
+
     List<VCSFileChange> checkoutChanges(Ref ref);
 
     void checkout(Ref ref);
 
     GitRepoStatus status();
 
+    /**
+     * Folds loose objects into the pack and builds reachability bitmaps of the pack.
+     *
+     * @return number of packed objects.
+     */
+    int repack();
+
+    /**
+     * Deletes objects unreachable from branches, HEAD, MERGE_HEAD and index, packing the rest.
+     *
+     * @return number of deleted objects.
+     */
+    int gc();
+
+    /**
+     * @return true if object is reachable from commit.
+     */
+    boolean isReachable(Sha1 sha, Ref from);
+
+    /**
+     * @return numbers of commits reachable only from first and only from second commit.
+     */
+    Tuple2<Integer, Integer> aheadBehind(Ref first, Ref second);
+
+    /**
+     * @return best common ancestors of commits ordered by decreasing generation,
+     * several for criss-cross histories and none for unrelated ones.
+     */
+    List<Sha1> mergeBases(Ref first, Ref second);
+
+    /**
+     * @param path if not null only commits which changed file or dir at path are listed, commit changed it
+     *             if path differs from all its walked parents.
+     * @return lazy stream of commit and its ancestors, each commit precedes its parents.
+     */
+    Stream<Commit> log(Ref ref, CommitWalk.Order order, boolean firstParentOnly, @Nullable VCSPath path);
+
     Index getIndex();
 
+    /**
+     * Records stat of worktree files into the index, so that they are not rehashed by status.
+     * Paths which are absent in index or in conflict are ignored. Stats are only a cache, so they are not recorded
+     * if index is locked by another process.
+     */
+    void updateStats(Map<VCSPath, FileStat> stats);
+
 }
@@ -0,0 +1,150 @@
+package ru.otus.vcs.newversion.gitrepo;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lock for update of repository file. Lock is taken by exclusive creation of file with {@link #SUFFIX} next to
+ * the locked one, so it works between processes. New content is written to lock file, forced to disk and
+ * atomically renamed over locked file, so readers see either old or new content even after crash.
+ * Closing lock which was not committed deletes lock file and leaves locked file unchanged.
+ */
+final class LockFile implements Closeable {
+
+    static final String SUFFIX = ".lock";
+
+    private final Path target;
+    private final Path lockPath;
+    private final FileChannel channel;
+    private boolean written;
+    private boolean released;
+
+    private LockFile(final Path target, final Path lockPath, final FileChannel channel) {
+        this.target = target;
+        this.lockPath = lockPath;
+        this.channel = channel;
+    }
+
+    /**
+     * @throws GitRepositoryException if file is locked by another process or instance.
+     */
+    static LockFile acquire(final Path target) {
+        Contracts.requireNonNullArgument(target);
+
+        final var lock = tryAcquireOrNull(target);
+        if (lock == null) {
+            final Path lockPath = target.resolveSibling(target.getFileName() + SUFFIX);
+            throw new GitRepositoryException(
+                    "Can't lock " + target + ". Another process is updating it. If no other process is running,"
+                            + " remove " + lockPath + "."
+            );
+        }
+        return lock;
+    }
+
+    /**
+     * @return lock or null if file is locked by another process or instance.
+     */
+    @Nullable
+    static LockFile tryAcquireOrNull(final Path target) {
+        Contracts.requireNonNullArgument(target);
+
+        final Path lockPath = target.resolveSibling(target.getFileName() + SUFFIX);
+        try {
+            return new LockFile(
+                    target,
+                    lockPath,
+                    FileChannel.open(lockPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+            );
+        } catch (final FileAlreadyExistsException ex) {
+            return null;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't create lock file " + lockPath + ".", ex);
+        }
+    }
+
+    /**
+     * Writes content atomically, waiting for the lock is not supported.
+     */
+    static void write(final Path target, final byte[] content) {
+        try (var lock = acquire(target)) {
+            lock.write(content);
+            lock.commit();
+        }
+    }
+
+    static void writeUtf8(final Path target, final String content) {
+        write(target, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    Path getTarget() {
+        return target;
+    }
+
+    boolean isWritten() {
+        return written;
+    }
+
+    /**
+     * Replaces content written to lock earlier.
+     */
+    void write(final byte[] content) {
+        Contracts.requireNonNullArgument(content);
+        Contracts.forbidThat(released, "Lock " + lockPath + " is released.");
+
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            final var buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            written = true;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't write lock file " + lockPath + ".", ex);
+        }
+    }
+
+    /**
+     * Publishes written content and releases lock.
+     */
+    void commit() {
+        Contracts.requireThat(written, "Nothing is written to lock " + lockPath + ".");
+        Contracts.forbidThat(released, "Lock " + lockPath + " is released.");
+
+        try {
+            channel.force(true);
+            channel.close();
+            Files.move(lockPath, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            released = true;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't replace " + target + " with lock file " + lockPath + ".", ex);
+        }
+    }
+
+    /**
+     * Releases lock without changing locked file, if it is not committed.
+     */
+    @Override
+    public void close() {
+        if (released) {
+            return;
+        }
+        released = true;
+        Utils.closeQuietly(channel);
+        Utils.deleteIfExists(lockPath);
+    }
+}
@@ -2,29 +2,46 @@ package ru.otus.vcs.newversion.gitrepo;
 
 import ru.otus.utils.Contracts;
 import ru.otus.vcs.newversion.index.diff.Modification;
+import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.BranchName;
 import ru.otus.vcs.newversion.ref.Ref;
 import ru.otus.vcs.newversion.ref.Sha1;
 
+import javax.annotation.Nullable;
 import java.util.List;
+import java.util.Map;
 
 public class MergeConflicts {
 
     private final Ref receiver;
     private final Ref giver;
     private final List<Modification> conflictingModifications;
+    private final Map<VCSPath, Sha1> baseShas;
 
     public MergeConflicts(final Ref receiver, final Ref giver, final List<Modification> conflictingModifications) {
+        this(receiver, giver, conflictingModifications, Map.of());
+    }
+
+    /**
+     * @param baseShas shas of conflicting files in merge base, if they are known.
+     */
+    public MergeConflicts(
+            final Ref receiver,
+            final Ref giver,
+            final List<Modification> conflictingModifications,
+            final Map<VCSPath, Sha1> baseShas) {
         Contracts.requireNonNullArgument(receiver);
         Contracts.requireNonNullArgument(giver);
         Contracts.requireNonNullArgument(conflictingModifications);
         Contracts.requireThat(receiver instanceof Sha1 || receiver instanceof BranchName);
         Contracts.requireThat(giver instanceof Sha1 || giver instanceof BranchName);
+        Contracts.requireNonNullArgument(baseShas);
         Contracts.forbidThat(conflictingModifications.isEmpty());
 
         this.receiver = receiver;
         this.giver = giver;
         this.conflictingModifications = List.copyOf(conflictingModifications);
+        this.baseShas = Map.copyOf(baseShas);
     }
 
     public Ref getReceiver() {
@@ -38,4 +55,9 @@ public class MergeConflicts {
     public List<Modification> getConflictingChanges() {
         return conflictingModifications;
     }
+
+    @Nullable
+    public Sha1 getBaseShaOrNull(final VCSPath path) {
+        return baseShas.get(path);
+    }
 }
@@ -0,0 +1,131 @@
+package ru.otus.vcs.newversion.gitrepo;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.ref.BranchName;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Branches stored in single file. After header there is line "hex sha, space, branch name" per branch,
+ * lines are sorted by name, so branch is found by binary search over file content without parsing it.
+ * Branch names are ascii, so order of names is order of their bytes.
+ */
+final class PackedRefs {
+
+    private static final byte[] HEADER = "# simplegit packed-refs sorted\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int NAME_OFFSET = Sha1.HEX_STRING_LENGTH + 1;
+
+    static final PackedRefs EMPTY = new PackedRefs(HEADER);
+
+    private final byte[] content;
+
+    private PackedRefs(final byte[] content) {
+        this.content = content;
+    }
+
+    /**
+     * @return packed refs or {@link #EMPTY} if there is no file.
+     */
+    static PackedRefs read(final Path path) {
+        Contracts.requireNonNullArgument(path);
+
+        final byte[] content;
+        try {
+            content = Files.readAllBytes(path);
+        } catch (final NoSuchFileException ex) {
+            return EMPTY;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read packed refs " + path + ".", ex);
+        }
+        Contracts.requireThat(
+                content.length >= HEADER.length && Arrays.equals(content, 0, HEADER.length, HEADER, 0, HEADER.length),
+                badFormat("Bad header.")
+        );
+        Contracts.requireThat(
+                content.length == HEADER.length || content[content.length - 1] == '\n',
+                badFormat("Last line is not terminated.")
+        );
+        return new PackedRefs(content);
+    }
+
+    static byte[] serialize(final SortedMap<String, Sha1> branches) {
+        Contracts.requireNonNullArgument(branches);
+
+        final var builder = new StringBuilder(new String(HEADER, StandardCharsets.US_ASCII));
+        branches.forEach((name, sha) -> {
+            Contracts.requireThat(BranchName.isValidBranchName(name));
+            builder.append(sha.getHexString()).append(' ').append(name).append('\n');
+        });
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Nullable
+    Sha1 find(final String branchName) {
+        Contracts.requireNonNullArgument(branchName);
+
+        final byte[] name = branchName.getBytes(StandardCharsets.US_ASCII);
+        int low = HEADER.length;
+        int high = content.length;
+        while (low < high) {
+            int lineStart = (low + high) >>> 1;
+            while (lineStart > low && content[lineStart - 1] != '\n') {
+                lineStart--;
+            }
+            final int lineEnd = lineEnd(lineStart);
+            final int result = Arrays.compareUnsigned(content, lineStart + NAME_OFFSET, lineEnd, name, 0, name.length);
+            if (result == 0) {
+                return sha(lineStart);
+            } else if (result < 0) {
+                low = lineEnd + 1;
+            } else {
+                high = lineStart;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return branches sorted by name.
+     */
+    SortedMap<String, Sha1> toMap() {
+        final var result = new TreeMap<String, Sha1>();
+        int lineStart = HEADER.length;
+        while (lineStart < content.length) {
+            final int lineEnd = lineEnd(lineStart);
+            final var name = new String(content, lineStart + NAME_OFFSET, lineEnd - lineStart - NAME_OFFSET, StandardCharsets.US_ASCII);
+            result.put(name, sha(lineStart));
+            lineStart = lineEnd + 1;
+        }
+        return result;
+    }
+
+    private int lineEnd(final int lineStart) {
+        int lineEnd = lineStart;
+        while (content[lineEnd] != '\n') {
+            lineEnd++;
+        }
+        Contracts.requireThat(
+                lineEnd - lineStart > NAME_OFFSET && content[lineStart + Sha1.HEX_STRING_LENGTH] == ' ',
+                badFormat("Bad line.")
+        );
+        return lineEnd;
+    }
+
+    private Sha1 sha(final int lineStart) {
+        return Sha1.create(new String(content, lineStart, Sha1.HEX_STRING_LENGTH, StandardCharsets.US_ASCII));
+    }
+
+    private static String badFormat(final String additionalInfo) {
+        return "Bad format of packed refs. " + additionalInfo;
+    }
+}
@@ -24,6 +24,8 @@ class RepositoryLayout {
     static final String DESCRIPTION = "description";
     static final String HEAD = "HEAD";
     static final String MERGE_HEAD = "MERGE_HEAD";
+    static final String COMMIT_GRAPH = "commit-graph";
+    static final String PACKED_REFS = "packed-refs";
     // dirs
     static final String OBJECTS = "objects";
     static final String HEADS = "heads";
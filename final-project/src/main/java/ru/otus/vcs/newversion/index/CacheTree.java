@@ -0,0 +1,132 @@
+package ru.otus.vcs.newversion.index;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Trees of index directories which are already saved in repository, like git "cache-tree" index extension.
+ * Directory is valid while no entry under it is added, changed or removed, so tree of valid directory
+ * exactly corresponds to index entries under it. Change of entry invalidates its directory and all ancestors,
+ * so only trees of changed directories are rebuilt on commit.
+ */
+public final class CacheTree {
+
+    public static final CacheTree EMPTY = new CacheTree(Map.of());
+
+    private final Map<VCSPath, Node> dirs;
+
+    private CacheTree(final Map<VCSPath, Node> dirs) {
+        this.dirs = dirs;
+    }
+
+    public static CacheTree create(final Map<VCSPath, Node> dirs) {
+        Contracts.requireNonNullArgument(dirs);
+
+        return dirs.isEmpty() ? EMPTY : new CacheTree(Map.copyOf(dirs));
+    }
+
+    /**
+     * @return node of valid directory or null if directory is invalid or unknown.
+     */
+    @Nullable
+    public Node get(final VCSPath dir) {
+        Contracts.requireNonNullArgument(dir);
+
+        return dirs.get(dir);
+    }
+
+    /**
+     * @return valid directories.
+     */
+    public Map<VCSPath, Node> getDirs() {
+        return Collections.unmodifiableMap(dirs);
+    }
+
+    public boolean isEmpty() {
+        return dirs.isEmpty();
+    }
+
+    public CacheTree withDir(final VCSPath dir, final Sha1 treeSha, final int entryCount) {
+        final var copy = new HashMap<>(dirs);
+        copy.put(dir, new Node(treeSha, entryCount));
+        return new CacheTree(copy);
+    }
+
+    CacheTree invalidated(final VCSPath path) {
+        if (dirs.isEmpty()) {
+            return this;
+        }
+        final var copy = new HashMap<>(dirs);
+        invalidate(copy, path);
+        return create(copy);
+    }
+
+    /**
+     * Removes directories containing path.
+     */
+    static void invalidate(final Map<VCSPath, Node> dirs, final VCSPath path) {
+        var current = path;
+        while (!current.isRoot()) {
+            current = current.getParent();
+            dirs.remove(current);
+        }
+    }
+
+    /**
+     * Tree of directory and number of index entries under it.
+     */
+    public static final class Node {
+
+        private final Sha1 treeSha;
+        private final int entryCount;
+
+        public Node(final Sha1 treeSha, final int entryCount) {
+            Contracts.requireNonNullArgument(treeSha);
+            Contracts.requireThat(entryCount > 0);
+
+            this.treeSha = treeSha;
+            this.entryCount = entryCount;
+        }
+
+        public Sha1 getTreeSha() {
+            return treeSha;
+        }
+
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Node node = (Node) o;
+            return entryCount == node.entryCount && treeSha.equals(node.treeSha);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(treeSha, entryCount);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CacheTree cacheTree = (CacheTree) o;
+        return dirs.equals(cacheTree.dirs);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(dirs);
+    }
+}
@@ -0,0 +1,101 @@
+package ru.otus.vcs.newversion.index;
+
+import ru.otus.utils.Contracts;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stat data of worktree file at the moment it was staged. Used to find out that file is unchanged without hashing.
+ */
+public final class FileStat {
+
+    /**
+     * Stat of file which was never seen on disk, it doesn't match any file.
+     */
+    public static final FileStat NONE = new FileStat(0, -1, 0);
+
+    private static final boolean UNIX_ATTRIBUTES = FileSystems.getDefault()
+            .supportedFileAttributeViews()
+            .contains("unix");
+
+    private final long mtimeNanos;
+    private final long size;
+    private final long inode;
+
+    public FileStat(final long mtimeNanos, final long size, final long inode) {
+        this.mtimeNanos = mtimeNanos;
+        this.size = size;
+        this.inode = inode;
+    }
+
+    public static FileStat read(final Path path) {
+        Contracts.requireNonNullArgument(path);
+
+        try {
+            if (UNIX_ATTRIBUTES) {
+                final Map<String, Object> attributes = Files.readAttributes(
+                        path,
+                        "unix:lastModifiedTime,size,ino",
+                        LinkOption.NOFOLLOW_LINKS
+                );
+                return new FileStat(
+                        toNanos((FileTime) attributes.get("lastModifiedTime")),
+                        (Long) attributes.get("size"),
+                        (Long) attributes.get("ino")
+                );
+            }
+            final var attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return new FileStat(toNanos(attributes.lastModifiedTime()), attributes.size(), 0);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read attributes of " + path + ".", ex);
+        }
+    }
+
+    public long getMtimeNanos() {
+        return mtimeNanos;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getInode() {
+        return inode;
+    }
+
+    private static long toNanos(final FileTime fileTime) {
+        final var instant = fileTime.toInstant();
+        return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FileStat fileStat = (FileStat) o;
+        return mtimeNanos == fileStat.mtimeNanos && size == fileStat.size && inode == fileStat.inode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(mtimeNanos) * 31 * 31 + Long.hashCode(size) * 31 + Long.hashCode(inode);
+    }
+
+    @Override
+    public String toString() {
+        return "FileStat{" +
+                "mtimeNanos=" + mtimeNanos +
+                ", size=" + size +
+                ", inode=" + inode +
+                '}';
+    }
+}
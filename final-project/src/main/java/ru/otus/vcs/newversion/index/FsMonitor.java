@@ -0,0 +1,341 @@
+package ru.otus.vcs.newversion.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.gitrepo.GitRepository;
+import ru.otus.vcs.newversion.path.VCSFileName;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Records paths changed in worktree by watching all its directories, so that worktree index is updated
+ * by rescan of changed paths only. It is useful only in long-running process, e.g. daemon.
+ * <p>
+ * Events are delivered asynchronously, so before changes are taken monitor creates cookie file in repository
+ * dir and waits for its event: changes made before it are already recorded then. If events were lost
+ * (queue overflow, directory which can't be watched, cookie timeout) whole worktree is scanned.
+ */
+public final class FsMonitor implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FsMonitor.class);
+    private static final String COOKIE_PREFIX = "fsmonitor-cookie-";
+    private static final long COOKIE_TIMEOUT_MILLIS = 2000;
+
+    private final Path worktree;
+    private final Path repoDir;
+    private final WatchService watchService;
+    private final Thread thread;
+    // accessed only by watching thread after start
+    private final Map<WatchKey, VCSPath> watchedDirs = new HashMap<>();
+    private final Map<VCSPath, WatchKey> keysOfDirs = new HashMap<>();
+    @Nullable
+    private WatchKey repoDirKey;
+
+    // guarded by this
+    private Set<VCSPath> changed = new HashSet<>();
+    private boolean eventsLost = true;
+    private long cookies;
+    @Nullable
+    private String seenCookie;
+
+    private final Object scanLock = new Object();
+    // guarded by scanLock
+    @Nullable
+    private TreeMap<String, IndexEntry> worktreeFiles;
+
+    private FsMonitor(final Path worktree, final WatchService watchService) {
+        this.worktree = worktree;
+        this.repoDir = worktree.resolve(GitRepository.DIR_NAME);
+        this.watchService = watchService;
+        this.thread = new Thread(this::watch, "fsmonitor");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching worktree, first {@link #scan} is full.
+     */
+    public static FsMonitor start(final Path worktree) {
+        Contracts.requireNonNullArgument(worktree);
+
+        final WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't watch worktree " + worktree + ".", ex);
+        }
+        final var monitor = new FsMonitor(Utils.toReal(worktree), watchService);
+        try {
+            monitor.repoDirKey = monitor.repoDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (final IOException ex) {
+            Utils.closeQuietly(watchService);
+            throw new UncheckedIOException("Can't watch repository dir " + monitor.repoDir + ".", ex);
+        }
+        monitor.registerAll(monitor.worktree, VCSPath.root);
+        monitor.thread.start();
+        return monitor;
+    }
+
+    public Path getWorktree() {
+        return worktree;
+    }
+
+    /**
+     * Creates index of worktree files like {@link Index#create(Path, Index, Function)}, but only paths changed
+     * since previous scan are listed and stat-ed.
+     */
+    public Index scan(final Index staged, final Function<Path, Sha1> hasher) {
+        Contracts.requireNonNullArgument(staged);
+        Contracts.requireNonNullArgument(hasher);
+
+        synchronized (scanLock) {
+            return scanUnderLock(staged, hasher);
+        }
+    }
+
+    private Index scanUnderLock(final Index staged, final Function<Path, Sha1> hasher) {
+        final var changedPaths = takeChangedOrNull();
+        if (changedPaths == null || worktreeFiles == null) {
+            worktreeFiles = new TreeMap<>();
+            for (final var entry : WorktreeScanner.scan(worktree, worktree, staged, hasher)) {
+                worktreeFiles.put(entry.getPath().toUnixPathString(), entry);
+            }
+        } else {
+            final var outermost = new ArrayList<VCSPath>();
+            for (final var path : changedPaths) {
+                if (!hasChangedAncestor(path, changedPaths)) {
+                    final var key = path.toUnixPathString();
+                    worktreeFiles.remove(key);
+                    // names can't contain separator, so descendants are keys from "dir/" to "dir0"
+                    worktreeFiles.subMap(key + '/', key + (char) ('/' + 1)).clear();
+                    outermost.add(path);
+                }
+            }
+            for (final var entry : WorktreeScanner.scan(worktree, outermost, staged, hasher)) {
+                worktreeFiles.put(entry.getPath().toUnixPathString(), entry);
+            }
+        }
+        return Index.create(new ArrayList<>(worktreeFiles.values()));
+    }
+
+    @Override
+    public void close() {
+        Utils.closeQuietly(watchService);
+        try {
+            thread.join();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return paths changed since previous call or null if changes are unknown.
+     */
+    @Nullable
+    private Set<VCSPath> takeChangedOrNull() {
+        final String cookie;
+        synchronized (this) {
+            cookie = COOKIE_PREFIX + cookies++;
+        }
+        final var cookiePath = repoDir.resolve(cookie);
+        try {
+            Files.createFile(cookiePath);
+            synchronized (this) {
+                final long deadline = System.currentTimeMillis() + COOKIE_TIMEOUT_MILLIS;
+                long remaining = COOKIE_TIMEOUT_MILLIS;
+                while (!cookie.equals(seenCookie) && remaining > 0 && thread.isAlive()) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                final boolean synced = cookie.equals(seenCookie) && !eventsLost;
+                final var result = changed;
+                changed = new HashSet<>();
+                eventsLost = false;
+                return synced ? result : null;
+            }
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't create cookie file " + cookiePath + ".", ex);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            Utils.deleteIfExists(cookiePath);
+        }
+    }
+
+    private static boolean hasChangedAncestor(final VCSPath path, final Set<VCSPath> changedPaths) {
+        for (var ancestor = path.getParent(); !ancestor.isRoot(); ancestor = ancestor.getParent()) {
+            if (changedPaths.contains(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final var key = watchService.take();
+                if (key == repoDirKey) {
+                    handleRepoDirEvents(key);
+                } else {
+                    handleEvents(key);
+                }
+            }
+        } catch (final ClosedWatchServiceException ex) {
+            // monitor is closed
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                eventsLost = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void handleRepoDirEvents(final WatchKey key) {
+        for (final var event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                markEventsLost();
+            } else {
+                final var name = event.context().toString();
+                if (name.startsWith(COOKIE_PREFIX)) {
+                    synchronized (this) {
+                        seenCookie = name;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+        key.reset();
+    }
+
+    private void handleEvents(final WatchKey key) {
+        final var dirPath = watchedDirs.get(key);
+        if (dirPath == null) {
+            key.cancel();
+            return;
+        }
+        final var events = key.pollEvents();
+        for (final var event : events) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                markEventsLost();
+                continue;
+            }
+            final var name = event.context().toString();
+            if (!dirPath.canResolve(name)) {
+                continue;
+            }
+            final var path = dirPath.resolve(VCSFileName.create(name));
+            synchronized (this) {
+                changed.add(path);
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE && keysOfDirs.containsKey(path)) {
+                // watch of moved dir would report its events under old path
+                unregisterAll(path);
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                final var osPath = worktree.resolve(path.toOsPath());
+                if (Files.isDirectory(osPath, LinkOption.NOFOLLOW_LINKS)) {
+                    registerAll(osPath, path);
+                }
+            }
+        }
+        if (!key.reset()) {
+            unregisterAll(dirPath);
+        }
+    }
+
+    private void registerAll(final Path dir, final VCSPath dirPath) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path osDir, final BasicFileAttributes attrs) throws IOException {
+                    if (osDir.equals(repoDir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    final var path = resolveOrNull(dirPath, dir.relativize(osDir));
+                    if (path == null) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    final var key = osDir.register(
+                            watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE,
+                            StandardWatchEventKinds.ENTRY_MODIFY
+                    );
+                    watchedDirs.put(key, path);
+                    keysOfDirs.put(path, key);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                    logger.warn("Can't watch {}.", file, ex);
+                    markEventsLost();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException ex) {
+            logger.warn("Can't watch {}.", dir, ex);
+            markEventsLost();
+        }
+    }
+
+    @Nullable
+    private static VCSPath resolveOrNull(final VCSPath dirPath, final Path relativePath) {
+        if (relativePath.toString().isEmpty()) {
+            return dirPath;
+        }
+        var result = dirPath;
+        for (final var name : relativePath) {
+            if (!result.canResolve(name.toString())) {
+                return null;
+            }
+            result = result.resolve(VCSFileName.create(name.toString()));
+        }
+        return result;
+    }
+
+    private void unregisterAll(final VCSPath dirPath) {
+        final var removed = new ArrayList<VCSPath>();
+        for (final var path : keysOfDirs.keySet()) {
+            if (path.startsWith(dirPath)) {
+                removed.add(path);
+            }
+        }
+        for (final var path : removed) {
+            final var key = keysOfDirs.remove(path);
+            watchedDirs.remove(key);
+            key.cancel();
+        }
+    }
+
+    private synchronized void markEventsLost() {
+        eventsLost = true;
+    }
+}
@@ -13,10 +13,10 @@ import ru.otus.vcs.newversion.utils.Utils;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -37,19 +37,74 @@ import static java.util.stream.Collectors.toUnmodifiableMap;
 import static ru.otus.vcs.newversion.utils.Utils.utf8;
 
 /**
- * Simplified version of git index. Just contains list of file paths relative to workdir with stages and hash.
+ * Simplified version of git index. Just contains list of file paths relative to workdir with stages, hash
+ * and stat of staged file. Stored in {@link IndexFile binary format}, legacy text format is still readable.
+ * Changes of entries invalidate corresponding directories of {@link CacheTree}, stats don't affect it.
  */
 public class Index {
 
     private final LinkedHashMap<VCSPath, List<IndexEntry>> pathToIndexEntries;
+    /**
+     * Files modified not earlier than index was written could be changed again within the same
+     * timestamp granularity without stat change, so their stat can't be trusted.
+     */
+    private final long racyThresholdNanos;
+    private final CacheTree cacheTree;
 
     private Index(final LinkedHashMap<VCSPath, List<IndexEntry>> pathToIndexEntries) {
+        this(pathToIndexEntries, CacheTree.EMPTY);
+    }
+
+    private Index(final LinkedHashMap<VCSPath, List<IndexEntry>> pathToIndexEntries, final CacheTree cacheTree) {
+        this(pathToIndexEntries, Long.MIN_VALUE, cacheTree);
+    }
+
+    private Index(
+            final LinkedHashMap<VCSPath, List<IndexEntry>> pathToIndexEntries,
+            final long racyThresholdNanos,
+            final CacheTree cacheTree) {
         this.pathToIndexEntries = pathToIndexEntries;
+        this.racyThresholdNanos = racyThresholdNanos;
+        this.cacheTree = checkedCacheTree(pathToIndexEntries, cacheTree);
+    }
+
+    /**
+     * Reads index file through memory mapping.
+     */
+    public static Index read(final Path path) {
+        Contracts.requireNonNullArgument(path);
+
+        final var indexStat = FileStat.read(path);
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (IndexFile.isBinary(buffer)) {
+                final var entriesAndCacheTree = IndexFile.deserialize(buffer);
+                return new Index(
+                        indexEntriesToMap(entriesAndCacheTree.first()),
+                        indexStat.getMtimeNanos(),
+                        entriesAndCacheTree.second()
+                );
+            }
+            final byte[] bytes = new byte[buffer.limit()];
+            buffer.get(bytes);
+            return deserializeText(bytes);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read index " + path + ".", ex);
+        }
     }
 
     public static Index deserialize(final byte[] bytes) {
         Contracts.requireNonNullArgument(bytes);
 
+        final var buffer = ByteBuffer.wrap(bytes);
+        if (IndexFile.isBinary(buffer)) {
+            final var entriesAndCacheTree = IndexFile.deserialize(buffer);
+            return new Index(indexEntriesToMap(entriesAndCacheTree.first()), entriesAndCacheTree.second());
+        }
+        return deserializeText(bytes);
+    }
+
+    private static Index deserializeText(final byte[] bytes) {
         final var content = utf8(bytes);
         if (content.isBlank()) {
             return new Index(new LinkedHashMap<>());
@@ -66,25 +121,75 @@ public class Index {
         return new Index(indexEntriesToMap(indexEntries));
     }
 
-    public static Index create(final Path path, final Function<byte[], Sha1> hasher) {
+    public static Index create(final Path path, final Function<Path, Sha1> hasher) {
+        return create(path, create(List.of()), hasher);
+    }
+
+    /**
+     * Creates index of worktree files with their current stat using {@link WorktreeScanner}.
+     * Files which are {@link #isUpToDate up to date} in staged index are not read, their sha is taken from it.
+     */
+    public static Index create(final Path path, final Index staged, final Function<Path, Sha1> hasher) {
         Contracts.requireNonNullArgument(path);
+        Contracts.requireNonNullArgument(staged);
         Contracts.requireNonNullArgument(hasher);
 
         final var realPath = Utils.toReal(path);
-        try (var fileWalk = Files.walk(realPath)) {
-            final var indexEntries = fileWalk.skip(1)
-                    .filter(innerPath -> Files.isRegularFile(innerPath, LinkOption.NOFOLLOW_LINKS))
-                    .filter(innerPath -> VCSPath.isValidVCSPath(realPath.relativize(innerPath)))
-                    .map(
-                            innerPath -> IndexEntry.newNormalEntry(
-                                    VCSPath.create(realPath.relativize(innerPath)),
-                                    hasher.apply(Utils.readBytes(innerPath))
-                            )
-                    ).collect(Collectors.toList());
-            return Index.create(indexEntries);
-        } catch (final IOException ex) {
-            throw new UncheckedIOException(ex);
+        return create(WorktreeScanner.scan(realPath, realPath, staged, hasher));
+    }
+
+    /**
+     * @return true if path is staged without conflict and worktree file with provided stat
+     * certainly has staged content.
+     */
+    public boolean isUpToDate(final VCSPath path, final FileStat stat) {
+        Contracts.requireNonNullArgument(path);
+        Contracts.requireNonNullArgument(stat);
+
+        final var entries = pathToIndexEntries.get(path);
+        if (entries == null || entries.size() != 1 || stat == FileStat.NONE) {
+            return false;
         }
+        final var stagedStat = entries.get(0).getStat();
+        return stagedStat.equals(stat) && stagedStat.getMtimeNanos() < racyThresholdNanos;
+    }
+
+    /**
+     * @return index with stat of entries replaced, paths which are absent or in conflict are ignored.
+     */
+    public Index withStats(final Map<VCSPath, FileStat> stats) {
+        Contracts.requireNonNullArgument(stats);
+
+        final var newMapping = new LinkedHashMap<>(pathToIndexEntries);
+        for (final var pathAndStat : stats.entrySet()) {
+            final var entries = newMapping.get(pathAndStat.getKey());
+            if (entries != null && entries.size() == 1) {
+                final var entry = entries.get(0);
+                newMapping.put(
+                        entry.getPath(),
+                        List.of(IndexEntry.newNormalEntry(entry.getPath(), entry.getSha(), pathAndStat.getValue()))
+                );
+            }
+        }
+        return new Index(newMapping, cacheTree);
+    }
+
+    /**
+     * @return index where entries without stat take it from entry of other index with the same path and sha.
+     */
+    public Index withStatsFrom(final Index other) {
+        Contracts.requireNonNullArgument(other);
+
+        final var stats = new HashMap<VCSPath, FileStat>();
+        for (final var entries : pathToIndexEntries.values()) {
+            final var otherEntries = other.pathToIndexEntries.get(entries.get(0).getPath());
+            if (entries.size() == 1 && entries.get(0).getStat() == FileStat.NONE
+                    && otherEntries != null && otherEntries.size() == 1
+                    && otherEntries.get(0).getSha().equals(entries.get(0).getSha())) {
+                stats.put(entries.get(0).getPath(), otherEntries.get(0).getStat());
+            }
+        }
+        return stats.isEmpty() ? this : withStats(stats);
     }
 
     public Sha1 getSha(final VCSPath path) {
@@ -97,22 +202,43 @@ public class Index {
     }
 
     public Index withNewIndexEntry(final VCSPath path, final Sha1 sha) {
+        return withNewIndexEntry(path, sha, FileStat.NONE);
+    }
+
+    /**
+     * @param stat of staged file or {@link FileStat#NONE} if it is unknown,
+     *             in that case stat of unchanged entry is preserved.
+     */
+    public Index withNewIndexEntry(final VCSPath path, final Sha1 sha, final FileStat stat) {
         Contracts.requireNonNullArgument(path);
         Contracts.requireNonNullArgument(sha);
+        Contracts.requireNonNullArgument(stat);
 
         final var indexEntriesForPath = pathToIndexEntries.get(path);
         if (indexEntriesForPath != null
                 && indexEntriesForPath.size() == 1
-                && indexEntriesForPath.get(0).getSha().equals(sha)) {
+                && indexEntriesForPath.get(0).getSha().equals(sha)
+                && (stat == FileStat.NONE || indexEntriesForPath.get(0).getStat().equals(stat))) {
             return this;
         } else {
             final var newMapping = new LinkedHashMap<>(pathToIndexEntries);
-            final var newIndexEntry = IndexEntry.newNormalEntry(path, sha);
+            final var newIndexEntry = IndexEntry.newNormalEntry(path, sha, stat);
             newMapping.put(path, List.of(newIndexEntry));
-            return new Index(newMapping);
+            final boolean shaChanged = indexEntriesForPath == null
+                    || indexEntriesForPath.size() != 1
+                    || !indexEntriesForPath.get(0).getSha().equals(sha);
+            return new Index(newMapping, shaChanged ? cacheTree.invalidated(path) : cacheTree);
         }
     }
 
+    /**
+     * @return builder initialized with entries of this index. Map of entries is copied once per builder,
+     * so any number of changes costs a single copy unlike chain of {@code with*} calls.
+     */
+    public Builder toBuilder() {
+        return new Builder(new LinkedHashMap<>(pathToIndexEntries), new HashMap<>(cacheTree.getDirs()));
+    }
+
     public Index withNewConflict(final VCSPath path, final Sha1 receiverSha, final Sha1 giverSha) {
         Contracts.requireNonNullArgument(path);
         Contracts.requireNonNullArgument(receiverSha);
@@ -126,7 +252,7 @@ public class Index {
         );
         final var newMapping = new LinkedHashMap<>(pathToIndexEntries);
         newMapping.put(path, newIndexEntries);
-        return new Index(newMapping);
+        return new Index(newMapping, cacheTree.invalidated(path));
     }
 
     @Nullable
@@ -139,18 +265,38 @@ public class Index {
         } else {
             final var newMapping = new LinkedHashMap<>(pathToIndexEntries);
             newMapping.remove(path);
-            return new Index(newMapping);
+            return new Index(newMapping, cacheTree.invalidated(path));
         }
     }
 
+    /**
+     * Directories of conflicts are already invalid, so cache tree is kept.
+     */
     public Index withDroppedConflicts() {
-        return create(
-                pathToIndexEntries.values()
-                        .stream()
-                        .filter(list -> list.size() == 1)
-                        .map(list -> list.get(0))
-                        .collect(Collectors.toList())
-        );
+        final var newMapping = new LinkedHashMap<VCSPath, List<IndexEntry>>();
+        for (final var pathAndEntries : pathToIndexEntries.entrySet()) {
+            if (pathAndEntries.getValue().size() == 1) {
+                newMapping.put(pathAndEntries.getKey(), pathAndEntries.getValue());
+            }
+        }
+        return new Index(newMapping, cacheTree);
+    }
+
+    public CacheTree getCacheTree() {
+        return cacheTree;
+    }
+
+    /**
+     * @param cacheTree trees of directories of this index, which are saved in repository.
+     */
+    public Index withCacheTree(final CacheTree cacheTree) {
+        Contracts.requireNonNullArgument(cacheTree);
+
+        return new Index(pathToIndexEntries, racyThresholdNanos, cacheTree);
+    }
+
+    public int size() {
+        return pathToIndexEntries.size();
     }
 
     @Nullable
@@ -186,11 +332,12 @@ public class Index {
     }
 
     public byte[] serialize() {
-        return pathToIndexEntries.values().stream()
-                .flatMap(List::stream)
-                .map(IndexEntry::toLineContent)
-                .collect(joining("\n"))
-                .getBytes(StandardCharsets.UTF_8);
+        return IndexFile.serialize(
+                pathToIndexEntries.values().stream()
+                        .flatMap(List::stream)
+                        .collect(Collectors.toList()),
+                cacheTree
+        );
     }
 
     public boolean hasMergeConflict() {
@@ -301,6 +448,20 @@ public class Index {
         return result;
     }
 
+    /**
+     * Cache tree of other index version, e.g. written by older implementation and changed afterwards,
+     * is detected by root entry count and dropped.
+     */
+    private static CacheTree checkedCacheTree(
+            final Map<VCSPath, List<IndexEntry>> pathToIndexEntries,
+            final CacheTree cacheTree) {
+        final var root = cacheTree.get(VCSPath.root);
+        if (root != null && root.getEntryCount() != pathToIndexEntries.size()) {
+            return CacheTree.EMPTY;
+        }
+        return cacheTree;
+    }
+
     private static void checkStages(final Map<VCSPath, List<IndexEntry>> pathToIndexEntries) {
         for (final var pathAndEntries : pathToIndexEntries.entrySet()) {
             final VCSPath path = pathAndEntries.getKey();
@@ -353,6 +514,102 @@ public class Index {
         return new Modification(new VCSFileDesc(vcsPath, giverSha), receiverSha);
     }
 
+    /**
+     * Mutable index for batch changes. Has the same semantics as {@link #withNewIndexEntry(VCSPath, Sha1, FileStat)}
+     * and {@link #withRemovedIndexEntry(VCSPath)}. Can build only one index.
+     */
+    public static final class Builder {
+
+        private final LinkedHashMap<VCSPath, List<IndexEntry>> pathToIndexEntries;
+        private final Map<VCSPath, CacheTree.Node> cacheTreeDirs;
+        private boolean built;
+
+        private Builder(
+                final LinkedHashMap<VCSPath, List<IndexEntry>> pathToIndexEntries,
+                final Map<VCSPath, CacheTree.Node> cacheTreeDirs) {
+            this.pathToIndexEntries = pathToIndexEntries;
+            this.cacheTreeDirs = cacheTreeDirs;
+        }
+
+        /**
+         * @param stat of staged file or {@link FileStat#NONE} if it is unknown,
+         *             in that case stat of unchanged entry is preserved.
+         */
+        public Builder add(final VCSPath path, final Sha1 sha, final FileStat stat) {
+            Contracts.requireNonNullArgument(path);
+            Contracts.requireNonNullArgument(sha);
+            Contracts.requireNonNullArgument(stat);
+            Contracts.forbidThat(path.isRoot());
+            Contracts.forbidThat(built);
+
+            final var entries = pathToIndexEntries.get(path);
+            if (stat == FileStat.NONE && entries != null && entries.size() == 1
+                    && entries.get(0).getSha().equals(sha)) {
+                return this;
+            }
+            final var previous = pathToIndexEntries.put(path, List.of(IndexEntry.newNormalEntry(path, sha, stat)));
+            if (previous == null || previous.size() != 1 || !previous.get(0).getSha().equals(sha)) {
+                CacheTree.invalidate(cacheTreeDirs, path);
+            }
+            return this;
+        }
+
+        /**
+         * Does nothing if path is absent.
+         */
+        public Builder remove(final VCSPath path) {
+            Contracts.requireNonNullArgument(path);
+            Contracts.forbidThat(built);
+
+            if (pathToIndexEntries.remove(path) != null) {
+                CacheTree.invalidate(cacheTreeDirs, path);
+            }
+            return this;
+        }
+
+        public Builder addConflict(final VCSPath path, final Sha1 receiverSha, final Sha1 giverSha) {
+            Contracts.requireNonNullArgument(path);
+            Contracts.requireNonNullArgument(receiverSha);
+            Contracts.requireNonNullArgument(giverSha);
+            Contracts.forbidThat(path.isRoot());
+            Contracts.forbidThat(receiverSha.equals(giverSha));
+            Contracts.forbidThat(built);
+
+            pathToIndexEntries.put(
+                    path,
+                    List.of(new IndexEntry(Stage.receiver, path, receiverSha), new IndexEntry(Stage.giver, path, giverSha))
+            );
+            CacheTree.invalidate(cacheTreeDirs, path);
+            return this;
+        }
+
+        /**
+         * Applies change in terms of {@link Index#getDiff}, i.e. applying {@code other.getDiff(index)}
+         * to builder of index gives entries of other. Stats of unchanged entries are preserved.
+         */
+        public Builder apply(final VCSFileChange change) {
+            Contracts.requireNonNullArgument(change);
+
+            if (change instanceof Addition) {
+                final var fileDesc = ((Addition) change).getAddedFileDesc();
+                return add(fileDesc.getPath(), fileDesc.getSha(), FileStat.NONE);
+            } else if (change instanceof Modification) {
+                final var fileDesc = ((Modification) change).getModifiedFileDesc();
+                return add(fileDesc.getPath(), fileDesc.getSha(), FileStat.NONE);
+            } else {
+                Contracts.requireThat(change instanceof Deletion);
+                return remove(change.getChangePath());
+            }
+        }
+
+        public Index build() {
+            Contracts.forbidThat(built);
+
+            built = true;
+            return new Index(pathToIndexEntries, CacheTree.create(cacheTreeDirs));
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -368,6 +625,9 @@ public class Index {
 
     @Override
     public String toString() {
-        return utf8(serialize());
+        return pathToIndexEntries.values().stream()
+                .flatMap(List::stream)
+                .map(IndexEntry::toLineContent)
+                .collect(joining("\n"));
     }
 }
@@ -4,19 +4,29 @@ import ru.otus.utils.Contracts;
 import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.Sha1;
 
+/**
+ * Entry of the index. Stat of the staged file is a cache, so it doesn't take part in equality.
+ */
 public class IndexEntry {
     private final Stage stage;
     private final VCSPath path;
     private final Sha1 sha;
+    private final FileStat stat;
 
     IndexEntry(final Stage stage, final VCSPath path, final Sha1 sha) {
+        this(stage, path, sha, FileStat.NONE);
+    }
+
+    IndexEntry(final Stage stage, final VCSPath path, final Sha1 sha, final FileStat stat) {
         Contracts.requireNonNullArgument(stage);
         Contracts.requireNonNullArgument(path);
         Contracts.requireNonNullArgument(sha);
+        Contracts.requireNonNullArgument(stat);
 
         this.stage = stage;
         this.path = path;
         this.sha = sha;
+        this.stat = stat;
     }
 
     public static IndexEntry fromLineContent(final String content) {
@@ -50,6 +60,14 @@ public class IndexEntry {
         return new IndexEntry(Stage.normal, vcsPath, sha);
     }
 
+    public static IndexEntry newNormalEntry(final VCSPath vcsPath, final Sha1 sha, final FileStat stat) {
+        Contracts.requireNonNullArgument(vcsPath);
+        Contracts.requireNonNullArgument(sha);
+        Contracts.requireNonNullArgument(stat);
+
+        return new IndexEntry(Stage.normal, vcsPath, sha, stat);
+    }
+
     public String toLineContent() {
         return stage.getCode() + " " + path + " " + sha.getHexString();
     }
@@ -66,6 +84,10 @@ public class IndexEntry {
         return sha;
     }
 
+    public FileStat getStat() {
+        return stat;
+    }
+
     private static String badLineContent(final String content) {
         return "Bad line content '" + content + "'.";
     }
@@ -0,0 +1,205 @@
+package ru.otus.vcs.newversion.index;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.utils.Tuple2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Binary index format. Layout: magic, version, number of entries, size of path table,
+ * fixed width entries (20 bytes sha, mtime in nanos, size, inode, offset and length of path in path table
+ * and stage code), path table with utf-8 encoded paths and extensions. Extension is signature, size of data
+ * and data, unknown extensions are skipped. Version 2 has no extensions.
+ * Legacy text index starts with stage digit, so it never starts with magic.
+ */
+final class IndexFile {
+
+    private static final int MAGIC = 0x53474958; // SGIX
+    private static final int VERSION = 3;
+    private static final int VERSION_WITHOUT_EXTENSIONS = 2;
+    private static final int CACHE_TREE_SIGNATURE = 0x54524545; // TREE
+    private static final int EXTENSION_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    private static final int ENTRY_SIZE = Sha1.BINARY_LENGTH + 3 * Long.BYTES + 2 * Integer.BYTES + Integer.BYTES;
+
+    private IndexFile() {
+        throw new IllegalStateException();
+    }
+
+    static boolean isBinary(final ByteBuffer buffer) {
+        return buffer.limit() >= Integer.BYTES && buffer.getInt(0) == MAGIC;
+    }
+
+    static byte[] serialize(final List<IndexEntry> entries, final CacheTree cacheTree) {
+        Contracts.requireNonNullArgument(entries);
+        Contracts.requireNonNullArgument(cacheTree);
+
+        final var paths = new ArrayList<byte[]>(entries.size());
+        int pathTableSize = 0;
+        for (final var entry : entries) {
+            final byte[] path = entry.getPath().toString().getBytes(StandardCharsets.UTF_8);
+            paths.add(path);
+            pathTableSize += path.length;
+        }
+        final byte[] cacheTreeData = serializeCacheTree(cacheTree);
+        final var buffer = ByteBuffer.allocate(
+                HEADER_SIZE + entries.size() * ENTRY_SIZE + pathTableSize
+                        + EXTENSION_HEADER_SIZE + cacheTreeData.length
+        );
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(entries.size())
+                .putInt(pathTableSize);
+        int pathOffset = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            final var entry = entries.get(i);
+            final var stat = entry.getStat();
+            entry.getSha().write(buffer)
+                    .putLong(stat.getMtimeNanos())
+                    .putLong(stat.getSize())
+                    .putLong(stat.getInode())
+                    .putInt(pathOffset)
+                    .putInt(paths.get(i).length)
+                    .putInt(entry.getStage().getCode());
+            pathOffset += paths.get(i).length;
+        }
+        for (final var path : paths) {
+            buffer.put(path);
+        }
+        buffer.putInt(CACHE_TREE_SIGNATURE)
+                .putInt(cacheTreeData.length)
+                .put(cacheTreeData);
+        return buffer.array();
+    }
+
+    /**
+     * @return entries and cache tree, which is empty if index has no such extension.
+     */
+    static Tuple2<List<IndexEntry>, CacheTree> deserialize(final ByteBuffer buffer) {
+        Contracts.requireNonNullArgument(buffer);
+        Contracts.requireThat(buffer.limit() >= HEADER_SIZE, badFormat("Too short."));
+        Contracts.requireThat(isBinary(buffer), badFormat("Bad magic."));
+        final int version = buffer.getInt(Integer.BYTES);
+        Contracts.requireThat(
+                version == VERSION || version == VERSION_WITHOUT_EXTENSIONS,
+                badFormat("Unsupported version.")
+        );
+
+        final int size = buffer.getInt(2 * Integer.BYTES);
+        final int pathTableSize = buffer.getInt(3 * Integer.BYTES);
+        final long pathTableStart = HEADER_SIZE + (long) size * ENTRY_SIZE;
+        final long extensionsStart = pathTableStart + pathTableSize;
+        Contracts.requireThat(
+                size >= 0 && pathTableSize >= 0 && buffer.limit() >= extensionsStart
+                        && (version != VERSION_WITHOUT_EXTENSIONS || buffer.limit() == extensionsStart),
+                badFormat("Size doesn't correspond to header.")
+        );
+        final var result = new ArrayList<IndexEntry>(size);
+        final var reader = buffer.duplicate();
+        for (int i = 0; i < size; i++) {
+            reader.position(HEADER_SIZE + i * ENTRY_SIZE);
+            final var sha = Sha1.read(reader);
+            final var stat = new FileStat(reader.getLong(), reader.getLong(), reader.getLong());
+            final int pathOffset = reader.getInt();
+            final int pathLength = reader.getInt();
+            final int stageCode = reader.getInt();
+            Contracts.requireThat(
+                    pathOffset >= 0 && pathLength > 0 && (long) pathOffset + pathLength <= pathTableSize,
+                    badFormat("Bad path bounds.")
+            );
+            final byte[] path = new byte[pathLength];
+            reader.position((int) pathTableStart + pathOffset);
+            reader.get(path);
+            result.add(
+                    new IndexEntry(
+                            Stage.fromCode(stageCode),
+                            VCSPath.create(new String(path, StandardCharsets.UTF_8)),
+                            sha,
+                            stat
+                    )
+            );
+        }
+        return new Tuple2<>(result, deserializeExtensions(buffer, (int) extensionsStart));
+    }
+
+    private static CacheTree deserializeExtensions(final ByteBuffer buffer, final int start) {
+        var cacheTree = CacheTree.EMPTY;
+        final var reader = buffer.duplicate().position(start);
+        while (reader.hasRemaining()) {
+            Contracts.requireThat(reader.remaining() >= EXTENSION_HEADER_SIZE, badFormat("Bad extension header."));
+            final int signature = reader.getInt();
+            final int length = reader.getInt();
+            Contracts.requireThat(length >= 0 && length <= reader.remaining(), badFormat("Bad extension size."));
+            final var data = reader.slice().limit(length);
+            if (signature == CACHE_TREE_SIGNATURE) {
+                cacheTree = deserializeCacheTree(data);
+            }
+            reader.position(reader.position() + length);
+        }
+        return cacheTree;
+    }
+
+    /**
+     * Layout: number of directories and for every directory length of path, utf-8 encoded path
+     * (empty for root), 20 bytes tree sha and number of entries.
+     */
+    private static byte[] serializeCacheTree(final CacheTree cacheTree) {
+        final var dirs = new ArrayList<>(cacheTree.getDirs().entrySet());
+        final var paths = new ArrayList<byte[]>(dirs.size());
+        int size = Integer.BYTES;
+        for (final var dir : dirs) {
+            final byte[] path = dir.getKey().toString().getBytes(StandardCharsets.UTF_8);
+            paths.add(path);
+            size += Integer.BYTES + path.length + Sha1.BINARY_LENGTH + Integer.BYTES;
+        }
+        final var buffer = ByteBuffer.allocate(size)
+                .putInt(dirs.size());
+        for (int i = 0; i < dirs.size(); i++) {
+            final var node = dirs.get(i).getValue();
+            buffer.putInt(paths.get(i).length)
+                    .put(paths.get(i));
+            node.getTreeSha().write(buffer)
+                    .putInt(node.getEntryCount());
+        }
+        return buffer.array();
+    }
+
+    private static CacheTree deserializeCacheTree(final ByteBuffer data) {
+        final int count = readInt(data);
+        Contracts.requireThat(count >= 0, badFormat("Bad cache tree size."));
+        final var dirs = new HashMap<VCSPath, CacheTree.Node>();
+        for (int i = 0; i < count; i++) {
+            final int pathLength = readInt(data);
+            Contracts.requireThat(
+                    pathLength >= 0 && (long) pathLength + Sha1.BINARY_LENGTH + Integer.BYTES <= data.remaining(),
+                    badFormat("Bad cache tree entry.")
+            );
+            final byte[] path = new byte[pathLength];
+            data.get(path);
+            final var sha = Sha1.read(data);
+            final int entryCount = data.getInt();
+            Contracts.requireThat(entryCount > 0, badFormat("Bad cache tree entry count."));
+            final var dir = pathLength == 0
+                    ? VCSPath.root
+                    : VCSPath.create(new String(path, StandardCharsets.UTF_8));
+            dirs.put(dir, new CacheTree.Node(sha, entryCount));
+        }
+        Contracts.requireThat(!data.hasRemaining(), badFormat("Trailing cache tree data."));
+        return CacheTree.create(dirs);
+    }
+
+    private static int readInt(final ByteBuffer data) {
+        Contracts.requireThat(data.remaining() >= Integer.BYTES, badFormat("Unexpected end of extension."));
+        return data.getInt();
+    }
+
+    private static String badFormat(final String additionalInfo) {
+        return "Bad format of index. " + additionalInfo;
+    }
+}
@@ -0,0 +1,229 @@
+package ru.otus.vcs.newversion.index;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.path.VCSFileName;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Parallel scan of worktree. Directories are traversed by fork-join tasks, then files are stat-ed and
+ * hashed by tasks of the same pool, which is bounded by number of processors.
+ * Result is sorted by path, so it doesn't depend on scheduling.
+ */
+public final class WorktreeScanner {
+
+    private static final int FILES_PER_TASK = 16;
+
+    private WorktreeScanner() {
+        throw new IllegalStateException();
+    }
+
+    public static List<IndexEntry> scan(
+            final Path root,
+            final Path dir,
+            final Index staged,
+            final Function<Path, Sha1> hasher) {
+        return scan(root, dir, path -> true, staged, hasher);
+    }
+
+    /**
+     * @param root   real path of worktree.
+     * @param dir    directory under root (or root itself) to scan.
+     * @param filter of files to include, others are neither stat-ed nor hashed.
+     * @param staged index, files {@link Index#isUpToDate up to date} in it are not hashed.
+     * @param hasher computes sha of file content, must be thread safe.
+     * @return entries of regular files under dir with their current stat sorted by path.
+     */
+    public static List<IndexEntry> scan(
+            final Path root,
+            final Path dir,
+            final Predicate<VCSPath> filter,
+            final Index staged,
+            final Function<Path, Sha1> hasher) {
+        Contracts.requireNonNullArgument(root);
+        Contracts.requireNonNullArgument(dir);
+        Contracts.requireNonNullArgument(filter);
+        Contracts.requireNonNullArgument(staged);
+        Contracts.requireNonNullArgument(hasher);
+        Contracts.requireThat(dir.startsWith(root));
+
+        final var pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            final var dirPath = dir.equals(root) ? VCSPath.root : VCSPath.create(root.relativize(dir));
+            final List<WorktreeFile> files = pool.invoke(new ListFilesTask(dir, dirPath, filter));
+            return entries(pool, files, staged, hasher);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Scans only provided paths: directories recursively and regular files directly, absent paths are skipped.
+     *
+     * @param paths which are not nested in each other.
+     * @return entries of regular files under paths with their current stat sorted by path.
+     */
+    public static List<IndexEntry> scan(
+            final Path root,
+            final Collection<VCSPath> paths,
+            final Index staged,
+            final Function<Path, Sha1> hasher) {
+        Contracts.requireNonNullArgument(root);
+        Contracts.requireNonNullArgument(paths);
+        Contracts.requireNonNullArgument(staged);
+        Contracts.requireNonNullArgument(hasher);
+
+        final var files = new ArrayList<WorktreeFile>();
+        final var dirTasks = new ArrayList<ListFilesTask>();
+        for (final var path : paths) {
+            final var osPath = root.resolve(path.toOsPath());
+            if (Files.isDirectory(osPath, LinkOption.NOFOLLOW_LINKS)) {
+                dirTasks.add(new ListFilesTask(osPath, path, anyPath -> true));
+            } else if (Files.isRegularFile(osPath, LinkOption.NOFOLLOW_LINKS)) {
+                files.add(new WorktreeFile(osPath, path));
+            }
+        }
+        final var pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(dirTasks)));
+            for (final var task : dirTasks) {
+                files.addAll(task.join());
+            }
+            return entries(pool, files, staged, hasher);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<IndexEntry> entries(
+            final ForkJoinPool pool,
+            final List<WorktreeFile> files,
+            final Index staged,
+            final Function<Path, Sha1> hasher) {
+        final var entries = new IndexEntry[files.size()];
+        pool.invoke(new EntriesTask(files, 0, files.size(), staged, hasher, entries));
+        Arrays.sort(entries, Comparator.comparing(IndexEntry::getPath));
+        return Arrays.asList(entries);
+    }
+
+    private static final class WorktreeFile {
+        private final Path file;
+        private final VCSPath path;
+
+        private WorktreeFile(final Path file, final VCSPath path) {
+            this.file = file;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Paths of children are resolved against path of directory, so they share it.
+     */
+    private static class ListFilesTask extends RecursiveTask<List<WorktreeFile>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final VCSPath dirPath;
+        private final Predicate<VCSPath> filter;
+
+        private ListFilesTask(final Path dir, final VCSPath dirPath, final Predicate<VCSPath> filter) {
+            this.dir = dir;
+            this.dirPath = dirPath;
+            this.filter = filter;
+        }
+
+        @Override
+        protected List<WorktreeFile> compute() {
+            final var result = new ArrayList<WorktreeFile>();
+            final var subtasks = new ArrayList<ListFilesTask>();
+            try (var children = Files.newDirectoryStream(dir)) {
+                for (final var child : children) {
+                    final var fileName = child.getFileName().toString();
+                    if (!dirPath.canResolve(fileName)) {
+                        continue;
+                    }
+                    final var childPath = dirPath.resolve(VCSFileName.create(fileName));
+                    if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        final var subtask = new ListFilesTask(child, childPath, filter);
+                        subtask.fork();
+                        subtasks.add(subtask);
+                    } else if (Files.isRegularFile(child, LinkOption.NOFOLLOW_LINKS) && filter.test(childPath)) {
+                        result.add(new WorktreeFile(child, childPath));
+                    }
+                }
+            } catch (final IOException ex) {
+                throw new UncheckedIOException("Can't list directory " + dir + ".", ex);
+            }
+            for (final var subtask : subtasks) {
+                result.addAll(subtask.join());
+            }
+            return result;
+        }
+    }
+
+    private static class EntriesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<WorktreeFile> files;
+        private final int from;
+        private final int to;
+        private final Index staged;
+        private final Function<Path, Sha1> hasher;
+        private final IndexEntry[] result;
+
+        private EntriesTask(
+                final List<WorktreeFile> files,
+                final int from,
+                final int to,
+                final Index staged,
+                final Function<Path, Sha1> hasher,
+                final IndexEntry[] result) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.staged = staged;
+            this.hasher = hasher;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FILES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    result[i] = entry(files.get(i));
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(
+                    new EntriesTask(files, from, middle, staged, hasher, result),
+                    new EntriesTask(files, middle, to, staged, hasher, result)
+            );
+        }
+
+        private IndexEntry entry(final WorktreeFile file) {
+            final var stat = FileStat.read(file.file);
+            final var sha = staged.isUpToDate(file.path, stat) ? staged.getSha(file.path) : hasher.apply(file.file);
+            return IndexEntry.newNormalEntry(file.path, sha, stat);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package ru.otus.vcs.newversion.localrepo;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.index.FileStat;
+import ru.otus.vcs.newversion.index.diff.Addition;
+import ru.otus.vcs.newversion.index.diff.Deletion;
+import ru.otus.vcs.newversion.index.diff.Modification;
+import ru.otus.vcs.newversion.index.diff.VCSFileChange;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Parallel writer of checked out files. Missing directories are created up front, then blobs are read,
+ * inflated and written by tasks of the pool bounded by number of processors.
+ * Before file is overwritten or deleted, the way to undo it is recorded in journal. If any change fails,
+ * remaining changes are skipped, journal is replayed and created directories are removed, so worktree is
+ * left as it was. Failure of the first failed change in the list is reported, failures of others are suppressed by it.
+ */
+final class CheckoutWriter {
+
+    private static final int CHANGES_PER_TASK = 16;
+
+    private CheckoutWriter() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Changes are expected to be checked for local conflicts, so modified and deleted files have original content.
+     *
+     * @param root   real path of worktree.
+     * @param blobs  opens inflated content of blob, must be thread safe.
+     * @param hasher computes sha of file content, must be thread safe.
+     * @return stat of written files.
+     * @throws LocalRepositoryException if some change failed, worktree is restored.
+     */
+    static Map<VCSPath, FileStat> write(
+            final Path root,
+            final List<? extends VCSFileChange> changes,
+            final Function<Sha1, InputStream> blobs,
+            final Function<Path, Sha1> hasher) {
+        Contracts.requireNonNullArgument(root);
+        Contracts.requireNonNullArgument(changes);
+        Contracts.requireNonNullArgument(blobs);
+        Contracts.requireNonNullArgument(hasher);
+
+        final var createdDirs = createDirs(root, changes);
+        final var journal = new JournalEntry[changes.size()];
+        final var stats = new FileStat[changes.size()];
+        final var failures = new RuntimeException[changes.size()];
+        final var pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invoke(
+                    new WriteTask(root, changes, 0, changes.size(), blobs, hasher, journal, stats, failures, new AtomicBoolean())
+            );
+        } finally {
+            pool.shutdown();
+        }
+        RuntimeException firstFailure = null;
+        for (final var failure : failures) {
+            if (failure != null && firstFailure == null) {
+                firstFailure = failure;
+            } else if (failure != null) {
+                firstFailure.addSuppressed(failure);
+            }
+        }
+        if (firstFailure != null) {
+            rollback(journal, createdDirs, blobs, firstFailure);
+            throw new LocalRepositoryException("Can't write checked out files, worktree is restored.", firstFailure);
+        }
+        final var result = new HashMap<VCSPath, FileStat>();
+        for (int i = 0; i < stats.length; i++) {
+            if (stats[i] != null) {
+                result.put(changes.get(i).getChangePath(), stats[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return created directories, parents go first.
+     */
+    private static List<Path> createDirs(final Path root, final List<? extends VCSFileChange> changes) {
+        final var dirs = new TreeSet<VCSPath>();
+        for (final var change : changes) {
+            if (!(change instanceof Deletion)) {
+                for (var dir = change.getChangePath().getParent(); !dir.isRoot(); dir = dir.getParent()) {
+                    if (!dirs.add(dir)) {
+                        break;
+                    }
+                }
+            }
+        }
+        final var created = new ArrayList<Path>();
+        try {
+            for (final var dir : dirs) {
+                final var osDir = root.resolve(dir.toOsPath());
+                if (!Files.isDirectory(osDir, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.createDirectory(osDir);
+                    created.add(osDir);
+                }
+            }
+        } catch (final IOException ex) {
+            final var failure = new UncheckedIOException("Can't create directories for checkout.", ex);
+            removeDirs(created, failure);
+            throw new LocalRepositoryException("Can't write checked out files, worktree is restored.", failure);
+        }
+        return created;
+    }
+
+    private static void rollback(
+            final JournalEntry[] journal,
+            final List<Path> createdDirs,
+            final Function<Sha1, InputStream> blobs,
+            final RuntimeException failure) {
+        for (int i = journal.length - 1; i >= 0; i--) {
+            final var entry = journal[i];
+            if (entry == null) {
+                continue;
+            }
+            try {
+                if (entry.originalSha == null) {
+                    Files.deleteIfExists(entry.osPath);
+                } else {
+                    writeBlob(entry.originalSha, entry.osPath, blobs);
+                }
+            } catch (final IOException ex) {
+                failure.addSuppressed(new UncheckedIOException("Can't restore file " + entry.osPath + ".", ex));
+            } catch (final RuntimeException ex) {
+                failure.addSuppressed(ex);
+            }
+        }
+        removeDirs(createdDirs, failure);
+    }
+
+    private static void removeDirs(final List<Path> createdDirs, final RuntimeException failure) {
+        for (int i = createdDirs.size() - 1; i >= 0; i--) {
+            try {
+                Files.deleteIfExists(createdDirs.get(i));
+            } catch (final DirectoryNotEmptyException ex) {
+                // contains files which were not created by checkout
+            } catch (final IOException ex) {
+                failure.addSuppressed(new UncheckedIOException("Can't remove directory " + createdDirs.get(i) + ".", ex));
+            }
+        }
+    }
+
+    private static void writeBlob(final Sha1 sha, final Path osPath, final Function<Sha1, InputStream> blobs)
+            throws IOException {
+        try (var input = blobs.apply(sha)) {
+            Files.copy(input, osPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Way to undo change of file: restore content with original sha or delete file if there was none.
+     */
+    private static final class JournalEntry {
+        private final Path osPath;
+        @Nullable
+        private final Sha1 originalSha;
+
+        private JournalEntry(final Path osPath, @Nullable final Sha1 originalSha) {
+            this.osPath = osPath;
+            this.originalSha = originalSha;
+        }
+    }
+
+    private static class WriteTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+        private final List<? extends VCSFileChange> changes;
+        private final int from;
+        private final int to;
+        private final Function<Sha1, InputStream> blobs;
+        private final Function<Path, Sha1> hasher;
+        private final JournalEntry[] journal;
+        private final FileStat[] stats;
+        private final RuntimeException[] failures;
+        private final AtomicBoolean failed;
+
+        private WriteTask(
+                final Path root,
+                final List<? extends VCSFileChange> changes,
+                final int from,
+                final int to,
+                final Function<Sha1, InputStream> blobs,
+                final Function<Path, Sha1> hasher,
+                final JournalEntry[] journal,
+                final FileStat[] stats,
+                final RuntimeException[] failures,
+                final AtomicBoolean failed) {
+            this.root = root;
+            this.changes = changes;
+            this.from = from;
+            this.to = to;
+            this.blobs = blobs;
+            this.hasher = hasher;
+            this.journal = journal;
+            this.stats = stats;
+            this.failures = failures;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHANGES_PER_TASK) {
+                for (int i = from; i < to && !failed.get(); i++) {
+                    try {
+                        apply(i);
+                    } catch (final IOException ex) {
+                        failures[i] = new UncheckedIOException(
+                                "Can't write file " + changes.get(i).getChangePath().toOsPath() + ".", ex
+                        );
+                        failed.set(true);
+                    } catch (final RuntimeException ex) {
+                        failures[i] = ex;
+                        failed.set(true);
+                    }
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(
+                    new WriteTask(root, changes, from, middle, blobs, hasher, journal, stats, failures, failed),
+                    new WriteTask(root, changes, middle, to, blobs, hasher, journal, stats, failures, failed)
+            );
+        }
+
+        private void apply(final int i) throws IOException {
+            final var change = changes.get(i);
+            final var osPath = root.resolve(change.getChangePath().toOsPath());
+            if (change instanceof Deletion) {
+                final var deletedSha = ((Deletion) change).getDeletedFileDesc().getSha();
+                if (Files.isRegularFile(osPath, LinkOption.NOFOLLOW_LINKS) && hasher.apply(osPath).equals(deletedSha)) {
+                    journal[i] = new JournalEntry(osPath, deletedSha);
+                    Files.delete(osPath);
+                }
+                return;
+            }
+            final Sha1 sha;
+            if (change instanceof Addition) {
+                sha = ((Addition) change).getAddedFileDesc().getSha();
+                journal[i] = new JournalEntry(osPath, null);
+            } else if (change instanceof Modification) {
+                final var modification = (Modification) change;
+                sha = modification.getModifiedFileDesc().getSha();
+                final var existed = Files.exists(osPath, LinkOption.NOFOLLOW_LINKS);
+                journal[i] = new JournalEntry(osPath, existed ? modification.getOriginalSha() : null);
+            } else {
+                throw Contracts.unreachable();
+            }
+            writeBlob(sha, osPath, blobs);
+            stats[i] = FileStat.read(osPath);
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package ru.otus.vcs.newversion.localrepo;
 
 import ru.otus.vcs.newversion.gitrepo.CommitMessage;
+import ru.otus.vcs.newversion.objects.Commit;
 import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.BranchName;
 import ru.otus.vcs.newversion.ref.Ref;
+import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.storage.CommitWalk;
+import ru.otus.vcs.newversion.utils.Tuple2;
 
+import javax.annotation.Nullable;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public interface LocalRepository {
 
@@ -15,6 +24,12 @@ public interface LocalRepository {
 
     void add(VCSPath path);
 
+    /**
+     * Stages all changes of regular files under directory matching filter, including deletions of tracked files.
+     * Root path means whole worktree. Objects are written in parallel, index is rewritten once.
+     */
+    void addAll(VCSPath dir, Predicate<VCSPath> filter);
+
     void remove(VCSPath path);
 
     void removeFromIndex(VCSPath path);
@@ -27,9 +42,26 @@ public interface LocalRepository {
 
     void branch(BranchName branchName);
 
+    Map<BranchName, Sha1> branches();
+
+    @Nullable
+    BranchName currentBranch();
+
+    int packRefs();
+
     boolean merge(Ref ref);
 
     void checkoutFile(Ref ref, VCSPath path);
 
     LocalRepoStatus status();
+
+    int repack();
+
+    int gc();
+
+    Tuple2<Integer, Integer> aheadBehind(Ref first, Ref second);
+
+    List<Sha1> mergeBases(Ref first, Ref second);
+
+    Stream<Commit> log(Ref ref, CommitWalk.Order order, boolean firstParentOnly, @Nullable VCSPath path);
 }
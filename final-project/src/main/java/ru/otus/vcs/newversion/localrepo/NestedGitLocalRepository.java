@@ -1,31 +1,49 @@
 package ru.otus.vcs.newversion.localrepo;
 
 import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.index.FileStat;
+import ru.otus.vcs.newversion.index.FsMonitor;
 import ru.otus.vcs.newversion.index.Index;
+import ru.otus.vcs.newversion.index.IndexEntry;
+import ru.otus.vcs.newversion.index.WorktreeScanner;
 import ru.otus.vcs.newversion.index.diff.Addition;
-import ru.otus.vcs.newversion.index.diff.Deletion;
 import ru.otus.vcs.newversion.index.diff.Modification;
 import ru.otus.vcs.newversion.index.diff.VCSFileChange;
 import ru.otus.vcs.newversion.gitrepo.CommitMessage;
 import ru.otus.vcs.newversion.gitrepo.GitRepository;
 import ru.otus.vcs.newversion.gitrepo.GitRepositoryException;
+import ru.otus.vcs.newversion.gitrepo.MergeConflicts;
+import ru.otus.vcs.newversion.merge.ThreeWayMerge;
+import ru.otus.vcs.newversion.objects.Commit;
 import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.BranchName;
 import ru.otus.vcs.newversion.ref.Ref;
+import ru.otus.vcs.newversion.ref.ReservedRef;
+import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.storage.CommitWalk;
+import ru.otus.vcs.newversion.utils.Tuple2;
 import ru.otus.vcs.newversion.utils.Utils;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
@@ -34,13 +52,24 @@ public class NestedGitLocalRepository implements LocalRepository {
 
     private final Path repoPath;
     private final GitRepository gitRepo;
+    @Nullable
+    private final FsMonitor fsMonitor;
 
     public NestedGitLocalRepository(final GitRepository gitRepository) {
+        this(gitRepository, null);
+    }
+
+    /**
+     * @param fsMonitor of worktree, if it is provided status rescans only changed paths.
+     */
+    public NestedGitLocalRepository(final GitRepository gitRepository, @Nullable final FsMonitor fsMonitor) {
         Contracts.requireNonNullArgument(gitRepository);
         Contracts.requireNonNull(gitRepository.repoRealPath().getParent());
 
         this.repoPath = gitRepository.repoRealPath().getParent();
         this.gitRepo = gitRepository;
+        Contracts.requireThat(fsMonitor == null || fsMonitor.getWorktree().equals(repoPath));
+        this.fsMonitor = fsMonitor;
     }
 
     @Override
@@ -73,8 +102,41 @@ public class NestedGitLocalRepository implements LocalRepository {
         if (!Files.isRegularFile(repoPath.resolve(path.toOsPath()), LinkOption.NOFOLLOW_LINKS)) {
             throw new LocalRepositoryException("Can't add file at path " + osPath + ". File must exist and be regular.");
         }
-        final var content = Utils.readBytes(osPath);
-        gitRepo.add(content, path);
+        final var stat = FileStat.read(osPath);
+        try (var channel = FileChannel.open(osPath, StandardOpenOption.READ)) {
+            gitRepo.add(Channels.newInputStream(channel), channel.size(), path, stat);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read file " + osPath + ".", ex);
+        }
+    }
+
+    @Override
+    public void addAll(final VCSPath dir, final Predicate<VCSPath> filter) {
+        Contracts.requireNonNullArgument(dir);
+        Contracts.requireNonNullArgument(filter);
+
+        final var osDir = dir.isRoot() ? repoPath : resolveVCSPath(dir);
+        if (!Files.isDirectory(osDir, LinkOption.NOFOLLOW_LINKS)) {
+            throw new LocalRepositoryException("Can't add directory " + osDir + ". It must exist and be a directory.");
+        }
+        gitRepo.underIndexLock(() -> addAllUnderLock(dir, osDir, filter));
+    }
+
+    private void addAllUnderLock(final VCSPath dir, final Path osDir, final Predicate<VCSPath> filter) {
+        final var stagedIndex = gitRepo.getIndex();
+        final var scanned = WorktreeScanner.scan(repoPath, osDir, filter, stagedIndex, this::saveFile);
+        final var changed = new ArrayList<IndexEntry>();
+        final var present = new HashSet<VCSPath>();
+        for (final var entry : scanned) {
+            present.add(entry.getPath());
+            if (!stagedIndex.isUpToDate(entry.getPath(), entry.getStat())) {
+                changed.add(entry);
+            }
+        }
+        final var removed = stagedIndex.getPathToIndexEntries().keySet().stream()
+                .filter(path -> path.startsWith(dir) && filter.test(path) && !present.contains(path))
+                .collect(toList());
+        gitRepo.updateIndex(changed, removed);
     }
 
     @Override
@@ -96,8 +158,7 @@ public class NestedGitLocalRepository implements LocalRepository {
             gitRepo.remove(path);
             return;
         }
-        final var currentContent = Utils.readBytes(osPath);
-        final var currentHash = gitRepo.hash(currentContent);
+        final var currentHash = hashFile(osPath);
         final var stagedHash = index.hashOfPath(path);
         if (currentHash.equals(stagedHash)) {
             Utils.delete(osPath);
@@ -150,8 +211,9 @@ public class NestedGitLocalRepository implements LocalRepository {
             final List<VCSFileChange> changes = gitRepo.checkoutChanges(ref);
             final List<LocalConflict> localConflicts = localConflicts(changes);
             if (localConflicts.isEmpty()) {
-                writeChanges(changes);
+                final var stats = writeChanges(changes);
                 gitRepo.checkout(ref);
+                gitRepo.updateStats(stats);
             } else {
                 throw new LocalRepositoryException(
                         "Local conflicts prevent checkout. Conflicts:" + System.lineSeparator()
@@ -170,6 +232,22 @@ public class NestedGitLocalRepository implements LocalRepository {
         gitRepo.branch(branchName);
     }
 
+    @Override
+    public Map<BranchName, Sha1> branches() {
+        return gitRepo.branches();
+    }
+
+    @Nullable
+    @Override
+    public BranchName currentBranch() {
+        return gitRepo.currentBranch();
+    }
+
+    @Override
+    public int packRefs() {
+        return gitRepo.packRefs();
+    }
+
     @Override
     public boolean merge(final Ref ref) {
         Contracts.requireNonNullArgument(ref);
@@ -186,8 +264,15 @@ public class NestedGitLocalRepository implements LocalRepository {
         allChanges.addAll(conflictChanges);
         final var localConflicts = localConflicts(allChanges);
         if (localConflicts.isEmpty()) {
-            writeChanges(nonConflictChanges);
-            writeConflicts(conflictChanges, branchName);
+            try {
+                gitRepo.updateStats(writeChanges(nonConflictChanges));
+            } catch (final LocalRepositoryException ex) {
+                gitRepo.abortMerge();
+                throw ex;
+            }
+            if (changes.second() != null) {
+                writeConflicts(changes.second(), branchName);
+            }
             if (conflictChanges.isEmpty()) {
                 gitRepo.finishMerge();
             }
@@ -224,7 +309,13 @@ public class NestedGitLocalRepository implements LocalRepository {
     @Override
     public LocalRepoStatus status() {
         final var stagedIndex = gitRepo.getIndex();
-        final var localIndex = Index.create(repoPath, gitRepo::hash);
+        final var localIndex = fsMonitor == null
+                ? Index.create(repoPath, stagedIndex, this::hashFile)
+                : fsMonitor.scan(stagedIndex, this::hashFile);
+        final var stats = refreshedStats(stagedIndex, localIndex);
+        if (!stats.isEmpty()) {
+            gitRepo.updateStats(stats);
+        }
         final var localChanges = localIndex.getDiff(stagedIndex.withDroppedConflicts());
         final var correctedLocalChanges = new ArrayList<VCSFileChange>();
         for (final var change : localChanges) {
@@ -235,14 +326,84 @@ public class NestedGitLocalRepository implements LocalRepository {
         return new LocalRepoStatus(gitRepo.status(), correctedLocalChanges);
     }
 
+    @Override
+    public int repack() {
+        return gitRepo.repack();
+    }
+
+    @Override
+    public int gc() {
+        return gitRepo.gc();
+    }
+
+    @Override
+    public Tuple2<Integer, Integer> aheadBehind(final Ref first, final Ref second) {
+        Contracts.requireNonNullArgument(first);
+        Contracts.requireNonNullArgument(second);
+
+        try {
+            return gitRepo.aheadBehind(first, second);
+        } catch (final GitRepositoryException ex) {
+            throw new LocalRepositoryException("Can't count commits.", ex);
+        }
+    }
+
+    @Override
+    public List<Sha1> mergeBases(final Ref first, final Ref second) {
+        Contracts.requireNonNullArgument(first);
+        Contracts.requireNonNullArgument(second);
+
+        try {
+            return gitRepo.mergeBases(first, second);
+        } catch (final GitRepositoryException ex) {
+            throw new LocalRepositoryException("Can't find merge base.", ex);
+        }
+    }
+
+    @Override
+    public Stream<Commit> log(
+            final Ref ref,
+            final CommitWalk.Order order,
+            final boolean firstParentOnly,
+            @Nullable final VCSPath path) {
+        Contracts.requireNonNullArgument(ref);
+        Contracts.requireNonNullArgument(order);
+
+        try {
+            return gitRepo.log(ref, order, firstParentOnly, path);
+        } catch (final GitRepositoryException ex) {
+            throw new LocalRepositoryException("Can't list history.", ex);
+        }
+    }
+
+    /**
+     * @return stat of files which were rehashed, but turned out to have staged content.
+     */
+    private static Map<VCSPath, FileStat> refreshedStats(final Index stagedIndex, final Index localIndex) {
+        final var result = new HashMap<VCSPath, FileStat>();
+        for (final var entries : localIndex.getPathToIndexEntries().values()) {
+            final var entry = entries.get(0);
+            final var path = entry.getPath();
+            if (stagedIndex.contains(path) && !stagedIndex.inConflict(path)
+                    && !stagedIndex.isUpToDate(path, entry.getStat())
+                    && entry.getSha().equals(stagedIndex.hashOfPath(path))) {
+                result.put(path, entry.getStat());
+            }
+        }
+        return result;
+    }
+
     private static String getMessageForUser(final List<LocalConflict> localConflicts) {
         return localConflicts.stream()
                 .map(LocalConflict::toUserMessage)
                 .collect(Collectors.joining(System.lineSeparator()));
     }
 
+    /**
+     * Files are checked in parallel, worktree is not modified.
+     */
     private List<LocalConflict> localConflicts(final List<VCSFileChange> changes) {
-        return changes.stream()
+        return changes.parallelStream()
                 .map(this::localConflict)
                 .filter(Objects::nonNull)
                 .collect(toList());
@@ -255,20 +416,20 @@ public class NestedGitLocalRepository implements LocalRepository {
         if (fileChange instanceof Addition) {
             if (Files.exists(changedOsPath, LinkOption.NOFOLLOW_LINKS)) {
                 return LocalConflict.alreadyExists(changedVCSPath);
-            } else if (!createDirs(changedVCSPath)) {
+            } else if (!canCreateDirs(changedVCSPath)) {
                 return LocalConflict.cantCreateDirs(changedVCSPath);
             }
         } else if (fileChange instanceof Modification) {
             final var exists = Files.exists(changedOsPath, LinkOption.NOFOLLOW_LINKS);
             if (!exists) {
-                if (!createDirs(changedVCSPath)) {
+                if (!canCreateDirs(changedVCSPath)) {
                     return LocalConflict.cantCreateDirs(changedVCSPath);
                 }
             } else {
                 if (!Files.isRegularFile(changedOsPath, LinkOption.NOFOLLOW_LINKS)) {
                     return LocalConflict.alreadyExists(changedVCSPath);
                 }
-                final var newHash = gitRepo.hash(Utils.readBytes(changedOsPath));
+                final var newHash = hashFile(changedOsPath);
                 final var modification = (Modification) fileChange;
                 final var originalSha = modification.getOriginalSha();
                 if (!newHash.equals(originalSha)) {
@@ -279,6 +440,19 @@ public class NestedGitLocalRepository implements LocalRepository {
         return null;
     }
 
+    /**
+     * @return true if there is no file in place of some parent directory of path.
+     */
+    private boolean canCreateDirs(final VCSPath vcsPath) {
+        for (var dir = vcsPath.getParent(); !dir.isRoot(); dir = dir.getParent()) {
+            final var osDir = resolveVCSPath(dir);
+            if (Files.exists(osDir, LinkOption.NOFOLLOW_LINKS)) {
+                return Files.isDirectory(osDir, LinkOption.NOFOLLOW_LINKS);
+            }
+        }
+        return true;
+    }
+
     private boolean createDirs(final VCSPath vcsPath) {
         if (vcsPath.getParent().isRoot()) {
             return true;
@@ -294,48 +468,69 @@ public class NestedGitLocalRepository implements LocalRepository {
         }
     }
 
+    private Sha1 hashFile(final Path osPath) {
+        try (var channel = FileChannel.open(osPath, StandardOpenOption.READ)) {
+            return gitRepo.hash(Channels.newInputStream(channel), channel.size());
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read file " + osPath + ".", ex);
+        }
+    }
+
+    private Sha1 saveFile(final Path osPath) {
+        try (var channel = FileChannel.open(osPath, StandardOpenOption.READ)) {
+            return gitRepo.saveBlob(Channels.newInputStream(channel), channel.size());
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read file " + osPath + ".", ex);
+        }
+    }
+
     private Path resolveVCSPath(final VCSPath path) {
         return repoPath.resolve(path.toOsPath());
     }
 
-    private void writeChanges(final List<VCSFileChange> changes) {
-        for (final var fileChange : changes) {
-            final var osPath = resolveVCSPath(fileChange.getChangePath());
-            if (fileChange instanceof Addition) {
-                final var sha = ((Addition) fileChange).getAddedFileDesc().getSha();
-                Utils.writeBytes(osPath, gitRepo.readFile(sha));
-            } else if (fileChange instanceof Modification) {
-                final var sha = ((Modification) fileChange).getModifiedFileDesc().getSha();
-                Utils.writeBytes(osPath, gitRepo.readFile(sha));
-            } else if (fileChange instanceof Deletion) {
-                final var deletedFileSha = ((Deletion) fileChange).getDeletedFileDesc().getSha();
-                if (Files.isRegularFile(osPath, LinkOption.NOFOLLOW_LINKS)) {
-                    final var newSha = gitRepo.hash(Utils.readBytes(osPath));
-                    if (newSha.equals(deletedFileSha)) {
-                        // safe to delete
-                        Utils.delete(osPath);
-                    }
-                }
-            } else {
-                throw Contracts.unreachable();
-            }
-        }
+    /**
+     * @return stat of written files.
+     */
+    private Map<VCSPath, FileStat> writeChanges(final List<VCSFileChange> changes) {
+        return CheckoutWriter.write(repoPath, changes, gitRepo::openFile, this::hashFile);
     }
 
-    private void writeConflicts(final List<Modification> conflictChanges, final BranchName branchName) {
-        for (final var modification : conflictChanges) {
+    /**
+     * Text files with known base get markers around conflicting chunks only, others get both versions whole.
+     */
+    private void writeConflicts(final MergeConflicts mergeConflicts, final BranchName branchName) {
+        for (final var modification : mergeConflicts.getConflictingChanges()) {
             final byte[] headData = gitRepo.readFile(modification.getOriginalSha());
             final byte[] targetData = gitRepo.readFile(modification.getModifiedFileDesc().getSha());
-            final String header = "<<<<<< HEAD\n";
-            final String delimeter = ">>>>>> " + branchName.getBranchName() + "\n";
-            final byte[] result = Utils.concat(
-                    List.of(
-                            header.getBytes(StandardCharsets.UTF_8),
-                            headData,
-                            delimeter.getBytes(StandardCharsets.UTF_8),
-                            targetData
-                    )
-            );
+            final var baseSha = mergeConflicts.getBaseShaOrNull(modification.getChangePath());
+            final byte[] baseData = baseSha == null ? null : gitRepo.readFile(baseSha);
+            final byte[] result;
+            if (baseData != null
+                    && ThreeWayMerge.isText(baseData)
+                    && ThreeWayMerge.isText(headData)
+                    && ThreeWayMerge.isText(targetData)) {
+                result = ThreeWayMerge.merge(
+                        baseData,
+                        headData,
+                        targetData,
+                        ReservedRef.head.getRefString(),
+                        branchName.getBranchName()
+                ).getContent();
+            } else {
+                final String header = "<<<<<< HEAD\n";
+                final String delimeter = ">>>>>> " + branchName.getBranchName() + "\n";
+                result = Utils.concat(
+                        List.of(
+                                header.getBytes(StandardCharsets.UTF_8),
+                                headData,
+                                delimeter.getBytes(StandardCharsets.UTF_8),
+                                targetData
+                        )
+                );
+            }
+            if (!createDirs(modification.getChangePath())) {
+                throw new LocalRepositoryException(LocalConflict.cantCreateDirs(modification.getChangePath()).toUserMessage());
+            }
             final Path pathToFile = resolveVCSPath(modification.getChangePath());
             Utils.writeBytes(pathToFile, result);
         }
@@ -0,0 +1,113 @@
+package ru.otus.vcs.newversion.merge;
+
+import ru.otus.utils.Contracts;
+
+import java.util.Arrays;
+
+/**
+ * Myers O(ND) diff of lines in linear space: middle snake of edit path is found by searching from both ends,
+ * then parts before and after it are compared recursively. Common prefix and suffix are stripped first,
+ * so typical edits of large file cost time proportional to file size only.
+ */
+final class LineDiff {
+
+    private final Lines first;
+    private final Lines second;
+    private final int[] matches;
+    private int[] forward = new int[0];
+    private int[] backward = new int[0];
+
+    private LineDiff(final Lines first, final Lines second) {
+        this.first = first;
+        this.second = second;
+        this.matches = new int[first.size()];
+        Arrays.fill(matches, -1);
+    }
+
+    /**
+     * @return for each line of first its matched line of second in longest common subsequence or -1.
+     */
+    static int[] matches(final Lines first, final Lines second) {
+        Contracts.requireNonNullArgument(first);
+        Contracts.requireNonNullArgument(second);
+
+        final var diff = new LineDiff(first, second);
+        diff.compare(0, first.size(), 0, second.size());
+        return diff.matches;
+    }
+
+    private void compare(int firstFrom, int firstTo, int secondFrom, int secondTo) {
+        while (firstFrom < firstTo && secondFrom < secondTo && first.lineEquals(firstFrom, second, secondFrom)) {
+            matches[firstFrom++] = secondFrom++;
+        }
+        while (firstFrom < firstTo && secondFrom < secondTo && first.lineEquals(firstTo - 1, second, secondTo - 1)) {
+            matches[--firstTo] = --secondTo;
+        }
+        if (firstFrom == firstTo || secondFrom == secondTo) {
+            return;
+        }
+        // first and last lines differ here, so path has at least 2 edits and both parts have fewer
+        final int[] snake = middleSnake(firstFrom, firstTo, secondFrom, secondTo);
+        for (int x = snake[0], y = snake[1]; x < snake[2]; x++, y++) {
+            matches[x] = y;
+        }
+        compare(firstFrom, snake[0], secondFrom, snake[1]);
+        compare(snake[2], firstTo, snake[3], secondTo);
+    }
+
+    /**
+     * @return start x, start y, end x and end y of snake in the middle of shortest edit path.
+     */
+    private int[] middleSnake(final int firstFrom, final int firstTo, final int secondFrom, final int secondTo) {
+        final int n = firstTo - firstFrom;
+        final int m = secondTo - secondFrom;
+        final int delta = n - m;
+        final boolean odd = (delta & 1) != 0;
+        final int max = (n + m + 1) / 2;
+        final int offset = max + 1;
+        if (forward.length < 2 * max + 3) {
+            forward = new int[2 * max + 3];
+            backward = new int[2 * max + 3];
+        }
+        // forward[k] is furthest x on diagonal k = x - y, backward[c] is the same from the ends
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+                        ? forward[offset + k + 1]
+                        : forward[offset + k - 1] + 1;
+                int y = x - k;
+                final int startX = x;
+                final int startY = y;
+                while (x < n && y < m && first.lineEquals(firstFrom + x, second, secondFrom + y)) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                final int c = delta - k;
+                if (odd && c >= -(d - 1) && c <= d - 1 && x + backward[offset + c] >= n) {
+                    return new int[]{firstFrom + startX, secondFrom + startY, firstFrom + x, secondFrom + y};
+                }
+            }
+            for (int c = -d; c <= d; c += 2) {
+                int x = c == -d || (c != d && backward[offset + c - 1] < backward[offset + c + 1])
+                        ? backward[offset + c + 1]
+                        : backward[offset + c - 1] + 1;
+                int y = x - c;
+                final int startX = x;
+                final int startY = y;
+                while (x < n && y < m && first.lineEquals(firstTo - 1 - x, second, secondTo - 1 - y)) {
+                    x++;
+                    y++;
+                }
+                backward[offset + c] = x;
+                final int k = delta - c;
+                if (!odd && k >= -d && k <= d && x + forward[offset + k] >= n) {
+                    return new int[]{firstTo - x, secondTo - y, firstTo - startX, secondTo - startY};
+                }
+            }
+        }
+        throw Contracts.unreachable();
+    }
+}
@@ -0,0 +1,89 @@
+package ru.otus.vcs.newversion.merge;
+
+import ru.otus.utils.Contracts;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Lines of content as offsets into its bytes, line includes its terminating '\n'.
+ * Content is not copied or decoded, lines are compared by hash and then by bytes.
+ */
+final class Lines {
+
+    private final byte[] content;
+    // line i is [starts[i], starts[i + 1])
+    private final int[] starts;
+    private final int[] hashes;
+
+    private Lines(final byte[] content, final int[] starts, final int[] hashes) {
+        this.content = content;
+        this.starts = starts;
+        this.hashes = hashes;
+    }
+
+    static Lines split(final byte[] content) {
+        Contracts.requireNonNullArgument(content);
+
+        int count = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n' || i == content.length - 1) {
+                count++;
+            }
+        }
+        final int[] starts = new int[count + 1];
+        final int[] hashes = new int[count];
+        int line = 0;
+        int hash = 1;
+        for (int i = 0; i < content.length; i++) {
+            hash = 31 * hash + content[i];
+            if (content[i] == '\n' || i == content.length - 1) {
+                hashes[line] = hash;
+                starts[++line] = i + 1;
+                hash = 1;
+            }
+        }
+        return new Lines(content, starts, hashes);
+    }
+
+    int size() {
+        return hashes.length;
+    }
+
+    boolean lineEquals(final int line, final Lines other, final int otherLine) {
+        return hashes[line] == other.hashes[otherLine]
+                && Arrays.equals(
+                content, starts[line], starts[line + 1],
+                other.content, other.starts[otherLine], other.starts[otherLine + 1]
+        );
+    }
+
+    /**
+     * @return true if lines [from, to) are equal to lines [otherFrom, otherTo) of other.
+     */
+    boolean rangeEquals(final int from, final int to, final Lines other, final int otherFrom, final int otherTo) {
+        if (to - from != otherTo - otherFrom) {
+            return false;
+        }
+        for (int i = 0; i < to - from; i++) {
+            if (!lineEquals(from + i, other, otherFrom + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes lines [from, to), terminating last one with '\n' if needed.
+     */
+    void writeTerminated(final ByteArrayOutputStream output, final int from, final int to) {
+        write(output, from, to);
+        if (to > from && content[starts[to] - 1] != '\n') {
+            output.write('\n');
+        }
+    }
+
+    void write(final ByteArrayOutputStream output, final int from, final int to) {
+        output.write(content, starts[from], starts[to] - starts[from]);
+    }
+}
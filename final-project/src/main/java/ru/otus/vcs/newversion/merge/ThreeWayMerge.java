@@ -0,0 +1,138 @@
+package ru.otus.vcs.newversion.merge;
+
+import ru.otus.utils.Contracts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Line merge of two versions of file with their common base, like diff3. Both versions are diffed with base,
+ * lines of base matched in both versions split files into stable and changed chunks. Changed chunk is taken
+ * from the side which changed it or, if both sides did it differently, is written between conflict markers.
+ */
+public final class ThreeWayMerge {
+
+    private static final int BINARY_CHECK_LENGTH = 8000;
+
+    private final byte[] content;
+    private final int conflicts;
+
+    private ThreeWayMerge(final byte[] content, final int conflicts) {
+        this.content = content;
+        this.conflicts = conflicts;
+    }
+
+    /**
+     * @return true if content has no null byte in its beginning, binary files are not merged by lines.
+     */
+    public static boolean isText(final byte[] content) {
+        Contracts.requireNonNullArgument(content);
+
+        for (int i = 0; i < Math.min(content.length, BINARY_CHECK_LENGTH); i++) {
+            if (content[i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static ThreeWayMerge merge(
+            final byte[] base,
+            final byte[] receiver,
+            final byte[] giver,
+            final String receiverLabel,
+            final String giverLabel) {
+        Contracts.requireNonNullArgument(base);
+        Contracts.requireNonNullArgument(receiver);
+        Contracts.requireNonNullArgument(giver);
+        Contracts.requireNonNullArgument(receiverLabel);
+        Contracts.requireNonNullArgument(giverLabel);
+
+        final var baseLines = Lines.split(base);
+        final var receiverLines = Lines.split(receiver);
+        final var giverLines = Lines.split(giver);
+        final int[] receiverMatches = LineDiff.matches(baseLines, receiverLines);
+        final int[] giverMatches = LineDiff.matches(baseLines, giverLines);
+        final var output = new ByteArrayOutputStream(Math.max(receiver.length, giver.length));
+        int conflicts = 0;
+        int b = 0;
+        int r = 0;
+        int g = 0;
+        while (true) {
+            final int stableStart = b;
+            while (b < baseLines.size() && receiverMatches[b] == r && giverMatches[b] == g) {
+                b++;
+                r++;
+                g++;
+            }
+            baseLines.write(output, stableStart, b);
+            if (b == baseLines.size() && r == receiverLines.size() && g == giverLines.size()) {
+                break;
+            }
+            int nextStable = b;
+            while (nextStable < baseLines.size() && (receiverMatches[nextStable] == -1 || giverMatches[nextStable] == -1)) {
+                nextStable++;
+            }
+            final int receiverEnd = nextStable == baseLines.size() ? receiverLines.size() : receiverMatches[nextStable];
+            final int giverEnd = nextStable == baseLines.size() ? giverLines.size() : giverMatches[nextStable];
+            if (baseLines.rangeEquals(b, nextStable, receiverLines, r, receiverEnd)) {
+                giverLines.write(output, g, giverEnd);
+            } else if (baseLines.rangeEquals(b, nextStable, giverLines, g, giverEnd)
+                    || receiverLines.rangeEquals(r, receiverEnd, giverLines, g, giverEnd)) {
+                receiverLines.write(output, r, receiverEnd);
+            } else {
+                writeConflict(output, receiverLines, r, receiverEnd, giverLines, g, giverEnd, receiverLabel, giverLabel);
+                conflicts++;
+            }
+            b = nextStable;
+            r = receiverEnd;
+            g = giverEnd;
+        }
+        return new ThreeWayMerge(output.toByteArray(), conflicts);
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public int getConflicts() {
+        return conflicts;
+    }
+
+    public boolean isClean() {
+        return conflicts == 0;
+    }
+
+    /**
+     * Lines equal on both sides at start and end of chunk are written outside of markers.
+     */
+    private static void writeConflict(
+            final ByteArrayOutputStream output,
+            final Lines receiver,
+            int receiverFrom,
+            int receiverTo,
+            final Lines giver,
+            int giverFrom,
+            int giverTo,
+            final String receiverLabel,
+            final String giverLabel) {
+        final int prefixStart = receiverFrom;
+        while (receiverFrom < receiverTo && giverFrom < giverTo && receiver.lineEquals(receiverFrom, giver, giverFrom)) {
+            receiverFrom++;
+            giverFrom++;
+        }
+        receiver.write(output, prefixStart, receiverFrom);
+        final int suffixEnd = receiverTo;
+        while (receiverFrom < receiverTo && giverFrom < giverTo
+                && receiver.lineEquals(receiverTo - 1, giver, giverTo - 1)) {
+            receiverTo--;
+            giverTo--;
+        }
+        output.writeBytes(("<<<<<<< " + receiverLabel + "\n").getBytes(StandardCharsets.UTF_8));
+        receiver.writeTerminated(output, receiverFrom, receiverTo);
+        output.writeBytes("=======\n".getBytes(StandardCharsets.UTF_8));
+        giver.writeTerminated(output, giverFrom, giverTo);
+        output.writeBytes((">>>>>>> " + giverLabel + "\n").getBytes(StandardCharsets.UTF_8));
+        receiver.write(output, receiverTo, suffixEnd);
+    }
+}
@@ -171,6 +171,14 @@ public class Commit extends GitObject {
         return secondParentSha;
     }
 
+    public String getAuthor() {
+        return author;
+    }
+
+    public CommitMessage getMessage() {
+        return message;
+    }
+
     public boolean isFirstCommit() {
         return firstParentSha == null && secondParentSha == null;
     }
@@ -2,12 +2,16 @@ package ru.otus.vcs.newversion.objects;
 
 import ru.otus.utils.Contracts;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 public enum FileType {
 
-    Regular("reg"),
-    Directory("dir");
+    Regular("reg", "100644"),
+    Directory("dir", "40000");
 
     private final String fileTypeName;
+    private final byte[] mode;
 
     static FileType fromFileTypeName(final String fileTypeName) {
         switch (fileTypeName) {
@@ -26,11 +30,34 @@ public enum FileType {
         return Regular.fileTypeName.equals(fileTypeName) || Directory.fileTypeName.equals(fileTypeName);
     }
 
-    FileType(final String fileTypeName) {
+    FileType(final String fileTypeName, final String mode) {
         this.fileTypeName = fileTypeName;
+        this.mode = mode.getBytes(StandardCharsets.US_ASCII);
     }
 
     public String getFileTypeName() {
         return fileTypeName;
     }
+
+    /**
+     * @return octal mode of git binary tree format.
+     */
+    public String getMode() {
+        return new String(mode, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return true if range of bytes is octal mode of this type.
+     */
+    boolean isMode(final byte[] bytes, final int start, final int end) {
+        return Arrays.equals(bytes, start, end, mode, 0, mode.length);
+    }
+
+    /**
+     * @return true if range of bytes is legacy name of this type.
+     */
+    boolean isFileTypeName(final byte[] bytes, final int start, final int end) {
+        final var name = fileTypeName.getBytes(StandardCharsets.US_ASCII);
+        return Arrays.equals(bytes, start, end, name, 0, name.length);
+    }
 }
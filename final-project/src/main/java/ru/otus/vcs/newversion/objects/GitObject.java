@@ -3,6 +3,9 @@ package ru.otus.vcs.newversion.objects;
 import ru.otus.utils.Contracts;
 import ru.otus.vcs.newversion.ref.Sha1;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -12,6 +15,8 @@ import static ru.otus.vcs.newversion.utils.Utils.utf8;
 
 public abstract class GitObject {
 
+    private static final int MAX_HEADER_LENGTH = 32;
+
     public static GitObject deserialize(final byte[] bytes) {
         Contracts.requireNonNullArgument(bytes);
 
@@ -50,11 +55,49 @@ public abstract class GitObject {
 
     public final byte[] serialize() {
         final var content = serializeContent();
-        final var prefix = (getType().getName() +
-                ' ' +
-                content.length +
-                (char) 0).getBytes(StandardCharsets.UTF_8);
-        return concat(prefix, content);
+        return concat(header(getType(), content.length), content);
+    }
+
+    /**
+     * @return "type size\0" prefix of serialized object.
+     */
+    public static byte[] header(final ObjectType type, final long contentSize) {
+        Contracts.requireNonNullArgument(type);
+        Contracts.requireThat(contentSize >= 0);
+
+        return (type.getName() + ' ' + contentSize + (char) 0).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Consumes header of serialized object from the stream, so that stream is positioned at the content.
+     *
+     * @return content size declared in header.
+     */
+    public static long readHeader(final InputStream input, final ObjectType expectedType) throws IOException {
+        Contracts.requireNonNullArgument(input);
+        Contracts.requireNonNullArgument(expectedType);
+
+        final var header = new ByteArrayOutputStream();
+        int current;
+        while ((current = input.read()) > 0) {
+            Contracts.requireThat(header.size() < MAX_HEADER_LENGTH, badFormat("Too long header."));
+            header.write(current);
+        }
+        Contracts.requireThat(current == 0, badFormat("No null byte."));
+        final String headerString = header.toString(StandardCharsets.UTF_8);
+        final int firstWsPos = headerString.indexOf(' ');
+        Contracts.requireThat(firstWsPos != -1, badFormat("No whitespace."));
+        Contracts.requireThat(
+                expectedType.getName().equals(headerString.substring(0, firstWsPos)),
+                badFormat("Expected " + expectedType.getName() + " object.")
+        );
+        try {
+            final long size = Long.parseLong(headerString.substring(firstWsPos + 1));
+            Contracts.requireThat(size >= 0, badFormat("Negative size."));
+            return size;
+        } catch (final NumberFormatException ex) {
+            throw Contracts.unreachable(badFormat("Can't parse size."));
+        }
     }
 
     public Sha1 sha1() {
@@ -0,0 +1,155 @@
+package ru.otus.vcs.newversion.objects;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.index.CacheTree;
+import ru.otus.vcs.newversion.index.Index;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+
+/**
+ * Trees of index built with help of its {@link CacheTree}. Only directories which are invalid in cache tree
+ * are serialized and hashed, valid directories become leaves of their parents as is.
+ */
+public final class IndexTrees {
+
+    @Nullable
+    private final Sha1 rootSha;
+    private final List<Tree> builtTrees;
+    private final Map<Sha1, Tree> builtTreesBySha;
+    private final CacheTree cacheTree;
+
+    private IndexTrees(
+            @Nullable final Sha1 rootSha,
+            final List<Tree> builtTrees,
+            final Map<Sha1, Tree> builtTreesBySha,
+            final CacheTree cacheTree) {
+        this.rootSha = rootSha;
+        this.builtTrees = builtTrees;
+        this.builtTreesBySha = builtTreesBySha;
+        this.cacheTree = cacheTree;
+    }
+
+    public static IndexTrees build(final Index index) {
+        Contracts.requireNonNullArgument(index);
+        Contracts.forbidThat(index.hasMergeConflict());
+
+        final var cacheTree = index.getCacheTree();
+        if (index.isEmpty()) {
+            return new IndexTrees(null, emptyList(), emptyMap(), CacheTree.EMPTY);
+        }
+        final var cachedRoot = cacheTree.get(VCSPath.root);
+        if (cachedRoot != null) {
+            return new IndexTrees(cachedRoot.getTreeSha(), emptyList(), emptyMap(), cacheTree);
+        }
+
+        final var invalidDirs = new HashMap<VCSPath, InvalidDir>();
+        for (final var pathAndEntries : index.getPathToIndexEntries().entrySet()) {
+            final var path = pathAndEntries.getKey();
+            if (cacheTree.get(path.getParent()) == null) {
+                final var dir = invalidDir(invalidDirs, path.getParent());
+                dir.leaves.add(
+                        new TreeLeaf(FileType.Regular, path.getFileName(), pathAndEntries.getValue().get(0).getSha())
+                );
+                dir.entryCount++;
+            }
+        }
+        for (final var dirAndNode : cacheTree.getDirs().entrySet()) {
+            final var dir = dirAndNode.getKey();
+            if (!dir.isRoot() && cacheTree.get(dir.getParent()) == null) {
+                final var parent = invalidDir(invalidDirs, dir.getParent());
+                parent.leaves.add(new TreeLeaf(FileType.Directory, dir.getFileName(), dirAndNode.getValue().getTreeSha()));
+                parent.entryCount += dirAndNode.getValue().getEntryCount();
+            }
+        }
+
+        final var dirs = new ArrayList<>(invalidDirs.keySet());
+        dirs.sort(Comparator.comparingInt(VCSPath::length).reversed());
+        final var builtTrees = new ArrayList<Tree>(dirs.size());
+        final var builtTreesBySha = new HashMap<Sha1, Tree>();
+        final var newCacheTreeDirs = new HashMap<>(cacheTree.getDirs());
+        Sha1 rootSha = null;
+        for (final var dir : dirs) {
+            final var invalidDir = invalidDirs.get(dir);
+            final var tree = new Tree(invalidDir.leaves);
+            final var sha = tree.sha1();
+            builtTrees.add(tree);
+            builtTreesBySha.put(sha, tree);
+            newCacheTreeDirs.put(dir, new CacheTree.Node(sha, invalidDir.entryCount));
+            if (dir.isRoot()) {
+                rootSha = sha;
+            } else {
+                final var parent = invalidDirs.get(dir.getParent());
+                parent.leaves.add(new TreeLeaf(FileType.Directory, dir.getFileName(), sha));
+                parent.entryCount += invalidDir.entryCount;
+            }
+        }
+        Collections.reverse(builtTrees);
+        return new IndexTrees(
+                Contracts.ensureNonNull(rootSha),
+                builtTrees,
+                builtTreesBySha,
+                CacheTree.create(newCacheTreeDirs)
+        );
+    }
+
+    /**
+     * @return sha of root tree or null for empty index.
+     */
+    @Nullable
+    public Sha1 getRootSha() {
+        return rootSha;
+    }
+
+    /**
+     * @return trees of invalid directories, root first if it was built.
+     */
+    public List<Tree> getBuiltTrees() {
+        return Collections.unmodifiableList(builtTrees);
+    }
+
+    @Nullable
+    public Tree getBuiltTree(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        return builtTreesBySha.get(sha);
+    }
+
+    /**
+     * @return cache tree which is valid for index after built trees are saved.
+     */
+    public CacheTree getCacheTree() {
+        return cacheTree;
+    }
+
+    /**
+     * Registers directory and its ancestors as invalid, parent of invalid directory is invalid too.
+     */
+    private static InvalidDir invalidDir(final Map<VCSPath, InvalidDir> invalidDirs, final VCSPath dir) {
+        final var existing = invalidDirs.get(dir);
+        if (existing != null) {
+            return existing;
+        }
+        final var created = new InvalidDir();
+        invalidDirs.put(dir, created);
+        if (!dir.isRoot()) {
+            invalidDir(invalidDirs, dir.getParent());
+        }
+        return created;
+    }
+
+    private static final class InvalidDir {
+        private final List<TreeLeaf> leaves = new ArrayList<>();
+        private int entryCount;
+    }
+}
@@ -1,19 +1,17 @@
 package ru.otus.vcs.newversion.objects;
 
-import com.google.common.graph.ElementOrder;
-import com.google.common.graph.GraphBuilder;
-import com.google.common.graph.MutableGraph;
-import com.google.common.graph.Traverser;
 import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.index.CacheTree;
 import ru.otus.vcs.newversion.index.Index;
 import ru.otus.vcs.newversion.index.IndexEntry;
+import ru.otus.vcs.newversion.path.VCSFileName;
 import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.Sha1;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -26,72 +24,63 @@ import static ru.otus.vcs.newversion.utils.Utils.concat;
 
 public class Tree extends GitObject {
 
+    /**
+     * Order of leaves in tree, diff walks leaves of two trees in this order.
+     */
+    static final Comparator<TreeLeaf> LEAF_ORDER = Comparator.comparing(leaf -> leaf.getFileName().getName());
+
     private final List<TreeLeaf> leaves;
 
     Tree(final List<TreeLeaf> leaves) {
         Contracts.requireNonNullArgument(leaves);
         Contracts.requireThat(leaves.size() > 0);
-        checkNoRepeatedFileNames(leaves);
 
         final var copy = new ArrayList<>(leaves);
-        copy.sort(Comparator.comparing(treeLeaf -> treeLeaf.getFileName().getName()));
-        this.leaves = copy;
+        if (!isStrictlySorted(copy)) {
+            checkNoRepeatedFileNames(copy);
+            copy.sort(LEAF_ORDER);
+        }
+        this.leaves = Collections.unmodifiableList(copy);
     }
 
     /**
+     * Builds all trees ignoring cache tree of index, see {@link IndexTrees} for incremental build.
+     *
      * @param index to create from.
      * @return list of trees, where first tree in the list is the root.
      */
     public static List<Tree> createFromIndex(final Index index) {
         Contracts.requireNonNullArgument(index);
         Contracts.forbidThat(index.hasMergeConflict());
+        Contracts.forbidThat(index.isEmpty());
 
-        return createFromPathToSha(index.getPathToSha());
+        return IndexTrees.build(index.withCacheTree(CacheTree.EMPTY)).getBuiltTrees();
     }
 
-    @SuppressWarnings("UnstableApiUsage")
     public static List<Tree> createFromPathToSha(final Map<VCSPath, Sha1> pathShaMap) {
         Contracts.requireNonNullArgument(pathShaMap);
         Contracts.forbidThat(pathShaMap.isEmpty());
 
-        final MutableGraph<VCSPath> graph = buildGraph(pathShaMap.keySet());
-        final var result = new ArrayList<Tree>();
-        final var dfsPostOrder = Traverser.forTree(graph).depthFirstPostOrder(VCSPath.root);
-        final var collectedLeaves = new HashMap<VCSPath, List<TreeLeaf>>();
-        for (final var path : dfsPostOrder) {
-            if (!collectedLeaves.containsKey(path)) {
-                collectedLeaves.computeIfAbsent(path.getParent(), (unused) -> new ArrayList<>())
-                        .add(
-                                new TreeLeaf(FileType.Regular, path.getFileName(), pathShaMap.get(path))
-                        );
-            } else {
-                final var leaves = collectedLeaves.get(path);
-                final var tree = new Tree(leaves);
-                result.add(tree);
-                if (path.isRoot()) {
-                    continue;
-                }
-                collectedLeaves.computeIfAbsent(path.getParent(), (unused) -> new ArrayList<>())
-                        .add(
-                                new TreeLeaf(FileType.Directory, path.getFileName(), tree.sha1())
-                        );
-            }
-        }
-        Collections.reverse(result);
-        return result;
+        return createFromIndex(
+                Index.create(
+                        pathShaMap.entrySet().stream()
+                                .map(pathAndSha -> IndexEntry.newNormalEntry(pathAndSha.getKey(), pathAndSha.getValue()))
+                                .collect(Collectors.toList())
+                )
+        );
     }
 
+    /**
+     * Leaves are parsed in place by {@link TreeLeafCursor}. Trees are written sorted, so usually leaves are
+     * neither sorted nor hashed to find repeated names.
+     */
     public static Tree deserialize(final byte[] entriesList) {
         Contracts.requireNonNullArgument(entriesList);
 
-        int start = 0;
         final var result = new ArrayList<TreeLeaf>();
-        final var uniqueLeaves = new HashSet<TreeLeaf>();
-        while (start < entriesList.length) {
-            final var leafAndOffset = TreeLeaf.deserialize(entriesList, start);
-            result.add(leafAndOffset.first());
-            Contracts.requireThat(uniqueLeaves.add(leafAndOffset.first()), "Repeated file name in tree data");
-            start = leafAndOffset.second();
+        final var cursor = new TreeLeafCursor(entriesList, 0, entriesList.length);
+        while (cursor.next()) {
+            result.add(cursor.getLeaf());
         }
         return new Tree(result);
     }
@@ -106,6 +95,38 @@ public class Tree extends GitObject {
         return Index.create(collectedIndexEntries);
     }
 
+    /**
+     * Reads only trees of directories on the path.
+     *
+     * @return sha of regular file or null if there is no such file.
+     */
+    @Nullable
+    public Sha1 findFile(final VCSPath path, final Function<Sha1, Tree> treeReader) {
+        Contracts.requireNonNullArgument(path);
+        Contracts.requireNonNullArgument(treeReader);
+        Contracts.forbidThat(path.isRoot());
+
+        final var dir = findDir(path.getParent(), treeReader);
+        if (dir == null) {
+            return null;
+        }
+        final var leaf = dir.findLeaf(path.getFileName());
+        return leaf == null || leaf.getType() != FileType.Regular ? null : leaf.getSha();
+    }
+
+    /**
+     * @return leaf of file or dir at path or null.
+     */
+    @Nullable
+    public TreeLeaf findLeaf(final VCSPath path, final Function<Sha1, Tree> treeReader) {
+        Contracts.requireNonNullArgument(path);
+        Contracts.requireNonNullArgument(treeReader);
+        Contracts.forbidThat(path.isRoot());
+
+        final var dir = findDir(path.getParent(), treeReader);
+        return dir == null ? null : dir.findLeaf(path.getFileName());
+    }
+
     public List<TreeLeaf> getLeaves() {
         return leaves;
     }
@@ -123,37 +144,60 @@ public class Tree extends GitObject {
         );
     }
 
+    /**
+     * Strict order of names also means that there are no repeated names.
+     */
+    private static boolean isStrictlySorted(final List<TreeLeaf> treeLeaves) {
+        for (int i = 1; i < treeLeaves.size(); i++) {
+            if (LEAF_ORDER.compare(treeLeaves.get(i - 1), treeLeaves.get(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static void checkNoRepeatedFileNames(final List<TreeLeaf> treeLeaves) {
         Contracts.requireThat(treeLeaves.size() == new HashSet<>(treeLeaves).size());
     }
 
-    private static MutableGraph<VCSPath> buildGraph(final Iterable<VCSPath> iterable) {
-        final MutableGraph<VCSPath> graph = GraphBuilder.directed()
-                .incidentEdgeOrder(ElementOrder.stable())
-                .build();
-        for (final var path : iterable) {
-            var currentPath = path;
-            while (!currentPath.isRoot()) {
-                graph.putEdge(currentPath.getParent(), currentPath);
-                currentPath = currentPath.getParent();
+    @Nullable
+    private Tree findDir(final VCSPath dir, final Function<Sha1, Tree> treeReader) {
+        if (dir.isRoot()) {
+            return this;
+        }
+        final var parent = findDir(dir.getParent(), treeReader);
+        if (parent == null) {
+            return null;
+        }
+        final var leaf = parent.findLeaf(dir.getFileName());
+        return leaf == null || leaf.getType() != FileType.Directory ? null : treeReader.apply(leaf.getSha());
+    }
+
+    @Nullable
+    private TreeLeaf findLeaf(final VCSFileName fileName) {
+        for (final var leaf : leaves) {
+            if (leaf.getFileName().equals(fileName)) {
+                return leaf;
             }
         }
-        return graph;
+        return null;
     }
 
+    /**
+     * Visited trees are tracked by shas of leaves, so trees are not serialized again to be hashed.
+     */
     private void collectIndexEntries(
             final VCSPath currentDir,
             final Function<Sha1, Tree> objectReader,
             final List<IndexEntry> indexEntries,
             final Set<Sha1> visitedTress) {
-        Contracts.requireThat(visitedTress.add(sha1()), "Cycle in tree O_o.");
-
         for (final var leaf : leaves) {
             if (leaf.getType() == FileType.Regular) {
                 indexEntries.add(
                         IndexEntry.newNormalEntry(currentDir.resolve(leaf.getFileName()), leaf.getSha())
                 );
             } else {
+                Contracts.requireThat(visitedTress.add(leaf.getSha()), "Cycle in tree O_o.");
                 objectReader.apply(leaf.getSha()).collectIndexEntries(
                         currentDir.resolve(leaf.getFileName()),
                         objectReader,
@@ -0,0 +1,154 @@
+package ru.otus.vcs.newversion.objects;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.index.diff.Addition;
+import ru.otus.vcs.newversion.index.diff.Deletion;
+import ru.otus.vcs.newversion.index.diff.Modification;
+import ru.otus.vcs.newversion.index.diff.VCSFileChange;
+import ru.otus.vcs.newversion.path.VCSFileDesc;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Diff of two trees, which doesn't flatten them. Leaves of both trees are walked in {@link Tree#LEAF_ORDER},
+ * leaves with equal sha are skipped without reading, so only directories which differ are descended into.
+ * Added or deleted directory is read fully, because every file in it is a change.
+ */
+public final class TreeDiff {
+
+    private TreeDiff() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Changes are the same as {@code newIndex.getDiff(oldIndex)} of flattened trees:
+     * addition for file only in new tree, deletion for file only in old tree and modification for
+     * file with different sha.
+     *
+     * @param newTree    sha of new root tree, null for empty tree.
+     * @param oldTree    sha of old root tree, null for empty tree.
+     * @param treeReader reads tree by sha.
+     */
+    public static List<VCSFileChange> diff(
+            @Nullable final Sha1 newTree,
+            @Nullable final Sha1 oldTree,
+            final Function<Sha1, Tree> treeReader) {
+        Contracts.requireNonNullArgument(treeReader);
+
+        final var result = new ArrayList<VCSFileChange>();
+        if (newTree == null && oldTree == null || newTree != null && newTree.equals(oldTree)) {
+            return result;
+        }
+        if (oldTree == null) {
+            collectFiles(VCSPath.root, treeReader.apply(newTree), treeReader, desc -> result.add(new Addition(desc)));
+        } else if (newTree == null) {
+            collectFiles(VCSPath.root, treeReader.apply(oldTree), treeReader, desc -> result.add(new Deletion(desc)));
+        } else {
+            diffTrees(VCSPath.root, treeReader.apply(newTree), treeReader.apply(oldTree), treeReader, result);
+        }
+        return result;
+    }
+
+    private static void diffTrees(
+            final VCSPath dir,
+            final Tree newTree,
+            final Tree oldTree,
+            final Function<Sha1, Tree> treeReader,
+            final List<VCSFileChange> result) {
+        final var newLeaves = newTree.getLeaves();
+        final var oldLeaves = oldTree.getLeaves();
+        int newPos = 0;
+        int oldPos = 0;
+        while (newPos < newLeaves.size() || oldPos < oldLeaves.size()) {
+            final int cmp;
+            if (newPos == newLeaves.size()) {
+                cmp = 1;
+            } else if (oldPos == oldLeaves.size()) {
+                cmp = -1;
+            } else {
+                cmp = Tree.LEAF_ORDER.compare(newLeaves.get(newPos), oldLeaves.get(oldPos));
+            }
+            if (cmp < 0) {
+                added(dir, newLeaves.get(newPos++), treeReader, result);
+            } else if (cmp > 0) {
+                deleted(dir, oldLeaves.get(oldPos++), treeReader, result);
+            } else {
+                diffLeaves(dir, newLeaves.get(newPos++), oldLeaves.get(oldPos++), treeReader, result);
+            }
+        }
+    }
+
+    private static void diffLeaves(
+            final VCSPath dir,
+            final TreeLeaf newLeaf,
+            final TreeLeaf oldLeaf,
+            final Function<Sha1, Tree> treeReader,
+            final List<VCSFileChange> result) {
+        if (newLeaf.getType() != oldLeaf.getType()) {
+            deleted(dir, oldLeaf, treeReader, result);
+            added(dir, newLeaf, treeReader, result);
+        } else if (newLeaf.getSha().equals(oldLeaf.getSha())) {
+            // identical file or subtree
+        } else if (newLeaf.getType() == FileType.Regular) {
+            result.add(
+                    new Modification(
+                            new VCSFileDesc(dir.resolve(newLeaf.getFileName()), newLeaf.getSha()),
+                            oldLeaf.getSha()
+                    )
+            );
+        } else {
+            diffTrees(
+                    dir.resolve(newLeaf.getFileName()),
+                    treeReader.apply(newLeaf.getSha()),
+                    treeReader.apply(oldLeaf.getSha()),
+                    treeReader,
+                    result
+            );
+        }
+    }
+
+    private static void added(
+            final VCSPath dir,
+            final TreeLeaf leaf,
+            final Function<Sha1, Tree> treeReader,
+            final List<VCSFileChange> result) {
+        collectFiles(dir, leaf, treeReader, desc -> result.add(new Addition(desc)));
+    }
+
+    private static void deleted(
+            final VCSPath dir,
+            final TreeLeaf leaf,
+            final Function<Sha1, Tree> treeReader,
+            final List<VCSFileChange> result) {
+        collectFiles(dir, leaf, treeReader, desc -> result.add(new Deletion(desc)));
+    }
+
+    private static void collectFiles(
+            final VCSPath dir,
+            final TreeLeaf leaf,
+            final Function<Sha1, Tree> treeReader,
+            final Consumer<VCSFileDesc> consumer) {
+        final var path = dir.resolve(leaf.getFileName());
+        if (leaf.getType() == FileType.Regular) {
+            consumer.accept(new VCSFileDesc(path, leaf.getSha()));
+        } else {
+            collectFiles(path, treeReader.apply(leaf.getSha()), treeReader, consumer);
+        }
+    }
+
+    private static void collectFiles(
+            final VCSPath dir,
+            final Tree tree,
+            final Function<Sha1, Tree> treeReader,
+            final Consumer<VCSFileDesc> consumer) {
+        for (final var leaf : tree.getLeaves()) {
+            collectFiles(dir, leaf, treeReader, consumer);
+        }
+    }
+}
@@ -3,15 +3,11 @@ package ru.otus.vcs.newversion.objects;
 import ru.otus.utils.Contracts;
 import ru.otus.vcs.newversion.path.VCSFileName;
 import ru.otus.vcs.newversion.ref.Sha1;
-import ru.otus.vcs.newversion.utils.Tuple2;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Objects;
 
-import static ru.otus.vcs.newversion.utils.Utils.indexOf;
-import static ru.otus.vcs.newversion.utils.Utils.utf8;
-
 public class TreeLeaf {
 
     private final FileType type;
@@ -24,27 +20,16 @@ public class TreeLeaf {
         this.sha = Contracts.ensureNonNullArgument(sha);
     }
 
-    public static Tuple2<TreeLeaf, Integer> deserialize(final byte[] entriesList, final int start) {
-        final var fileModeAndNewOffset = deserializeFileType(entriesList, start);
-        final var pathAndNewOffset = deserializeFileName(
-                entriesList,
-                fileModeAndNewOffset.second()
-        );
-        final var shaAndNewOffset = deserializeSha(entriesList, pathAndNewOffset.second());
-        return new Tuple2<>(
-                new TreeLeaf(
-                        fileModeAndNewOffset.first(),
-                        pathAndNewOffset.first(),
-                        shaAndNewOffset.first()
-                ),
-                shaAndNewOffset.second()
-        );
-    }
-
+    /**
+     * Reads binary or legacy leaf, see {@link TreeLeafCursor}.
+     */
     static TreeLeaf deserialize(final byte[] treeLeafData) {
         Contracts.requireNonNullArgument(treeLeafData);
 
-        return deserialize(treeLeafData, 0).first();
+        final var cursor = new TreeLeafCursor(treeLeafData, 0, treeLeafData.length);
+        Contracts.requireThat(cursor.next(), "Empty tree leaf data.");
+        Contracts.requireThat(cursor.getOffset() == treeLeafData.length, "Trailing bytes after tree leaf data.");
+        return cursor.getLeaf();
     }
 
     public FileType getType() {
@@ -59,36 +44,14 @@ public class TreeLeaf {
         return sha;
     }
 
+    /**
+     * @return leaf in git binary format: octal mode, space, name, null byte and 20 bytes of sha.
+     */
     public byte[] serialize() {
-        final var content = type.getFileTypeName()
-                + ' '
-                + fileName.getName()
-                + (char) 0
-                + sha.getHexString();
-        return content.getBytes(StandardCharsets.UTF_8);
-    }
-
-    private static Tuple2<FileType, Integer> deserializeFileType(final byte[] entriesList, final int start) {
-        final int end = indexOf(entriesList, (byte) ' ', start, entriesList.length);
-        Contracts.requireThat(end != - 1, "No whitespace in tree leaf data.");
-        final var fileTypeName = utf8(Arrays.copyOfRange(entriesList, start, end));
-        Contracts.requireThat(FileType.isValidFileTypeName(fileTypeName), "Bad file type name " + fileTypeName);
-        return new Tuple2<>(FileType.fromFileTypeName(fileTypeName), end + 1);
-    }
-
-    private static Tuple2<VCSFileName, Integer> deserializeFileName(final byte[] entriesList, final int start) {
-        final int end = indexOf(entriesList, (byte) 0, start, entriesList.length);
-        Contracts.requireThat(end != - 1, "No null byte in tree leaf data.");
-        final String fileName = utf8(Arrays.copyOfRange(entriesList, start, end));
-        Contracts.requireThat(VCSFileName.isValidVCSFileName(fileName), "Bad file name.");
-        return new Tuple2<>(VCSFileName.create(fileName), end + 1);
-    }
-
-    private static Tuple2<Sha1, Integer> deserializeSha(final byte[] entriesList, final int start) {
-        Contracts.requireThat(start + Sha1.HEX_STRING_LENGTH <= entriesList.length, "Bad tree leaf data. Bad sha.");
-        final var shaHex = utf8(Arrays.copyOfRange(entriesList, start, start + Sha1.HEX_STRING_LENGTH));
-        Contracts.requireThat(Sha1.isValidSha1HexString(shaHex), "Bad hex string value = " + shaHex + ".");
-        return new Tuple2<>(Sha1.create(shaHex), start + Sha1.HEX_STRING_LENGTH);
+        final var prefix = (type.getMode() + ' ' + fileName.getName() + (char) 0).getBytes(StandardCharsets.UTF_8);
+        final var result = Arrays.copyOf(prefix, prefix.length + Sha1.BINARY_LENGTH);
+        sha.writeBinary(result, prefix.length);
+        return result;
     }
 
     @Override
@@ -0,0 +1,101 @@
+package ru.otus.vcs.newversion.objects;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.path.VCSFileName;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.nio.charset.StandardCharsets;
+
+import static ru.otus.vcs.newversion.utils.Utils.indexOf;
+
+/**
+ * Iterates leaves of serialized tree content in place, fields of current leaf are decoded only when requested.
+ * Leaf is "mode name\0" and 20 bytes of sha, like in git. Legacy leaf "reg|dir name\0" and 40 hex chars of sha
+ * is still read, so trees written before binary format keep their content.
+ */
+final class TreeLeafCursor {
+
+    private final byte[] content;
+    private final int end;
+    private int next;
+    private FileType type;
+    private int nameStart;
+    private int nameEnd;
+    private int shaStart;
+    private boolean legacy;
+
+    TreeLeafCursor(final byte[] content, final int start, final int end) {
+        Contracts.requireNonNullArgument(content);
+        Contracts.requireThat(start >= 0 && start <= end && end <= content.length);
+
+        this.content = content;
+        this.next = start;
+        this.end = end;
+    }
+
+    /**
+     * Moves to next leaf.
+     *
+     * @return false if there are no more leaves.
+     */
+    boolean next() {
+        if (next >= end) {
+            return false;
+        }
+        final int modeEnd = indexOf(content, (byte) ' ', next, end);
+        Contracts.requireThat(modeEnd != -1, "No whitespace in tree leaf data.");
+        type = null;
+        for (final var candidate : FileType.values()) {
+            if (candidate.isMode(content, next, modeEnd)) {
+                type = candidate;
+                legacy = false;
+            } else if (candidate.isFileTypeName(content, next, modeEnd)) {
+                type = candidate;
+                legacy = true;
+            }
+        }
+        Contracts.requireThat(type != null, "Bad file type in tree leaf data.");
+        nameStart = modeEnd + 1;
+        nameEnd = indexOf(content, (byte) 0, nameStart, end);
+        Contracts.requireThat(nameEnd != -1, "No null byte in tree leaf data.");
+        shaStart = nameEnd + 1;
+        next = shaStart + (legacy ? Sha1.HEX_STRING_LENGTH : Sha1.BINARY_LENGTH);
+        Contracts.requireThat(next <= end, "Bad tree leaf data. Bad sha.");
+        return true;
+    }
+
+    /**
+     * @return offset of data after current leaf.
+     */
+    int getOffset() {
+        return next;
+    }
+
+    FileType getType() {
+        return type;
+    }
+
+    boolean isLegacy() {
+        return legacy;
+    }
+
+    VCSFileName getFileName() {
+        // valid names are ascii, other bytes are decoded to replacement char and rejected
+        final var name = new String(content, nameStart, nameEnd - nameStart, StandardCharsets.US_ASCII);
+        Contracts.requireThat(VCSFileName.isValidVCSFileName(name), "Bad file name.");
+        return VCSFileName.create(name);
+    }
+
+    Sha1 getSha() {
+        if (!legacy) {
+            return Sha1.fromBinary(content, shaStart);
+        }
+        final var shaHex = new String(content, shaStart, Sha1.HEX_STRING_LENGTH, StandardCharsets.US_ASCII);
+        Contracts.requireThat(Sha1.isValidSha1HexString(shaHex), "Bad hex string value = " + shaHex + ".");
+        return Sha1.create(shaHex);
+    }
+
+    TreeLeaf getLeaf() {
+        return new TreeLeaf(type, getFileName(), getSha());
+    }
+}
@@ -7,6 +7,7 @@ import java.util.regex.Pattern;
 public final class VCSFileName {
 
     private final static Pattern pattern = Pattern.compile("^[a-zA-Z0-9-._]{1,1000}$");
+    private static final int MAX_LENGTH = 1000;
 
     private final String name;
 
@@ -28,7 +29,29 @@ public final class VCSFileName {
     public static boolean isValidVCSFileName(final String name) {
         Contracts.requireNonNullArgument(name);
 
-        return !".".equals(name) && !"..".equals(name) && pattern.asMatchPredicate().test(name);
+        return isValidVCSFileName(name, 0, name.length());
+    }
+
+    /**
+     * Checks name in range of string without creating substring, same as {@link #pattern}.
+     */
+    static boolean isValidVCSFileName(final String string, final int start, final int end) {
+        final int length = end - start;
+        if (length < 1 || length > MAX_LENGTH) {
+            return false;
+        }
+        if (string.charAt(start) == '.' && (length == 1 || length == 2 && string.charAt(start + 1) == '.')) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            final char c = string.charAt(i);
+            final boolean allowed = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                    || c == '-' || c == '.' || c == '_';
+            if (!allowed) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public String getName() {
@@ -3,26 +3,41 @@ package ru.otus.vcs.newversion.path;
 import ru.otus.utils.Contracts;
 import ru.otus.vcs.newversion.gitrepo.GitRepository;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.stream.Collectors;
 
-import static java.util.stream.Collectors.joining;
+/**
+ * Path relative to repository root stored as pointer to parent path plus last file name, so
+ * {@link #getParent()} and {@link #resolve(VCSFileName)} are O(1) and paths resolved from the same parent
+ * share it. Hash code is computed once on creation.
+ * Paths are ordered as git orders tree entries, that is bytewise by unix path string.
+ */
+public final class VCSPath implements Comparable<VCSPath> {
 
-public class VCSPath {
-
-    public static final VCSPath root = new VCSPath(Collections.emptyList());
+    public static final VCSPath root = new VCSPath(null, null);
 
     private static final String separator = "/";
+    private static final char separatorChar = '/';
+    private static final int END = -1;
 
-    private final List<VCSFileName> path;
+    @Nullable
+    private final VCSPath parent;
+    @Nullable
+    private final VCSFileName name;
+    private final int length;
+    private final int hash;
 
-    private VCSPath(final List<VCSFileName> path) {
-        this.path = path;
+    private VCSPath(@Nullable final VCSPath parent, @Nullable final VCSFileName name) {
+        this.parent = parent;
+        this.name = name;
+        if (parent == null) {
+            this.length = 0;
+            this.hash = 1;
+        } else {
+            this.length = parent.length + 1;
+            this.hash = 31 * parent.hash + name.hashCode();
+        }
     }
 
     public static String getSeparator() {
@@ -33,11 +48,18 @@ public class VCSPath {
         Contracts.requireNonNullArgument(path);
         Contracts.requireThat(isValidVCSPathString(path));
 
-        return new VCSPath(
-                Arrays.stream(path.split(separator))
-                        .map(VCSFileName::create)
-                        .collect(Collectors.toUnmodifiableList())
-        );
+        final int end = trimmedLength(path);
+        var result = root;
+        int start = 0;
+        while (start < end) {
+            int componentEnd = path.indexOf(separatorChar, start);
+            if (componentEnd == -1 || componentEnd > end) {
+                componentEnd = end;
+            }
+            result = new VCSPath(result, VCSFileName.create(path.substring(start, componentEnd)));
+            start = componentEnd + 1;
+        }
+        return result;
     }
 
     public static VCSPath create(final Path path) {
@@ -47,17 +69,31 @@ public class VCSPath {
         return create(path.toString().replace(File.separator, separator));
     }
 
+    /**
+     * Trailing separators are ignored, empty components are not allowed.
+     */
     public static boolean isValidVCSPathString(final String path) {
         Contracts.requireNonNull(path);
-        final var split = path.split(separator);
-        if (split.length == 0) {
+
+        final int end = trimmedLength(path);
+        if (end == 0) {
             return false;
         }
-        if (split[0].equals(GitRepository.DIR_NAME)) {
-            return false;
+        int start = 0;
+        while (start <= end) {
+            int componentEnd = path.indexOf(separatorChar, start);
+            if (componentEnd == -1 || componentEnd > end) {
+                componentEnd = end;
+            }
+            if (!VCSFileName.isValidVCSFileName(path, start, componentEnd)) {
+                return false;
+            }
+            if (start == 0 && path.startsWith(GitRepository.DIR_NAME) && componentEnd == GitRepository.DIR_NAME.length()) {
+                return false;
+            }
+            start = componentEnd + 1;
         }
-        return Arrays.stream(split)
-                .allMatch(VCSFileName::isValidVCSFileName);
+        return true;
     }
 
     //    TODO: test "/afd"
@@ -72,59 +108,158 @@ public class VCSPath {
     }
 
     public VCSPath getParent() {
-        Contracts.requireThat(path.size() > 0);
+        Contracts.requireThat(parent != null);
 
-        if (path.size() == 1) {
-            return root;
-        }
-        return new VCSPath(path.subList(0, path.size() - 1));
+        return parent;
     }
 
     public int length() {
-        return path.size();
+        return length;
+    }
+
+    /**
+     * @return true if other is this path or one of its ancestors, root is ancestor of every path.
+     */
+    public boolean startsWith(final VCSPath other) {
+        Contracts.requireNonNullArgument(other);
+
+        return other.length <= length && ancestor(other.length).equals(other);
+    }
+
+    /**
+     * @return true if file name can be resolved against this path.
+     */
+    public boolean canResolve(final String fileName) {
+        Contracts.requireNonNullArgument(fileName);
+
+        return VCSFileName.isValidVCSFileName(fileName) && !(isRoot() && GitRepository.DIR_NAME.equals(fileName));
     }
 
     public VCSPath resolve(final VCSFileName fileName) {
-        final var copy = new ArrayList<>(path);
-        copy.add(fileName);
-        return new VCSPath(copy);
+        Contracts.requireNonNullArgument(fileName);
+        Contracts.requireThat(!isRoot() || !GitRepository.DIR_NAME.equals(fileName.getName()));
+
+        return new VCSPath(this, fileName);
     }
 
     public Path toOsPath() {
-        return Path.of(
-                path.stream()
-                        .map(VCSFileName::getName)
-                        .collect(joining(File.separator))
-        );
+        return Path.of(join(File.separator));
     }
 
     public String toUnixPathString() {
-        return path.stream()
-                .map(VCSFileName::getName)
-                .collect(joining(separator));
+        return join(separator);
     }
 
     public VCSFileName getFileName() {
-        return path.get(path.size() - 1);
+        Contracts.requireThat(name != null);
+
+        return name;
     }
 
+    /**
+     * Compares paths as git compares tree entries: bytewise, directory name is followed by separator.
+     */
     @Override
-    public boolean equals(Object o) {
+    public int compareTo(final VCSPath other) {
+        if (equals(other)) {
+            return 0;
+        }
+        final int common = Math.min(length, other.length);
+        var first = ancestor(common);
+        var second = other.ancestor(common);
+        if (first.equals(second)) {
+            return Integer.compare(length, other.length);
+        }
+        while (!first.parent.equals(second.parent)) {
+            first = first.parent;
+            second = second.parent;
+        }
+        return compareNames(
+                first.name.getName(),
+                first.length < length,
+                second.name.getName(),
+                second.length < other.length
+        );
+    }
+
+    @Override
+    public boolean equals(final Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
-        VCSPath vcsPath = (VCSPath) o;
-        return path.equals(vcsPath.path);
+        var first = this;
+        var second = (VCSPath) o;
+        if (first.hash != second.hash || first.length != second.length) {
+            return false;
+        }
+        while (first != second) {
+            if (!first.name.equals(second.name)) {
+                return false;
+            }
+            first = first.parent;
+            second = second.parent;
+        }
+        return true;
     }
 
     @Override
     public int hashCode() {
-        return path.hashCode();
+        return hash;
     }
 
     @Override
     public String toString() {
-        return path.stream()
-                .map(VCSFileName::getName)
-                .collect(joining(separator));
+        return join(separator);
+    }
+
+    private VCSPath ancestor(final int ancestorLength) {
+        var result = this;
+        while (result.length > ancestorLength) {
+            result = result.parent;
+        }
+        return result;
+    }
+
+    private String join(final String delimiter) {
+        if (isRoot()) {
+            return "";
+        }
+        final var names = new String[length];
+        int size = length - 1;
+        for (var current = this; current.parent != null; current = current.parent) {
+            names[current.length - 1] = current.name.getName();
+            size += names[current.length - 1].length();
+        }
+        final var builder = new StringBuilder(size);
+        builder.append(names[0]);
+        for (int i = 1; i < names.length; i++) {
+            builder.append(delimiter).append(names[i]);
+        }
+        return builder.toString();
+    }
+
+    private static int compareNames(final String first, final boolean firstIsDir, final String second, final boolean secondIsDir) {
+        final int bound = Math.max(first.length(), second.length()) + 1;
+        for (int i = 0; i < bound; i++) {
+            final int result = Integer.compare(charAt(first, i, firstIsDir), charAt(second, i, secondIsDir));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private static int charAt(final String name, final int index, final boolean isDir) {
+        if (index < name.length()) {
+            return name.charAt(index);
+        }
+        return index == name.length() && isDir ? separatorChar : END;
+    }
+
+    private static int trimmedLength(final String path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == separatorChar) {
+            end--;
+        }
+        return end;
     }
 }
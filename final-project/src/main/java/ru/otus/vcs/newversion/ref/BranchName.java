@@ -17,14 +17,21 @@ public final class BranchName extends Ref {
         return namePattern.pattern().substring(1, namePattern.pattern().length() - 1);
     }
 
+    private final String refString;
+
     private BranchName(String refString) {
-        super(refString);
+        this.refString = Contracts.ensureNonNullArgument(refString);
     }
 
     public String getBranchName() {
         return refString;
     }
 
+    @Override
+    public String getRefString() {
+        return refString;
+    }
+
     public static boolean isValidBranchName(final String branchName) {
         Contracts.requireNonNullArgument(branchName);
 
@@ -4,17 +4,7 @@ import ru.otus.utils.Contracts;
 
 public abstract class Ref {
 
-    protected final String refString;
-
-    protected Ref(final String refString) {
-        Contracts.requireNonNullArgument(refString);
-
-        this.refString = refString;
-    }
-
-    public String getRefString() {
-        return refString;
-    }
+    public abstract String getRefString();
 
     public static Ref create(final String refString) {
         Contracts.requireNonNullArgument(refString);
@@ -10,8 +10,15 @@ public class ReservedRef extends Ref {
     public static final ReservedRef head = new ReservedRef("HEAD");
     public static final ReservedRef mergeHead = new ReservedRef("MERGE_HEAD");
 
+    private final String refString;
+
     private ReservedRef(final String refString) {
-        super(refString);
+        this.refString = Contracts.ensureNonNullArgument(refString);
+    }
+
+    @Override
+    public String getRefString() {
+        return refString;
     }
 
     public static ReservedRef forRefString(final String refString) {
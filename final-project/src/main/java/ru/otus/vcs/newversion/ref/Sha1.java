@@ -1,22 +1,31 @@
 package ru.otus.vcs.newversion.ref;
 
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import ru.otus.utils.Contracts;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Locale;
-import java.util.regex.Pattern;
 
-public final class Sha1 extends Ref {
+/**
+ * Sha1 digest stored as 20 raw bytes packed into two longs and int, big endian, so that ordering of
+ * fields is ordering of bytes and hex strings. Digest bytes are uniformly distributed, so first four bytes
+ * serve as hash code. Hex string is produced only on demand.
+ */
+public final class Sha1 extends Ref implements Comparable<Sha1> {
 
     public static int HEX_STRING_LENGTH = 40;
+    public static final int BINARY_LENGTH = 20;
 
-    private static final Pattern pattern = Pattern.compile("^[a-f0-9]{40}$");
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
 
-    private Sha1(final String hex) {
-        super(hex);
+    private final long high;
+    private final long middle;
+    private final int low;
+
+    private Sha1(final long high, final long middle, final int low) {
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
     }
 
     public static Sha1 hash(final String content) {
@@ -28,40 +37,114 @@ public final class Sha1 extends Ref {
     public static Sha1 hash(final byte[] content) {
         Contracts.requireNonNullArgument(content);
 
-        final var hex = DigestUtils.sha1Hex(content)
-                .toLowerCase(Locale.ROOT);
-        Contracts.requireThat(pattern.asMatchPredicate().test(hex));
-        return new Sha1(hex);
+        return fromBinary(DigestUtils.sha1(content));
     }
 
     public static Sha1 create(final String hexString) {
         Contracts.requireNonNullArgument(hexString);
         Contracts.requireThat(isValidSha1HexString(hexString));
 
-        return new Sha1(hexString);
+        return new Sha1(
+                parseHex(hexString, 0, 16),
+                parseHex(hexString, 16, 32),
+                (int) parseHex(hexString, 32, 40)
+        );
+    }
+
+    public static Sha1 fromBinary(final byte[] binary) {
+        Contracts.requireNonNullArgument(binary);
+        Contracts.requireThat(binary.length == BINARY_LENGTH);
+
+        return fromBinary(binary, 0);
+    }
+
+    public static Sha1 fromBinary(final byte[] binary, final int offset) {
+        Contracts.requireNonNullArgument(binary);
+        Contracts.requireThat(offset >= 0 && offset <= binary.length - BINARY_LENGTH);
+
+        return new Sha1(
+                readLong(binary, offset),
+                readLong(binary, offset + Long.BYTES),
+                (int) readBytes(binary, offset + 2 * Long.BYTES, Integer.BYTES)
+        );
+    }
+
+    /**
+     * Reads 20 bytes at position of buffer and advances it.
+     */
+    public static Sha1 read(final ByteBuffer buffer) {
+        Contracts.requireNonNullArgument(buffer);
+        Contracts.requireThat(buffer.remaining() >= BINARY_LENGTH);
+
+        return new Sha1(buffer.getLong(), buffer.getLong(), buffer.getInt());
     }
 
     public static boolean isValidSha1HexString(final String hexString) {
         Contracts.requireNonNullArgument(hexString);
 
-        return pattern.asMatchPredicate().test(hexString);
+        if (hexString.length() != HEX_STRING_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_STRING_LENGTH; i++) {
+            if (hexValue(hexString.charAt(i)) == -1) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public String getHexString() {
-        return refString;
+        final byte[] hex = new byte[HEX_STRING_LENGTH];
+        writeHex(hex, 0, high, 16);
+        writeHex(hex, 16, middle, 16);
+        writeHex(hex, 32, low, 8);
+        return new String(hex, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String getRefString() {
+        return getHexString();
     }
 
     public byte[] getBinary() {
-        try {
-            return Hex.decodeHex(refString);
-        } catch (final DecoderException ignored) {
-            throw Contracts.unreachable("String is a valid hex string.");
+        final byte[] binary = new byte[BINARY_LENGTH];
+        writeBinary(binary, 0);
+        return binary;
+    }
+
+    public void writeBinary(final byte[] destination, final int offset) {
+        Contracts.requireNonNullArgument(destination);
+        Contracts.requireThat(offset >= 0 && offset <= destination.length - BINARY_LENGTH);
+
+        writeBytes(destination, offset, high, Long.BYTES);
+        writeBytes(destination, offset + Long.BYTES, middle, Long.BYTES);
+        writeBytes(destination, offset + 2 * Long.BYTES, low, Integer.BYTES);
+    }
+
+    /**
+     * Writes 20 bytes at position of buffer and advances it.
+     */
+    public ByteBuffer write(final ByteBuffer buffer) {
+        Contracts.requireNonNullArgument(buffer);
+
+        return buffer.putLong(high).putLong(middle).putInt(low);
+    }
+
+    @Override
+    public int compareTo(final Sha1 other) {
+        int result = Long.compareUnsigned(high, other.high);
+        if (result == 0) {
+            result = Long.compareUnsigned(middle, other.middle);
         }
+        if (result == 0) {
+            result = Integer.compareUnsigned(low, other.low);
+        }
+        return result;
     }
 
     @Override
     public int hashCode() {
-        return refString.hashCode();
+        return (int) (high >>> 32);
     }
 
     @Override
@@ -73,11 +156,56 @@ public final class Sha1 extends Ref {
             return false;
         }
         final var other = (Sha1) obj;
-        return refString.equals(other.refString);
+        return high == other.high && middle == other.middle && low == other.low;
     }
 
     @Override
     public String toString() {
-        return "Sha1{ " + refString + " }";
+        return "Sha1{ " + getHexString() + " }";
+    }
+
+    private static long parseHex(final String hex, final int start, final int end) {
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            result = (result << 4) | hexValue(hex.charAt(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return value of lower case hex digit or -1.
+     */
+    private static int hexValue(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else {
+            return -1;
+        }
+    }
+
+    private static void writeHex(final byte[] destination, final int offset, final long value, final int digits) {
+        for (int i = 0; i < digits; i++) {
+            destination[offset + i] = HEX_DIGITS[(int) (value >>> (4 * (digits - 1 - i))) & 0xF];
+        }
+    }
+
+    private static long readLong(final byte[] source, final int offset) {
+        return readBytes(source, offset, Long.BYTES);
+    }
+
+    private static long readBytes(final byte[] source, final int offset, final int count) {
+        long result = 0;
+        for (int i = 0; i < count; i++) {
+            result = (result << 8) | (source[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    private static void writeBytes(final byte[] destination, final int offset, final long value, final int count) {
+        for (int i = 0; i < count; i++) {
+            destination[offset + i] = (byte) (value >>> (8 * (count - 1 - i)));
+        }
     }
 }
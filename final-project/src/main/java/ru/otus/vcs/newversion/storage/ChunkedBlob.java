@@ -0,0 +1,228 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.objects.GitObject;
+import ru.otus.vcs.newversion.objects.ObjectType;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+
+/**
+ * Manifest of large blob stored as chunks. Content is split where gear rolling hash of last 64 bytes has
+ * 16 zero high bits, so edit moves only boundaries near it and other chunks are shared with previous versions.
+ * Chunks are ordinary blobs. Manifest is stored under sha of whole blob, so trees, index and file hashing
+ * don't depend on chunking and object database reassembles blob on read.
+ * Format: header "chunked size\0", then 20 bytes sha and 4 bytes length per chunk.
+ */
+final class ChunkedBlob {
+
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    private static final int BOUNDARY_BITS = 16;
+    private static final int WINDOW = Long.SIZE;
+    private static final byte[] HEADER_PREFIX = "chunked ".getBytes(StandardCharsets.US_ASCII);
+    private static final int ENTRY_SIZE = Sha1.BINARY_LENGTH + Integer.BYTES;
+    private static final long[] GEAR = gear();
+
+    private final long size;
+    private final List<Sha1> chunks;
+    private final int[] lengths;
+
+    private ChunkedBlob(final long size, final List<Sha1> chunks, final int[] lengths) {
+        this.size = size;
+        this.chunks = chunks;
+        this.lengths = lengths;
+    }
+
+    interface ChunkConsumer {
+
+        /**
+         * @param buffer which is reused after return, chunk is in its first length bytes.
+         * @return sha of saved chunk blob.
+         */
+        Sha1 accept(byte[] buffer, int length);
+    }
+
+    /**
+     * Reads exactly size bytes of content and passes its chunks to consumer.
+     */
+    static ChunkedBlob split(final InputStream content, final long size, final ChunkConsumer consumer) throws IOException {
+        Contracts.requireNonNullArgument(content);
+        Contracts.requireThat(size >= 0);
+        Contracts.requireNonNullArgument(consumer);
+
+        final var chunks = new ArrayList<Sha1>();
+        final var lengths = new ArrayList<Integer>();
+        final var buffer = new byte[MAX_CHUNK_SIZE];
+        long remaining = size;
+        int filled = 0;
+        while (remaining > 0 || filled > 0) {
+            while (filled < buffer.length && remaining > 0) {
+                final int read = content.read(buffer, filled, (int) Math.min(buffer.length - filled, remaining));
+                Contracts.requireThat(read != -1, "Blob content is shorter than declared size " + size + ".");
+                filled += read;
+                remaining -= read;
+            }
+            final int length = boundary(buffer, filled);
+            chunks.add(consumer.accept(buffer, length));
+            lengths.add(length);
+            System.arraycopy(buffer, length, buffer, 0, filled - length);
+            filled -= length;
+        }
+        Contracts.requireThat(content.read() == -1, "Blob content is longer than declared size " + size + ".");
+        return new ChunkedBlob(size, chunks, lengths.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    static boolean isManifest(final byte[] serialized) {
+        return serialized.length >= HEADER_PREFIX.length
+                && Arrays.equals(serialized, 0, HEADER_PREFIX.length, HEADER_PREFIX, 0, HEADER_PREFIX.length);
+    }
+
+    /**
+     * Checks start of serialized object without consuming it, stream must support mark.
+     */
+    static boolean isManifest(final InputStream serialized) throws IOException {
+        Contracts.requireThat(serialized.markSupported());
+
+        serialized.mark(HEADER_PREFIX.length);
+        final var prefix = serialized.readNBytes(HEADER_PREFIX.length);
+        serialized.reset();
+        return Arrays.equals(prefix, HEADER_PREFIX);
+    }
+
+    static ChunkedBlob deserialize(final byte[] serialized) {
+        Contracts.requireThat(isManifest(serialized), badFormat("Bad header."));
+
+        int nullBytePos = HEADER_PREFIX.length;
+        while (nullBytePos < serialized.length && serialized[nullBytePos] != 0) {
+            nullBytePos++;
+        }
+        Contracts.requireThat(nullBytePos < serialized.length, badFormat("No null byte."));
+        final long size;
+        try {
+            size = Long.parseLong(new String(serialized, HEADER_PREFIX.length, nullBytePos - HEADER_PREFIX.length, StandardCharsets.US_ASCII));
+        } catch (final NumberFormatException ex) {
+            throw Contracts.unreachable(badFormat("Can't parse size."));
+        }
+        final int entriesStart = nullBytePos + 1;
+        Contracts.requireThat((serialized.length - entriesStart) % ENTRY_SIZE == 0, badFormat("Incomplete chunk entry."));
+        final int count = (serialized.length - entriesStart) / ENTRY_SIZE;
+        final var buffer = ByteBuffer.wrap(serialized, entriesStart, serialized.length - entriesStart);
+        final var chunks = new ArrayList<Sha1>(count);
+        final int[] lengths = new int[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            chunks.add(Sha1.read(buffer));
+            lengths[i] = buffer.getInt();
+            Contracts.requireThat(lengths[i] > 0 && lengths[i] <= MAX_CHUNK_SIZE, badFormat("Bad chunk length."));
+            total += lengths[i];
+        }
+        Contracts.requireThat(total == size, badFormat("Chunks don't sum up to size."));
+        return new ChunkedBlob(size, chunks, lengths);
+    }
+
+    byte[] serialize() {
+        final var output = new ByteArrayOutputStream();
+        output.writeBytes(HEADER_PREFIX);
+        output.writeBytes((Long.toString(size) + (char) 0).getBytes(StandardCharsets.US_ASCII));
+        final var entry = ByteBuffer.allocate(ENTRY_SIZE);
+        for (int i = 0; i < chunks.size(); i++) {
+            entry.clear();
+            chunks.get(i).write(entry).putInt(lengths[i]);
+            output.writeBytes(entry.array());
+        }
+        return output.toByteArray();
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getChunksCount() {
+        return chunks.size();
+    }
+
+    Sha1 getChunk(final int index) {
+        return chunks.get(index);
+    }
+
+    int getLength(final int index) {
+        return lengths[index];
+    }
+
+    /**
+     * @param chunkContent returns content of chunk blob without header.
+     * @return stream of serialized blob, chunks are read when stream reaches them.
+     */
+    InputStream open(final Function<Sha1, byte[]> chunkContent) {
+        return new SequenceInputStream(new Enumeration<>() {
+            private int next = -1;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < chunks.size();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                final int current = next++;
+                if (current == -1) {
+                    return new ByteArrayInputStream(GitObject.header(ObjectType.Blob, size));
+                }
+                final var content = chunkContent.apply(chunks.get(current));
+                Contracts.requireThat(content.length == lengths[current], badFormat("Bad length of chunk " + current + "."));
+                return new ByteArrayInputStream(content);
+            }
+        });
+    }
+
+    /**
+     * @return length of chunk starting at buffer beginning.
+     */
+    private static int boundary(final byte[] buffer, final int filled) {
+        if (filled <= MIN_CHUNK_SIZE) {
+            return filled;
+        }
+        long hash = 0;
+        for (int i = MIN_CHUNK_SIZE - WINDOW; i < filled; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+            if (i >= MIN_CHUNK_SIZE && hash >>> (Long.SIZE - BOUNDARY_BITS) == 0) {
+                return i + 1;
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Table is generated from fixed seed, so boundaries are the same in every process.
+     */
+    private static long[] gear() {
+        final var random = new SplittableRandom(0x5347_4344_4348_4B53L);
+        final long[] result = new long[256];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = random.nextLong();
+        }
+        return result;
+    }
+
+    private static String badFormat(final String additionalInfo) {
+        return "Bad format of chunked blob manifest. " + additionalInfo;
+    }
+}
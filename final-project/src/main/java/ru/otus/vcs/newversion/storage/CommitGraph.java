@@ -0,0 +1,411 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of commit ancestry, so that history walks don't read commit objects. Layout: magic, version,
+ * number of indexed commits, 256 entries fanout table and sorted (20 bytes commit sha, 4 bytes position) lookup
+ * of indexed commits, followed by fixed width records (20 bytes commit sha, 20 bytes root tree sha, positions
+ * of first and second parent or -1 and generation number). Parents always precede children, so records are
+ * only appended on commit and record is addressed by its position. Commits appended after the lookup was written
+ * are found through small in-memory map until {@link #compactIfNeeded()} rewrites the lookup. File is memory
+ * mapped, so opening doesn't depend on history size. Incomplete trailing record left by interrupted append
+ * is ignored. Generation of root commit is 1, generation of other commits is greater by one than maximum of
+ * their parents, so commit can't be ancestor of commit with less or equal generation.
+ */
+public final class CommitGraph {
+
+    public static final int NO_PARENT = -1;
+
+    private static final int MAGIC = 0x53474347; // SGCG
+    private static final int VERSION = 2;
+    private static final int LEGACY_VERSION = 1;
+    private static final int FANOUT_SIZE = 256;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES + FANOUT_SIZE * Integer.BYTES;
+    private static final int LOOKUP_ENTRY_SIZE = Sha1.BINARY_LENGTH + Integer.BYTES;
+    private static final int RECORD_SIZE = 2 * Sha1.BINARY_LENGTH + 3 * Integer.BYTES;
+    private static final int TREE_OFFSET = Sha1.BINARY_LENGTH;
+    private static final int PARENTS_OFFSET = 2 * Sha1.BINARY_LENGTH;
+    private static final int GENERATION_OFFSET = PARENTS_OFFSET + 2 * Integer.BYTES;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_UNINDEXED = 1024;
+
+    private final Path path;
+    // state of the file, replaced on reload
+    private ByteBuffer mapped;
+    private int indexed;
+    private long recordsStart;
+    private int mappedSize;
+    private long fileSize;
+    // records appended by this instance after file was mapped
+    private ByteBuffer appended;
+    private final Map<Sha1, Integer> unindexed = new HashMap<>();
+    private int size;
+
+    private CommitGraph(final Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Maps commit graph file, absent file or file of older version means empty graph.
+     */
+    public static CommitGraph open(final Path path) {
+        Contracts.requireNonNullArgument(path);
+
+        final var graph = new CommitGraph(path);
+        graph.load();
+        return graph;
+    }
+
+    /**
+     * @return true if graph file was appended or rewritten by another instance, so graph must be reloaded.
+     */
+    public boolean isStale() {
+        return currentFileSize() != fileSize;
+    }
+
+    /**
+     * Rereads file changed by another instance. Records are never reordered, so known positions stay valid.
+     */
+    public void reloadIfStale() {
+        if (!isStale()) {
+            return;
+        }
+        final int previousSize = size;
+        load();
+        Contracts.requireThat(size >= previousSize, "Commit graph " + path + " was truncated by other writer.");
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return position of commit or -1 if graph doesn't contain it.
+     */
+    public int positionOf(final Sha1 commitSha) {
+        Contracts.requireNonNullArgument(commitSha);
+
+        final int position = findIndexed(commitSha.getBinary());
+        return position != -1 ? position : unindexed.getOrDefault(commitSha, -1);
+    }
+
+    public boolean contains(final Sha1 commitSha) {
+        return positionOf(commitSha) != -1;
+    }
+
+    public Sha1 sha(final int position) {
+        return readSha(position, 0);
+    }
+
+    public Sha1 tree(final int position) {
+        return readSha(position, TREE_OFFSET);
+    }
+
+    /**
+     * @return position of first parent or {@link #NO_PARENT}.
+     */
+    public int firstParent(final int position) {
+        return readParent(position, PARENTS_OFFSET);
+    }
+
+    /**
+     * @return position of second parent or {@link #NO_PARENT}.
+     */
+    public int secondParent(final int position) {
+        return readParent(position, PARENTS_OFFSET + Integer.BYTES);
+    }
+
+    public int generation(final int position) {
+        final int generation = readInt(position, GENERATION_OFFSET);
+        Contracts.requireThat(generation > 0, badFormat("Bad generation of record " + position + "."));
+        return generation;
+    }
+
+    /**
+     * Adds commit to the graph and appends it to the file. Does nothing if commit is already present.
+     * Caller must hold lock of graph file and reload stale graph before, otherwise records of other writer
+     * could be overwritten.
+     *
+     * @param firstParentSha  must be present in graph if not null.
+     * @param secondParentSha must be present in graph if not null.
+     * @return position of commit.
+     */
+    public int append(
+            final Sha1 commitSha,
+            final Sha1 treeSha,
+            @Nullable final Sha1 firstParentSha,
+            @Nullable final Sha1 secondParentSha) {
+        Contracts.requireNonNullArgument(commitSha);
+        Contracts.requireNonNullArgument(treeSha);
+        Contracts.forbidThat(firstParentSha == null && secondParentSha != null);
+
+        final int existing = positionOf(commitSha);
+        if (existing != -1) {
+            return existing;
+        }
+        final int firstParent = parentPosition(firstParentSha);
+        final int secondParent = parentPosition(secondParentSha);
+        int generation = 1;
+        if (firstParent != NO_PARENT) {
+            generation = Math.max(generation, generation(firstParent) + 1);
+        }
+        if (secondParent != NO_PARENT) {
+            generation = Math.max(generation, generation(secondParent) + 1);
+        }
+        final var record = ByteBuffer.allocate(RECORD_SIZE);
+        commitSha.write(record);
+        treeSha.write(record)
+                .putInt(firstParent)
+                .putInt(secondParent)
+                .putInt(generation)
+                .flip();
+        write(record);
+        final int appendedCount = size - mappedSize;
+        if (appended.capacity() < (appendedCount + 1) * RECORD_SIZE) {
+            final var grown = ByteBuffer.allocate(appended.capacity() * 2);
+            grown.put(appended.duplicate().limit(appendedCount * RECORD_SIZE));
+            appended = grown.clear();
+        }
+        appended.duplicate().position(appendedCount * RECORD_SIZE).put(record.array());
+        unindexed.put(commitSha, size);
+        return size++;
+    }
+
+    /**
+     * Rewrites file with all commits in the lookup when many commits are found through in-memory map.
+     * New file replaces old one by rename. Caller must hold lock of graph file.
+     */
+    public void compactIfNeeded() {
+        if (unindexed.size() <= MAX_UNINDEXED) {
+            return;
+        }
+        final long newRecordsStart = HEADER_SIZE + (long) size * LOOKUP_ENTRY_SIZE;
+        final long newFileSize = newRecordsStart + (long) size * RECORD_SIZE;
+        Contracts.requireThat(newFileSize <= Integer.MAX_VALUE, "Commit graph " + path + " is too large.");
+        final var lookup = new byte[size][];
+        for (int position = 0; position < size; position++) {
+            lookup[position] = sha(position).getBinary();
+        }
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (first, second) -> Arrays.compareUnsigned(lookup[first], lookup[second]));
+        final var buffer = ByteBuffer.allocate((int) newFileSize);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(size);
+        final int[] fanout = new int[FANOUT_SIZE];
+        for (final var sha : lookup) {
+            fanout[sha[0] & 0xff]++;
+        }
+        int count = 0;
+        for (final int bucketSize : fanout) {
+            count += bucketSize;
+            buffer.putInt(count);
+        }
+        for (final int position : order) {
+            buffer.put(lookup[position]).putInt(position);
+        }
+        for (int position = 0; position < size; position++) {
+            buffer.put(recordBuffer(position).limit(RECORD_SIZE));
+        }
+        final Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (var channel = FileChannel.open(
+                    tempPath,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                writeFully(channel, buffer.flip(), 0);
+                channel.force(true);
+            }
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't write commit graph " + path + ".", ex);
+        }
+        load();
+    }
+
+    private void load() {
+        mapped = ByteBuffer.allocate(0);
+        indexed = 0;
+        recordsStart = HEADER_SIZE;
+        mappedSize = 0;
+        appended = ByteBuffer.allocate(INITIAL_CAPACITY * RECORD_SIZE);
+        unindexed.clear();
+        size = 0;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            if (fileSize == 0) {
+                return;
+            }
+            Contracts.requireThat(fileSize >= 2 * Integer.BYTES, badFormat("Too short."));
+            Contracts.requireThat(fileSize <= Integer.MAX_VALUE, badFormat("Too long."));
+            final var file = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            Contracts.requireThat(file.getInt(0) == MAGIC, badFormat("Bad magic."));
+            final int version = file.getInt(Integer.BYTES);
+            if (version == LEGACY_VERSION) {
+                // rewritten by the first append
+                return;
+            }
+            Contracts.requireThat(version == VERSION, badFormat("Unsupported version."));
+            Contracts.requireThat(fileSize >= HEADER_SIZE, badFormat("Too short."));
+            final int indexedCount = file.getInt(2 * Integer.BYTES);
+            final long start = HEADER_SIZE + (long) indexedCount * LOOKUP_ENTRY_SIZE;
+            Contracts.requireThat(
+                    indexedCount >= 0 && fanout(file, FANOUT_SIZE - 1) == indexedCount && start <= fileSize,
+                    badFormat("Bad lookup.")
+            );
+            final int recordsCount = (int) ((fileSize - start) / RECORD_SIZE);
+            Contracts.requireThat(recordsCount >= indexedCount, badFormat("Lookup has absent commits."));
+            mapped = file;
+            indexed = indexedCount;
+            recordsStart = start;
+            mappedSize = recordsCount;
+            size = recordsCount;
+            for (int position = indexedCount; position < recordsCount; position++) {
+                unindexed.put(sha(position), position);
+            }
+        } catch (final NoSuchFileException ex) {
+            fileSize = -1;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read commit graph " + path + ".", ex);
+        }
+    }
+
+    private void write(final ByteBuffer record) {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Contracts.requireThat(
+                    channel.size() == Math.max(0, fileSize),
+                    "Commit graph " + path + " was changed by other writer."
+            );
+            if (size == 0) {
+                // starts new file, also replaces file of older version
+                final var header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putInt(0);
+                channel.truncate(0);
+                writeFully(channel, header.clear(), 0);
+            }
+            // overwrites incomplete record if any
+            writeFully(channel, record, recordsStart + (long) size * RECORD_SIZE);
+            fileSize = channel.size();
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't write commit graph " + path + ".", ex);
+        }
+    }
+
+    private long currentFileSize() {
+        try {
+            return Files.size(path);
+        } catch (final NoSuchFileException ex) {
+            return -1;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read size of commit graph " + path + ".", ex);
+        }
+    }
+
+    private int parentPosition(@Nullable final Sha1 parentSha) {
+        if (parentSha == null) {
+            return NO_PARENT;
+        }
+        final int position = positionOf(parentSha);
+        Contracts.requireThat(position != -1, "Parent " + parentSha + " is absent in commit graph.");
+        return position;
+    }
+
+    /**
+     * Binary search inside fanout bucket of the lookup.
+     */
+    private int findIndexed(final byte[] sha) {
+        if (indexed == 0) {
+            return -1;
+        }
+        final int bucket = sha[0] & 0xff;
+        int low = bucket == 0 ? 0 : fanout(mapped, bucket - 1);
+        int high = fanout(mapped, bucket) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int entryStart = HEADER_SIZE + mid * LOOKUP_ENTRY_SIZE;
+            int cmp = 0;
+            for (int i = 0; i < Sha1.BINARY_LENGTH && cmp == 0; i++) {
+                cmp = Byte.compareUnsigned(mapped.get(entryStart + i), sha[i]);
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                final int position = mapped.getInt(entryStart + Sha1.BINARY_LENGTH);
+                Contracts.requireThat(position >= 0 && position < indexed, badFormat("Bad lookup position."));
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private int readParent(final int position, final int offset) {
+        final int parent = readInt(position, offset);
+        Contracts.requireThat(
+                parent >= NO_PARENT && parent < position,
+                badFormat("Bad parent of record " + position + ".")
+        );
+        return parent;
+    }
+
+    private Sha1 readSha(final int position, final int offset) {
+        final byte[] sha = new byte[Sha1.BINARY_LENGTH];
+        recordBuffer(position).position(offset).get(sha);
+        return Sha1.fromBinary(sha);
+    }
+
+    private int readInt(final int position, final int offset) {
+        Contracts.requireThat(position >= 0 && position < size);
+
+        if (position < mappedSize) {
+            return mapped.getInt((int) (recordsStart + (long) position * RECORD_SIZE) + offset);
+        }
+        return appended.getInt((position - mappedSize) * RECORD_SIZE + offset);
+    }
+
+    /**
+     * @return buffer starting at record.
+     */
+    private ByteBuffer recordBuffer(final int position) {
+        Contracts.requireThat(position >= 0 && position < size);
+
+        if (position < mappedSize) {
+            return mapped.duplicate().position((int) (recordsStart + (long) position * RECORD_SIZE)).slice();
+        }
+        return appended.duplicate().position((position - mappedSize) * RECORD_SIZE).slice();
+    }
+
+    private static int fanout(final ByteBuffer file, final int bucket) {
+        return file.getInt(3 * Integer.BYTES + bucket * Integer.BYTES);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
+    private static String badFormat(final String additionalInfo) {
+        return "Bad format of commit graph. " + additionalInfo;
+    }
+}
@@ -0,0 +1,167 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy walk of ancestors of commit over {@link CommitGraph}, commit is always produced before its parents.
+ * Walk produces next commit after visiting only commits needed for it, so history is printed without being read
+ * first. Memory is proportional to number of explored commits, i.e. produced commits and their parents.
+ */
+public final class CommitWalk implements PrimitiveIterator.OfInt {
+
+    public enum Order {
+        /**
+         * Commits have no timestamps, graph position is order in which commits were added to repository.
+         */
+        Date,
+        /**
+         * Lines of history are not interleaved: parents are produced right after their last child, first parent
+         * line is followed first.
+         */
+        Topological
+    }
+
+    private final CommitGraph graph;
+    private final boolean firstParentOnly;
+    private final Order order;
+    private final BitSet seen = new BitSet();
+    // Date: queue of positions to produce; Topological: queue of positions to explore
+    private final PriorityQueue<Integer> queue;
+    // Topological only
+    private final ArrayDeque<Integer> ready = new ArrayDeque<>();
+    private final BitSet produced = new BitSet();
+    // number of explored children which are not produced yet, only for explored commits
+    private final Map<Integer, Integer> inDegrees = new HashMap<>();
+    private int next = -1;
+
+    private CommitWalk(final CommitGraph graph, final int start, final Order order, final boolean firstParentOnly) {
+        this.graph = graph;
+        this.order = order;
+        this.firstParentOnly = firstParentOnly;
+        if (order == Order.Date) {
+            this.queue = new PriorityQueue<>(Comparator.reverseOrder());
+        } else {
+            this.queue = new PriorityQueue<>(
+                    Comparator.comparingInt(graph::generation).thenComparing(Comparator.naturalOrder()).reversed()
+            );
+            ready.push(start);
+        }
+        seen.set(start);
+        queue.add(start);
+    }
+
+    /**
+     * @param firstParentOnly if true merged branches are not walked.
+     */
+    public static CommitWalk start(final CommitGraph graph, final int start, final Order order, final boolean firstParentOnly) {
+        Contracts.requireNonNullArgument(graph);
+        Contracts.requireThat(start >= 0 && start < graph.size());
+        Contracts.requireNonNullArgument(order);
+
+        return new CommitWalk(graph, start, order, firstParentOnly);
+    }
+
+    public IntStream stream() {
+        return StreamSupport.intStream(
+                Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL),
+                false
+        );
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == -1) {
+            next = order == Order.Date ? nextByDate() : nextTopological();
+        }
+        return next != -1;
+    }
+
+    @Override
+    public int nextInt() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final int result = next;
+        next = -1;
+        return result;
+    }
+
+    /**
+     * Parents precede children in graph, so decreasing position is also topological order.
+     */
+    private int nextByDate() {
+        final var position = queue.poll();
+        if (position == null) {
+            return -1;
+        }
+        for (final int parent : parents(position)) {
+            if (parent != CommitGraph.NO_PARENT && !seen.get(parent)) {
+                seen.set(parent);
+                queue.add(parent);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Commit is ready when all its children are produced. Children have greater generation, so in-degree of commit
+     * is known after exploring queued commits of greater generation, the rest of history stays unexplored.
+     */
+    private int nextTopological() {
+        while (!ready.isEmpty()) {
+            final int position = ready.pop();
+            exploreAbove(graph.generation(position));
+            if (inDegrees.containsKey(position) || produced.get(position)) {
+                continue;
+            }
+            produced.set(position);
+            final int[] parents = parents(position);
+            for (int i = parents.length - 1; i >= 0; i--) {
+                final int parent = parents[i];
+                if (parent != CommitGraph.NO_PARENT) {
+                    exploreAbove(graph.generation(parent));
+                    if (inDegrees.merge(parent, -1, Integer::sum) == 0) {
+                        inDegrees.remove(parent);
+                        ready.push(parent);
+                    }
+                }
+            }
+            return position;
+        }
+        return -1;
+    }
+
+    private void exploreAbove(final int generation) {
+        while (!queue.isEmpty() && graph.generation(queue.peek()) > generation) {
+            final int position = queue.poll();
+            for (final int parent : parents(position)) {
+                if (parent != CommitGraph.NO_PARENT) {
+                    inDegrees.merge(parent, 1, Integer::sum);
+                    if (!seen.get(parent)) {
+                        seen.set(parent);
+                        queue.add(parent);
+                    }
+                }
+            }
+        }
+    }
+
+    private int[] parents(final int position) {
+        return firstParentOnly
+                ? new int[]{graph.firstParent(position)}
+                : new int[]{graph.firstParent(position), graph.secondParent(position)};
+    }
+}
@@ -0,0 +1,90 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of loose object files. Zlib streams are compatible with loose objects of real git.
+ * Codec is chosen for writing only, reading detects zlib by its header,
+ * so objects written with different codecs can live in the same repository.
+ */
+enum CompressionCodec {
+
+    ZLIB("zlib", Deflater.DEFAULT_COMPRESSION),
+    ZLIB_FAST("zlib-fast", Deflater.BEST_SPEED),
+    NONE("none", Deflater.NO_COMPRESSION);
+
+    /**
+     * First byte of zlib stream with 32K window. Serialized object starts with its type name,
+     * and none of them starts with 'x'.
+     */
+    private static final int ZLIB_HEADER = 0x78;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String configValue;
+    private final int level;
+
+    CompressionCodec(final String configValue, final int level) {
+        this.configValue = configValue;
+        this.level = level;
+    }
+
+    static CompressionCodec fromConfigValue(final String configValue) {
+        Contracts.requireNonNullArgument(configValue);
+
+        for (final var codec : values()) {
+            if (codec.configValue.equals(configValue)) {
+                return codec;
+            }
+        }
+        throw Contracts.unreachable("Unknown compression codec '" + configValue + "'.");
+    }
+
+    /**
+     * @return stream compressing everything written to it into provided stream.
+     * Closing of returned stream closes provided one.
+     */
+    OutputStream compressing(final OutputStream output) {
+        Contracts.requireNonNullArgument(output);
+
+        if (this == NONE) {
+            return output;
+        }
+        final var deflater = new Deflater(level);
+        return new DeflaterOutputStream(output, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return stream with original content of data written by any codec.
+     * Closing of returned stream closes provided one.
+     */
+    static InputStream decompressing(final InputStream input) throws IOException {
+        Contracts.requireNonNullArgument(input);
+
+        final var buffered = new BufferedInputStream(input, BUFFER_SIZE);
+        buffered.mark(1);
+        final int first = buffered.read();
+        buffered.reset();
+        if (first == ZLIB_HEADER) {
+            return new InflaterInputStream(buffered);
+        } else {
+            return buffered;
+        }
+    }
+}
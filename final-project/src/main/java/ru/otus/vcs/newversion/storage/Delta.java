@@ -0,0 +1,181 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Copy/insert delta between two byte arrays. Format: varint base length, varint result length and
+ * instructions. Insert instruction is 0, varint length and literal bytes, copy instruction is 1,
+ * varint offset in base and varint length.
+ * Matches are searched by rolling hash of {@link #BLOCK_SIZE} bytes window over block aligned base index.
+ */
+final class Delta {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int PRIME = 31;
+    private static final int HIGHEST_POWER = highestPower();
+    private static final byte INSERT = 0;
+    private static final byte COPY = 1;
+
+    private Delta() {
+        throw new IllegalStateException();
+    }
+
+    static byte[] create(final byte[] base, final byte[] target) {
+        Contracts.requireNonNullArgument(base);
+        Contracts.requireNonNullArgument(target);
+
+        final var output = new ByteArrayOutputStream();
+        writeVarint(output, base.length);
+        writeVarint(output, target.length);
+        if (base.length < BLOCK_SIZE || target.length < BLOCK_SIZE) {
+            writeInsert(output, target, 0, target.length);
+            return output.toByteArray();
+        }
+        final int blocks = base.length / BLOCK_SIZE;
+        final int bits = 32 - Integer.numberOfLeadingZeros(blocks * 2 - 1);
+        final int[] table = new int[1 << bits];
+        Arrays.fill(table, -1);
+        for (int block = 0; block < blocks; block++) {
+            final int offset = block * BLOCK_SIZE;
+            final int slot = slot(hash(base, offset), bits);
+            // earliest occurrence gives the longest forward extension for repetitive data
+            if (table[slot] == -1) {
+                table[slot] = offset;
+            }
+        }
+        int insertStart = 0;
+        int position = 0;
+        int hash = hash(target, 0);
+        while (position + BLOCK_SIZE <= target.length) {
+            final int candidate = table[slot(hash, bits)];
+            if (candidate != -1 && Arrays.equals(
+                    base, candidate, candidate + BLOCK_SIZE,
+                    target, position, position + BLOCK_SIZE)) {
+                int baseStart = candidate;
+                int targetStart = position;
+                int length = BLOCK_SIZE;
+                while (targetStart > insertStart && baseStart > 0
+                        && base[baseStart - 1] == target[targetStart - 1]) {
+                    baseStart--;
+                    targetStart--;
+                    length++;
+                }
+                while (baseStart + length < base.length && targetStart + length < target.length
+                        && base[baseStart + length] == target[targetStart + length]) {
+                    length++;
+                }
+                writeInsert(output, target, insertStart, targetStart);
+                output.write(COPY);
+                writeVarint(output, baseStart);
+                writeVarint(output, length);
+                position = targetStart + length;
+                insertStart = position;
+                if (position + BLOCK_SIZE <= target.length) {
+                    hash = hash(target, position);
+                }
+            } else {
+                if (position + BLOCK_SIZE < target.length) {
+                    hash = (hash - target[position] * HIGHEST_POWER) * PRIME + target[position + BLOCK_SIZE];
+                }
+                position++;
+            }
+        }
+        writeInsert(output, target, insertStart, target.length);
+        return output.toByteArray();
+    }
+
+    static byte[] apply(final byte[] base, final byte[] delta) {
+        Contracts.requireNonNullArgument(base);
+        Contracts.requireNonNullArgument(delta);
+
+        final var buffer = ByteBuffer.wrap(delta);
+        Contracts.requireThat(readVarint(buffer) == base.length, badFormat("Base length mismatch."));
+        final byte[] result = new byte[readVarint(buffer)];
+        int position = 0;
+        while (buffer.hasRemaining()) {
+            final byte instruction = buffer.get();
+            if (instruction == INSERT) {
+                final int length = readVarint(buffer);
+                Contracts.requireThat(position + length <= result.length, badFormat("Too long insert."));
+                buffer.get(result, position, length);
+                position += length;
+            } else if (instruction == COPY) {
+                final int offset = readVarint(buffer);
+                final int length = readVarint(buffer);
+                Contracts.requireThat(
+                        offset + length <= base.length && position + length <= result.length,
+                        badFormat("Bad copy bounds.")
+                );
+                System.arraycopy(base, offset, result, position, length);
+                position += length;
+            } else {
+                throw Contracts.unreachable(badFormat("Unknown instruction " + instruction + "."));
+            }
+        }
+        Contracts.requireThat(position == result.length, badFormat("Result length mismatch."));
+        return result;
+    }
+
+    private static void writeInsert(
+            final ByteArrayOutputStream output,
+            final byte[] data,
+            final int start,
+            final int end) {
+        if (start == end) {
+            return;
+        }
+        output.write(INSERT);
+        writeVarint(output, end - start);
+        output.write(data, start, end - start);
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream output, final int value) {
+        int rest = value;
+        while ((rest & ~0x7f) != 0) {
+            output.write((rest & 0x7f) | 0x80);
+            rest >>>= 7;
+        }
+        output.write(rest);
+    }
+
+    private static int readVarint(final ByteBuffer buffer) {
+        int result = 0;
+        int shift = 0;
+        byte current;
+        do {
+            Contracts.requireThat(shift < 32, badFormat("Too long varint."));
+            current = buffer.get();
+            result |= (current & 0x7f) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return result;
+    }
+
+    private static int hash(final byte[] data, final int start) {
+        int result = 0;
+        for (int i = start; i < start + BLOCK_SIZE; i++) {
+            result = result * PRIME + data[i];
+        }
+        return result;
+    }
+
+    private static int slot(final int hash, final int bits) {
+        return (hash * 0x9E3779B1) >>> (32 - bits);
+    }
+
+    private static int highestPower() {
+        int result = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            result *= PRIME;
+        }
+        return result;
+    }
+
+    private static String badFormat(final String additionalInfo) {
+        return "Bad format of delta. " + additionalInfo;
+    }
+}
@@ -0,0 +1,113 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * EWAH compression of bitmap: 64 bit words are grouped into runs of clean words (all zeros or all ones)
+ * followed by literal words. Each group starts with marker word: bit 63 is value of clean words,
+ * bits 32-62 are number of clean words and bits 0-31 are number of literal words.
+ * Bitmaps of close commits share long clean runs, so they are much smaller than plain bitmaps.
+ */
+final class EwahBitmap {
+
+    private static final long ALL_ONES = -1L;
+    private static final long MAX_RUN = (1L << 31) - 1;
+    private static final long LITERALS_MASK = 0xFFFF_FFFFL;
+
+    private EwahBitmap() {
+        throw new IllegalStateException();
+    }
+
+    static long[] compress(final BitSet bitSet) {
+        Contracts.requireNonNullArgument(bitSet);
+
+        final long[] words = bitSet.toLongArray();
+        final long[] result = new long[words.length + words.length / 32 + 2];
+        int size = 0;
+        int i = 0;
+        while (i < words.length) {
+            final long clean = words[i] == ALL_ONES ? ALL_ONES : 0;
+            int run = 0;
+            while (i < words.length && words[i] == clean && run < MAX_RUN) {
+                run++;
+                i++;
+            }
+            final int literalsStart = i;
+            while (i < words.length && words[i] != 0 && words[i] != ALL_ONES && i - literalsStart < Integer.MAX_VALUE) {
+                i++;
+            }
+            final int literals = i - literalsStart;
+            result[size++] = (clean == ALL_ONES ? Long.MIN_VALUE : 0) | ((long) run << 32) | literals;
+            System.arraycopy(words, literalsStart, result, size, literals);
+            size += literals;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    static BitSet decompress(final long[] compressed) {
+        Contracts.requireNonNullArgument(compressed);
+
+        long length = 0;
+        for (int i = 0; i < compressed.length; ) {
+            final int literals = literals(compressed[i]);
+            Contracts.requireThat(
+                    literals >= 0 && i + 1 + (long) literals <= compressed.length,
+                    "Bad format of bitmap. Truncated literals."
+            );
+            length += run(compressed[i]) + literals;
+            i += 1 + literals;
+        }
+        Contracts.requireThat(length <= Integer.MAX_VALUE, "Bad format of bitmap. Too long.");
+        final long[] words = new long[(int) length];
+        int position = 0;
+        int i = 0;
+        while (i < compressed.length) {
+            final long marker = compressed[i++];
+            final int run = run(marker);
+            if (marker < 0) {
+                Arrays.fill(words, position, position + run, ALL_ONES);
+            }
+            position += run;
+            final int literals = literals(marker);
+            System.arraycopy(compressed, i, words, position, literals);
+            position += literals;
+            i += literals;
+        }
+        return BitSet.valueOf(words);
+    }
+
+    static void write(final ByteBuffer buffer, final long[] compressed) {
+        buffer.putInt(compressed.length);
+        for (final long word : compressed) {
+            buffer.putLong(word);
+        }
+    }
+
+    static long[] read(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        Contracts.requireThat(
+                length >= 0 && (long) length * Long.BYTES <= buffer.remaining(),
+                "Bad format of bitmap. Bad length."
+        );
+        final long[] result = new long[length];
+        buffer.asLongBuffer().get(result);
+        buffer.position(buffer.position() + length * Long.BYTES);
+        return result;
+    }
+
+    static int serializedSize(final long[] compressed) {
+        return Integer.BYTES + compressed.length * Long.BYTES;
+    }
+
+    private static int run(final long marker) {
+        return (int) ((marker >>> 32) & MAX_RUN);
+    }
+
+    private static int literals(final long marker) {
+        return (int) (marker & LITERALS_MASK);
+    }
+}
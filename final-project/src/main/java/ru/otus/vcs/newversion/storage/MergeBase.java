@@ -0,0 +1,163 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Ancestry queries over {@link CommitGraph}. Commits are walked in order of decreasing generation,
+ * so commit is processed only after all its walked descendants, and are painted by flags of sides they are
+ * reachable from. Commit painted by both sides is a merge base candidate, its ancestors become stale,
+ * walk stops when only stale commits are queued. Memory is proportional to number of walked commits.
+ * Commits have no timestamps, so ties of generation are broken by position in graph.
+ */
+public final class MergeBase {
+
+    private static final int FIRST = 1;
+    private static final int SECOND = 1 << 1;
+    private static final int STALE = 1 << 2;
+    private static final int BOTH = FIRST | SECOND;
+
+    private MergeBase() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @return best common ancestors, i.e. common ancestors which are not ancestors of other common ancestors,
+     * ordered by decreasing generation. There could be several of them for criss-cross merges,
+     * result is empty if commits have unrelated histories.
+     */
+    public static List<Integer> find(final CommitGraph graph, final int first, final int second) {
+        Contracts.requireNonNullArgument(graph);
+        checkPosition(graph, first);
+        checkPosition(graph, second);
+
+        if (first == second) {
+            return List.of(first);
+        }
+        final var candidates = paintDownToCommon(graph, first, second);
+        if (candidates.size() <= 1) {
+            return candidates;
+        }
+        final var result = new ArrayList<Integer>(candidates.size());
+        for (final int candidate : candidates) {
+            boolean redundant = false;
+            for (final int other : candidates) {
+                if (other != candidate && isAncestor(graph, candidate, other)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Walk from descendant doesn't go below generation of ancestor.
+     *
+     * @return true if ancestor is reachable from descendant, commit is ancestor of itself.
+     */
+    public static boolean isAncestor(final CommitGraph graph, final int ancestor, final int descendant) {
+        Contracts.requireNonNullArgument(graph);
+        checkPosition(graph, ancestor);
+        checkPosition(graph, descendant);
+
+        final int minGeneration = graph.generation(ancestor);
+        final var visited = new HashSet<Integer>();
+        final var stack = new ArrayDeque<Integer>();
+        stack.push(descendant);
+        while (!stack.isEmpty()) {
+            final int current = stack.pop();
+            if (current == ancestor) {
+                return true;
+            }
+            if (graph.generation(current) <= minGeneration || !visited.add(current)) {
+                continue;
+            }
+            final int firstParent = graph.firstParent(current);
+            final int secondParent = graph.secondParent(current);
+            if (firstParent != CommitGraph.NO_PARENT) {
+                stack.push(firstParent);
+            }
+            if (secondParent != CommitGraph.NO_PARENT) {
+                stack.push(secondParent);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Polled generations never increase and parents have less generation than children,
+     * so commit can't be painted after it is polled and is queued only once, when it is painted first time.
+     *
+     * @return common ancestors not reachable from other found ones through walked commits, ordered by
+     * decreasing generation. Some of them still could be ancestors of others.
+     */
+    private static List<Integer> paintDownToCommon(final CommitGraph graph, final int first, final int second) {
+        final Map<Integer, Integer> flags = new HashMap<>();
+        final var queue = new PriorityQueue<Integer>(
+                Comparator.comparingInt(graph::generation)
+                        .thenComparingInt(position -> position)
+                        .reversed()
+        );
+        flags.put(first, FIRST);
+        flags.put(second, SECOND);
+        queue.add(first);
+        queue.add(second);
+        int nonStale = 2;
+        final var result = new ArrayList<Integer>();
+        while (nonStale > 0) {
+            final int current = queue.remove();
+            int currentFlags = flags.get(current);
+            if ((currentFlags & STALE) == 0) {
+                nonStale--;
+                if ((currentFlags & BOTH) == BOTH) {
+                    result.add(current);
+                    currentFlags |= STALE;
+                    flags.put(current, currentFlags);
+                }
+            }
+            nonStale += paint(graph.firstParent(current), currentFlags, flags, queue);
+            nonStale += paint(graph.secondParent(current), currentFlags, flags, queue);
+        }
+        return result;
+    }
+
+    /**
+     * @return change of number of queued non-stale commits.
+     */
+    private static int paint(
+            final int parent,
+            final int childFlags,
+            final Map<Integer, Integer> flags,
+            final PriorityQueue<Integer> queue) {
+        if (parent == CommitGraph.NO_PARENT) {
+            return 0;
+        }
+        final int parentFlags = flags.getOrDefault(parent, 0);
+        final int newFlags = parentFlags | childFlags;
+        if (newFlags == parentFlags) {
+            return 0;
+        }
+        flags.put(parent, newFlags);
+        if (parentFlags == 0) {
+            queue.add(parent);
+            return (newFlags & STALE) == 0 ? 1 : 0;
+        }
+        return (parentFlags & STALE) == 0 && (newFlags & STALE) != 0 ? -1 : 0;
+    }
+
+    private static void checkPosition(final CommitGraph graph, final int position) {
+        Contracts.requireThat(position >= 0 && position < graph.size(), "Bad commit graph position " + position + ".");
+    }
+}
@@ -0,0 +1,105 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.objects.GitObject;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+
+/**
+ * Parsed objects by sha with least recently used eviction. Total size of serialized objects is bounded by
+ * budget, serialized size is taken as estimate of parsed object size. Objects are immutable and addressed by
+ * content, so cached object never becomes stale and can be shared between threads.
+ */
+public final class ObjectCache {
+
+    private final long budgetBytes;
+    private final LinkedHashMap<Sha1, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param budgetBytes maximum total size of cached objects, zero disables cache.
+     */
+    public ObjectCache(final long budgetBytes) {
+        Contracts.requireThat(budgetBytes >= 0, "Negative object cache budget.");
+
+        this.budgetBytes = budgetBytes;
+    }
+
+    @Nullable
+    public synchronized GitObject getOrNull(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final var entry = entries.get(sha);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.object;
+    }
+
+    /**
+     * Object larger than budget is not cached.
+     *
+     * @param size size of serialized object.
+     */
+    public synchronized void put(final Sha1 sha, final GitObject object, final int size) {
+        Contracts.requireNonNullArgument(sha);
+        Contracts.requireNonNullArgument(object);
+        Contracts.requireThat(size >= 0);
+
+        if (size > budgetBytes || entries.containsKey(sha)) {
+            return;
+        }
+        entries.put(sha, new Entry(object, size));
+        usedBytes += size;
+        final var iterator = entries.values().iterator();
+        while (usedBytes > budgetBytes) {
+            usedBytes -= iterator.next().size;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ObjectCache{objects=" + entries.size()
+                + ", usedBytes=" + usedBytes
+                + ", budgetBytes=" + budgetBytes
+                + ", hits=" + hits
+                + ", misses=" + misses
+                + ", evictions=" + evictions
+                + '}';
+    }
+
+    private static final class Entry {
+        private final GitObject object;
+        private final int size;
+
+        private Entry(final GitObject object, final int size) {
+            this.object = object;
+            this.size = size;
+        }
+    }
+}
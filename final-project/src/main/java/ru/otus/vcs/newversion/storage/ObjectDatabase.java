@@ -0,0 +1,616 @@
+package ru.otus.vcs.newversion.storage;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.config.GitConfig;
+import ru.otus.vcs.newversion.objects.GitObject;
+import ru.otus.vcs.newversion.objects.ObjectType;
+import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Storage of serialized git objects. Objects are written as loose files objects/xx/yyyy...
+ * compressed with codec from {@link GitConfig#COMPRESSION_CODEC}, {@link #repack(Map)} folds them into the pack.
+ * Reads consult the pack first. Blobs not smaller than {@link GitConfig#CHUNKED_BLOB_THRESHOLD} are stored as
+ * {@link ChunkedBlob} manifest and chunks, reads reassemble them, so callers always get serialized blob.
+ * Repack can store {@link ReachabilityBitmaps} of the pack, {@link #prune} rewrites pack dropping unreachable objects.
+ */
+public class ObjectDatabase {
+
+    static final String PACK_DIR = "pack";
+
+    private static final int MAX_DELTA_DEPTH_LIMIT = 100;
+    private static final String TEMP_FILE_PREFIX = "tmp_obj_";
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST = ThreadLocal.withInitial(DigestUtils::getSha1Digest);
+
+    private final Path objectsDir;
+    private final int maxDeltaDepth;
+    private final CompressionCodec codec;
+    private final long chunkedBlobThreshold;
+    @Nullable
+    private PackFile pack;
+    private boolean packOpened;
+    @Nullable
+    private List<Object> packIndexState;
+    @Nullable
+    private ReachabilityBitmaps bitmaps;
+    private boolean bitmapsOpened;
+
+    public ObjectDatabase(final Path objectsDir, final GitConfig config) {
+        Contracts.requireNonNullArgument(objectsDir);
+        Contracts.requireNonNullArgument(config);
+
+        this.objectsDir = objectsDir;
+        this.maxDeltaDepth = Math.max(0, Math.min(MAX_DELTA_DEPTH_LIMIT, config.get(GitConfig.DELTA_DEPTH)));
+        this.codec = CompressionCodec.fromConfigValue(config.get(GitConfig.COMPRESSION_CODEC));
+        final int threshold = config.get(GitConfig.CHUNKED_BLOB_THRESHOLD);
+        this.chunkedBlobThreshold = threshold > 0 ? threshold : Long.MAX_VALUE;
+    }
+
+    public boolean contains(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final var packFile = getPackOrNull();
+        return (packFile != null && packFile.contains(sha)) || Files.exists(loosePath(sha));
+    }
+
+    /**
+     * @param sha of object.
+     * @return serialized object or null if there is no object with such sha. Returned array must not be modified.
+     */
+    @Nullable
+    public byte[] readOrNull(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final var serialized = readStoredOrNull(sha);
+        if (serialized != null && ChunkedBlob.isManifest(serialized)) {
+            return reassemble(ChunkedBlob.deserialize(serialized));
+        }
+        return serialized;
+    }
+
+    @Nullable
+    private byte[] readStoredOrNull(final Sha1 sha) {
+        final var packFile = getPackOrNull();
+        if (packFile != null) {
+            final var packed = packFile.readOrNull(sha);
+            if (packed != null) {
+                return packed;
+            }
+        }
+        final var path = loosePath(sha);
+        if (Files.exists(path)) {
+            return readLoose(path);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @param sha of object.
+     * @return stream of serialized object or null if there is no object with such sha.
+     * Loose objects are inflated while being read, caller is responsible for closing the stream.
+     */
+    @Nullable
+    public InputStream openOrNull(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final var packFile = getPackOrNull();
+        if (packFile != null) {
+            final var packed = packFile.readOrNull(sha);
+            if (packed != null) {
+                return ChunkedBlob.isManifest(packed)
+                        ? ChunkedBlob.deserialize(packed).open(this::readChunk)
+                        : new ByteArrayInputStream(packed);
+            }
+        }
+        final var path = loosePath(sha);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        InputStream input = null;
+        try {
+            input = new BufferedInputStream(CompressionCodec.decompressing(Files.newInputStream(path)));
+            if (!ChunkedBlob.isManifest(input)) {
+                return input;
+            }
+            try (var manifest = input) {
+                return ChunkedBlob.deserialize(manifest.readAllBytes()).open(this::readChunk);
+            }
+        } catch (final IOException ex) {
+            if (input != null) {
+                Utils.closeQuietly(input);
+            }
+            throw new UncheckedIOException("Can't open object " + path + ".", ex);
+        }
+    }
+
+    public void saveIfAbsent(final Sha1 sha, final byte[] serialized) {
+        Contracts.requireNonNullArgument(sha);
+        Contracts.requireNonNullArgument(serialized);
+
+        if (contains(sha)) {
+            return;
+        }
+        final Path tempPath = createTempFile();
+        try {
+            try (var output = codec.compressing(Files.newOutputStream(tempPath))) {
+                output.write(serialized);
+            }
+            moveToLoosePath(tempPath, sha);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't write object " + sha.getHexString() + ".", ex);
+        } finally {
+            Utils.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Saves blob with content from the stream. Content is hashed while it is compressed into temp file,
+     * which is renamed into place afterwards, so memory usage doesn't depend on content size.
+     * Could be called from several threads concurrently.
+     *
+     * @param content of blob, stream is read till the end, but not closed.
+     * @param size    of content.
+     * @return sha of saved blob.
+     */
+    public Sha1 saveBlob(final InputStream content, final long size) {
+        Contracts.requireNonNullArgument(content);
+        Contracts.requireThat(size >= 0);
+
+        if (size >= chunkedBlobThreshold) {
+            return saveChunkedBlob(content, size);
+        }
+        final Path tempPath = createTempFile();
+        try {
+            final var digest = sha1Digest();
+            try (var output = new DigestOutputStream(codec.compressing(Files.newOutputStream(tempPath)), digest)) {
+                writeBlob(content, size, output);
+            }
+            final var sha = Sha1.fromBinary(digest.digest());
+            if (!contains(sha)) {
+                moveToLoosePath(tempPath, sha);
+            }
+            return sha;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't write blob to " + objectsDir + ".", ex);
+        } finally {
+            Utils.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Chunks are saved as they are cut, so memory usage is bounded by maximum chunk size.
+     * Sha of blob is computed over whole content, so it is the same as if blob was saved as is.
+     */
+    private Sha1 saveChunkedBlob(final InputStream content, final long size) {
+        final var digest = sha1Digest();
+        digest.update(GitObject.header(ObjectType.Blob, size));
+        final ChunkedBlob manifest;
+        try {
+            manifest = ChunkedBlob.split(content, size, (buffer, length) -> {
+                digest.update(buffer, 0, length);
+                final var chunk = Utils.concat(GitObject.header(ObjectType.Blob, length), Arrays.copyOf(buffer, length));
+                final var chunkSha = Sha1.hash(chunk);
+                saveIfAbsent(chunkSha, chunk);
+                return chunkSha;
+            });
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read content of blob.", ex);
+        }
+        final var sha = Sha1.fromBinary(digest.digest());
+        saveIfAbsent(sha, manifest.serialize());
+        return sha;
+    }
+
+    /**
+     * Chunks are independent objects, so they are read in parallel directly into their place in result.
+     */
+    private byte[] reassemble(final ChunkedBlob manifest) {
+        final var header = GitObject.header(ObjectType.Blob, manifest.getSize());
+        Contracts.requireThat(
+                manifest.getSize() <= Integer.MAX_VALUE - header.length,
+                "Blob of size " + manifest.getSize() + " is too large to be read into memory."
+        );
+        final var result = new byte[header.length + (int) manifest.getSize()];
+        System.arraycopy(header, 0, result, 0, header.length);
+        final int[] offsets = new int[manifest.getChunksCount()];
+        int offset = header.length;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset += manifest.getLength(i);
+        }
+        IntStream.range(0, offsets.length).parallel().forEach(i -> {
+            final var chunk = readChunk(manifest.getChunk(i));
+            Contracts.requireThat(chunk.length == manifest.getLength(i), "Bad length of chunk " + manifest.getChunk(i) + ".");
+            System.arraycopy(chunk, 0, result, offsets[i], chunk.length);
+        });
+        return result;
+    }
+
+    /**
+     * @return content of chunk blob without header.
+     */
+    private byte[] readChunk(final Sha1 sha) {
+        final var serialized = Contracts.ensureNonNull(readStoredOrNull(sha), "No chunk " + sha.getHexString() + ".");
+        final int nullBytePos = Utils.indexOf(serialized, (byte) 0, 0, serialized.length);
+        Contracts.requireThat(nullBytePos != -1, "Bad format of chunk " + sha.getHexString() + ".");
+        final var header = GitObject.header(ObjectType.Blob, serialized.length - nullBytePos - 1);
+        Contracts.requireThat(
+                Arrays.equals(serialized, 0, nullBytePos + 1, header, 0, header.length),
+                "Bad header of chunk " + sha.getHexString() + "."
+        );
+        return Arrays.copyOfRange(serialized, nullBytePos + 1, serialized.length);
+    }
+
+    /**
+     * @param content of blob, stream is read till the end, but not closed.
+     * @param size    of content.
+     * @return sha of blob with such content.
+     */
+    public static Sha1 hashBlob(final InputStream content, final long size) {
+        Contracts.requireNonNullArgument(content);
+        Contracts.requireThat(size >= 0);
+
+        final var digest = sha1Digest();
+        try (var output = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            writeBlob(content, size, output);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't hash blob content.", ex);
+        }
+        return Sha1.fromBinary(digest.digest());
+    }
+
+    /**
+     * Moves all loose objects to the pack. Caller must hold lock of {@link #packIndexPath()}, since pack is
+     * appended after its published objects and loose objects packed by other process are deleted by it.
+     *
+     * @param deltaBases suggested delta bases, usually previous versions of the same file.
+     * @return number of packed loose objects.
+     */
+    public int repack(final Map<Sha1, Sha1> deltaBases) {
+        Contracts.requireNonNullArgument(deltaBases);
+
+        final List<Sha1> looseShas = listLooseObjects();
+        if (looseShas.isEmpty()) {
+            return 0;
+        }
+        PackFile.append(
+                objectsDir.resolve(PACK_DIR),
+                basesFirst(looseShas, deltaBases),
+                sha -> readLoose(loosePath(sha)),
+                deltaBases,
+                maxDeltaDepth
+        );
+        dropPack();
+        deleteLoose(looseShas);
+        return looseShas.size();
+    }
+
+    /**
+     * Replaces pack by pack of objects which are kept and deletes all loose objects. New pack gets its own data
+     * file and is switched by rename of its index, so processes which already opened the old pack keep reading it.
+     * Caller must hold lock of {@link #packIndexPath()}.
+     *
+     * @param keep       predicate of objects which are kept, it is evaluated before pack is changed.
+     * @param deltaBases suggested delta bases of loose objects, packed objects keep bases of their deltas.
+     *                   They are computed only if pack is rewritten.
+     * @return number of deleted objects.
+     */
+    public int prune(final Predicate<Sha1> keep, final Supplier<Map<Sha1, Sha1>> deltaBases) {
+        Contracts.requireNonNullArgument(keep);
+        Contracts.requireNonNullArgument(deltaBases);
+
+        final var packFile = getPackOrNull();
+        final var looseShas = listLooseObjects();
+        final var allShas = new ArrayList<Sha1>(looseShas);
+        if (packFile != null) {
+            for (int i = 0; i < packFile.size(); i++) {
+                allShas.add(packFile.sha(i));
+            }
+        }
+        final var kept = allShas.stream()
+                .filter(keep)
+                .collect(Collectors.toList());
+        if (kept.size() == allShas.size() && looseShas.isEmpty()) {
+            return 0;
+        }
+        final var packDir = objectsDir.resolve(PACK_DIR);
+        Utils.deleteIfExists(packDir.resolve(ReachabilityBitmaps.FILE_NAME));
+        if (kept.isEmpty()) {
+            PackFile.delete(packDir);
+        } else {
+            final var bases = new HashMap<>(deltaBases.get());
+            if (packFile != null) {
+                for (final var sha : kept) {
+                    final var base = packFile.deltaBaseOrNull(sha);
+                    if (base != null) {
+                        bases.put(sha, base);
+                    }
+                }
+            }
+            PackFile.rewrite(packDir, basesFirst(kept, bases), this::readStoredOrNull, bases, maxDeltaDepth);
+        }
+        dropPack();
+        deleteLoose(looseShas);
+        return allShas.size() - kept.size();
+    }
+
+    /**
+     * @return position of object in the pack or -1 if object is not packed.
+     */
+    public int packPosition(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final var packFile = getPackOrNull();
+        return packFile == null ? -1 : packFile.position(sha);
+    }
+
+    public int packedObjectsCount() {
+        final var packFile = getPackOrNull();
+        return packFile == null ? 0 : packFile.size();
+    }
+
+    /**
+     * @return bitmaps of current pack or null if they were not built for it.
+     */
+    @Nullable
+    public synchronized ReachabilityBitmaps bitmapsOrNull() {
+        final var packFile = getPackOrNull();
+        if (!bitmapsOpened) {
+            bitmaps = packFile == null
+                    ? null
+                    : ReachabilityBitmaps.openOrNull(
+                    objectsDir.resolve(PACK_DIR).resolve(ReachabilityBitmaps.FILE_NAME),
+                    packFile.getPackId(),
+                    packFile.getDataLength(),
+                    packFile.size()
+            );
+            bitmapsOpened = true;
+        }
+        return bitmaps;
+    }
+
+    /**
+     * @param commits bitmap of pack positions of commits.
+     * @return empty bitmaps for current pack, which are filled by {@link ReachabilityBitmaps#add}.
+     */
+    public ReachabilityBitmaps newBitmaps(final BitSet commits) {
+        Contracts.requireNonNullArgument(commits);
+
+        final var packFile = Contracts.ensureNonNull(getPackOrNull(), "No pack.");
+        return new ReachabilityBitmaps(packFile.getPackId(), packFile.getDataLength(), packFile.size(), commits);
+    }
+
+    public synchronized void writeBitmaps(final ReachabilityBitmaps newBitmaps) {
+        Contracts.requireNonNullArgument(newBitmaps);
+
+        newBitmaps.write(objectsDir.resolve(PACK_DIR).resolve(ReachabilityBitmaps.FILE_NAME));
+        bitmaps = newBitmaps;
+        bitmapsOpened = true;
+    }
+
+    /**
+     * Reads only header of blob which is not stored as {@link ChunkedBlob}.
+     *
+     * @return shas of chunks if blob is stored as {@link ChunkedBlob}, otherwise empty list.
+     */
+    public List<Sha1> chunksOf(final Sha1 blobSha) {
+        Contracts.requireNonNullArgument(blobSha);
+
+        if (!isManifest(blobSha)) {
+            return List.of();
+        }
+        final var manifest = ChunkedBlob.deserialize(Contracts.ensureNonNull(readStoredOrNull(blobSha)));
+        final var result = new ArrayList<Sha1>(manifest.getChunksCount());
+        for (int i = 0; i < manifest.getChunksCount(); i++) {
+            result.add(manifest.getChunk(i));
+        }
+        return result;
+    }
+
+    /**
+     * Reopens pack if its index was replaced by repack of another process.
+     */
+    public synchronized void refresh() {
+        if (packOpened && !Objects.equals(packIndexStateOrNull(), packIndexState)) {
+            dropPack();
+        }
+    }
+
+    /**
+     * @return path of published pack index, writers of the pack hold its lock.
+     */
+    public Path packIndexPath() {
+        return objectsDir.resolve(PACK_DIR).resolve(PackFile.INDEX_FILE);
+    }
+
+    /**
+     * Drops opened pack, so it is reopened from published index, e.g. after lock of the pack is taken.
+     */
+    public synchronized void dropPack() {
+        pack = null;
+        packOpened = false;
+        bitmaps = null;
+        bitmapsOpened = false;
+    }
+
+    private void deleteLoose(final List<Sha1> shas) {
+        for (final var sha : shas) {
+            final var path = loosePath(sha);
+            Utils.delete(path);
+            if (Utils.isEmptyDir(path.getParent())) {
+                Utils.delete(path.getParent());
+            }
+        }
+    }
+
+    @Nullable
+    private synchronized PackFile getPackOrNull() {
+        if (!packOpened) {
+            packIndexState = packIndexStateOrNull();
+            pack = PackFile.openOrNull(objectsDir.resolve(PACK_DIR));
+            packOpened = true;
+        }
+        return pack;
+    }
+
+    /**
+     * @return file key, modification time and size of pack index, since replaced index can keep modification time.
+     */
+    @Nullable
+    private List<Object> packIndexStateOrNull() {
+        final var indexPath = packIndexPath();
+        try {
+            final var attributes = Files.readAttributes(indexPath, BasicFileAttributes.class);
+            return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+        } catch (final NoSuchFileException ex) {
+            return null;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read attributes of pack index " + indexPath + ".", ex);
+        }
+    }
+
+    /**
+     * Orders objects so that delta base goes before objects which can be stored against it.
+     */
+    private static List<Sha1> basesFirst(final List<Sha1> shas, final Map<Sha1, Sha1> deltaBases) {
+        final var remaining = new HashSet<>(shas);
+        final var result = new ArrayList<Sha1>(shas.size());
+        for (final var sha : shas) {
+            final var chain = new ArrayList<Sha1>();
+            Sha1 current = sha;
+            while (current != null && remaining.remove(current)) {
+                chain.add(current);
+                current = deltaBases.get(current);
+            }
+            Collections.reverse(chain);
+            result.addAll(chain);
+        }
+        return result;
+    }
+
+    private List<Sha1> listLooseObjects() {
+        final var result = new ArrayList<Sha1>();
+        try (var dirs = Files.list(objectsDir)) {
+            for (final var dir : (Iterable<Path>) dirs::iterator) {
+                final var dirName = dir.getFileName().toString();
+                if (dirName.length() != 2 || !Utils.isDirectoryNoFollow(dir)) {
+                    continue;
+                }
+                try (var files = Files.list(dir)) {
+                    for (final var file : (Iterable<Path>) files::iterator) {
+                        final var hex = dirName + file.getFileName().toString();
+                        if (Sha1.isValidSha1HexString(hex)) {
+                            result.add(Sha1.create(hex));
+                        }
+                    }
+                }
+            }
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't list loose objects in " + objectsDir + ".", ex);
+        }
+        result.sort(Comparator.comparing(Sha1::getHexString));
+        return result;
+    }
+
+    /**
+     * Digest instance is reused by thread, since its creation costs much more than hashing of a small file.
+     */
+    private static MessageDigest sha1Digest() {
+        final var digest = SHA1_DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
+    private static void writeBlob(
+            final InputStream content,
+            final long size,
+            final OutputStream output) throws IOException {
+        output.write(GitObject.header(ObjectType.Blob, size));
+        final long copied = content.transferTo(output);
+        Contracts.requireThat(
+                copied == size,
+                "Blob content size " + copied + " differs from declared size " + size + "."
+        );
+    }
+
+    private Path createTempFile() {
+        try {
+            return Files.createTempFile(objectsDir, TEMP_FILE_PREFIX, null);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't create temp file in " + objectsDir + ".", ex);
+        }
+    }
+
+    private void moveToLoosePath(final Path tempPath, final Sha1 sha) throws IOException {
+        final var path = loosePath(sha);
+        Utils.createDir(path.getParent());
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads only header of object, absent object is not a manifest.
+     */
+    private boolean isManifest(final Sha1 sha) {
+        final var packFile = getPackOrNull();
+        if (packFile != null) {
+            final var packed = packFile.isManifestOrNull(sha);
+            if (packed != null) {
+                return packed;
+            }
+        }
+        final var path = loosePath(sha);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (var input = new BufferedInputStream(CompressionCodec.decompressing(Files.newInputStream(path)))) {
+            return ChunkedBlob.isManifest(input);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read object " + path + ".", ex);
+        }
+    }
+
+    private static byte[] readLoose(final Path path) {
+        try (var input = CompressionCodec.decompressing(Files.newInputStream(path))) {
+            return input.readAllBytes();
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read object " + path + ".", ex);
+        }
+    }
+
+    private Path loosePath(final Sha1 sha) {
+        final var hex = sha.getHexString();
+        return objectsDir.resolve(hex.substring(0, 2))
+                .resolve(hex.substring(2));
+    }
+}
@@ -0,0 +1,520 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.utils.Utils;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Pack consists of append only data file and {@link PackIndex}. Data file starts with magic, version and pack id
+ * followed by entries: kind byte, 4 bytes length and payload. Payload of full entry is serialized object,
+ * payload of delta entry is 20 bytes sha of base, chain depth byte and {@link Delta} against base.
+ * Kind of {@link ChunkedBlob} manifest has {@link #MANIFEST_FLAG}, so manifest is recognized without reading it.
+ * Bytes of data file after length recorded in index are leftovers of interrupted append and are ignored.
+ * Data is mapped in segments, so pack is not limited by the size of single mapping.
+ * Rewritten pack gets data file with new id, published index names current data file, so pack is switched
+ * by rename of index. Data file of version 1 has no id and fixed name, it is rewritten by the first append.
+ */
+class PackFile {
+
+    static final String INDEX_FILE = "pack.idx";
+
+    private static final String LEGACY_DATA_FILE = "pack.data";
+    private static final String DATA_FILE_PREFIX = "pack-";
+    private static final String DATA_FILE_SUFFIX = ".data";
+    private static final int MAGIC = 0x5347504b; // SGPK
+    private static final int VERSION = 2;
+    private static final int LEGACY_VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int LEGACY_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final int ENTRY_HEADER_SIZE = 1 + Integer.BYTES;
+    private static final byte FULL_OBJECT = 1;
+    private static final byte DELTA_OBJECT = 2;
+    private static final byte MANIFEST_FLAG = 0x10;
+    private static final int DELTA_HEADER_SIZE = Sha1.BINARY_LENGTH + 1;
+    private static final long RECONSTRUCTION_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final int SEGMENT_BITS = 30;
+    private static final int OPEN_ATTEMPTS = 3;
+
+    private final PackIndex index;
+    private final Path dataPath;
+    private final MappedByteBuffer[] segments;
+    private final int segmentBits;
+    private final ReconstructionCache cache = new ReconstructionCache(RECONSTRUCTION_CACHE_BYTES);
+
+    private PackFile(
+            final PackIndex index,
+            final Path dataPath,
+            final MappedByteBuffer[] segments,
+            final int segmentBits) {
+        this.index = index;
+        this.dataPath = dataPath;
+        this.segments = segments;
+        this.segmentBits = segmentBits;
+    }
+
+    @Nullable
+    static PackFile openOrNull(final Path packDir) {
+        return openOrNull(packDir, SEGMENT_BITS);
+    }
+
+    /**
+     * Data file which was deleted after index was read means that pack was rewritten, so index is read again.
+     *
+     * @param segmentBits log2 of size of mapped segment of data.
+     */
+    @Nullable
+    static PackFile openOrNull(final Path packDir, final int segmentBits) {
+        Contracts.requireNonNullArgument(packDir);
+        Contracts.requireThat(segmentBits >= 3 && segmentBits <= SEGMENT_BITS);
+
+        for (int attempt = 1; ; attempt++) {
+            final var index = PackIndex.openOrNull(packDir.resolve(INDEX_FILE));
+            if (index == null) {
+                return null;
+            }
+            final Path dataPath = dataPath(packDir, index.getPackId());
+            try {
+                return open(index, dataPath, segmentBits);
+            } catch (final NoSuchFileException ex) {
+                if (attempt == OPEN_ATTEMPTS) {
+                    throw new UncheckedIOException("Can't open pack data " + dataPath + ".", ex);
+                }
+            } catch (final IOException ex) {
+                throw new UncheckedIOException("Can't open pack data " + dataPath + ".", ex);
+            }
+        }
+    }
+
+    private static PackFile open(final PackIndex index, final Path dataPath, final int segmentBits) throws IOException {
+        final boolean legacy = index.getPackId() == PackIndex.LEGACY_PACK_ID;
+        final long dataLength = index.getDataLength();
+        Contracts.requireThat(dataLength >= (legacy ? LEGACY_HEADER_SIZE : HEADER_SIZE), badFormat("Too short."));
+        try (var channel = FileChannel.open(dataPath, StandardOpenOption.READ)) {
+            Contracts.requireThat(
+                    channel.size() >= dataLength,
+                    "Pack data " + dataPath + " is shorter than its index claims."
+            );
+            final long segmentSize = 1L << segmentBits;
+            final var segments = new MappedByteBuffer[(int) ((dataLength + segmentSize - 1) >>> segmentBits)];
+            for (int i = 0; i < segments.length; i++) {
+                final long start = i * segmentSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, dataLength - start));
+            }
+            final var packFile = new PackFile(index, dataPath, segments, segmentBits);
+            Contracts.requireThat(packFile.getInt(0) == MAGIC, badFormat("Bad magic."));
+            if (legacy) {
+                Contracts.requireThat(packFile.getInt(Integer.BYTES) == LEGACY_VERSION, badFormat("Unsupported version."));
+            } else {
+                Contracts.requireThat(packFile.getInt(Integer.BYTES) == VERSION, badFormat("Unsupported version."));
+                Contracts.requireThat(
+                        packFile.getLong(2 * Integer.BYTES) == index.getPackId(),
+                        badFormat("Pack data " + dataPath + " doesn't correspond to its index.")
+                );
+            }
+            return packFile;
+        }
+    }
+
+    /**
+     * Appends objects to the pack data and atomically publishes new index.
+     * Object is stored as delta if its delta base is already in the pack or was appended earlier,
+     * resulting chain is not deeper than max depth and delta is at least twice smaller than the object.
+     * Pack is reopened from published index, so data is appended after its last published object.
+     * Caller must hold lock of the pack, otherwise appends of other process are overwritten.
+     *
+     * @param packDir       dir with pack files, created if absent.
+     * @param shas          of objects to append, objects already present in the pack are skipped.
+     * @param reader        provides serialized object for sha.
+     * @param deltaBases    suggested delta base for sha.
+     * @param maxDeltaDepth max length of delta chain.
+     */
+    static void append(
+            final Path packDir,
+            final List<Sha1> shas,
+            final Function<Sha1, byte[]> reader,
+            final Map<Sha1, Sha1> deltaBases,
+            final int maxDeltaDepth) {
+        Contracts.requireNonNullArgument(packDir);
+        Contracts.requireNonNullArgument(shas);
+        Contracts.requireNonNullArgument(reader);
+        Contracts.requireNonNullArgument(deltaBases);
+        Contracts.requireThat(maxDeltaDepth >= 0);
+
+        Utils.createDirs(packDir);
+        final var existing = openOrNull(packDir);
+        if (existing != null && existing.index.getPackId() == PackIndex.LEGACY_PACK_ID) {
+            final var all = new ArrayList<Sha1>(existing.size() + shas.size());
+            for (int i = 0; i < existing.size(); i++) {
+                all.add(existing.sha(i));
+            }
+            all.addAll(shas);
+            final Function<Sha1, byte[]> allReader = sha -> {
+                final var packed = existing.readOrNull(sha);
+                return packed != null ? packed : reader.apply(sha);
+            };
+            write(packDir, null, all, allReader, deltaBases, maxDeltaDepth);
+        } else {
+            write(packDir, existing, shas, reader, deltaBases, maxDeltaDepth);
+        }
+    }
+
+    /**
+     * Writes pack of provided objects to data file with new id and atomically replaces published index by its
+     * index. Data files of previous packs are deleted, processes which mapped them keep reading them.
+     * Caller must hold lock of the pack.
+     *
+     * @param shas of objects of new pack.
+     */
+    static void rewrite(
+            final Path packDir,
+            final List<Sha1> shas,
+            final Function<Sha1, byte[]> reader,
+            final Map<Sha1, Sha1> deltaBases,
+            final int maxDeltaDepth) {
+        Contracts.requireNonNullArgument(packDir);
+        Contracts.requireNonNullArgument(shas);
+        Contracts.requireNonNullArgument(reader);
+        Contracts.requireNonNullArgument(deltaBases);
+        Contracts.requireThat(maxDeltaDepth >= 0);
+
+        Utils.createDirs(packDir);
+        write(packDir, null, shas, reader, deltaBases, maxDeltaDepth);
+    }
+
+    /**
+     * Deletes index first, so pack disappears at once. Caller must hold lock of the pack.
+     */
+    static void delete(final Path packDir) {
+        Contracts.requireNonNullArgument(packDir);
+
+        if (Files.isDirectory(packDir)) {
+            Utils.deleteIfExists(packDir.resolve(INDEX_FILE));
+            deleteDataFilesExcept(packDir, null);
+        }
+    }
+
+    /**
+     * @param existing pack to append to or null if new data file is created.
+     */
+    private static void write(
+            final Path packDir,
+            @Nullable final PackFile existing,
+            final List<Sha1> shas,
+            final Function<Sha1, byte[]> reader,
+            final Map<Sha1, Sha1> deltaBases,
+            final int maxDeltaDepth) {
+        final List<PackIndex.Entry> entries = existing == null ? new ArrayList<>() : existing.index.entries();
+        final long packId = existing == null ? newPackId(packDir) : existing.index.getPackId();
+        final Path dataPath = dataPath(packDir, packId);
+        long dataLength = existing == null ? 0 : existing.index.getDataLength();
+        final Map<Sha1, Integer> appendedDepths = new HashMap<>();
+        try (var channel = FileChannel.open(
+                dataPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            channel.truncate(dataLength);
+            channel.position(dataLength);
+            final var output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            if (dataLength == 0) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(packId);
+                dataLength = HEADER_SIZE;
+            }
+            for (final var sha : shas) {
+                if ((existing != null && existing.contains(sha)) || appendedDepths.containsKey(sha)) {
+                    continue;
+                }
+                final byte[] serialized = reader.apply(sha);
+                final int flags = ChunkedBlob.isManifest(serialized) ? MANIFEST_FLAG : 0;
+                entries.add(new PackIndex.Entry(sha.getBinary(), dataLength));
+                final var baseSha = deltaBases.get(sha);
+                final int baseDepth = baseSha == null ? -1 : depthOf(baseSha, existing, appendedDepths);
+                byte[] delta = null;
+                if (baseDepth != -1 && baseDepth < maxDeltaDepth) {
+                    final byte[] base = appendedDepths.containsKey(baseSha)
+                            ? reader.apply(baseSha)
+                            : Contracts.ensureNonNull(existing).readOrNull(baseSha);
+                    delta = Delta.create(Contracts.ensureNonNull(base), serialized);
+                    if (DELTA_HEADER_SIZE + delta.length >= serialized.length / 2) {
+                        delta = null;
+                    }
+                }
+                if (delta == null) {
+                    output.writeByte(FULL_OBJECT | flags);
+                    output.writeInt(serialized.length);
+                    output.write(serialized);
+                    dataLength += ENTRY_HEADER_SIZE + serialized.length;
+                    appendedDepths.put(sha, 0);
+                } else {
+                    output.writeByte(DELTA_OBJECT | flags);
+                    output.writeInt(DELTA_HEADER_SIZE + delta.length);
+                    output.write(baseSha.getBinary());
+                    output.writeByte(baseDepth + 1);
+                    output.write(delta);
+                    dataLength += ENTRY_HEADER_SIZE + DELTA_HEADER_SIZE + delta.length;
+                    appendedDepths.put(sha, baseDepth + 1);
+                }
+            }
+            output.flush();
+            channel.force(true);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't write pack data " + dataPath + ".", ex);
+        }
+        PackIndex.write(packDir.resolve(INDEX_FILE), entries, packId, dataLength);
+        if (existing == null) {
+            deleteDataFilesExcept(packDir, dataPath);
+        }
+    }
+
+    private static long newPackId(final Path packDir) {
+        while (true) {
+            final long packId = ThreadLocalRandom.current().nextLong();
+            if (packId != PackIndex.LEGACY_PACK_ID && !Files.exists(dataPath(packDir, packId))) {
+                return packId;
+            }
+        }
+    }
+
+    private static Path dataPath(final Path packDir, final long packId) {
+        return packId == PackIndex.LEGACY_PACK_ID
+                ? packDir.resolve(LEGACY_DATA_FILE)
+                : packDir.resolve(DATA_FILE_PREFIX + String.format("%016x", packId) + DATA_FILE_SUFFIX);
+    }
+
+    /**
+     * Deletes data files of replaced packs and data files left by interrupted rewrite.
+     */
+    private static void deleteDataFilesExcept(final Path packDir, @Nullable final Path current) {
+        try (var files = Files.list(packDir)) {
+            for (final var file : (Iterable<Path>) files::iterator) {
+                final var name = file.getFileName().toString();
+                final boolean isData = name.equals(LEGACY_DATA_FILE)
+                        || (name.startsWith(DATA_FILE_PREFIX) && name.endsWith(DATA_FILE_SUFFIX));
+                if (isData && !file.equals(current)) {
+                    Utils.deleteIfExists(file);
+                }
+            }
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't list pack files in " + packDir + ".", ex);
+        }
+    }
+
+    boolean contains(final Sha1 sha) {
+        return index.findOffset(sha) != -1;
+    }
+
+    /**
+     * @param sha of object.
+     * @return serialized object or null if it is absent in the pack. Returned array must not be modified.
+     */
+    @Nullable
+    byte[] readOrNull(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final long offset = index.findOffset(sha);
+        if (offset == -1) {
+            return null;
+        }
+        final long position = entryPosition(offset);
+        final int kind = getByte(position) & ~MANIFEST_FLAG;
+        final byte[] payload = readPayload(position);
+        if (kind == FULL_OBJECT) {
+            return payload;
+        }
+        Contracts.requireThat(kind == DELTA_OBJECT, badFormat("Unknown entry kind " + kind + "."));
+        final var cached = cache.get(sha);
+        if (cached != null) {
+            return cached;
+        }
+        final var baseSha = Sha1.fromBinary(payload, 0);
+        var base = cache.get(baseSha);
+        if (base == null) {
+            base = Contracts.ensureNonNull(readOrNull(baseSha), badFormat("No delta base in pack."));
+            cache.put(baseSha, base);
+        }
+        final var result = Delta.apply(
+                base,
+                Arrays.copyOfRange(payload, DELTA_HEADER_SIZE, payload.length)
+        );
+        cache.put(sha, result);
+        return result;
+    }
+
+    /**
+     * @return sha of delta base of object or null if object is stored in full or is absent in the pack.
+     */
+    @Nullable
+    Sha1 deltaBaseOrNull(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final long offset = index.findOffset(sha);
+        if (offset == -1) {
+            return null;
+        }
+        final long position = entryPosition(offset);
+        if ((getByte(position) & ~MANIFEST_FLAG) == FULL_OBJECT) {
+            return null;
+        }
+        final byte[] baseSha = new byte[Sha1.BINARY_LENGTH];
+        read(position + ENTRY_HEADER_SIZE, baseSha);
+        return Sha1.fromBinary(baseSha, 0);
+    }
+
+    /**
+     * Reads only kind of entry, object is read only in legacy pack, which doesn't flag manifests.
+     *
+     * @return whether object is {@link ChunkedBlob} manifest or null if it is absent in the pack.
+     */
+    @Nullable
+    Boolean isManifestOrNull(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final long offset = index.findOffset(sha);
+        if (offset == -1) {
+            return null;
+        }
+        if (index.getPackId() == PackIndex.LEGACY_PACK_ID) {
+            return ChunkedBlob.isManifest(Contracts.ensureNonNull(readOrNull(sha)));
+        }
+        return (getByte(entryPosition(offset)) & MANIFEST_FLAG) != 0;
+    }
+
+    /**
+     * @return length of delta chain for object or -1 if it is absent in the pack.
+     */
+    int depthOrMinusOne(final Sha1 sha) {
+        final long offset = index.findOffset(sha);
+        if (offset == -1) {
+            return -1;
+        }
+        final long position = entryPosition(offset);
+        if ((getByte(position) & ~MANIFEST_FLAG) == FULL_OBJECT) {
+            return 0;
+        }
+        return getByte(position + ENTRY_HEADER_SIZE + Sha1.BINARY_LENGTH);
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * @return position of object in pack order, i.e. in sorted index, or -1 if it is absent in the pack.
+     */
+    int position(final Sha1 sha) {
+        return index.findPosition(sha);
+    }
+
+    Sha1 sha(final int position) {
+        return index.sha(position);
+    }
+
+    long getDataLength() {
+        return index.getDataLength();
+    }
+
+    long getPackId() {
+        return index.getPackId();
+    }
+
+    Path getDataPath() {
+        return dataPath;
+    }
+
+    private static int depthOf(
+            final Sha1 sha,
+            @Nullable final PackFile existing,
+            final Map<Sha1, Integer> appendedDepths) {
+        final var appendedDepth = appendedDepths.get(sha);
+        if (appendedDepth != null) {
+            return appendedDepth;
+        }
+        return existing == null ? -1 : existing.depthOrMinusOne(sha);
+    }
+
+    private long entryPosition(final long offset) {
+        Contracts.requireThat(
+                offset >= LEGACY_HEADER_SIZE && offset + ENTRY_HEADER_SIZE <= index.getDataLength(),
+                badFormat("Bad offset.")
+        );
+        return offset;
+    }
+
+    private byte[] readPayload(final long position) {
+        final int length = getInt(position + 1);
+        Contracts.requireThat(
+                length >= 0 && position + ENTRY_HEADER_SIZE + length <= index.getDataLength(),
+                badFormat("Bad entry length.")
+        );
+        final byte[] result = new byte[length];
+        read(position + ENTRY_HEADER_SIZE, result);
+        return result;
+    }
+
+    private byte getByte(final long position) {
+        return segments[(int) (position >>> segmentBits)].get(offsetInSegment(position));
+    }
+
+    private int getInt(final long position) {
+        final var segment = segments[(int) (position >>> segmentBits)];
+        final int offset = offsetInSegment(position);
+        if (offset + Integer.BYTES <= segment.capacity()) {
+            return segment.getInt(offset);
+        }
+        final byte[] bytes = new byte[Integer.BYTES];
+        read(position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    private long getLong(final long position) {
+        final byte[] bytes = new byte[Long.BYTES];
+        read(position, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /**
+     * Reads bytes which could span several segments.
+     */
+    private void read(final long position, final byte[] destination) {
+        int copied = 0;
+        while (copied < destination.length) {
+            final long current = position + copied;
+            final var segment = segments[(int) (current >>> segmentBits)].duplicate();
+            final int offset = offsetInSegment(current);
+            final int length = Math.min(destination.length - copied, segment.capacity() - offset);
+            segment.position(offset).get(destination, copied, length);
+            copied += length;
+        }
+    }
+
+    private int offsetInSegment(final long position) {
+        return (int) (position & ((1L << segmentBits) - 1));
+    }
+
+    private static String badFormat(final String additionalInfo) {
+        return "Bad format of pack data. " + additionalInfo;
+    }
+}
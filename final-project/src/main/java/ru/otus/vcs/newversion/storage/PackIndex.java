@@ -0,0 +1,252 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted sha -> offset table of a pack. Layout:
+ * magic, version, id of pack data, length of pack data covered by index, 256 entries fanout table
+ * (number of shas with first byte less or equal to i) and sorted (20 bytes sha, 8 bytes offset) entries.
+ * Index of version 1 has no pack id. File is memory mapped, so lookup is a binary search inside a fanout bucket
+ * without any syscalls.
+ */
+class PackIndex {
+
+    static final long LEGACY_PACK_ID = 0;
+
+    private static final int MAGIC = 0x53475049; // SGPI
+    private static final int VERSION = 2;
+    private static final int LEGACY_VERSION = 1;
+    private static final int FANOUT_SIZE = 256;
+    private static final int HEADER_SIZE =
+            Integer.BYTES + Integer.BYTES + Long.BYTES + Long.BYTES + FANOUT_SIZE * Integer.BYTES;
+    private static final int LEGACY_HEADER_SIZE = HEADER_SIZE - Long.BYTES;
+    private static final int ENTRY_SIZE = Sha1.BINARY_LENGTH + Long.BYTES;
+
+    private final MappedByteBuffer buffer;
+    private final int headerSize;
+    private final int size;
+    private final long packId;
+    private final long dataLength;
+
+    private PackIndex(final MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        Contracts.requireThat(buffer.capacity() >= LEGACY_HEADER_SIZE, badFormat("Too short."));
+        Contracts.requireThat(buffer.getInt(0) == MAGIC, badFormat("Bad magic."));
+        final int version = buffer.getInt(Integer.BYTES);
+        if (version == LEGACY_VERSION) {
+            this.headerSize = LEGACY_HEADER_SIZE;
+            this.packId = LEGACY_PACK_ID;
+        } else {
+            Contracts.requireThat(version == VERSION, badFormat("Unsupported version."));
+            Contracts.requireThat(buffer.capacity() >= HEADER_SIZE, badFormat("Too short."));
+            this.headerSize = HEADER_SIZE;
+            this.packId = buffer.getLong(2 * Integer.BYTES);
+            Contracts.forbidThat(packId == LEGACY_PACK_ID, badFormat("Bad pack id."));
+        }
+        this.dataLength = buffer.getLong(headerSize - FANOUT_SIZE * Integer.BYTES - Long.BYTES);
+        this.size = fanout(FANOUT_SIZE - 1);
+        Contracts.requireThat(
+                buffer.capacity() == headerSize + (long) size * ENTRY_SIZE,
+                badFormat("Size doesn't correspond to fanout table.")
+        );
+    }
+
+    /**
+     * @return index or null if there is no index file.
+     */
+    @Nullable
+    static PackIndex openOrNull(final Path path) {
+        Contracts.requireNonNullArgument(path);
+
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new PackIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (final NoSuchFileException ex) {
+            return null;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't open pack index " + path + ".", ex);
+        }
+    }
+
+    /**
+     * Atomically replaces index at provided path.
+     *
+     * @param path       of index file.
+     * @param entries    of index, will be sorted in place.
+     * @param packId     id of pack data, which is described by index.
+     * @param dataLength length of pack data, which is described by index.
+     */
+    static void write(final Path path, final List<Entry> entries, final long packId, final long dataLength) {
+        Contracts.requireNonNullArgument(path);
+        Contracts.requireNonNullArgument(entries);
+        Contracts.forbidThat(packId == LEGACY_PACK_ID);
+
+        entries.sort((first, second) -> Arrays.compareUnsigned(first.sha, second.sha));
+        final int[] fanout = new int[FANOUT_SIZE];
+        for (final var entry : entries) {
+            fanout[entry.sha[0] & 0xff]++;
+        }
+        for (int i = 1; i < FANOUT_SIZE; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+        final Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(packId);
+                output.writeLong(dataLength);
+                for (final int count : fanout) {
+                    output.writeInt(count);
+                }
+                byte[] previous = null;
+                for (final var entry : entries) {
+                    Contracts.forbidThat(
+                            previous != null && Arrays.equals(previous, entry.sha),
+                            "Repeated sha in pack index."
+                    );
+                    output.write(entry.sha);
+                    output.writeLong(entry.offset);
+                    previous = entry.sha;
+                }
+            }
+            try (var channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't write pack index " + path + ".", ex);
+        }
+    }
+
+    /**
+     * @param sha to look for.
+     * @return offset of object in pack data or -1 if there is no such object.
+     */
+    long findOffset(final Sha1 sha) {
+        final int position = findPosition(sha);
+        return position == -1 ? -1 : buffer.getLong(entryPosition(position) + Sha1.BINARY_LENGTH);
+    }
+
+    /**
+     * @param sha to look for.
+     * @return number of entry of object in sorted index or -1 if there is no such object.
+     */
+    int findPosition(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final byte[] binary = sha.getBinary();
+        final int bucket = binary[0] & 0xff;
+        int low = bucket == 0 ? 0 : fanout(bucket - 1);
+        int high = fanout(bucket) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compareWithEntry(mid, binary);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    Sha1 sha(final int position) {
+        Contracts.requireThat(position >= 0 && position < size);
+
+        final byte[] sha = new byte[Sha1.BINARY_LENGTH];
+        buffer.duplicate().position(entryPosition(position)).get(sha);
+        return Sha1.fromBinary(sha);
+    }
+
+    List<Entry> entries() {
+        final var result = new ArrayList<Entry>(size);
+        for (int i = 0; i < size; i++) {
+            final byte[] sha = new byte[Sha1.BINARY_LENGTH];
+            final int position = entryPosition(i);
+            for (int j = 0; j < Sha1.BINARY_LENGTH; j++) {
+                sha[j] = buffer.get(position + j);
+            }
+            result.add(new Entry(sha, buffer.getLong(position + Sha1.BINARY_LENGTH)));
+        }
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return id of pack data or {@link #LEGACY_PACK_ID} for index of version 1.
+     */
+    long getPackId() {
+        return packId;
+    }
+
+    private int fanout(final int bucket) {
+        return buffer.getInt(headerSize - (FANOUT_SIZE - bucket) * Integer.BYTES);
+    }
+
+    private int entryPosition(final int entryNumber) {
+        return headerSize + entryNumber * ENTRY_SIZE;
+    }
+
+    private int compareWithEntry(final int entryNumber, final byte[] sha) {
+        final int position = entryPosition(entryNumber);
+        for (int i = 0; i < Sha1.BINARY_LENGTH; i++) {
+            final int cmp = Byte.compareUnsigned(buffer.get(position + i), sha[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private static String badFormat(final String additionalInfo) {
+        return "Bad format of pack index. " + additionalInfo;
+    }
+
+    static class Entry {
+        private final byte[] sha;
+        private final long offset;
+
+        Entry(final byte[] sha, final long offset) {
+            Contracts.requireNonNullArgument(sha);
+            Contracts.requireThat(sha.length == Sha1.BINARY_LENGTH);
+            Contracts.requireThat(offset >= 0);
+
+            this.sha = sha;
+            this.offset = offset;
+        }
+
+        byte[] getSha() {
+            return sha;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+    }
+}
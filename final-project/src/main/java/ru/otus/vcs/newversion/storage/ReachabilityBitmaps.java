@@ -0,0 +1,163 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bitmaps of objects reachable from selected commits, bit i is object at position i of pack index.
+ * Bitmaps are built by repack and are valid only for the pack they were built for. Layout:
+ * magic, version, id and length of pack data and number of objects of the pack, EWAH bitmap of commits of the pack,
+ * number of entries and entries (20 bytes commit sha and EWAH bitmap of objects reachable from it).
+ */
+public final class ReachabilityBitmaps {
+
+    static final String FILE_NAME = "pack.bitmap";
+
+    private static final int MAGIC = 0x5347424d; // SGBM
+    private static final int VERSION = 2;
+    private static final int LEGACY_VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+
+    private final long packId;
+    private final long dataLength;
+    private final int objectCount;
+    private final BitSet commits;
+    private final Map<Sha1, long[]> bitmaps;
+
+    ReachabilityBitmaps(final long packId, final long dataLength, final int objectCount, final BitSet commits) {
+        this(packId, dataLength, objectCount, commits, new HashMap<>());
+    }
+
+    private ReachabilityBitmaps(
+            final long packId,
+            final long dataLength,
+            final int objectCount,
+            final BitSet commits,
+            final Map<Sha1, long[]> bitmaps) {
+        this.packId = packId;
+        this.dataLength = dataLength;
+        this.objectCount = objectCount;
+        this.commits = commits;
+        this.bitmaps = bitmaps;
+    }
+
+    /**
+     * @return bitmaps or null if file is absent, has legacy version or was built for other pack.
+     */
+    @Nullable
+    static ReachabilityBitmaps openOrNull(
+            final Path path,
+            final long packId,
+            final long dataLength,
+            final int objectCount) {
+        final ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (final NoSuchFileException ex) {
+            return null;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't read reachability bitmaps " + path + ".", ex);
+        }
+        Contracts.requireThat(buffer.remaining() >= 2 * Integer.BYTES, badFormat("Too short."));
+        Contracts.requireThat(buffer.getInt() == MAGIC, badFormat("Bad magic."));
+        final int version = buffer.getInt();
+        if (version == LEGACY_VERSION) {
+            return null;
+        }
+        Contracts.requireThat(version == VERSION, badFormat("Unsupported version."));
+        Contracts.requireThat(buffer.remaining() >= HEADER_SIZE - 2 * Integer.BYTES, badFormat("Too short."));
+        if (buffer.getLong() != packId || buffer.getLong() != dataLength || buffer.getInt() != objectCount) {
+            return null;
+        }
+        final var commits = EwahBitmap.decompress(EwahBitmap.read(buffer));
+        Contracts.requireThat(buffer.remaining() >= Integer.BYTES, badFormat("No entries count."));
+        final int count = buffer.getInt();
+        final var bitmaps = new HashMap<Sha1, long[]>();
+        for (int i = 0; i < count; i++) {
+            Contracts.requireThat(buffer.remaining() >= Sha1.BINARY_LENGTH, badFormat("Truncated entry."));
+            bitmaps.put(Sha1.read(buffer), EwahBitmap.read(buffer));
+        }
+        Contracts.forbidThat(buffer.hasRemaining(), badFormat("Trailing bytes."));
+        return new ReachabilityBitmaps(packId, dataLength, objectCount, commits, bitmaps);
+    }
+
+    /**
+     * Atomically replaces bitmaps file.
+     */
+    void write(final Path path) {
+        final var compressedCommits = EwahBitmap.compress(commits);
+        int size = HEADER_SIZE + EwahBitmap.serializedSize(compressedCommits) + Integer.BYTES;
+        for (final var bitmap : bitmaps.values()) {
+            size += Sha1.BINARY_LENGTH + EwahBitmap.serializedSize(bitmap);
+        }
+        final var buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(packId).putLong(dataLength).putInt(objectCount);
+        EwahBitmap.write(buffer, compressedCommits);
+        buffer.putInt(bitmaps.size());
+        for (final var entry : bitmaps.entrySet()) {
+            entry.getKey().write(buffer);
+            EwahBitmap.write(buffer, entry.getValue());
+        }
+        final Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(tempPath, buffer.array());
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't write reachability bitmaps " + path + ".", ex);
+        }
+    }
+
+    /**
+     * Adds bitmap of commit while bitmaps are built.
+     *
+     * @return false if some reachable objects are not in the pack, so bitmap can't be built.
+     */
+    public boolean add(final Sha1 commitSha, final ReachableObjects reachable) {
+        Contracts.requireNonNullArgument(commitSha);
+        Contracts.requireNonNullArgument(reachable);
+
+        if (!reachable.isPacked()) {
+            return false;
+        }
+        bitmaps.put(commitSha, EwahBitmap.compress(reachable.getPacked()));
+        return true;
+    }
+
+    /**
+     * @return new bitmap of objects reachable from commit or null if commit has no bitmap.
+     */
+    @Nullable
+    public BitSet getOrNull(final Sha1 commitSha) {
+        Contracts.requireNonNullArgument(commitSha);
+
+        final var compressed = bitmaps.get(commitSha);
+        return compressed == null ? null : EwahBitmap.decompress(compressed);
+    }
+
+    /**
+     * @return bitmap of commits of the pack, which must not be modified.
+     */
+    public BitSet getCommits() {
+        return commits;
+    }
+
+    public int size() {
+        return bitmaps.size();
+    }
+
+    private static String badFormat(final String additionalInfo) {
+        return "Bad format of reachability bitmaps. " + additionalInfo;
+    }
+}
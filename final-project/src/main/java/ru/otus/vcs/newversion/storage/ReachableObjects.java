@@ -0,0 +1,166 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.objects.FileType;
+import ru.otus.vcs.newversion.objects.Tree;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Set of objects reachable from added commits, trees and blobs. Objects of the pack are kept as bitmap
+ * of their pack positions, loose objects as set of shas. Commits are walked over {@link CommitGraph},
+ * walk stops at commits which are already reached or have {@link ReachabilityBitmaps bitmap}. Trees are walked
+ * after all commits, so objects covered by bitmaps of ancestors are skipped and with bitmaps only trees created
+ * after the closest bitmapped commits are read.
+ */
+public final class ReachableObjects {
+
+    private final ObjectDatabase objectDatabase;
+    private final CommitGraph graph;
+    private final Function<Sha1, Tree> treeReader;
+    @Nullable
+    private final ReachabilityBitmaps bitmaps;
+    private final boolean commitsOnly;
+    private final BitSet packed = new BitSet();
+    private final Set<Sha1> loose = new HashSet<>();
+
+    /**
+     * @param commitsOnly if true trees and blobs of commits are not walked.
+     */
+    public ReachableObjects(
+            final ObjectDatabase objectDatabase,
+            final CommitGraph graph,
+            final Function<Sha1, Tree> treeReader,
+            @Nullable final ReachabilityBitmaps bitmaps,
+            final boolean commitsOnly) {
+        this.objectDatabase = Contracts.ensureNonNullArgument(objectDatabase);
+        this.graph = Contracts.ensureNonNullArgument(graph);
+        this.treeReader = Contracts.ensureNonNullArgument(treeReader);
+        this.bitmaps = bitmaps;
+        this.commitsOnly = commitsOnly;
+    }
+
+    /**
+     * Adds commit at graph position and its ancestors.
+     */
+    public ReachableObjects addCommit(final int position) {
+        Contracts.requireThat(position >= 0 && position < graph.size());
+
+        final var stack = new ArrayDeque<Integer>();
+        final var withoutBitmap = new ArrayList<Integer>();
+        stack.push(position);
+        while (!stack.isEmpty()) {
+            final int current = stack.pop();
+            final var sha = graph.sha(current);
+            if (!mark(sha)) {
+                continue;
+            }
+            final var bitmap = bitmaps == null ? null : bitmaps.getOrNull(sha);
+            if (bitmap != null) {
+                if (commitsOnly) {
+                    bitmap.and(bitmaps.getCommits());
+                }
+                packed.or(bitmap);
+                continue;
+            }
+            withoutBitmap.add(current);
+            for (final int parent : new int[]{graph.firstParent(current), graph.secondParent(current)}) {
+                if (parent != CommitGraph.NO_PARENT) {
+                    stack.push(parent);
+                }
+            }
+        }
+        if (!commitsOnly) {
+            for (final int current : withoutBitmap) {
+                addTree(graph.tree(current));
+            }
+        }
+        return this;
+    }
+
+    public ReachableObjects addTree(final Sha1 treeSha) {
+        Contracts.requireNonNullArgument(treeSha);
+
+        if (!mark(treeSha)) {
+            return this;
+        }
+        for (final var leaf : treeReader.apply(treeSha).getLeaves()) {
+            if (leaf.getType() == FileType.Directory) {
+                addTree(leaf.getSha());
+            } else {
+                addBlob(leaf.getSha());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Chunks of chunked blob are added too.
+     */
+    public ReachableObjects addBlob(final Sha1 blobSha) {
+        Contracts.requireNonNullArgument(blobSha);
+
+        if (mark(blobSha)) {
+            objectDatabase.chunksOf(blobSha).forEach(this::mark);
+        }
+        return this;
+    }
+
+    public boolean contains(final Sha1 sha) {
+        Contracts.requireNonNullArgument(sha);
+
+        final int position = objectDatabase.packPosition(sha);
+        return position == -1 ? loose.contains(sha) : packed.get(position);
+    }
+
+    public int size() {
+        return packed.cardinality() + loose.size();
+    }
+
+    /**
+     * @return number of objects which are absent in other set.
+     */
+    public int countAbsentIn(final ReachableObjects other) {
+        Contracts.requireNonNullArgument(other);
+
+        final var difference = (BitSet) packed.clone();
+        difference.andNot(other.packed);
+        int result = difference.cardinality();
+        for (final var sha : loose) {
+            if (!other.loose.contains(sha)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    boolean isPacked() {
+        return loose.isEmpty();
+    }
+
+    BitSet getPacked() {
+        return packed;
+    }
+
+    /**
+     * @return false if object was already added.
+     */
+    private boolean mark(final Sha1 sha) {
+        final int position = objectDatabase.packPosition(sha);
+        if (position == -1) {
+            return loose.add(sha);
+        }
+        if (packed.get(position)) {
+            return false;
+        }
+        packed.set(position);
+        return true;
+    }
+}
@@ -0,0 +1,49 @@
+package ru.otus.vcs.newversion.storage;
+
+import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+
+/**
+ * LRU of objects restored from delta chains, bounded by total size of cached objects.
+ * Cached arrays are shared, so callers must not modify them. Access is synchronized, so pack can be read
+ * by several threads.
+ */
+class ReconstructionCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<Sha1, byte[]> objects = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    ReconstructionCache(final long maxBytes) {
+        Contracts.requireThat(maxBytes >= 0);
+
+        this.maxBytes = maxBytes;
+    }
+
+    @Nullable
+    synchronized byte[] get(final Sha1 sha) {
+        return objects.get(sha);
+    }
+
+    synchronized void put(final Sha1 sha, final byte[] object) {
+        Contracts.requireNonNullArgument(sha);
+        Contracts.requireNonNullArgument(object);
+
+        if (object.length > maxBytes) {
+            return;
+        }
+        final var previous = objects.put(sha, object);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += object.length;
+        final var iterator = objects.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package ru.otus.vcs.newversion.utils;
 import ru.otus.utils.Contracts;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
@@ -198,6 +199,29 @@ public class Utils {
         }
     }
 
+    public static void deleteIfExists(final Path path) {
+        Contracts.requireNonNullArgument(path);
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException("Can't delete path " + path + ".", ex);
+        }
+    }
+
+    /**
+     * Closes resource on error path, so that its close failure doesn't hide original error.
+     */
+    public static void closeQuietly(final Closeable closeable) {
+        Contracts.requireNonNullArgument(closeable);
+
+        try {
+            closeable.close();
+        } catch (final IOException ignored) {
+            // original error is more important
+        }
+    }
+
     public static boolean isRegularFileNoFollow(final Path path) {
         Contracts.requireNonNullArgument(path);
 
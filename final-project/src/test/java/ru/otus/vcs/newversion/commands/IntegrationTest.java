@@ -3,13 +3,17 @@ package ru.otus.vcs.newversion.commands;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.exception.UserException;
 import ru.otus.vcs.newversion.gitrepo.GitRepositoryException;
 import ru.otus.vcs.newversion.gitrepo.GitRepositoryFactoryImpl;
 import ru.otus.vcs.newversion.localrepo.LocalRepositoryException;
+import ru.otus.vcs.newversion.storage.CommitWalk;
 import ru.otus.vcs.newversion.utils.Utils;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -106,6 +110,109 @@ class IntegrationTest {
                 .isEqualTo("44");
     }
 
+    @Test
+    void testAddDirectory() {
+        for (int i = 0; i < 100; i++) {
+            writeContent("dir/sub" + i % 5 + "/" + i + ".txt", Integer.toString(i));
+        }
+        writeContent("other.txt", "other");
+        add("dir");
+        final var status = commandProcessor.status();
+        assertThat(status.substring(status.indexOf("Local changes:"), status.indexOf("Staged for commit:")))
+                .contains("other.txt")
+                .doesNotContain("dir");
+        add("other.txt");
+        commit("1");
+        assertThat(commandProcessor.status()).isEmpty();
+        writeContent("dir/sub1/1.txt", "changed");
+        writeContent("dir/sub2/new.txt", "new");
+        add(".");
+        commit("2");
+        assertThat(commandProcessor.status()).isEmpty();
+        assertThatThrownBy(() -> add("absent"))
+                .isInstanceOf(UserException.class);
+    }
+
+    @Test
+    void testBulkAddOfGlobsAndAll() {
+        writeContent("a.txt", "a");
+        writeContent("b.md", "b");
+        writeContent("dir/c.txt", "c");
+        writeContent("dir/d.md", "d");
+        commandProcessor.add(List.of("*.txt", toOsPath("dir/d.md")), false);
+        final var status = commandProcessor.status();
+        assertThat(status.substring(status.indexOf("Local changes:"), status.indexOf("Staged for commit:")))
+                .contains("b.md", "dir/c.txt")
+                .doesNotContain("a.txt", "d.md");
+        commandProcessor.add(List.of("**.txt", "b.md"), false);
+        commit("1");
+        assertThat(commandProcessor.status()).isEmpty();
+        delete("a.txt");
+        delete("dir/d.md");
+        writeContent("b.md", "changed");
+        writeContent("e.txt", "e");
+        add("dir");
+        final var statusAfterDeletion = commandProcessor.status();
+        final int stagedStart = statusAfterDeletion.indexOf("Staged for commit:");
+        assertThat(statusAfterDeletion.substring(0, stagedStart))
+                .contains("a.txt", "b.md", "e.txt")
+                .doesNotContain("d.md");
+        assertThat(statusAfterDeletion.substring(stagedStart))
+                .contains("removed file dir/d.md");
+        commandProcessor.add(List.of(), true);
+        commit("2");
+        assertThat(commandProcessor.status()).isEmpty();
+        assertThatThrownBy(() -> commandProcessor.add(List.of(), false))
+                .isInstanceOf(UserException.class);
+    }
+
+    @Test
+    void testMergeBase() {
+        writeContent("a.txt", "a");
+        add("a.txt");
+        commit("1");
+        branch("dev");
+        writeContent("a.txt", "aa");
+        add("a.txt");
+        commit("2");
+        final var base = commandProcessor.mergeBase("master", "dev");
+        assertThat(base).hasSize(1);
+        checkout("dev");
+        writeContent("b.txt", "b");
+        add("b.txt");
+        commit("3");
+        assertThat(commandProcessor.mergeBase("master", "dev")).isEqualTo(base);
+        assertThat(commandProcessor.mergeBase("dev", base.get(0))).isEqualTo(base);
+        assertThatThrownBy(() -> commandProcessor.mergeBase("master", "absent"))
+                .isInstanceOf(LocalRepositoryException.class);
+    }
+
+    @Test
+    void testLog() {
+        writeContent("a.txt", "a");
+        add("a.txt");
+        commit("first");
+        writeContent("dir/b.txt", "b");
+        add("dir/b.txt");
+        commit("second");
+        writeContent("a.txt", "aa");
+        add("a.txt");
+        commit("third\nline");
+        final var all = commandProcessor.log(null, null, CommitWalk.Order.Date, false, 0, -1)
+                .collect(Collectors.toList());
+        assertThat(all).hasSize(3);
+        assertThat(all.get(0)).contains("    third" + System.lineSeparator() + "    line");
+        assertThat(commandProcessor.log(null, "a.txt", CommitWalk.Order.Topological, false, 0, -1))
+                .extracting(entry -> entry.contains("third") ? "third" : entry.contains("first") ? "first" : "other")
+                .containsExactly("third", "first");
+        assertThat(commandProcessor.log("master", "dir", CommitWalk.Order.Date, false, 0, -1))
+                .hasSize(1)
+                .allMatch(entry -> entry.contains("second"));
+        assertThat(commandProcessor.log(null, null, CommitWalk.Order.Date, false, 1, 1))
+                .hasSize(1)
+                .allMatch(entry -> entry.contains("second"));
+    }
+
     private void writeContent(final String stringPath, final String content) {
         final Path pathToFile = resolve(stringPath);
         Utils.createDirs(pathToFile.getParent());
@@ -0,0 +1,81 @@
+package ru.otus.vcs.newversion.daemon;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.cli.GitCli;
+import ru.otus.vcs.newversion.commands.CommandProcessor;
+import ru.otus.vcs.newversion.gitrepo.GitRepositoryFactoryImpl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DaemonTest {
+
+    @TempDir
+    Path worktree;
+    private CompletableFuture<Void> daemon;
+
+    @BeforeEach
+    void setup() throws InterruptedException {
+        new CommandProcessor(new GitRepositoryFactoryImpl(), worktree).init(worktree.toString());
+        daemon = CompletableFuture.runAsync(() -> new DaemonServer(worktree, GitCli.create(), true).serve());
+        while (!DaemonClient.isRunning(worktree)) {
+            Thread.sleep(10);
+        }
+    }
+
+    @AfterEach
+    void stop() {
+        DaemonClient.stop(worktree);
+        daemon.join();
+        assertThat(DaemonAddress.file(worktree))
+                .doesNotExist();
+    }
+
+    @Test
+    void testCommandsAreServedFromNestedDirAndSeeChangesOfOtherProcesses() throws IOException {
+        Files.createDirectories(worktree.resolve("inner"));
+        Files.writeString(worktree.resolve("inner/1.txt"), "1");
+
+        assertThat(forward(worktree.resolve("inner"), "add", "1.txt")).isEmpty();
+        assertThat(forward(worktree, "commit", "first")).isEmpty();
+        assertThat(forward(worktree, "branch")).isEqualTo("* master\n");
+
+        // commit graph and index are changed by process which doesn't use daemon
+        final var local = new CommandProcessor(new GitRepositoryFactoryImpl(), worktree);
+        local.branch("dev");
+        Files.writeString(worktree.resolve("inner/1.txt"), "11");
+        local.add("inner/1.txt");
+        local.commit("second");
+
+        assertThat(forward(worktree, "status")).isEmpty();
+        Files.writeString(worktree.resolve("inner/1.txt"), "111");
+        assertThat(forward(worktree, "status")).contains("inner/1.txt");
+        assertThat(forward(worktree, "merge-base", "master", "dev"))
+                .isEqualTo(forward(worktree, "merge-base", "dev", "dev"))
+                .isNotEqualTo(forward(worktree, "merge-base", "master", "master"));
+    }
+
+    @Test
+    void testCommandsWhichAreNotServed() {
+        assertThat(forward(worktree, "init")).isEqualTo("Command can't be served by daemon.\n");
+        assertThat(forward(worktree, "unknown")).startsWith("Bad command line arguments.");
+        assertThat(DaemonClient.forward(worktree.getParent(), new String[]{"status"}, System.out)).isFalse();
+    }
+
+    private String forward(final Path cwd, final String... args) {
+        final var output = new ByteArrayOutputStream();
+        final var out = new PrintStream(output, true, StandardCharsets.UTF_8);
+        assertThat(DaemonClient.forward(cwd, args, out)).isTrue();
+        return output.toString(StandardCharsets.UTF_8);
+    }
+}
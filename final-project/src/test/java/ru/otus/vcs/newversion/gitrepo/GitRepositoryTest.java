@@ -3,6 +3,8 @@ package ru.otus.vcs.newversion.gitrepo;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.index.FileStat;
+import ru.otus.vcs.newversion.index.IndexEntry;
 import ru.otus.vcs.newversion.index.diff.Addition;
 import ru.otus.vcs.newversion.index.diff.Deletion;
 import ru.otus.vcs.newversion.index.diff.Modification;
@@ -13,10 +15,17 @@ import ru.otus.vcs.newversion.ref.BranchName;
 import ru.otus.vcs.newversion.ref.Ref;
 import ru.otus.vcs.newversion.ref.ReservedRef;
 import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.utils.Tuple2;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static java.util.Collections.emptyList;
@@ -242,6 +251,373 @@ public class GitRepositoryTest {
                 );
     }
 
+    @Test
+    void testRepack() {
+        add("a", "a");
+        add("b", "b");
+        commit("1");
+        branch("new");
+        add("b", "bb");
+        commit("2");
+        assertThat(gitRepository.repack()).isEqualTo(7);
+        assertThat(readFile("new", "b"))
+                .isEqualTo("b");
+        checkout("new");
+        assertThat(readFile("HEAD", "b"))
+                .isEqualTo("b");
+        add("c", "c");
+        commit("3");
+        assertThat(gitRepository.repack()).isEqualTo(3);
+        assertThat(readFile("HEAD", "c"))
+                .isEqualTo("c");
+    }
+
+    @Test
+    void testRepackFailsWhilePackIsLocked() throws IOException {
+        add("a", "a");
+        commit("1");
+        final var packDir = gitRepository.repoRealPath().resolve(RepositoryLayout.OBJECTS).resolve("pack");
+        Files.createDirectories(packDir);
+        Files.createFile(packDir.resolve("pack.idx" + LockFile.SUFFIX));
+        assertThatThrownBy(() -> gitRepository.repack()).isInstanceOf(GitRepositoryException.class);
+        Files.delete(packDir.resolve("pack.idx" + LockFile.SUFFIX));
+        assertThat(gitRepository.repack()).isEqualTo(3);
+    }
+
+    @Test
+    void testRepackStoresNewVersionAsDeltaOfPackedOne() throws IOException {
+        final var content = "line\n".repeat(2000);
+        add("a", content);
+        commit("1");
+        gitRepository.repack();
+        final long packedSize = packDataSize();
+        add("a", content + "modified\n");
+        commit("2");
+        assertThat(gitRepository.repack()).isEqualTo(3);
+        assertThat(packDataSize() - packedSize).isLessThan(content.length() / 4);
+    }
+
+    @Test
+    void testRepackWritesBitmaps() {
+        add("a", "a");
+        final var first = commit("1");
+        add("b", "b");
+        commit("2");
+        gitRepository.repack();
+        assertThat(gitRepository.repoRealPath().resolve(RepositoryLayout.OBJECTS).resolve("pack").resolve("pack.bitmap"))
+                .exists();
+        assertThat(gitRepository.isReachable(hash("a"), ReservedRef.head)).isTrue();
+        assertThat(gitRepository.isReachable(hash("b"), Ref.create(first.getHexString()))).isFalse();
+    }
+
+    @Test
+    void testAheadBehind() {
+        add("a", "a");
+        commit("1");
+        branch("feature");
+        add("a", "a2");
+        commit("2");
+        add("a", "a3");
+        commit("3");
+        checkout("feature");
+        add("b", "b");
+        commit("4");
+        final var expected = new Tuple2<>(1, 2);
+        assertThat(gitRepository.aheadBehind(Ref.create("feature"), Ref.create("master"))).isEqualTo(expected);
+        gitRepository.repack();
+        assertThat(gitRepository.aheadBehind(Ref.create("feature"), Ref.create("master"))).isEqualTo(expected);
+        add("b", "b2");
+        commit("5");
+        assertThat(gitRepository.aheadBehind(Ref.create("master"), Ref.create("feature")))
+                .isEqualTo(new Tuple2<>(2, 2));
+    }
+
+    @Test
+    void testGcWithoutGarbageKeepsPackAndBitmaps() throws IOException {
+        add("a", "a");
+        commit("1");
+        gitRepository.gc();
+        final var packDir = gitRepository.repoRealPath().resolve(RepositoryLayout.OBJECTS).resolve("pack");
+        final var bitmapsBefore = Files.readAttributes(packDir.resolve("pack.bitmap"), BasicFileAttributes.class);
+        final var indexBefore = Files.readAttributes(packDir.resolve("pack.idx"), BasicFileAttributes.class);
+        assertThat(gitRepository.gc()).isZero();
+        final var bitmapsAfter = Files.readAttributes(packDir.resolve("pack.bitmap"), BasicFileAttributes.class);
+        final var indexAfter = Files.readAttributes(packDir.resolve("pack.idx"), BasicFileAttributes.class);
+        assertThat(bitmapsAfter.fileKey()).isEqualTo(bitmapsBefore.fileKey());
+        assertThat(indexAfter.fileKey()).isEqualTo(indexBefore.fileKey());
+        assertThat(readFile("HEAD", "a")).isEqualTo("a");
+    }
+
+    @Test
+    void testGcDeletesUnreachableObjects() {
+        add("a", "a");
+        final var first = commit("1");
+        add("a", "a2");
+        add("a", "a3");
+        assertThat(gitRepository.gc()).isEqualTo(1);
+        assertThatThrownBy(() -> gitRepository.openFile(hash("a2"))).isInstanceOf(IllegalStateException.class);
+        assertThat(readFile("HEAD", "a")).isEqualTo("a");
+        commit("2");
+        add("b", "b");
+        add("b", "b2");
+        assertThat(gitRepository.gc()).isEqualTo(1);
+        assertThat(gitRepository.gc()).isZero();
+        assertThat(new String(gitRepository.readFile(hash("b2")))).isEqualTo("b2");
+        assertThat(readFile(first.getHexString(), "a")).isEqualTo("a");
+        assertThat(readFile("HEAD", "a")).isEqualTo("a3");
+    }
+
+    @Test
+    void testGcFailsWhileBlobsAreSavedUnderIndexLock() {
+        add("a", "a");
+        commit("1");
+        final var other = new GitRepositoryFactoryImpl().restore(path, false);
+        gitRepository.underIndexLock(() -> {
+            final var sha = gitRepository.saveBlob(new ByteArrayInputStream("b".getBytes()), 1);
+            assertThatThrownBy(other::gc).isInstanceOf(GitRepositoryException.class);
+            gitRepository.updateIndex(
+                    List.of(IndexEntry.newNormalEntry(VCSPath.create("b"), sha, FileStat.NONE)),
+                    List.of()
+            );
+        });
+        assertThat(other.gc()).isZero();
+        assertThat(new String(other.readFile(hash("b")))).isEqualTo("b");
+    }
+
+    @Test
+    void testStreamingAddAndOpenFile() throws IOException {
+        final byte[] content = "line\n".repeat(100_000).getBytes();
+        final var vcsPath = VCSPath.create("big");
+        gitRepository.add(new ByteArrayInputStream(content), content.length, vcsPath, FileStat.NONE);
+        final var sha = gitRepository.getIndex().hashOfPath(vcsPath);
+        assertThat(sha).isEqualTo(gitRepository.hash(content));
+        assertThat(gitRepository.hash(new ByteArrayInputStream(content), content.length)).isEqualTo(sha);
+        try (var input = gitRepository.openFile(sha)) {
+            assertThat(input.readAllBytes()).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void testMergeBaseIsLatestCommonAncestor() {
+        add("a", "a");
+        add("b", "b");
+        commit("1");
+        branch("feature");
+        add("a", "a2");
+        commit("2");
+        checkout("feature");
+        add("b", "b2");
+        commit("3");
+        checkout("master");
+        gitRepository.startMerge(BranchName.create("feature"));
+        gitRepository.finishMerge();
+        add("a", "a3");
+        commit("4");
+        checkout("feature");
+        add("b", "b3");
+        commit("5");
+        // older base commit "1" would report conflict on b
+        final var changes = gitRepository.startMerge(BranchName.create("master"));
+        assertThat(changes.second()).isNull();
+        assertThat(changes.first())
+                .extracting(VCSFileChange::getChangePath)
+                .containsExactly(VCSPath.create("a"));
+    }
+
+    @Test
+    void testMergeOfFileAddedOnBothSidesIsConflict() {
+        add("a", "a");
+        add("dir/b", "b");
+        commit("1");
+        branch("feature");
+        add("dir/c", "master");
+        commit("2");
+        checkout("feature");
+        add("dir/c", "feature");
+        add("dir/b", "b2");
+        commit("3");
+        checkout("master");
+        final var changes = gitRepository.startMerge(BranchName.create("feature"));
+        assertThat(changes.first())
+                .extracting(VCSFileChange::getChangePath)
+                .containsExactly(VCSPath.create("dir/b"));
+        assertThat(changes.second().getConflictingChanges())
+                .extracting(VCSFileChange::getChangePath)
+                .containsExactly(VCSPath.create("dir/c"));
+    }
+
+    @Test
+    void testNonOverlappingLineChangesAreMerged() {
+        add("a", "1\n2\n3\n4\n");
+        add("b", "1\n2\n");
+        commit("1");
+        branch("feature");
+        add("a", "1 master\n2\n3\n4\n");
+        add("b", "1 master\n2\n");
+        commit("2");
+        checkout("feature");
+        add("a", "1\n2\n3\n4 feature\n");
+        add("b", "1 feature\n2\n");
+        commit("3");
+        checkout("master");
+        final var changes = gitRepository.startMerge(BranchName.create("feature"));
+        assertThat(changes.first())
+                .extracting(VCSFileChange::getChangePath)
+                .containsExactly(VCSPath.create("a"));
+        assertThat(changes.second().getConflictingChanges())
+                .extracting(VCSFileChange::getChangePath)
+                .containsExactly(VCSPath.create("b"));
+        assertThat(changes.second().getBaseShaOrNull(VCSPath.create("b")))
+                .isEqualTo(gitRepository.saveBlob(new ByteArrayInputStream("1\n2\n".getBytes(StandardCharsets.UTF_8)), 4));
+        final var mergedSha = ((Modification) changes.first().get(0)).getModifiedFileDesc().getSha();
+        assertThat(new String(gitRepository.readFile(mergedSha), StandardCharsets.UTF_8))
+                .isEqualTo("1 master\n2\n3\n4 feature\n");
+    }
+
+    @Test
+    void testCommitAndCheckoutKeepCacheTreeOfHead() {
+        add("a", "a");
+        add("dir/b", "b");
+        commit("1");
+        branch("feature");
+        add("dir/b", "b2");
+        commit("2");
+        assertThat(gitRepository.getIndex().getCacheTree().get(VCSPath.root).getTreeSha())
+                .isEqualTo(gitRepository.readCommitOrNull(ReservedRef.head).getTreeSha());
+        checkout("feature");
+        assertThat(gitRepository.getIndex().getCacheTree().get(VCSPath.root).getTreeSha())
+                .isEqualTo(gitRepository.readCommitOrNull(ReservedRef.head).getTreeSha());
+        assertThat(gitRepository.status().getUncommittedStagedChanges())
+                .isEmpty();
+    }
+
+    @Test
+    void testCommitsAndTreesAreParsedOncePerInstance() {
+        add("dir/a", "a");
+        commit("1");
+        gitRepository = new GitRepositoryFactoryImpl().restore(path, false);
+        gitRepository.status();
+        final long misses = gitRepository.objectCache().getMisses();
+        assertThat(misses).isPositive();
+        gitRepository.status();
+        gitRepository.checkoutChanges(BranchName.create("master"));
+        assertThat(gitRepository.objectCache().getMisses()).isEqualTo(misses);
+        assertThat(gitRepository.objectCache().getHits()).isPositive();
+    }
+
+    @Test
+    void testCommitGraphIsRebuiltFromObjects() throws IOException {
+        add("a", "a");
+        commit("1");
+        branch("feature");
+        add("a", "a2");
+        commit("2");
+        Files.delete(path.resolve(GitRepository.DIR_NAME).resolve(RepositoryLayout.COMMIT_GRAPH));
+        gitRepository = new GitRepositoryFactoryImpl().restore(path, false);
+        checkout("feature");
+        final var changes = gitRepository.startMerge(BranchName.create("master"));
+        assertThat(changes.first())
+                .extracting(VCSFileChange::getChangePath)
+                .containsExactly(VCSPath.create("a"));
+        assertThat(path.resolve(GitRepository.DIR_NAME).resolve(RepositoryLayout.COMMIT_GRAPH)).exists();
+    }
+
+    @Test
+    void testLockedIndexIsNotUpdated() throws IOException {
+        add("a", "a");
+        final var repoDir = path.resolve(GitRepository.DIR_NAME);
+        final var lock = repoDir.resolve(RepositoryLayout.INDEX + LockFile.SUFFIX);
+        Files.createFile(lock);
+        assertThatThrownBy(() -> add("b", "b"))
+                .isInstanceOf(GitRepositoryException.class);
+        Files.delete(lock);
+        assertThat(gitRepository.getIndex().contains(VCSPath.create("b")))
+                .isFalse();
+        assertThat(gitRepository.getIndex().contains(VCSPath.create("a")))
+                .isTrue();
+    }
+
+    @Test
+    void testStatsAreSkippedWhileIndexIsLocked() throws IOException {
+        add("a", "a");
+        final var stat = new FileStat(1, 1, 1);
+        final var lock = path.resolve(GitRepository.DIR_NAME).resolve(RepositoryLayout.INDEX + LockFile.SUFFIX);
+        Files.createFile(lock);
+        gitRepository.updateStats(Map.of(VCSPath.create("a"), stat));
+        assertThat(gitRepository.getIndex().getPathToIndexEntries().get(VCSPath.create("a")).get(0).getStat())
+                .isEqualTo(FileStat.NONE);
+        Files.delete(lock);
+        gitRepository.updateStats(Map.of(VCSPath.create("a"), stat));
+        assertThat(gitRepository.getIndex().getPathToIndexEntries().get(VCSPath.create("a")).get(0).getStat())
+                .isEqualTo(stat);
+    }
+
+    @Test
+    void testFailedOperationReleasesLockAndKeepsIndex() throws IOException {
+        add("a", "a");
+        commit("first");
+        final var indexPath = path.resolve(GitRepository.DIR_NAME).resolve(RepositoryLayout.INDEX);
+        final var indexBefore = Files.readAllBytes(indexPath);
+        assertThatThrownBy(() -> commit("second"))
+                .isInstanceOf(GitRepositoryException.class);
+        assertThat(Files.readAllBytes(indexPath))
+                .isEqualTo(indexBefore);
+        assertThat(Files.list(indexPath.getParent()).map(Path::toString))
+                .noneMatch(file -> file.endsWith(LockFile.SUFFIX));
+    }
+
+    @Test
+    void testCommitFailsIfBranchIsLocked() throws IOException {
+        add("a", "a");
+        final var first = commit("first");
+        final var branchPath = path.resolve(GitRepository.DIR_NAME).resolve(RepositoryLayout.HEADS).resolve("master");
+        final var lock = branchPath.resolveSibling("master" + LockFile.SUFFIX);
+        Files.createFile(lock);
+        add("b", "b");
+        assertThatThrownBy(() -> commit("second"))
+                .isInstanceOf(GitRepositoryException.class);
+        assertThat(branchPath)
+                .hasContent(first.getHexString());
+        Files.delete(lock);
+        assertThat(commit("second"))
+                .isNotEqualTo(first);
+    }
+
+    @Test
+    void testPackedBranchesAreResolvedAndOverriddenByLooseOnes() throws IOException {
+        add("a", "a");
+        final var first = commit("first");
+        branch("dev");
+        branch("feature");
+        assertThat(gitRepository.packRefs())
+                .isEqualTo(3);
+        final var heads = path.resolve(GitRepository.DIR_NAME).resolve(RepositoryLayout.HEADS);
+        try (var files = Files.list(heads)) {
+            assertThat(files).isEmpty();
+        }
+        assertThat(gitRepository.branches())
+                .containsExactly(
+                        Map.entry(BranchName.create("dev"), first),
+                        Map.entry(BranchName.create("feature"), first),
+                        Map.entry(BranchName.create("master"), first)
+                );
+        assertThatThrownBy(() -> branch("dev"))
+                .isInstanceOf(GitRepositoryException.class);
+
+        add("b", "b");
+        final var second = commit("second");
+        assertThat(heads.resolve("master"))
+                .hasContent(second.getHexString());
+        assertThat(gitRepository.branches())
+                .containsEntry(BranchName.create("master"), second)
+                .containsEntry(BranchName.create("dev"), first);
+        checkout("dev");
+        assertThat(gitRepository.currentBranch())
+                .isEqualTo(BranchName.create("dev"));
+        assertThat(gitRepository.readFile(ReservedRef.head, VCSPath.create("a")))
+                .isEqualTo("a".getBytes());
+    }
+
     private void add(final String path, final String content) {
         gitRepository.add(content.getBytes(), VCSPath.create(path));
     }
@@ -270,6 +646,19 @@ public class GitRepositoryTest {
         return new VCSFileDesc(VCSPath.create(path), hash(content));
     }
 
+    private long packDataSize() throws IOException {
+        final var packDir = gitRepository.repoRealPath().resolve(RepositoryLayout.OBJECTS).resolve("pack");
+        try (var files = Files.list(packDir)) {
+            long size = 0;
+            for (final var file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().endsWith(".data")) {
+                    size += Files.size(file);
+                }
+            }
+            return size;
+        }
+    }
+
     private Sha1 hash(final String content) {
         return gitRepository.hash(content.getBytes());
     }
@@ -0,0 +1,50 @@
+package ru.otus.vcs.newversion.gitrepo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PackedRefsTest {
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void testEveryBranchIsFoundByBinarySearch() throws IOException {
+        final var branches = new TreeMap<String, Sha1>();
+        for (int i = 0; i < 1000; i++) {
+            branches.put("branch-" + i, Sha1.hash(String.valueOf(i)));
+        }
+        branches.put("A", Sha1.hash("A"));
+        branches.put("z_", Sha1.hash("z_"));
+        final var path = temp.resolve(RepositoryLayout.PACKED_REFS);
+        Files.write(path, PackedRefs.serialize(branches));
+
+        final var packedRefs = PackedRefs.read(path);
+        branches.forEach((name, sha) -> assertThat(packedRefs.find(name)).isEqualTo(sha));
+        assertThat(packedRefs.find("branch-1000"))
+                .isNull();
+        assertThat(packedRefs.find("branch"))
+                .isNull();
+        assertThat(packedRefs.find("0"))
+                .isNull();
+        assertThat(packedRefs.toMap())
+                .isEqualTo(branches);
+    }
+
+    @Test
+    void testAbsentFileHasNoBranches() {
+        final var packedRefs = PackedRefs.read(temp.resolve(RepositoryLayout.PACKED_REFS));
+        assertThat(packedRefs.find("master"))
+                .isNull();
+        assertThat(packedRefs.toMap())
+                .isEmpty();
+    }
+}
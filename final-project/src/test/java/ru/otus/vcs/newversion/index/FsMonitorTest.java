@@ -0,0 +1,66 @@
+package ru.otus.vcs.newversion.index;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.gitrepo.GitRepository;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class FsMonitorTest {
+
+    @TempDir
+    Path worktree;
+    private final AtomicInteger hashed = new AtomicInteger();
+
+    @Test
+    void testOnlyChangedPathsAreRescanned() throws IOException {
+        Files.createDirectories(worktree.resolve(GitRepository.DIR_NAME));
+        Files.createDirectories(worktree.resolve("dir/sub"));
+        Files.writeString(worktree.resolve("dir/sub/1.txt"), "1");
+        Files.writeString(worktree.resolve("dir/2.txt"), "2");
+        Files.writeString(worktree.resolve("3.txt"), "3");
+        final var staged = Index.create(List.of());
+
+        try (var monitor = FsMonitor.start(worktree)) {
+            Assertions.assertThat(monitor.scan(staged, this::hash))
+                    .isEqualTo(Index.create(worktree, this::hash));
+            hashed.set(0);
+            Assertions.assertThat(monitor.scan(staged, this::hash).size())
+                    .isEqualTo(3);
+            Assertions.assertThat(hashed.get())
+                    .isZero();
+
+            Files.writeString(worktree.resolve("dir/sub/1.txt"), "11");
+            Files.delete(worktree.resolve("dir/2.txt"));
+            Files.createDirectories(worktree.resolve("new/sub"));
+            Files.writeString(worktree.resolve("new/sub/4.txt"), "4");
+            Files.move(worktree.resolve("dir"), worktree.resolve("moved"));
+            Files.writeString(worktree.resolve("moved/sub/5.txt"), "5");
+
+            final var scanned = monitor.scan(staged, this::hash);
+            Assertions.assertThat(scanned)
+                    .isEqualTo(Index.create(worktree, this::hash));
+            Assertions.assertThat(scanned.getPathToIndexEntries())
+                    .hasSize(4);
+            Assertions.assertThat(scanned.hashOfPath(VCSPath.create("moved/sub/1.txt")))
+                    .isEqualTo(Sha1.hash("11"));
+        }
+    }
+
+    private Sha1 hash(final Path file) {
+        hashed.incrementAndGet();
+        try {
+            return Sha1.hash(Files.readAllBytes(file));
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -9,13 +9,17 @@ import ru.otus.vcs.newversion.index.diff.Modification;
 import ru.otus.vcs.newversion.path.VCSFileDesc;
 import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.Sha1;
+import ru.otus.vcs.newversion.utils.Utils;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
 
 public class IndexTest {
 
@@ -94,6 +98,139 @@ public class IndexTest {
 
     }
 
+    @Test
+    void testBinaryRoundTrip(@TempDir final Path temp) throws IOException {
+        final VCSPath path1 = VCSPath.create("a");
+        final VCSPath path2 = VCSPath.create("dir/c");
+        final var stat = new FileStat(123_456_789L, 10, 42);
+        final var index = Index.deserialize(
+                (createLineOfIndexEntryFormat(2, path1, "a") + createLineOfIndexEntryFormat(3, path1, "b"))
+                        .getBytes(StandardCharsets.UTF_8)
+        ).withNewIndexEntry(path2, sha1(path2), stat);
+        final var indexFile = temp.resolve("index");
+        Files.write(indexFile, index.serialize());
+        final var restored = Index.read(indexFile);
+        Assertions.assertThat(restored).isEqualTo(index);
+        Assertions.assertThat(restored.getPathToIndexEntries().get(path2).get(0).getStat()).isEqualTo(stat);
+        Assertions.assertThat(Index.deserialize(index.serialize())).isEqualTo(index);
+    }
+
+    @Test
+    void testReadLegacyTextAndEmptyIndex(@TempDir final Path temp) throws IOException {
+        final VCSPath path = VCSPath.create("a");
+        final var indexFile = temp.resolve("index");
+        Files.writeString(indexFile, createLineOfIndexEntryFormat(0, path));
+        Assertions.assertThat(Index.read(indexFile).hashOfPath(path)).isEqualTo(sha1(path));
+        Files.write(indexFile, new byte[0]);
+        Assertions.assertThat(Index.read(indexFile).isEmpty()).isTrue();
+    }
+
+    @Test
+    void testStatOfUnchangedEntryIsPreserved() {
+        final VCSPath path = VCSPath.create("a");
+        final var stat = new FileStat(1, 2, 3);
+        final var index = Index.create(List.of()).withNewIndexEntry(path, sha1(path), stat);
+        Assertions.assertThat(index.withNewIndexEntry(path, sha1(path))).isSameAs(index);
+        final var restated = index.withNewIndexEntry(path, sha1(path), new FileStat(4, 2, 3));
+        Assertions.assertThat(restated.getPathToIndexEntries().get(path).get(0).getStat())
+                .isEqualTo(new FileStat(4, 2, 3));
+    }
+
+    @Test
+    void testWorktreeIndexRehashesOnlyChangedAndRacyFiles(@TempDir final Path temp) throws IOException {
+        final var workdir = Files.createDirectory(temp.resolve("work"));
+        final var file = workdir.resolve("a");
+        Files.writeString(file, "a");
+        final var path = VCSPath.create("a");
+        final var indexFile = temp.resolve("index");
+        Files.write(
+                indexFile,
+                Index.create(List.of()).withNewIndexEntry(path, Sha1.hash("a"), FileStat.read(file)).serialize()
+        );
+        final var future = FileTime.fromMillis(System.currentTimeMillis() + 60_000);
+        Files.setLastModifiedTime(indexFile, future);
+        final var hashed = new ArrayList<Path>();
+        final Function<Path, Sha1> hasher = toHash -> {
+            hashed.add(toHash);
+            return Sha1.hash(Utils.readBytes(toHash));
+        };
+
+        Assertions.assertThat(Index.create(workdir, Index.read(indexFile), hasher).hashOfPath(path))
+                .isEqualTo(Sha1.hash("a"));
+        Assertions.assertThat(hashed).isEmpty();
+
+        Files.setLastModifiedTime(indexFile, Files.getLastModifiedTime(file));
+        Index.create(workdir, Index.read(indexFile), hasher);
+        Assertions.assertThat(hashed).hasSize(1);
+
+        Files.writeString(file, "bb");
+        Files.setLastModifiedTime(indexFile, future);
+        Assertions.assertThat(Index.create(workdir, Index.read(indexFile), hasher).hashOfPath(path))
+                .isEqualTo(Sha1.hash("bb"));
+        Assertions.assertThat(hashed).hasSize(2);
+    }
+
+    @Test
+    void testCacheTreeIsStoredAndInvalidatedByEntryChanges(@TempDir final Path temp) throws IOException {
+        final VCSPath file = VCSPath.create("dir/sub/file");
+        final VCSPath other = VCSPath.create("other/file");
+        final var cacheTree = CacheTree.EMPTY
+                .withDir(VCSPath.root, Sha1.hash("root"), 2)
+                .withDir(VCSPath.create("dir"), Sha1.hash("dir"), 1)
+                .withDir(VCSPath.create("dir/sub"), Sha1.hash("sub"), 1)
+                .withDir(VCSPath.create("other"), Sha1.hash("other"), 1);
+        final var index = Index.create(
+                List.of(IndexEntry.newNormalEntry(file, sha1(file)), IndexEntry.newNormalEntry(other, sha1(other)))
+        ).withCacheTree(cacheTree);
+        final var indexFile = temp.resolve("index");
+        Files.write(indexFile, index.serialize());
+        Assertions.assertThat(Index.read(indexFile).getCacheTree())
+                .isEqualTo(cacheTree);
+
+        Assertions.assertThat(index.withNewIndexEntry(file, sha1(file), new FileStat(1, 2, 3)).getCacheTree())
+                .isEqualTo(cacheTree);
+        Assertions.assertThat(index.withNewIndexEntry(file, sha1(other)).getCacheTree().getDirs())
+                .containsOnlyKeys(VCSPath.create("other"));
+        Assertions.assertThat(index.toBuilder().remove(other).build().getCacheTree().getDirs())
+                .containsOnlyKeys(VCSPath.create("dir"), VCSPath.create("dir/sub"));
+        // root entry count doesn't correspond to index
+        Assertions.assertThat(Index.create(List.of()).withCacheTree(cacheTree).getCacheTree())
+                .isEqualTo(CacheTree.EMPTY);
+    }
+
+    @Test
+    void testBuilderAppliesChangesWithoutTouchingSource() {
+        final VCSPath path1 = VCSPath.create("a");
+        final VCSPath path2 = VCSPath.create("b");
+        final VCSPath path3 = VCSPath.create("dir/c");
+        final var stat = new FileStat(1, 2, 3);
+        final var index = Index.deserialize(
+                (createLineOfIndexEntryFormat(2, path1, "a")
+                        + createLineOfIndexEntryFormat(3, path1, "b")
+                        + createLineOfIndexEntryFormat(0, path2))
+                        .getBytes(StandardCharsets.UTF_8)
+        ).withNewIndexEntry(path3, sha1(path3), stat);
+        final var builder = index.toBuilder()
+                .add(path1, sha1(path1), FileStat.NONE)
+                .add(path3, sha1(path3), FileStat.NONE)
+                .remove(path2)
+                .remove(VCSPath.create("absent"));
+        final var newIndex = builder.build();
+        Assertions.assertThat(newIndex.hasMergeConflict()).isFalse();
+        Assertions.assertThat(newIndex.getPathToIndexEntries())
+                .hasSize(2);
+        Assertions.assertThat(newIndex.hashOfPath(path1))
+                .isEqualTo(sha1(path1));
+        Assertions.assertThat(newIndex.hashOfPath(path3))
+                .isEqualTo(sha1(path3));
+        Assertions.assertThat(newIndex.getPathToIndexEntries().get(path3).get(0).getStat())
+                .isEqualTo(stat);
+        Assertions.assertThat(index.getPathToIndexEntries()).hasSize(3);
+        Assertions.assertThat(index.inConflict(path1)).isTrue();
+        Assertions.assertThatThrownBy(builder::build)
+                .isInstanceOf(IllegalStateException.class);
+    }
+
     @Test
     void testAddingIndexCaseOfSameSha() {
         final VCSPath path = VCSPath.create("a");
@@ -181,7 +318,7 @@ public class IndexTest {
         Files.createDirectory(temp.resolve("dir2"));
         Files.writeString(temp.resolve("file1"), "a");
         Files.writeString(temp.resolve("dir2").resolve("file2"), "b");
-        final var index = Index.create(temp, Sha1::hash);
+        final var index = Index.create(temp, file -> Sha1.hash(Utils.readBytes(file)));
         final var expectedFileDescriptors = Set.of(
                 new VCSFileDesc(VCSPath.create("file1"), Sha1.hash("a".getBytes())),
                 new VCSFileDesc(VCSPath.create("dir2/file2"), Sha1.hash("b"))
@@ -0,0 +1,101 @@
+package ru.otus.vcs.newversion.localrepo;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.index.diff.Addition;
+import ru.otus.vcs.newversion.index.diff.Deletion;
+import ru.otus.vcs.newversion.index.diff.Modification;
+import ru.otus.vcs.newversion.index.diff.VCSFileChange;
+import ru.otus.vcs.newversion.path.VCSFileDesc;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+class CheckoutWriterTest {
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void testWritesAllChangesInNestedDirs() throws IOException {
+        final var blobs = new HashMap<Sha1, String>();
+        final var changes = new ArrayList<VCSFileChange>();
+        for (int i = 0; i < 200; i++) {
+            final var content = "content" + i;
+            blobs.put(Sha1.hash(content), content);
+            changes.add(new Addition(new VCSFileDesc(VCSPath.create("dir" + i % 7 + "/sub/file" + i), Sha1.hash(content))));
+        }
+        Files.writeString(temp.resolve("deleted"), "deleted");
+        changes.add(new Deletion(new VCSFileDesc(VCSPath.create("deleted"), Sha1.hash("deleted"))));
+
+        final var stats = CheckoutWriter.write(temp, changes, reader(blobs), this::hash);
+
+        Assertions.assertThat(stats)
+                .hasSize(200);
+        Assertions.assertThat(temp.resolve("dir3/sub/file10"))
+                .hasContent("content10");
+        Assertions.assertThat(temp.resolve("deleted"))
+                .doesNotExist();
+    }
+
+    @Test
+    void testFailedChangeRollsBackWorktree() throws IOException {
+        Files.writeString(temp.resolve("modified"), "old");
+        Files.writeString(temp.resolve("deleted"), "deleted");
+        final var blobs = Map.of(
+                Sha1.hash("old"), "old",
+                Sha1.hash("new"), "new",
+                Sha1.hash("deleted"), "deleted",
+                Sha1.hash("added"), "added"
+        );
+        final var changes = new ArrayList<VCSFileChange>();
+        changes.add(new Modification(new VCSFileDesc(VCSPath.create("modified"), Sha1.hash("new")), Sha1.hash("old")));
+        changes.add(new Deletion(new VCSFileDesc(VCSPath.create("deleted"), Sha1.hash("deleted"))));
+        for (int i = 0; i < 50; i++) {
+            changes.add(new Addition(new VCSFileDesc(VCSPath.create("new/dir/added" + i), Sha1.hash("added"))));
+        }
+        changes.add(new Addition(new VCSFileDesc(VCSPath.create("new/broken"), Sha1.hash("missing"))));
+
+        Assertions.assertThatThrownBy(() -> CheckoutWriter.write(temp, changes, reader(blobs), this::hash))
+                .isInstanceOf(LocalRepositoryException.class)
+                .hasRootCauseMessage("No blob.");
+
+        Assertions.assertThat(temp.resolve("modified"))
+                .hasContent("old");
+        Assertions.assertThat(temp.resolve("deleted"))
+                .hasContent("deleted");
+        Assertions.assertThat(temp.resolve("new"))
+                .doesNotExist();
+    }
+
+    private Sha1 hash(final Path file) {
+        try {
+            return Sha1.hash(Files.readAllBytes(file));
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static Function<Sha1, InputStream> reader(final Map<Sha1, String> blobs) {
+        return sha -> {
+            final var content = blobs.get(sha);
+            if (content == null) {
+                throw new IllegalStateException("No blob.");
+            }
+            return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+        };
+    }
+}
@@ -8,6 +8,7 @@ import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import ru.otus.utils.Contracts;
+import ru.otus.vcs.newversion.index.FileStat;
 import ru.otus.vcs.newversion.index.Index;
 import ru.otus.vcs.newversion.index.IndexEntry;
 import ru.otus.vcs.newversion.index.diff.Addition;
@@ -21,7 +22,9 @@ import ru.otus.vcs.newversion.path.VCSPath;
 import ru.otus.vcs.newversion.ref.ReservedRef;
 import ru.otus.vcs.newversion.ref.Sha1;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
@@ -29,6 +32,10 @@ import java.util.Collections;
 import java.util.List;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -86,6 +93,33 @@ class NestedGitLocalRepositoryTest {
     void addExistentRegularFile() throws IOException {
         Files.writeString(temp.resolve("a"), "hi");
         localRepository.add(VCSPath.create("a"));
+        verify(mockGitRepo).add(any(InputStream.class), eq(2L), eq(VCSPath.create("a")), any(FileStat.class));
+    }
+
+    @Test
+    void addAllUpdatesIndexOnce() throws IOException {
+        Files.createDirectory(temp.resolve("dir"));
+        Files.writeString(temp.resolve("dir/a"), "hi");
+        Files.writeString(temp.resolve("dir/b.txt"), "skipped");
+        Files.writeString(temp.resolve("c"), "outside");
+        final var staged = Index.create(
+                List.of(
+                        IndexEntry.newNormalEntry(VCSPath.create("dir/deleted"), Sha1.hash("x"), FileStat.NONE),
+                        IndexEntry.newNormalEntry(VCSPath.create("deleted"), Sha1.hash("y"), FileStat.NONE)
+                )
+        );
+        when(mockGitRepo.getIndex()).thenReturn(staged);
+        when(mockGitRepo.saveBlob(any(InputStream.class), anyLong())).thenReturn(Sha1.hash("z"));
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(mockGitRepo).underIndexLock(any(Runnable.class));
+        localRepository.addAll(VCSPath.create("dir"), path -> !path.toString().endsWith(".txt"));
+        verify(mockGitRepo).saveBlob(any(InputStream.class), eq(2L));
+        verify(mockGitRepo).updateIndex(
+                argThat(entries -> entries.size() == 1 && entries.get(0).getPath().equals(VCSPath.create("dir/a"))),
+                eq(List.of(VCSPath.create("dir/deleted")))
+        );
     }
 
     @Test
@@ -114,7 +148,7 @@ class NestedGitLocalRepositoryTest {
                 List.of(IndexEntry.newNormalEntry(vcsPath, hash))
         );
         when(mockGitRepo.getIndex()).thenReturn(index);
-        when(mockGitRepo.hash(any())).thenReturn(hash);
+        when(mockGitRepo.hash(any(InputStream.class), anyLong())).thenReturn(hash);
         localRepository.remove(vcsPath);
         Assertions.assertThat(pathToRemove)
                 .doesNotExist();
@@ -130,7 +164,7 @@ class NestedGitLocalRepositoryTest {
                 List.of(IndexEntry.newNormalEntry(vcsPath, hash))
         );
         when(mockGitRepo.getIndex()).thenReturn(index);
-        when(mockGitRepo.hash(any())).thenReturn(Sha1.hash("b"));
+        when(mockGitRepo.hash(any(InputStream.class), anyLong())).thenReturn(Sha1.hash("b"));
         Assertions.assertThatThrownBy(
                 () -> localRepository.remove(vcsPath)
         ).isInstanceOf(LocalRepositoryException.class);
@@ -226,9 +260,9 @@ class NestedGitLocalRepositoryTest {
         );
         when(mockGitRepo.checkoutChanges(any()))
                 .thenReturn(changes);
-        when(mockGitRepo.hash(any())).then(
+        when(mockGitRepo.hash(any(InputStream.class), anyLong())).then(
                 invocation -> {
-                    final var arg = (byte[]) invocation.getArgument(0);
+                    final var arg = ((InputStream) invocation.getArgument(0)).readAllBytes();
                     if (Arrays.equals(arg, "old".getBytes())) {
                         return modifiedOldHash;
                     } else if (Arrays.equals(arg, "removed".getBytes())) {
@@ -238,13 +272,13 @@ class NestedGitLocalRepositoryTest {
                     }
                 }
         );
-        when(mockGitRepo.readFile(any())).then(
+        when(mockGitRepo.openFile(any())).then(
                 invocation -> {
                     final var arg = (Sha1) invocation.getArgument(0);
                     if (arg.equals(modifiedNewHash)) {
-                        return "new".getBytes();
+                        return new ByteArrayInputStream("new".getBytes());
                     } else if (arg.equals(addedHash)) {
-                        return "added".getBytes();
+                        return new ByteArrayInputStream("added".getBytes());
                     } else {
                         throw Contracts.unreachable();
                     }
@@ -285,7 +319,7 @@ class NestedGitLocalRepositoryTest {
         );
         when(mockGitRepo.checkoutChanges(any()))
                 .thenReturn(changes);
-        when(mockGitRepo.hash("new".getBytes())).thenReturn(Sha1.hash("new"));
+        when(mockGitRepo.hash(any(InputStream.class), eq(3L))).thenReturn(Sha1.hash("new"));
         Assertions.assertThatThrownBy(
                 () -> localRepository.checkout(ReservedRef.head)
         ).isInstanceOf(LocalRepositoryException.class);
@@ -337,8 +371,8 @@ class NestedGitLocalRepositoryTest {
         final var stubbedGitStatus = new GitRepoStatus(Collections.emptyList(), null);
         when(mockGitRepo.status()).thenReturn(stubbedGitStatus);
         when(mockGitRepo.getIndex()).thenReturn(stubbedIndex);
-        when(mockGitRepo.hash(any())).then(
-                invocation -> Sha1.hash((byte[]) invocation.getArgument(0))
+        when(mockGitRepo.hash(any(InputStream.class), anyLong())).then(
+                invocation -> Sha1.hash(((InputStream) invocation.getArgument(0)).readAllBytes())
         );
         Assertions.assertThat(localRepository.status().getLocalFileChanges())
                 .containsExactlyInAnyOrderElementsOf(expectedLocalChanges);
@@ -0,0 +1,74 @@
+package ru.otus.vcs.newversion.merge;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LineDiffTest {
+
+    @Test
+    void testMatchesOfInsertionAndDeletion() {
+        final var first = lines("a\nb\nc\nd\n");
+        final var second = lines("a\nx\nb\nd\n");
+
+        assertThat(LineDiff.matches(first, second)).containsExactly(0, 2, -1, 3);
+    }
+
+    @Test
+    void testLastLineWithoutNewLineDiffersFromTerminated() {
+        assertThat(LineDiff.matches(lines("a\nb"), lines("a\nb\n"))).containsExactly(0, -1);
+    }
+
+    @Test
+    void testMatchesAreLongestCommonSubsequence() {
+        final var random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            final var first = randomLines(random);
+            final var second = randomLines(random);
+            final var firstLines = lines(first);
+            final var secondLines = lines(second);
+
+            final int[] matches = LineDiff.matches(firstLines, secondLines);
+
+            int matched = 0;
+            int previous = -1;
+            for (int line = 0; line < matches.length; line++) {
+                if (matches[line] != -1) {
+                    assertThat(matches[line]).isGreaterThan(previous);
+                    assertThat(firstLines.lineEquals(line, secondLines, matches[line])).isTrue();
+                    previous = matches[line];
+                    matched++;
+                }
+            }
+            assertThat(matched).as(first + " vs " + second).isEqualTo(lcsLength(firstLines, secondLines));
+        }
+    }
+
+    private static String randomLines(final Random random) {
+        final var builder = new StringBuilder();
+        final int count = random.nextInt(30);
+        for (int i = 0; i < count; i++) {
+            builder.append((char) ('a' + random.nextInt(4))).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static int lcsLength(final Lines first, final Lines second) {
+        final int[][] lengths = new int[first.size() + 1][second.size() + 1];
+        for (int i = 1; i <= first.size(); i++) {
+            for (int j = 1; j <= second.size(); j++) {
+                lengths[i][j] = first.lineEquals(i - 1, second, j - 1)
+                        ? lengths[i - 1][j - 1] + 1
+                        : Math.max(lengths[i - 1][j], lengths[i][j - 1]);
+            }
+        }
+        return lengths[first.size()][second.size()];
+    }
+
+    private static Lines lines(final String content) {
+        return Lines.split(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,85 @@
+package ru.otus.vcs.newversion.merge;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreeWayMergeTest {
+
+    @Test
+    void testNonOverlappingChangesAreMerged() {
+        final var merge = merge(
+                "1\n2\n3\n4\n5\n",
+                "0\n1\n2 receiver\n3\n4\n5\n",
+                "1\n2\n3\n5\n5 giver\n"
+        );
+
+        assertThat(merge.isClean()).isTrue();
+        assertThat(content(merge)).isEqualTo("0\n1\n2 receiver\n3\n5\n5 giver\n");
+    }
+
+    @Test
+    void testSameChangeOnBothSidesIsNotConflict() {
+        final var merge = merge("a\nb\nc\n", "a\nB\nc\n", "a\nB\nc\n");
+
+        assertThat(merge.isClean()).isTrue();
+        assertThat(content(merge)).isEqualTo("a\nB\nc\n");
+    }
+
+    @Test
+    void testOnlyConflictingChunkIsBetweenMarkers() {
+        final var merge = merge(
+                "a\nb\nc\nd\nx\ne\n",
+                "a\nb receiver\nc\nd\nx\ne receiver\n",
+                "a\nb giver\nc\nD\nx\ne"
+        );
+
+        assertThat(merge.getConflicts()).isEqualTo(2);
+        assertThat(content(merge)).isEqualTo(
+                "a\n<<<<<<< HEAD\nb receiver\n=======\nb giver\n>>>>>>> feature\nc\nD\nx\n"
+                        + "<<<<<<< HEAD\ne receiver\n=======\ne\n>>>>>>> feature\n"
+        );
+    }
+
+    @Test
+    void testAdjacentChangesConflict() {
+        final var merge = merge("a\nb\nc\n", "a\nB\nc\n", "a\nb\nC\n");
+
+        assertThat(content(merge)).isEqualTo("a\n<<<<<<< HEAD\nB\nc\n=======\nb\nC\n>>>>>>> feature\n");
+    }
+
+    @Test
+    void testCommonLinesOfConflictAreOutsideMarkers() {
+        final var merge = merge("a\nz\n", "a\nx\nb\ny\nz\n", "a\nx\nc\ny\nz\n");
+
+        assertThat(content(merge)).isEqualTo("a\nx\n<<<<<<< HEAD\nb\n=======\nc\n>>>>>>> feature\ny\nz\n");
+    }
+
+    @Test
+    void testEmptyFiles() {
+        assertThat(content(merge("", "", "a\n"))).isEqualTo("a\n");
+        assertThat(content(merge("a\n", "", "a\n"))).isEqualTo("");
+    }
+
+    @Test
+    void testBinaryContentIsNotText() {
+        assertThat(ThreeWayMerge.isText("abc\n".getBytes(StandardCharsets.UTF_8))).isTrue();
+        assertThat(ThreeWayMerge.isText(new byte[]{'a', 0, 'b'})).isFalse();
+    }
+
+    private static ThreeWayMerge merge(final String base, final String receiver, final String giver) {
+        return ThreeWayMerge.merge(
+                base.getBytes(StandardCharsets.UTF_8),
+                receiver.getBytes(StandardCharsets.UTF_8),
+                giver.getBytes(StandardCharsets.UTF_8),
+                "HEAD",
+                "feature"
+        );
+    }
+
+    private static String content(final ThreeWayMerge merge) {
+        return new String(merge.getContent(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,79 @@
+package ru.otus.vcs.newversion.objects;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.otus.vcs.newversion.index.FileStat;
+import ru.otus.vcs.newversion.index.Index;
+import ru.otus.vcs.newversion.index.IndexEntry;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class IndexTreesTest {
+
+    @Test
+    void testRebuildsOnlyChangedDirectories() {
+        final var entries = new ArrayList<IndexEntry>();
+        for (int dir = 0; dir < 20; dir++) {
+            for (int file = 0; file < 10; file++) {
+                final var path = VCSPath.create("dir" + dir + "/sub/file" + file);
+                entries.add(IndexEntry.newNormalEntry(path, Sha1.hash(path.toString())));
+            }
+        }
+        final var index = Index.create(entries);
+        final var initial = IndexTrees.build(index);
+        Assertions.assertThat(initial.getBuiltTrees())
+                .hasSize(41);
+        final var committed = index.withCacheTree(initial.getCacheTree());
+
+        final var unchanged = IndexTrees.build(committed);
+        Assertions.assertThat(unchanged.getBuiltTrees())
+                .isEmpty();
+        Assertions.assertThat(unchanged.getRootSha())
+                .isEqualTo(initial.getRootSha());
+
+        final var changed = committed.toBuilder()
+                .add(VCSPath.create("dir3/sub/file1"), Sha1.hash("changed"), FileStat.NONE)
+                .add(VCSPath.create("dir3/new"), Sha1.hash("new"), FileStat.NONE)
+                .remove(VCSPath.create("dir5/sub/file0"))
+                .build();
+        final var rebuilt = IndexTrees.build(changed);
+        // root, dir3, dir3/sub, dir5 and dir5/sub
+        Assertions.assertThat(rebuilt.getBuiltTrees())
+                .hasSize(5);
+        Assertions.assertThat(rebuilt.getBuiltTrees().get(0).sha1())
+                .isEqualTo(rebuilt.getRootSha());
+        Assertions.assertThat(rebuilt.getRootSha())
+                .isEqualTo(Tree.createFromIndex(changed).get(0).sha1());
+        Assertions.assertThat(rebuilt.getCacheTree().get(VCSPath.root).getEntryCount())
+                .isEqualTo(changed.size());
+    }
+
+    @Test
+    void testDirectoryOfValidSubdirectoriesOnlyIsRebuilt() {
+        final var kept = VCSPath.create("a/b/file");
+        final var removed = VCSPath.create("a/file");
+        final var index = Index.create(
+                List.of(IndexEntry.newNormalEntry(kept, Sha1.hash("kept")), IndexEntry.newNormalEntry(removed, Sha1.hash("removed")))
+        );
+        final var committed = index.withCacheTree(IndexTrees.build(index).getCacheTree());
+        final var changed = committed.withRemovedIndexEntry(removed);
+
+        final var rebuilt = IndexTrees.build(changed);
+        Assertions.assertThat(rebuilt.getBuiltTrees())
+                .hasSize(2);
+        Assertions.assertThat(rebuilt.getRootSha())
+                .isEqualTo(Tree.createFromIndex(changed).get(0).sha1());
+    }
+
+    @Test
+    void testEmptyIndexHasNoRoot() {
+        final var trees = IndexTrees.build(Index.create(List.of()));
+        Assertions.assertThat(trees.getRootSha())
+                .isNull();
+        Assertions.assertThat(trees.getBuiltTrees())
+                .isEmpty();
+    }
+}
@@ -7,6 +7,7 @@ import ru.otus.vcs.newversion.path.VCSFileName;
 import ru.otus.vcs.newversion.ref.Sha1;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
 public class SerializationTest {
@@ -29,6 +30,44 @@ public class SerializationTest {
                 .isEqualTo(leaf);
     }
 
+    @Test
+    void testTreeLeafBinaryFormat() {
+        final var sha = Sha1.hash("a");
+        final var leaf = new TreeLeaf(FileType.Directory, VCSFileName.create("hey"), sha);
+        final var expectedPrefix = "40000 hey\0".getBytes(StandardCharsets.US_ASCII);
+
+        final var serialized = leaf.serialize();
+
+        Assertions.assertThat(serialized).hasSize(expectedPrefix.length + Sha1.BINARY_LENGTH);
+        Assertions.assertThat(Arrays.copyOf(serialized, expectedPrefix.length)).isEqualTo(expectedPrefix);
+        Assertions.assertThat(Sha1.fromBinary(serialized, expectedPrefix.length)).isEqualTo(sha);
+    }
+
+    @Test
+    void testLegacyTreeIsRead() {
+        final var legacy = "dir abc\0" + Sha1.hash("b").getHexString()
+                + "reg zz\0" + Sha1.hash("a").getHexString();
+        final var expected = new Tree(
+                List.of(
+                        new TreeLeaf(FileType.Directory, VCSFileName.create("abc"), Sha1.hash("b")),
+                        new TreeLeaf(FileType.Regular, VCSFileName.create("zz"), Sha1.hash("a"))
+                )
+        );
+
+        Assertions.assertThat(Tree.deserialize(legacy.getBytes(StandardCharsets.US_ASCII)))
+                .isEqualTo(expected);
+    }
+
+    @Test
+    void testTreeWithRepeatedLeafIsRejected() {
+        final var leaf = new TreeLeaf(FileType.Regular, VCSFileName.create("zz"), Sha1.hash("a")).serialize();
+        final var data = Arrays.copyOf(leaf, 2 * leaf.length);
+        System.arraycopy(leaf, 0, data, leaf.length, leaf.length);
+
+        Assertions.assertThatThrownBy(() -> Tree.deserialize(data))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
     @Test
     void testTreeSerialization1() {
         final var first = new TreeLeaf(
@@ -0,0 +1,130 @@
+package ru.otus.vcs.newversion.objects;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.otus.vcs.newversion.index.Index;
+import ru.otus.vcs.newversion.index.IndexEntry;
+import ru.otus.vcs.newversion.index.diff.Deletion;
+import ru.otus.vcs.newversion.path.VCSFileDesc;
+import ru.otus.vcs.newversion.path.VCSPath;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+public class TreeDiffTest {
+
+    private final Map<Sha1, Tree> storedTrees = new HashMap<>();
+    private final List<Sha1> readTrees = new ArrayList<>();
+    private final Function<Sha1, Tree> reader = sha -> {
+        readTrees.add(sha);
+        return storedTrees.get(sha);
+    };
+
+    @Test
+    void testSameChangesAsIndexDiff() {
+        final var oldFiles = Map.of(
+                "a", "a",
+                "dir/same", "same",
+                "dir/changed", "old",
+                "dir/deleted", "deleted",
+                "dir/nested/file", "nested",
+                "becomesDir", "file",
+                "deletedDir/file", "file"
+        );
+        final var newFiles = Map.of(
+                "a", "a",
+                "dir/same", "same",
+                "dir/changed", "new",
+                "dir/added", "added",
+                "dir/nested/file", "nested",
+                "becomesDir/file", "file",
+                "addedDir/file", "file"
+        );
+        final var oldTree = store(oldFiles);
+        final var newTree = store(newFiles);
+
+        Assertions.assertThat(TreeDiff.diff(newTree, oldTree, reader))
+                .containsExactlyInAnyOrderElementsOf(index(newFiles).getDiff(index(oldFiles)));
+    }
+
+    @Test
+    void testReadsOnlyDifferingSubtrees() {
+        final var oldFiles = new LinkedHashMap<String, String>();
+        for (int dir = 0; dir < 50; dir++) {
+            for (int file = 0; file < 20; file++) {
+                oldFiles.put("dir" + dir + "/sub/file" + file, dir + "_" + file);
+            }
+        }
+        final var newFiles = new LinkedHashMap<>(oldFiles);
+        newFiles.put("dir7/sub/file1", "changed1");
+        newFiles.put("dir7/sub/file2", "changed2");
+        newFiles.put("dir7/sub/file3", "changed3");
+        final var oldTree = store(oldFiles);
+        final var newTree = store(newFiles);
+
+        final var diff = TreeDiff.diff(newTree, oldTree, reader);
+
+        Assertions.assertThat(diff)
+                .containsExactlyInAnyOrderElementsOf(index(newFiles).getDiff(index(oldFiles)))
+                .hasSize(3);
+        // both roots, both dir7 and both dir7/sub
+        Assertions.assertThat(readTrees)
+                .hasSize(6);
+    }
+
+    @Test
+    void testEqualTreesAreNotRead() {
+        final var tree = store(Map.of("dir/file", "content"));
+
+        Assertions.assertThat(TreeDiff.diff(tree, tree, reader))
+                .isEmpty();
+        Assertions.assertThat(readTrees)
+                .isEmpty();
+    }
+
+    @Test
+    void testDiffWithEmptyTree() {
+        final var tree = store(Map.of("dir/file", "content"));
+
+        Assertions.assertThat(TreeDiff.diff(null, tree, reader))
+                .containsExactly(new Deletion(new VCSFileDesc(VCSPath.create("dir/file"), Sha1.hash("content"))));
+        Assertions.assertThat(TreeDiff.diff(null, null, reader))
+                .isEmpty();
+    }
+
+    @Test
+    void testFindFileReadsTreesOnPath() {
+        final var rootSha = store(Map.of("a/b/file", "content", "c/file", "other", "file", "root"));
+        final var root = storedTrees.get(rootSha);
+
+        Assertions.assertThat(root.findFile(VCSPath.create("a/b/file"), reader))
+                .isEqualTo(Sha1.hash("content"));
+        Assertions.assertThat(readTrees)
+                .hasSize(2);
+        Assertions.assertThat(root.findFile(VCSPath.create("file"), reader))
+                .isEqualTo(Sha1.hash("root"));
+        Assertions.assertThat(root.findFile(VCSPath.create("a/b"), reader))
+                .isNull();
+        Assertions.assertThat(root.findFile(VCSPath.create("file/nested"), reader))
+                .isNull();
+        Assertions.assertThat(root.findFile(VCSPath.create("absent/file"), reader))
+                .isNull();
+    }
+
+    private Sha1 store(final Map<String, String> files) {
+        final var trees = Tree.createFromIndex(index(files));
+        trees.forEach(tree -> storedTrees.put(tree.sha1(), tree));
+        return trees.get(0).sha1();
+    }
+
+    private static Index index(final Map<String, String> files) {
+        final var entries = new ArrayList<IndexEntry>();
+        files.forEach((path, content) -> entries.add(IndexEntry.newNormalEntry(VCSPath.create(path), Sha1.hash(content))));
+        return Index.create(entries);
+    }
+}
@@ -5,6 +5,8 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public class VCSPathTest {
 
@@ -72,4 +74,54 @@ public class VCSPathTest {
         Assertions.assertThat(VCSPath.isValidVCSPathString(absPath))
                 .isFalse();
     }
+
+    @Test
+    void testEmptyComponentAndTrailingSeparator() {
+        Assertions.assertThat(VCSPath.isValidVCSPathString("a//b"))
+                .isFalse();
+        Assertions.assertThat(VCSPath.isValidVCSPathString("/"))
+                .isFalse();
+        Assertions.assertThat(VCSPath.create("a/b/"))
+                .isEqualTo(VCSPath.create("a/b"));
+        Assertions.assertThat(VCSPath.isValidVCSPathString(".simplegit/a"))
+                .isFalse();
+        Assertions.assertThat(VCSPath.isValidVCSPathString(".simplegitignore"))
+                .isTrue();
+    }
+
+    @Test
+    void testResolvedPathEqualsCreated() {
+        final var created = VCSPath.create("a/b/c");
+        final var resolved = VCSPath.root
+                .resolve(VCSFileName.create("a"))
+                .resolve(VCSFileName.create("b"))
+                .resolve(VCSFileName.create("c"));
+        Assertions.assertThat(resolved)
+                .isEqualTo(created)
+                .hasSameHashCodeAs(created);
+        Assertions.assertThat(resolved.getParent())
+                .isEqualTo(VCSPath.create("a/b"));
+        Assertions.assertThat(resolved.getParent().getParent().getParent().isRoot())
+                .isTrue();
+        Assertions.assertThat(resolved.startsWith(VCSPath.create("a/b")))
+                .isTrue();
+        Assertions.assertThat(resolved.startsWith(VCSPath.create("a/c")))
+                .isFalse();
+        Assertions.assertThat(resolved.length())
+                .isEqualTo(3);
+        Assertions.assertThat(resolved.toString())
+                .isEqualTo("a/b/c");
+    }
+
+    @Test
+    void testOrderIsOrderOfUnixPathStrings() {
+        final var paths = List.of("a", "a.b", "a/b", "a-b/c", "a/b.c", "a/b/c", "ab", "b", "A", "a/_", "a0/b", "a.b/c");
+        final var sorted = paths.stream()
+                .map(VCSPath::create)
+                .sorted()
+                .map(VCSPath::toUnixPathString)
+                .collect(Collectors.toList());
+        Assertions.assertThat(sorted)
+                .isEqualTo(paths.stream().sorted().collect(Collectors.toList()));
+    }
 }
@@ -4,6 +4,10 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.stream.Collectors;
+
 public class TestSha1 {
 
     @Test
@@ -39,7 +43,31 @@ public class TestSha1 {
         Assertions.assertThat(Sha1.hash("abc").getHexString())
                 .isEqualTo(DigestUtils.sha1Hex("abc"));
     }
-}
-
 
+    @Test
+    void testBinaryAndHexRoundTrip() {
+        for (final var content : new String[]{"abc", "", "ff", "0"}) {
+            final var hex = DigestUtils.sha1Hex(content);
+            final var sha = Sha1.create(hex);
+            Assertions.assertThat(sha.getHexString()).isEqualTo(hex);
+            Assertions.assertThat(sha.getBinary()).isEqualTo(DigestUtils.sha1(content));
+            Assertions.assertThat(Sha1.fromBinary(sha.getBinary())).isEqualTo(sha).hasSameHashCodeAs(sha);
+            Assertions.assertThat(Sha1.read(sha.write(ByteBuffer.allocate(Sha1.BINARY_LENGTH)).flip())).isEqualTo(sha);
+        }
+        Assertions.assertThat(Sha1.isValidSha1HexString(DigestUtils.sha1Hex("a").toUpperCase()))
+                .isFalse();
+    }
 
+    @Test
+    void testOrderIsOrderOfHexStrings() {
+        final var shas = new ArrayList<Sha1>();
+        for (int i = 0; i < 100; i++) {
+            shas.add(Sha1.hash(String.valueOf(i)));
+        }
+        shas.add(Sha1.create("f".repeat(40)));
+        shas.add(Sha1.create("0".repeat(40)));
+        shas.add(Sha1.create("8".repeat(40)));
+        final var sorted = shas.stream().sorted().map(Sha1::getHexString).collect(Collectors.toList());
+        Assertions.assertThat(sorted).isSorted();
+    }
+}
@@ -0,0 +1,151 @@
+package ru.otus.vcs.newversion.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CommitGraphTest {
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void testAppendAndReopen() {
+        final var path = temp.resolve("commit-graph");
+        final var graph = CommitGraph.open(path);
+        assertThat(graph.size()).isZero();
+        graph.append(sha("root"), sha("tree"), null, null);
+        graph.append(sha("left"), sha("tree"), sha("root"), null);
+        graph.append(sha("right"), sha("tree"), sha("root"), null);
+        graph.append(sha("left2"), sha("tree"), sha("left"), null);
+        assertThat(graph.append(sha("merge"), sha("tree2"), sha("left2"), sha("right"))).isEqualTo(4);
+        assertThat(graph.append(sha("left"), sha("tree"), sha("root"), null)).isEqualTo(1);
+
+        for (final var reopened : new CommitGraph[]{graph, CommitGraph.open(path)}) {
+            assertThat(reopened.size()).isEqualTo(5);
+            final int merge = reopened.positionOf(sha("merge"));
+            assertThat(reopened.sha(merge)).isEqualTo(sha("merge"));
+            assertThat(reopened.tree(merge)).isEqualTo(sha("tree2"));
+            assertThat(reopened.generation(merge)).isEqualTo(4);
+            assertThat(reopened.sha(reopened.firstParent(merge))).isEqualTo(sha("left2"));
+            assertThat(reopened.sha(reopened.secondParent(merge))).isEqualTo(sha("right"));
+            assertThat(reopened.firstParent(reopened.positionOf(sha("root")))).isEqualTo(CommitGraph.NO_PARENT);
+            assertThat(reopened.generation(reopened.positionOf(sha("root")))).isEqualTo(1);
+            assertThat(reopened.positionOf(sha("absent"))).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    void testGrowsBeyondInitialCapacity() {
+        final var path = temp.resolve("commit-graph");
+        final var graph = CommitGraph.open(path);
+        Sha1 parent = null;
+        for (int i = 0; i < 1000; i++) {
+            graph.append(sha(Integer.toString(i)), sha("tree"), parent, null);
+            parent = sha(Integer.toString(i));
+        }
+        final var reopened = CommitGraph.open(path);
+        assertThat(reopened.size()).isEqualTo(1000);
+        assertThat(reopened.generation(reopened.positionOf(sha("999")))).isEqualTo(1000);
+    }
+
+    @Test
+    void testIncompleteRecordIsIgnoredAndOverwritten() throws IOException {
+        final var path = temp.resolve("commit-graph");
+        CommitGraph.open(path).append(sha("root"), sha("tree"), null, null);
+        Files.write(path, new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+        final var graph = CommitGraph.open(path);
+        assertThat(graph.size()).isEqualTo(1);
+        graph.append(sha("child"), sha("tree"), sha("root"), null);
+        final var reopened = CommitGraph.open(path);
+        assertThat(reopened.size()).isEqualTo(2);
+        assertThat(reopened.sha(1)).isEqualTo(sha("child"));
+    }
+
+    @Test
+    void testIsStaleAfterAppendOfOtherInstance() {
+        final var path = temp.resolve("commit-graph");
+        final var graph = CommitGraph.open(path);
+        graph.append(sha("root"), sha("tree"), null, null);
+        assertThat(graph.isStale()).isFalse();
+        CommitGraph.open(path).append(sha("child"), sha("tree"), sha("root"), null);
+        assertThat(graph.isStale()).isTrue();
+    }
+
+    @Test
+    void testCompactionKeepsPositions() {
+        final var path = temp.resolve("commit-graph");
+        final var graph = CommitGraph.open(path);
+        Sha1 parent = null;
+        for (int i = 0; i < 3000; i++) {
+            graph.append(sha(Integer.toString(i)), sha("tree"), parent, null);
+            parent = sha(Integer.toString(i));
+        }
+        graph.compactIfNeeded();
+        graph.append(sha("last"), sha("tree"), parent, null);
+        for (final var reopened : new CommitGraph[]{graph, CommitGraph.open(path)}) {
+            assertThat(reopened.size()).isEqualTo(3001);
+            for (int i = 0; i < 3000; i += 7) {
+                assertThat(reopened.positionOf(sha(Integer.toString(i)))).isEqualTo(i);
+            }
+            final int last = reopened.positionOf(sha("last"));
+            assertThat(last).isEqualTo(3000);
+            assertThat(reopened.generation(last)).isEqualTo(3001);
+            assertThat(reopened.firstParent(last)).isEqualTo(2999);
+            assertThat(reopened.positionOf(sha("absent"))).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    void testReloadSeesAppendOfOtherInstance() {
+        final var path = temp.resolve("commit-graph");
+        final var graph = CommitGraph.open(path);
+        graph.append(sha("root"), sha("tree"), null, null);
+        CommitGraph.open(path).append(sha("child"), sha("tree"), sha("root"), null);
+        assertThatThrownBy(() -> graph.append(sha("other"), sha("tree"), sha("root"), null))
+                .isInstanceOf(IllegalStateException.class);
+        graph.reloadIfStale();
+        assertThat(graph.isStale()).isFalse();
+        assertThat(graph.append(sha("other"), sha("tree"), sha("root"), null)).isEqualTo(2);
+        final var reopened = CommitGraph.open(path);
+        assertThat(reopened.positionOf(sha("child"))).isEqualTo(1);
+        assertThat(reopened.positionOf(sha("other"))).isEqualTo(2);
+    }
+
+    @Test
+    void testLegacyFileIsReplaced() throws IOException {
+        final var path = temp.resolve("commit-graph");
+        Files.write(path, new byte[]{0x53, 0x47, 0x43, 0x47, 0, 0, 0, 1, 1, 2, 3});
+        final var graph = CommitGraph.open(path);
+        assertThat(graph.size()).isZero();
+        graph.append(sha("root"), sha("tree"), null, null);
+        assertThat(CommitGraph.open(path).positionOf(sha("root"))).isZero();
+    }
+
+    @Test
+    void testParentMustBePresent() {
+        final var graph = CommitGraph.open(temp.resolve("commit-graph"));
+        assertThatThrownBy(() -> graph.append(sha("child"), sha("tree"), sha("root"), null))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testBadMagic() throws IOException {
+        final var path = temp.resolve("commit-graph");
+        Files.write(path, new byte[]{0, 0, 0, 0, 0, 0, 0, 1});
+        assertThatThrownBy(() -> CommitGraph.open(path))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    private static Sha1 sha(final String content) {
+        return Sha1.hash(content);
+    }
+}
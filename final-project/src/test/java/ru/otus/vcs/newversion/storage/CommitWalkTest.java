@@ -0,0 +1,108 @@
+package ru.otus.vcs.newversion.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommitWalkTest {
+
+    @TempDir
+    Path temp;
+    private final Map<Sha1, String> names = new HashMap<>();
+    private CommitGraph graph;
+
+    @BeforeEach
+    void setup() {
+        graph = CommitGraph.open(temp.resolve("commit-graph"));
+        commit("root", null, null);
+        commit("a1", "root", null);
+        commit("b1", "root", null);
+        commit("a2", "a1", null);
+        commit("b2", "b1", null);
+        commit("merge", "a2", "b2");
+    }
+
+    @Test
+    void testDateOrder() {
+        assertThat(walk("merge", CommitWalk.Order.Date, false))
+                .containsExactly("merge", "b2", "a2", "b1", "a1", "root");
+    }
+
+    @Test
+    void testTopologicalOrderDoesNotInterleaveBranches() {
+        assertThat(walk("merge", CommitWalk.Order.Topological, false))
+                .containsExactly("merge", "a2", "a1", "b2", "b1", "root");
+    }
+
+    @Test
+    void testFirstParent() {
+        assertThat(walk("merge", CommitWalk.Order.Date, true))
+                .containsExactly("merge", "a2", "a1", "root");
+        assertThat(walk("merge", CommitWalk.Order.Topological, true))
+                .containsExactly("merge", "a2", "a1", "root");
+    }
+
+    @Test
+    void testCommitsPrecedeParentsInRandomHistory() {
+        final var random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            final int parent = random.nextInt(graph.size());
+            final int other = random.nextInt(graph.size());
+            commit("c" + i, name(graph.sha(parent)), other == parent || random.nextBoolean() ? null : name(graph.sha(other)));
+        }
+        for (final var order : CommitWalk.Order.values()) {
+            final var walked = walk("c299", order, false);
+            final var produced = new HashSet<String>();
+            for (final var name : walked) {
+                final int position = pos(name);
+                for (final int parent : new int[]{graph.firstParent(position), graph.secondParent(position)}) {
+                    if (parent != CommitGraph.NO_PARENT) {
+                        assertThat(produced).doesNotContain(name(graph.sha(parent)));
+                    }
+                }
+                assertThat(produced.add(name)).isTrue();
+            }
+            assertThat(walked).contains("root");
+        }
+    }
+
+    private List<String> walk(final String start, final CommitWalk.Order order, final boolean firstParent) {
+        return CommitWalk.start(graph, pos(start), order, firstParent).stream()
+                .mapToObj(position -> name(graph.sha(position)))
+                .collect(Collectors.toList());
+    }
+
+    private void commit(final String name, @Nullable final String firstParent, @Nullable final String secondParent) {
+        graph.append(
+                sha(name),
+                sha("tree"),
+                firstParent == null ? null : sha(firstParent),
+                secondParent == null ? null : sha(secondParent)
+        );
+        names.put(sha(name), name);
+    }
+
+    private String name(final Sha1 sha) {
+        return names.get(sha);
+    }
+
+    private int pos(final String name) {
+        return graph.positionOf(sha(name));
+    }
+
+    private static Sha1 sha(final String name) {
+        return Sha1.hash(name);
+    }
+}
@@ -0,0 +1,48 @@
+package ru.otus.vcs.newversion.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeltaTest {
+
+    @Test
+    void testSmallObjects() {
+        checkRoundTrip("", "");
+        checkRoundTrip("a", "");
+        checkRoundTrip("", "b");
+        checkRoundTrip("abc", "abd");
+    }
+
+    @Test
+    void testEditsInTheMiddle() {
+        final var base = "0123456789abcdef".repeat(100);
+        final var target = base.substring(0, 700) + "inserted text" + base.substring(750);
+        final var delta = Delta.create(base.getBytes(), target.getBytes());
+        assertThat(delta.length).isLessThan(100);
+        assertThat(Delta.apply(base.getBytes(), delta)).isEqualTo(target.getBytes());
+    }
+
+    @Test
+    void testRandomData() {
+        final var random = new Random(42);
+        final byte[] base = new byte[10_000];
+        random.nextBytes(base);
+        final byte[] target = new byte[12_000];
+        System.arraycopy(base, 5000, target, 0, 5000);
+        System.arraycopy(base, 0, target, 5000, 5000);
+        for (int i = 10_000; i < target.length; i++) {
+            target[i] = (byte) random.nextInt();
+        }
+        final var delta = Delta.create(base, target);
+        assertThat(delta.length).isLessThan(2500);
+        assertThat(Delta.apply(base, delta)).isEqualTo(target);
+    }
+
+    private static void checkRoundTrip(final String base, final String target) {
+        final var delta = Delta.create(base.getBytes(), target.getBytes());
+        assertThat(Delta.apply(base.getBytes(), delta)).isEqualTo(target.getBytes());
+    }
+}
@@ -0,0 +1,62 @@
+package ru.otus.vcs.newversion.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class EwahBitmapTest {
+
+    @Test
+    void testEmpty() {
+        assertThat(EwahBitmap.compress(new BitSet())).isEmpty();
+        assertThat(EwahBitmap.decompress(new long[0])).isEqualTo(new BitSet());
+    }
+
+    @Test
+    void testCleanRunsAreCompressed() {
+        final var bitSet = new BitSet();
+        bitSet.set(0, 64 * 1000);
+        bitSet.set(64 * 2000 + 5);
+        final long[] compressed = EwahBitmap.compress(bitSet);
+        assertThat(compressed).hasSizeLessThanOrEqualTo(4);
+        assertThat(EwahBitmap.decompress(compressed)).isEqualTo(bitSet);
+    }
+
+    @Test
+    void testRandomBitmaps() {
+        final var random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            final var bitSet = new BitSet();
+            final int length = random.nextInt(10_000);
+            int position = 0;
+            while (position < length) {
+                final int run = random.nextInt(300);
+                if (random.nextBoolean()) {
+                    bitSet.set(position, position + run);
+                } else if (random.nextBoolean()) {
+                    for (int j = position; j < position + run; j++) {
+                        bitSet.set(j, random.nextBoolean());
+                    }
+                }
+                position += run;
+            }
+            final long[] compressed = EwahBitmap.compress(bitSet);
+            final var buffer = ByteBuffer.allocate(EwahBitmap.serializedSize(compressed));
+            EwahBitmap.write(buffer, compressed);
+            buffer.flip();
+            assertThat(EwahBitmap.decompress(EwahBitmap.read(buffer))).isEqualTo(bitSet);
+            assertThat(buffer.hasRemaining()).isFalse();
+        }
+    }
+
+    @Test
+    void testTruncatedBitmapIsRejected() {
+        assertThatThrownBy(() -> EwahBitmap.decompress(new long[]{2}))
+                .isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,116 @@
+package ru.otus.vcs.newversion.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MergeBaseTest {
+
+    @TempDir
+    Path temp;
+    private final Map<Sha1, String> names = new HashMap<>();
+    private CommitGraph graph;
+
+    @BeforeEach
+    void setup() {
+        graph = CommitGraph.open(temp.resolve("commit-graph"));
+    }
+
+    @Test
+    void testDivergedBranches() {
+        commit("root", null, null);
+        commit("base", "root", null);
+        chain("base", "left", 5);
+        chain("base", "right", 50);
+        assertThat(mergeBases("left4", "right49")).containsExactly("base");
+        assertThat(mergeBases("right49", "left4")).containsExactly("base");
+    }
+
+    @Test
+    void testAncestor() {
+        commit("root", null, null);
+        chain("root", "c", 10);
+        assertThat(mergeBases("c3", "c9")).containsExactly("c3");
+        assertThat(mergeBases("c9", "c3")).containsExactly("c3");
+        assertThat(mergeBases("c5", "c5")).containsExactly("c5");
+        assertThat(MergeBase.isAncestor(graph, pos("c3"), pos("c9"))).isTrue();
+        assertThat(MergeBase.isAncestor(graph, pos("c9"), pos("c3"))).isFalse();
+        assertThat(MergeBase.isAncestor(graph, pos("c3"), pos("c3"))).isTrue();
+    }
+
+    @Test
+    void testCrissCross() {
+        commit("root", null, null);
+        commit("a", "root", null);
+        commit("b", "root", null);
+        commit("a2", "a", "b");
+        commit("b2", "b", "a");
+        commit("a3", "a2", null);
+        assertThat(mergeBases("a3", "b2")).containsExactlyInAnyOrder("a", "b");
+    }
+
+    @Test
+    void testRedundantCandidateIsRemoved() {
+        // "old" is reached from "right" side long before "mid" is painted by both sides
+        commit("old", null, null);
+        chain("old", "mid", 5);
+        commit("left", "mid4", null);
+        commit("right", "old", "mid4");
+        assertThat(mergeBases("left", "right")).containsExactly("mid4");
+    }
+
+    @Test
+    void testUnrelatedHistories() {
+        commit("first", null, null);
+        commit("second", null, null);
+        chain("first", "f", 3);
+        assertThat(mergeBases("f2", "second")).isEmpty();
+        assertThat(MergeBase.isAncestor(graph, pos("first"), pos("second"))).isFalse();
+    }
+
+    private List<String> mergeBases(final String first, final String second) {
+        return MergeBase.find(graph, pos(first), pos(second)).stream()
+                .map(position -> name(graph.sha(position)))
+                .collect(Collectors.toList());
+    }
+
+    private void chain(final String from, final String prefix, final int length) {
+        String parent = from;
+        for (int i = 0; i < length; i++) {
+            commit(prefix + i, parent, null);
+            parent = prefix + i;
+        }
+    }
+
+    private void commit(final String name, @Nullable final String firstParent, @Nullable final String secondParent) {
+        graph.append(
+                sha(name),
+                sha("tree"),
+                firstParent == null ? null : sha(firstParent),
+                secondParent == null ? null : sha(secondParent)
+        );
+        names.put(sha(name), name);
+    }
+
+    private String name(final Sha1 sha) {
+        return names.get(sha);
+    }
+
+    private int pos(final String name) {
+        return graph.positionOf(sha(name));
+    }
+
+    private static Sha1 sha(final String name) {
+        return Sha1.hash(name);
+    }
+}
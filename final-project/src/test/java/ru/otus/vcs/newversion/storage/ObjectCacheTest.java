@@ -0,0 +1,42 @@
+package ru.otus.vcs.newversion.storage;
+
+import org.junit.jupiter.api.Test;
+import ru.otus.vcs.newversion.objects.Blob;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ObjectCacheTest {
+
+    @Test
+    void testEvictsLeastRecentlyUsedWhenBudgetExceeded() {
+        final var cache = new ObjectCache(100);
+        final var a = new Blob("a".getBytes());
+        final var b = new Blob("b".getBytes());
+        final var c = new Blob("c".getBytes());
+        cache.put(Sha1.hash("a"), a, 40);
+        cache.put(Sha1.hash("b"), b, 40);
+        assertThat(cache.getOrNull(Sha1.hash("a"))).isSameAs(a);
+        cache.put(Sha1.hash("c"), c, 40);
+
+        assertThat(cache.getOrNull(Sha1.hash("b"))).isNull();
+        assertThat(cache.getOrNull(Sha1.hash("a"))).isSameAs(a);
+        assertThat(cache.getOrNull(Sha1.hash("c"))).isSameAs(c);
+        assertThat(cache.getUsedBytes()).isEqualTo(80);
+        assertThat(cache.getHits()).isEqualTo(3);
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+    }
+
+    @Test
+    void testObjectLargerThanBudgetIsNotCached() {
+        final var cache = new ObjectCache(10);
+        cache.put(Sha1.hash("small"), new Blob("small".getBytes()), 5);
+        cache.put(Sha1.hash("large"), new Blob("large".getBytes()), 11);
+
+        assertThat(cache.getOrNull(Sha1.hash("large"))).isNull();
+        assertThat(cache.getOrNull(Sha1.hash("small"))).isNotNull();
+        assertThat(cache.getEvictions()).isZero();
+        assertThat(new ObjectCache(0).getOrNull(Sha1.hash("small"))).isNull();
+    }
+}
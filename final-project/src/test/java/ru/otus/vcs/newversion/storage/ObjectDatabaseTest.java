@@ -0,0 +1,313 @@
+package ru.otus.vcs.newversion.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.otus.vcs.newversion.config.GitConfig;
+import ru.otus.vcs.newversion.objects.Blob;
+import ru.otus.vcs.newversion.ref.Sha1;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.InflaterInputStream;
+
+import static java.util.Collections.emptyMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ObjectDatabaseTest {
+
+    @TempDir
+    Path objectsDir;
+    private ObjectDatabase objectDatabase;
+
+    @BeforeEach
+    void setup() {
+        objectDatabase = new ObjectDatabase(objectsDir, new GitConfig());
+    }
+
+    @Test
+    void testLooseObject() {
+        final var serialized = new Blob("a".getBytes()).serialize();
+        final var sha = Sha1.hash(serialized);
+        assertThat(objectDatabase.contains(sha)).isFalse();
+        assertThat(objectDatabase.readOrNull(sha)).isNull();
+        objectDatabase.saveIfAbsent(sha, serialized);
+        assertThat(objectDatabase.contains(sha)).isTrue();
+        assertThat(objectDatabase.readOrNull(sha)).isEqualTo(serialized);
+    }
+
+    @Test
+    void testRepackMovesLooseObjectsToPack() throws IOException {
+        final var first = save("a");
+        final var second = save("b");
+        assertThat(objectDatabase.repack(emptyMap())).isEqualTo(2);
+        try (var files = Files.list(objectsDir)) {
+            assertThat(files).containsExactly(objectsDir.resolve(ObjectDatabase.PACK_DIR));
+        }
+        assertThat(objectDatabase.readOrNull(first)).isEqualTo(serialized("a"));
+        assertThat(objectDatabase.readOrNull(second)).isEqualTo(serialized("b"));
+        assertThat(new ObjectDatabase(objectsDir, new GitConfig()).readOrNull(first)).isEqualTo(serialized("a"));
+        assertThat(objectDatabase.repack(emptyMap())).isZero();
+    }
+
+    @Test
+    void testRepackAppendsToExistingPack() {
+        final var first = save("a");
+        objectDatabase.repack(emptyMap());
+        final var second = save("b");
+        save("a");
+        assertThat(objectDatabase.readOrNull(second)).isEqualTo(serialized("b"));
+        assertThat(objectDatabase.repack(emptyMap())).isEqualTo(1);
+        assertThat(objectDatabase.readOrNull(first)).isEqualTo(serialized("a"));
+        assertThat(objectDatabase.readOrNull(second)).isEqualTo(serialized("b"));
+        assertThat(objectDatabase.readOrNull(Sha1.hash("absent"))).isNull();
+    }
+
+    @Test
+    void testRepackOfStaleInstanceKeepsObjectsPackedByOther() {
+        final var first = save("a");
+        objectDatabase.repack(emptyMap());
+        assertThat(objectDatabase.readOrNull(first)).isEqualTo(serialized("a"));
+        final var other = new ObjectDatabase(objectsDir, new GitConfig());
+        final var second = Sha1.hash(serialized("b"));
+        other.saveIfAbsent(second, serialized("b"));
+        assertThat(other.repack(emptyMap())).isEqualTo(1);
+        final var third = save("c");
+        assertThat(objectDatabase.repack(emptyMap())).isEqualTo(1);
+        final var reopened = new ObjectDatabase(objectsDir, new GitConfig());
+        assertThat(reopened.readOrNull(first)).isEqualTo(serialized("a"));
+        assertThat(reopened.readOrNull(second)).isEqualTo(serialized("b"));
+        assertThat(reopened.readOrNull(third)).isEqualTo(serialized("c"));
+    }
+
+    @Test
+    void testPackIsReadAcrossSegments() {
+        final var bases = new HashMap<Sha1, Sha1>();
+        Sha1 previous = null;
+        for (int i = 0; i < 20; i++) {
+            final var sha = save("line\n".repeat(50) + i);
+            if (previous != null) {
+                bases.put(sha, previous);
+            }
+            previous = sha;
+        }
+        objectDatabase.repack(bases);
+        final var packFile = PackFile.openOrNull(objectsDir.resolve(ObjectDatabase.PACK_DIR), 3);
+        assertThat(packFile).isNotNull();
+        for (int i = 0; i < 20; i++) {
+            final var content = "line\n".repeat(50) + i;
+            assertThat(packFile.readOrNull(Sha1.hash(serialized(content)))).isEqualTo(serialized(content));
+        }
+    }
+
+    @Test
+    void testPruneSwitchesToNewPackData() throws IOException {
+        final var kept = save("kept");
+        final var pruned = save("pruned");
+        objectDatabase.repack(emptyMap());
+        final var packDir = objectsDir.resolve(ObjectDatabase.PACK_DIR);
+        final var oldPack = PackFile.openOrNull(packDir);
+        assertThat(oldPack).isNotNull();
+        assertThat(objectDatabase.prune(kept::equals, Map::of)).isEqualTo(1);
+        final var newPack = PackFile.openOrNull(packDir);
+        assertThat(newPack).isNotNull();
+        assertThat(newPack.getPackId()).isNotEqualTo(oldPack.getPackId());
+        assertThat(newPack.readOrNull(pruned)).isNull();
+        assertThat(newPack.readOrNull(kept)).isEqualTo(serialized("kept"));
+        assertThat(oldPack.readOrNull(pruned)).isEqualTo(serialized("pruned"));
+        try (var files = Files.list(packDir)) {
+            assertThat(files).containsExactlyInAnyOrder(newPack.getDataPath(), packDir.resolve(PackFile.INDEX_FILE));
+        }
+    }
+
+    @Test
+    void testManyObjects() {
+        for (int i = 0; i < 1000; i++) {
+            save(Integer.toString(i));
+        }
+        objectDatabase.repack(emptyMap());
+        for (int i = 0; i < 1000; i++) {
+            final var content = Integer.toString(i);
+            assertThat(objectDatabase.readOrNull(Sha1.hash(serialized(content))))
+                    .isEqualTo(serialized(content));
+        }
+    }
+
+    @Test
+    void testDeltaChain() throws IOException {
+        final var versions = new ArrayList<String>();
+        final var bases = new HashMap<Sha1, Sha1>();
+        Sha1 previous = null;
+        var content = "line\n".repeat(2000);
+        for (int i = 0; i < 25; i++) {
+            content = content + "version " + i + "\n";
+            versions.add(content);
+            final var sha = save(content);
+            if (previous != null) {
+                bases.put(sha, previous);
+            }
+            previous = sha;
+        }
+        objectDatabase.repack(bases);
+        final var packFile = PackFile.openOrNull(objectsDir.resolve(ObjectDatabase.PACK_DIR));
+        assertThat(packFile).isNotNull();
+        assertThat(Files.size(packFile.getDataPath())).isLessThan(5L * serialized(content).length);
+        final var reopened = new ObjectDatabase(objectsDir, new GitConfig());
+        for (final var version : versions) {
+            assertThat(reopened.readOrNull(Sha1.hash(serialized(version))))
+                    .isEqualTo(serialized(version));
+        }
+    }
+
+    @Test
+    void testPruneWithoutGarbageDoesNotCollectDeltaBases() {
+        final var sha = save("a");
+        objectDatabase.repack(emptyMap());
+        assertThat(objectDatabase.prune(sha::equals, () -> {
+            throw new AssertionError("Pack is not rewritten.");
+        })).isZero();
+        assertThat(objectDatabase.readOrNull(sha)).isEqualTo(serialized("a"));
+    }
+
+    @Test
+    void testPruneKeepsDeltasOfPack() throws IOException {
+        final var base = save("line\n".repeat(2000));
+        final var modified = save("line\n".repeat(2000) + "modified\n");
+        final var pruned = save("pruned");
+        objectDatabase.repack(Map.of(modified, base));
+        assertThat(objectDatabase.prune(sha -> !sha.equals(pruned), Map::of)).isEqualTo(1);
+        final var packFile = PackFile.openOrNull(objectsDir.resolve(ObjectDatabase.PACK_DIR));
+        assertThat(packFile).isNotNull();
+        assertThat(packFile.deltaBaseOrNull(modified)).isEqualTo(base);
+        assertThat(packFile.deltaBaseOrNull(base)).isNull();
+        assertThat(objectDatabase.readOrNull(modified)).isEqualTo(serialized("line\n".repeat(2000) + "modified\n"));
+    }
+
+    @Test
+    void testDeltaBaseCycleIsIgnored() {
+        final var first = save("a".repeat(1000) + "1");
+        final var second = save("a".repeat(1000) + "2");
+        objectDatabase.repack(Map.of(first, second, second, first));
+        assertThat(objectDatabase.readOrNull(first)).isEqualTo(serialized("a".repeat(1000) + "1"));
+        assertThat(objectDatabase.readOrNull(second)).isEqualTo(serialized("a".repeat(1000) + "2"));
+    }
+
+    @Test
+    void testLooseObjectIsZlibCompressed() throws IOException {
+        final var content = "line\n".repeat(1000);
+        final var sha = save(content);
+        final var hex = sha.getHexString();
+        final var path = objectsDir.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+        assertThat(Files.size(path)).isLessThan(serialized(content).length / 10);
+        try (var input = new InflaterInputStream(Files.newInputStream(path))) {
+            assertThat(input.readAllBytes()).isEqualTo(serialized(content));
+        }
+        try (var input = objectDatabase.openOrNull(sha)) {
+            assertThat(input).isNotNull();
+            assertThat(input.readAllBytes()).isEqualTo(serialized(content));
+        }
+    }
+
+    @Test
+    void testObjectsWrittenWithDifferentCodecs() {
+        final var compressed = save("compressed");
+        final var config = new GitConfig();
+        config.put(GitConfig.COMPRESSION_CODEC, "none");
+        objectDatabase = new ObjectDatabase(objectsDir, config);
+        final var raw = save("raw");
+        assertThat(objectDatabase.readOrNull(compressed)).isEqualTo(serialized("compressed"));
+        assertThat(objectDatabase.readOrNull(raw)).isEqualTo(serialized("raw"));
+        assertThat(objectDatabase.repack(emptyMap())).isEqualTo(2);
+        assertThat(objectDatabase.readOrNull(compressed)).isEqualTo(serialized("compressed"));
+        assertThat(objectDatabase.readOrNull(raw)).isEqualTo(serialized("raw"));
+    }
+
+    @Test
+    void testSaveBlobFromStream() throws IOException {
+        final var content = "streamed".getBytes();
+        final var sha = objectDatabase.saveBlob(new ByteArrayInputStream(content), content.length);
+        assertThat(sha).isEqualTo(Sha1.hash(serialized("streamed")));
+        assertThat(ObjectDatabase.hashBlob(new ByteArrayInputStream(content), content.length)).isEqualTo(sha);
+        assertThat(objectDatabase.readOrNull(sha)).isEqualTo(serialized("streamed"));
+        assertThat(objectDatabase.saveBlob(new ByteArrayInputStream(content), content.length)).isEqualTo(sha);
+        assertThatThrownBy(() -> objectDatabase.saveBlob(new ByteArrayInputStream(content), content.length + 1))
+                .isInstanceOf(IllegalStateException.class);
+        try (var files = Files.list(objectsDir)) {
+            assertThat(files).hasSize(1);
+        }
+    }
+
+    @Test
+    void testChunkedBlobsShareChunksAndAreReassembled() throws IOException {
+        final var config = new GitConfig();
+        config.put(GitConfig.CHUNKED_BLOB_THRESHOLD, 1024 * 1024);
+        objectDatabase = new ObjectDatabase(objectsDir, config);
+        final var random = new Random(1);
+        final var first = new byte[4 * 1024 * 1024];
+        random.nextBytes(first);
+        final var second = first.clone();
+        random.nextBytes(second);
+        System.arraycopy(first, 100, second, 100, first.length - 100);
+
+        final var firstSha = objectDatabase.saveBlob(new ByteArrayInputStream(first), first.length);
+        final long firstObjects = countLooseObjects();
+        final var secondSha = objectDatabase.saveBlob(new ByteArrayInputStream(second), second.length);
+
+        assertThat(firstSha).isEqualTo(Sha1.hash(new Blob(first).serialize()));
+        assertThat(secondSha).isEqualTo(ObjectDatabase.hashBlob(new ByteArrayInputStream(second), second.length));
+        // manifest and first chunk differ
+        assertThat(countLooseObjects() - firstObjects).isEqualTo(2);
+        assertThat(objectDatabase.readOrNull(secondSha)).isEqualTo(new Blob(second).serialize());
+        objectDatabase.repack(emptyMap());
+        try (var input = objectDatabase.openOrNull(firstSha)) {
+            assertThat(input.readAllBytes()).isEqualTo(new Blob(first).serialize());
+        }
+    }
+
+    @Test
+    void testChunksOfLooseAndPackedManifest() {
+        final var config = new GitConfig();
+        config.put(GitConfig.CHUNKED_BLOB_THRESHOLD, 1024 * 1024);
+        objectDatabase = new ObjectDatabase(objectsDir, config);
+        final var random = new Random(2);
+        final var first = new byte[4 * 1024 * 1024];
+        random.nextBytes(first);
+        final var second = first.clone();
+        second[0]++;
+        final var firstSha = objectDatabase.saveBlob(new ByteArrayInputStream(first), first.length);
+        final var secondSha = objectDatabase.saveBlob(new ByteArrayInputStream(second), second.length);
+        final var chunks = objectDatabase.chunksOf(secondSha);
+        assertThat(chunks).isNotEmpty();
+        assertThat(objectDatabase.chunksOf(chunks.get(0))).isEmpty();
+
+        objectDatabase.repack(Map.of(secondSha, firstSha));
+        assertThat(objectDatabase.chunksOf(secondSha)).isEqualTo(chunks);
+        assertThat(objectDatabase.chunksOf(firstSha)).isNotEmpty();
+        assertThat(objectDatabase.chunksOf(chunks.get(0))).isEmpty();
+        assertThat(objectDatabase.chunksOf(save("plain"))).isEmpty();
+    }
+
+    private long countLooseObjects() throws IOException {
+        try (var files = Files.walk(objectsDir)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private Sha1 save(final String content) {
+        final var serialized = serialized(content);
+        final var sha = Sha1.hash(serialized);
+        objectDatabase.saveIfAbsent(sha, serialized);
+        return sha;
+    }
+
+    private static byte[] serialized(final String content) {
+        return new Blob(content.getBytes()).serialize();
+    }
+}